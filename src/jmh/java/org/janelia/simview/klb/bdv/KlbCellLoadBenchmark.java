@@ -0,0 +1,92 @@
+package org.janelia.simview.klb.bdv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cells loaded per second by KlbVolatileArrayLoader, per data type, block
+ * size and entropy. Cells are as large as KLB blocks and loaded in turn
+ * from all time points, as a viewer scrolling through time would. Files
+ * are read through the page cache, so this measures decoding rather than
+ * storage.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class KlbCellLoadBenchmark
+{
+    @Param( { "uint8", "uint16", "float32" } )
+    public String type;
+
+    @Param( { "32x32x32", "64x64x32", "128x128x64" } )
+    public String blockSize;
+
+    @Param( { "0.1", "0.9" } )
+    public double entropy;
+
+    @Param( "512x512x128" )
+    public String size;
+
+    @Param( "4" )
+    public int numTimePoints;
+
+    private KlbVolatileArrayLoader arrayLoader;
+    private final List< long[] > cells = new ArrayList< long[] >();
+    private int next = 0;
+
+    @Setup( Level.Trial )
+    public void setUp()
+            throws IOException
+    {
+        final KlbSyntheticDataset dataset = new KlbSyntheticDataset( KlbSyntheticDataset.getDefaultDirectory(), type, size, blockSize, entropy, numTimePoints, 1 ).write();
+        final KlbPartitionResolver resolver = dataset.createResolver();
+        // no coalescing, one read per cell
+        arrayLoader = KlbImgLoader.createArrayLoader( resolver, 0, KlbImgLoaderOptions.options().coalescingWindowMicros( 0 ) );
+
+        // cell = { timePoint, x, y, z, sizeX, sizeY, sizeZ }
+        final long[] imageSize = new long[ 3 ];
+        final int[] cellSize = new int[ 3 ];
+        resolver.getImageSize( 0, 0, imageSize );
+        resolver.getBlockSize( 0, 0, cellSize );
+        for ( int t = 0; t < numTimePoints; ++t ) {
+            for ( long z = 0; z < imageSize[ 2 ]; z += cellSize[ 2 ] ) {
+                for ( long y = 0; y < imageSize[ 1 ]; y += cellSize[ 1 ] ) {
+                    for ( long x = 0; x < imageSize[ 0 ]; x += cellSize[ 0 ] ) {
+                        cells.add( new long[]{ t, x, y, z,
+                                Math.min( cellSize[ 0 ], imageSize[ 0 ] - x ),
+                                Math.min( cellSize[ 1 ], imageSize[ 1 ] - y ),
+                                Math.min( cellSize[ 2 ], imageSize[ 2 ] - z ) } );
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Object loadCell()
+            throws InterruptedException
+    {
+        final long[] cell = cells.get( next );
+        next = (next + 1) % cells.size();
+        final int[] dimensions = { ( int ) cell[ 4 ], ( int ) cell[ 5 ], ( int ) cell[ 6 ] };
+        return arrayLoader.loadArray( ( int ) cell[ 0 ], 0, 0, dimensions, new long[]{ cell[ 1 ], cell[ 2 ], cell[ 3 ] } );
+    }
+}
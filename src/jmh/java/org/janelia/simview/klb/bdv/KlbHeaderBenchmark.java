@@ -0,0 +1,62 @@
+package org.janelia.simview.klb.bdv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header resolution: adding a view setup to a KlbPartitionResolver, which
+ * reads the headers of all resolution levels with the native library, and
+ * reading the block offset table of one file in Java.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class KlbHeaderBenchmark
+{
+    @Param( { "32x32x32", "128x128x64" } )
+    public String blockSize;
+
+    @Param( "1024x1024x256" )
+    public String size;
+
+    @Param( "4" )
+    public int numLevels;
+
+    private KlbSyntheticDataset dataset;
+
+    @Setup( Level.Trial )
+    public void setUp()
+            throws IOException
+    {
+        dataset = new KlbSyntheticDataset( KlbSyntheticDataset.getDefaultDirectory(), "uint16", size, blockSize, 0.5, 1, numLevels ).write();
+    }
+
+    @Benchmark
+    public Object resolveViewSetup()
+    {
+        return new KlbPartitionResolver().addViewSetup( dataset.getFilePath( 0, 0 ), KlbSyntheticDataset.TIME_TAG );
+    }
+
+    @Benchmark
+    public Object readBlockIndex()
+            throws IOException
+    {
+        return KlbBlockIndex.read( dataset.getFilePath( 0, 0 ) );
+    }
+}
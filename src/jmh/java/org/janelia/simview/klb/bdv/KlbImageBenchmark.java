@@ -0,0 +1,72 @@
+package org.janelia.simview.klb.bdv;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole volume access of KlbSetupImgLoader: loading a full volume, its
+ * conversion by getFloatImage, and getFloatImage with normalization. The
+ * difference of the last two is the cost of normalization.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class KlbImageBenchmark
+{
+    @Param( { "uint8", "uint16", "float32" } )
+    public String type;
+
+    @Param( "512x512x128" )
+    public String size;
+
+    @Param( "64x64x32" )
+    public String blockSize;
+
+    @Param( "0.5" )
+    public double entropy;
+
+    private KlbImgLoader.KlbSetupImgLoader< ?, ?, ? > setupImgLoader;
+
+    @Setup( Level.Trial )
+    public void setUp()
+            throws IOException
+    {
+        final KlbSyntheticDataset dataset = new KlbSyntheticDataset( KlbSyntheticDataset.getDefaultDirectory(), type, size, blockSize, entropy, 1, 1 ).write();
+        setupImgLoader = dataset.createImgLoader().getSetupImgLoader( 0 );
+    }
+
+    @Benchmark
+    public Object loadFullVolume()
+    {
+        return setupImgLoader.getImage( 0, ImgLoaderHints.LOAD_COMPLETELY );
+    }
+
+    @Benchmark
+    public Object getFloatImage()
+    {
+        return setupImgLoader.getFloatImage( 0, false, ImgLoaderHints.LOAD_COMPLETELY );
+    }
+
+    @Benchmark
+    public Object getFloatImageNormalized()
+    {
+        return setupImgLoader.getFloatImage( 0, true, ImgLoaderHints.LOAD_COMPLETELY );
+    }
+}
@@ -0,0 +1,177 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares read throughput of random cell requests in the order they are
+ * issued (default) against the same requests routed through KlbIoScheduler.
+ * <p>
+ * Usage: KlbIoSchedulerBenchmark [dataset.xml|synthetic] [numRequests] [numThreads] [schedulerConcurrency] [default|elevator|both]
+ * <p>
+ * Without a data set, or with "synthetic", a KlbSyntheticDataset is
+ * written to klb.bdv.jmh.dir and read.
+ * <p>
+ * Later runs profit from the operating system's page cache. For meaningful
+ * numbers on local disks, run each order in a fresh JVM after dropping the
+ * page cache, or use a data set that is much larger than RAM.
+ */
+public class KlbIoSchedulerBenchmark
+{
+    private final KlbPartitionResolver resolver;
+    private final Map< Integer, KlbVolatileArrayLoader > arrayLoaders = new HashMap< Integer, KlbVolatileArrayLoader >();
+    private final List< long[] > requests = new ArrayList< long[] >();
+    private KlbBlockReader blockReader;
+
+    public KlbIoSchedulerBenchmark( final KlbPartitionResolver resolver, final SequenceDescriptionMinimal seq, final int numRequests, final long seed )
+    {
+        this.resolver = resolver;
+        // no coalescing, so that both orders issue the same reads
+        final KlbImgLoaderOptions options = KlbImgLoaderOptions.options().coalescingWindowMicros( 0 );
+        final List< ViewId > views = new ArrayList< ViewId >();
+        for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() ) {
+            arrayLoaders.put( setup.getId(), KlbImgLoader.createArrayLoader( resolver, setup.getId(), options ) );
+            for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+                final ViewId view = new ViewId( timePoint.getId(), setup.getId() );
+                if ( seq.getMissingViews() == null || !seq.getMissingViews().getMissingViews().contains( view ) ) {
+                    views.add( view );
+                }
+            }
+        }
+
+        // request = { timePoint, setup, level, x, y, z, sizeX, sizeY, sizeZ }
+        final Random random = new Random( seed );
+        final long[] imageSize = new long[ 3 ];
+        final int[] blockSize = new int[ 3 ];
+        for ( int i = 0; i < numRequests && !views.isEmpty(); ++i ) {
+            final ViewId view = views.get( random.nextInt( views.size() ) );
+            final int setup = view.getViewSetupId();
+            final int level = random.nextInt( resolver.getNumResolutionLevels( setup ) );
+            resolver.getImageSize( setup, level, imageSize );
+            resolver.getBlockSize( setup, level, blockSize );
+            final long[] request = new long[ 9 ];
+            request[ 0 ] = view.getTimePointId();
+            request[ 1 ] = setup;
+            request[ 2 ] = level;
+            for ( int d = 0; d < 3; ++d ) {
+                final long numCells = (imageSize[ d ] + blockSize[ d ] - 1) / blockSize[ d ];
+                request[ 3 + d ] = ( long ) (random.nextDouble() * numCells) * blockSize[ d ];
+                request[ 6 + d ] = Math.min( blockSize[ d ], imageSize[ d ] - request[ 3 + d ] );
+            }
+            requests.add( request );
+        }
+    }
+
+    /**
+     * Issues all requests from numThreads threads.
+     *
+     * @param numThreads number of concurrent requesting threads
+     * @param scheduler  scheduler to route reads through, null for the default order
+     * @return throughput in decoded MB/s
+     */
+    public double run( final int numThreads, final KlbIoScheduler scheduler )
+            throws InterruptedException
+    {
+        final KlbCellTiers tiers = KlbCellTiers.tiers().ioScheduler( scheduler ).blockReader( blockReader );
+        for ( final KlbVolatileArrayLoader arrayLoader : arrayLoaders.values() ) {
+            arrayLoader.setCellTiers( tiers );
+        }
+        final AtomicLong numBytes = new AtomicLong();
+        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+        for ( final long[] request : requests ) {
+            tasks.add( new Callable< Void >()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    final KlbVolatileArrayLoader arrayLoader = arrayLoaders.get( ( int ) request[ 1 ] );
+                    final int[] dimensions = { ( int ) request[ 6 ], ( int ) request[ 7 ], ( int ) request[ 8 ] };
+                    arrayLoader.loadArray( ( int ) request[ 0 ], ( int ) request[ 1 ], ( int ) request[ 2 ], dimensions,
+                            new long[]{ request[ 3 ], request[ 4 ], request[ 5 ] } );
+                    numBytes.addAndGet( ( long ) dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * arrayLoader.getBytesPerElement() );
+                    return null;
+                }
+            } );
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        final long start = System.nanoTime();
+        try {
+            executor.invokeAll( tasks );
+        } finally {
+            executor.shutdown();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        return numBytes.get() / 1e6 / seconds;
+    }
+
+    /**
+     * @param blockReader Java block reader for all requests, or null for the native reader
+     */
+    public void setBlockReader( final KlbBlockReader blockReader )
+    {
+        this.blockReader = blockReader;
+    }
+
+    public int getNumRequests()
+    {
+        return requests.size();
+    }
+
+    /**
+     * @return the data set named by the first argument, or the XML of a
+     * synthetic data set if there is none or it is "synthetic"
+     */
+    static String getDatasetXml( final String[] args )
+            throws IOException, SpimDataException
+    {
+        if ( args.length > 0 && !args[ 0 ].equals( "synthetic" ) ) {
+            return args[ 0 ];
+        }
+        return new KlbSyntheticDataset( KlbSyntheticDataset.getDefaultDirectory(), "uint16", "512x512x128", "64x64x32", 0.5, 8, 3 )
+                .write().writeXml().getPath();
+    }
+
+    public static void main( final String[] args ) throws Exception
+    {
+        final int numRequests = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 2000;
+        final int numThreads = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : Runtime.getRuntime().availableProcessors();
+        final int concurrency = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 2;
+        final String order = args.length > 4 ? args[ 4 ].toLowerCase() : "both";
+
+        final SpimDataMinimal data = new XmlIoSpimDataMinimal().load( getDatasetXml( args ) );
+        final KlbImgLoader loader = ( KlbImgLoader ) data.getSequenceDescription().getImgLoader();
+        final KlbIoSchedulerBenchmark benchmark = new KlbIoSchedulerBenchmark( loader.getResolver(), data.getSequenceDescription(), numRequests, 42 );
+        System.out.println( String.format( "%d requests, %d threads", benchmark.getNumRequests(), numThreads ) );
+
+        if ( order.equals( "default" ) || order.equals( "both" ) ) {
+            final double throughput = benchmark.run( numThreads, null );
+            System.out.println( String.format( "default order   %8.1f MB/s", throughput ) );
+        }
+        if ( order.equals( "elevator" ) || order.equals( "both" ) ) {
+            final KlbIoScheduler scheduler = new KlbIoScheduler( concurrency );
+            final double throughput = benchmark.run( numThreads, scheduler );
+            System.out.println( String.format( "elevator order  %8.1f MB/s  (%d concurrent reads, seek ratio %.2f)",
+                    throughput, concurrency, scheduler.getSeekRatio() ) );
+        }
+        if ( order.equals( "both" ) ) {
+            System.out.println( "Note: the second run may be served from the page cache, compare separate runs on cold storage." );
+        }
+        System.exit( 0 );
+    }
+}
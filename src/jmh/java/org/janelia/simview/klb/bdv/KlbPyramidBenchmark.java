@@ -0,0 +1,75 @@
+package org.janelia.simview.klb.bdv;
+
+import mpicbg.spim.data.SpimDataException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pyramid generation by KlbDownsampler, including writing the levels.
+ * Levels written by the previous invocation are deleted before each
+ * invocation.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 1 )
+@Measurement( iterations = 3 )
+@Fork( 1 )
+public class KlbPyramidBenchmark
+{
+    @Param( { "uint8", "uint16", "float32" } )
+    public String type;
+
+    @Param( "512x512x128" )
+    public String size;
+
+    @Param( "64x64x32" )
+    public String blockSize;
+
+    @Param( "0.5" )
+    public double entropy;
+
+    private KlbSyntheticDataset dataset;
+    private File xml;
+
+    @Setup( Level.Trial )
+    public void setUp()
+            throws IOException, SpimDataException
+    {
+        dataset = new KlbSyntheticDataset( KlbSyntheticDataset.getDefaultDirectory(), type, size, blockSize, entropy, 1, 1 ).write();
+        xml = dataset.writeXml();
+    }
+
+    @Setup( Level.Invocation )
+    public void deleteLevels()
+    {
+        final File[] files = dataset.getDirectory().listFiles();
+        if ( files != null ) {
+            for ( final File file : files ) {
+                if ( file.getName().contains( ".RESLVL" ) ) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void downsample()
+    {
+        new KlbDownsampler().process( xml );
+    }
+}
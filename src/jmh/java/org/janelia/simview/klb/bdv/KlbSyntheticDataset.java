@@ -0,0 +1,232 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.export.Downsample;
+import mpicbg.spim.data.SpimDataException;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import org.janelia.simview.klb.KLB;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes synthetic KLB data sets for the benchmarks: a time series of one
+ * view setup, with resolution levels named like KlbDownsampler names them.
+ * <p>
+ * Voxels mix a smooth signal with uniform noise. Entropy 0 is the smooth
+ * signal only, which compresses well, 1 is noise only, which hardly
+ * compresses at all. Data sets are written once per parameter combination
+ * to a directory under klb.bdv.jmh.dir (default: java.io.tmpdir) and
+ * reused by later runs.
+ * <p>
+ * Usage: KlbSyntheticDataset directory uint8|uint16|float32 512x512x128 64x64x32 entropy [numTimePoints] [numLevels]
+ */
+public class KlbSyntheticDataset
+{
+    public static final String TIME_TAG = "TM";
+
+    private final File directory;
+    private final String type;
+    private final long[] size;
+    private final int[] blockSize;
+    private final double entropy;
+    private final int numTimePoints;
+    private final int numLevels;
+
+    /**
+     * @param directory     parent directory, a sub directory per parameter combination is created
+     * @param type          uint8, uint16 or float32
+     * @param size          image size at level 0, e.g. "512x512x128"
+     * @param blockSize     KLB block size, e.g. "64x64x32"
+     * @param entropy       fraction of noise, 0 to 1
+     * @param numTimePoints number of time points
+     * @param numLevels     number of resolution levels, each downsampled by 2
+     */
+    public KlbSyntheticDataset( final File directory, final String type, final String size, final String blockSize, final double entropy,
+            final int numTimePoints, final int numLevels )
+    {
+        this.type = type.toLowerCase( Locale.ROOT );
+        if ( !this.type.equals( "uint8" ) && !this.type.equals( "uint16" ) && !this.type.equals( "float32" ) ) {
+            throw new IllegalArgumentException( "Unsupported type " + type );
+        }
+        this.size = parseLongs( size );
+        this.blockSize = parseInts( blockSize );
+        this.entropy = Math.max( 0, Math.min( 1, entropy ) );
+        this.numTimePoints = numTimePoints;
+        this.numLevels = numLevels;
+        this.directory = new File( directory, String.format( Locale.ROOT, "%s-%s-b%s-e%.2f-t%d-l%d",
+                this.type, size, blockSize, this.entropy, numTimePoints, numLevels ) );
+    }
+
+    /**
+     * @return parent directory of generated data sets, from klb.bdv.jmh.dir
+     */
+    public static File getDefaultDirectory()
+    {
+        return new File( System.getProperty( "klb.bdv.jmh.dir", new File( System.getProperty( "java.io.tmpdir" ), "klb-bdv-jmh" ).getPath() ) );
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @return path of the file of a time point and level
+     */
+    public String getFilePath( final int timePoint, final int level )
+    {
+        final String name = String.format( "synthetic_%s%06d", TIME_TAG, timePoint );
+        return new File( directory, level == 0 ? name + ".klb" : String.format( "%s.RESLVL%d.klb", name, level ) ).getPath();
+    }
+
+    /**
+     * Writes all files that do not exist yet.
+     *
+     * @return this
+     */
+    public KlbSyntheticDataset write()
+            throws IOException
+    {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create " + directory );
+        }
+        final KLB klb = KLB.newInstance();
+        for ( int t = 0; t < numTimePoints; ++t ) {
+            if ( new File( getFilePath( t, numLevels - 1 ) ).exists() ) {
+                continue;
+            }
+            Img< ? extends RealType< ? > > img = generate( t );
+            for ( int level = 0; level < numLevels; ++level ) {
+                if ( level > 0 ) {
+                    img = downsample( img );
+                }
+                final long[] dims = new long[ 3 ];
+                img.dimensions( dims );
+                final long[] klbBlockSize = { 1, 1, 1, 1, 1 };
+                for ( int d = 0; d < 3; ++d ) {
+                    klbBlockSize[ d ] = Math.min( blockSize[ d ], dims[ d ] );
+                }
+                final float scale = 1 << level;
+                klb.writeFull( img, getFilePath( t, level ), new float[]{ scale, scale, scale, 1, 1 }, klbBlockSize, KLB.CompressionType.BZIP2, null );
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a BDV XML file for the data set, e.g. for KlbDownsampler.
+     *
+     * @return the XML file
+     */
+    public File writeXml()
+            throws SpimDataException
+    {
+        final File xml = new File( directory, "dataset.xml" );
+        new KlbSpimDataAdapter( createResolver() ).writeXML( xml.getPath() );
+        return xml;
+    }
+
+    public KlbPartitionResolver createResolver()
+    {
+        final KlbPartitionResolver resolver = new KlbPartitionResolver();
+        if ( resolver.addViewSetup( getFilePath( 0, 0 ), TIME_TAG ) == null ) {
+            throw new IllegalStateException( "Could not read " + getFilePath( 0, 0 ) );
+        }
+        return resolver;
+    }
+
+    public KlbImgLoader createImgLoader()
+    {
+        return ( KlbImgLoader ) new KlbSpimDataAdapter( createResolver() ).createDataset().getSequenceDescription().getImgLoader();
+    }
+
+    public int getNumTimePoints()
+    {
+        return numTimePoints;
+    }
+
+    public int getNumLevels()
+    {
+        return numLevels;
+    }
+
+    private Img< ? extends RealType< ? > > generate( final int timePoint )
+    {
+        final Img< ? extends RealType< ? > > img;
+        final double max;
+        if ( type.equals( "uint8" ) ) {
+            img = ArrayImgs.unsignedBytes( size );
+            max = 255;
+        } else if ( type.equals( "uint16" ) ) {
+            // 12 bit, like most scientific cameras
+            img = ArrayImgs.unsignedShorts( size );
+            max = 4095;
+        } else {
+            img = ArrayImgs.floats( size );
+            max = 1;
+        }
+        final Random random = new Random( 42 + timePoint );
+        final long[] position = new long[ 3 ];
+        final Cursor< ? extends RealType< ? > > cursor = img.localizingCursor();
+        while ( cursor.hasNext() ) {
+            cursor.fwd();
+            cursor.localize( position );
+            final double smooth = 0.5
+                    + 0.25 * Math.sin( 0.05 * position[ 0 ] + 0.1 * timePoint ) * Math.cos( 0.04 * position[ 1 ] )
+                    + 0.25 * Math.sin( 0.1 * position[ 2 ] + 0.01 * position[ 0 ] );
+            cursor.get().setReal( max * ((1 - entropy) * smooth + entropy * random.nextDouble()) );
+        }
+        return img;
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private static Img< ? extends RealType< ? > > downsample( final Img img )
+    {
+        final long[] dims = new long[ 3 ];
+        img.dimensions( dims );
+        final int[] factors = new int[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            factors[ d ] = dims[ d ] >= 2 ? 2 : 1;
+            dims[ d ] /= factors[ d ];
+        }
+        final Img out = new ArrayImgFactory().create( dims, ( NativeType ) img.firstElement() );
+        Downsample.downsample( img, out, factors );
+        return out;
+    }
+
+    private static long[] parseLongs( final String s )
+    {
+        final String[] parts = s.toLowerCase( Locale.ROOT ).split( "x" );
+        final long[] values = new long[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            values[ d ] = Long.parseLong( parts[ Math.min( d, parts.length - 1 ) ].trim() );
+        }
+        return values;
+    }
+
+    private static int[] parseInts( final String s )
+    {
+        final long[] values = parseLongs( s );
+        return new int[]{ ( int ) values[ 0 ], ( int ) values[ 1 ], ( int ) values[ 2 ] };
+    }
+
+    public static void main( final String[] args ) throws Exception
+    {
+        if ( args.length < 5 ) {
+            System.out.println( "Usage: KlbSyntheticDataset directory uint8|uint16|float32 512x512x128 64x64x32 entropy [numTimePoints] [numLevels]" );
+            return;
+        }
+        final KlbSyntheticDataset dataset = new KlbSyntheticDataset( new File( args[ 0 ] ), args[ 1 ], args[ 2 ], args[ 3 ], Double.parseDouble( args[ 4 ] ),
+                args.length > 5 ? Integer.parseInt( args[ 5 ] ) : 1, args.length > 6 ? Integer.parseInt( args[ 6 ] ) : 1 );
+        dataset.write();
+        System.out.println( dataset.writeXml() );
+        System.exit( 0 );
+    }
+}
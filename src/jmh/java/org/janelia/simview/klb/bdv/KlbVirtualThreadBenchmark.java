@@ -0,0 +1,72 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares read throughput of the block reader pipeline with a fixed pool
+ * of I/O threads against one virtual thread per block read. Both use the
+ * same random cell requests, issued by numRequesters threads like BDV's
+ * fetchers, and the same number of decode threads.
+ * <p>
+ * Usage: KlbVirtualThreadBenchmark [dataset.xml|synthetic] [numRequests] [numRequesters] [ioThreads] [decodeThreads] [fixed|virtual|both]
+ * <p>
+ * Without a data set, or with "synthetic", a KlbSyntheticDataset is
+ * written to klb.bdv.jmh.dir and read.
+ * <p>
+ * The difference shows on high latency storage (network file systems,
+ * object store mounts), where many outstanding reads hide the latency. As
+ * with KlbIoSchedulerBenchmark, run each mode in a fresh JVM on cold
+ * storage for meaningful numbers. Virtual threads require Java 21.
+ */
+public class KlbVirtualThreadBenchmark
+{
+    public static void main( final String[] args ) throws Exception
+    {
+        final int numRequests = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 2000;
+        final int numRequesters = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 64;
+        final int ioThreads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Runtime.getRuntime().availableProcessors();
+        final int decodeThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : Runtime.getRuntime().availableProcessors();
+        final String mode = args.length > 5 ? args[ 5 ].toLowerCase() : "both";
+
+        final SpimDataMinimal data = new XmlIoSpimDataMinimal().load( KlbIoSchedulerBenchmark.getDatasetXml( args ) );
+        final KlbImgLoader loader = ( KlbImgLoader ) data.getSequenceDescription().getImgLoader();
+        final KlbIoSchedulerBenchmark benchmark = new KlbIoSchedulerBenchmark( loader.getResolver(), data.getSequenceDescription(), numRequests, 42 );
+        System.out.println( String.format( "%d requests, %d requesters, %d decode threads", benchmark.getNumRequests(), numRequesters, decodeThreads ) );
+
+        if ( mode.equals( "fixed" ) || mode.equals( "both" ) ) {
+            final ExecutorService ioPool = Executors.newFixedThreadPool( ioThreads );
+            final double throughput = run( benchmark, numRequesters, ioPool, decodeThreads );
+            System.out.println( String.format( "fixed pool      %8.1f MB/s  (%d I/O threads)", throughput, ioThreads ) );
+        }
+        if ( mode.equals( "virtual" ) || mode.equals( "both" ) ) {
+            final ExecutorService ioPool = KlbVirtualThreads.newThreadPerTaskExecutor( "klb-io" );
+            if ( ioPool == null ) {
+                System.out.println( "virtual threads require Java 21, running on " + System.getProperty( "java.version" ) );
+            } else {
+                final double throughput = run( benchmark, numRequesters, ioPool, decodeThreads );
+                System.out.println( String.format( "virtual threads %8.1f MB/s  (one per block read)", throughput ) );
+            }
+        }
+        if ( mode.equals( "both" ) ) {
+            System.out.println( "Note: the second run may be served from the page cache, compare separate runs on cold storage." );
+        }
+        System.exit( 0 );
+    }
+
+    private static double run( final KlbIoSchedulerBenchmark benchmark, final int numRequesters, final ExecutorService ioPool, final int decodeThreads )
+            throws InterruptedException
+    {
+        final ExecutorService decodePool = Executors.newFixedThreadPool( decodeThreads );
+        try {
+            benchmark.setBlockReader( new KlbBlockReader( new KlbBlockIndexCache( 1024 ), null, ioPool, decodePool ) );
+            return benchmark.run( numRequesters, null );
+        } finally {
+            ioPool.shutdown();
+            decodePool.shutdown();
+        }
+    }
+}
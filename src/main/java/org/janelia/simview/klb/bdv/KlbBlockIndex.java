@@ -0,0 +1,294 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Header and block offset table of a KLB file, parsed in Java.
+ * <p>
+ * The native library hides where the compressed blocks of a file are
+ * stored. This class exposes the block grid and the byte range of every
+ * block, so that reads can be planned by file position.
+ * <p>
+ * Layout (little endian): uint8 version, uint32[5] xyzct,
+ * float32[5] pixel spacing, uint8 data type, uint8 compression type,
+ * char[256] metadata, uint32[5] block size, uint64[numBlocks] cumulative
+ * end offsets of the compressed blocks, followed by the blocks.
+ */
+public class KlbBlockIndex
+{
+    public static final int NUM_DIMENSIONS = 5;
+    public static final int METADATA_SIZE = 256;
+    public static final int FIXED_HEADER_SIZE = 1 + 4 * NUM_DIMENSIONS + 4 * NUM_DIMENSIONS + 1 + 1 + METADATA_SIZE + 4 * NUM_DIMENSIONS;
+    // fetched at once from sources with a high cost per read, holds the offsets of about 8000 blocks
+    private static final int HEADER_PREFETCH = 64 * 1024;
+
+    private final int version;
+    private final long[] imageSize = new long[ NUM_DIMENSIONS ];
+    private final float[] pixelSpacing = new float[ NUM_DIMENSIONS ];
+    private final int dataType;
+    private final int compressionType;
+    private final byte[] metadata = new byte[ METADATA_SIZE ];
+    private final long[] blockSize = new long[ NUM_DIMENSIONS ];
+    private final long[] numBlocks = new long[ NUM_DIMENSIONS ];
+    private final long[] blockEnds;
+    private final long base;
+    // {size, modification time} of the file when it was read, set by KlbBlockIndexCache
+    private volatile long[] identity;
+
+    private KlbBlockIndex( final ByteBuffer fixed, final long base )
+    {
+        this.base = base;
+        version = fixed.get() & 0xff;
+        for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+            imageSize[ d ] = fixed.getInt() & 0xffffffffL;
+        }
+        for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+            pixelSpacing[ d ] = fixed.getFloat();
+        }
+        dataType = fixed.get() & 0xff;
+        compressionType = fixed.get() & 0xff;
+        fixed.get( metadata );
+        long n = 1;
+        for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+            blockSize[ d ] = fixed.getInt() & 0xffffffffL;
+            numBlocks[ d ] = blockSize[ d ] == 0 ? 0 : (imageSize[ d ] + blockSize[ d ] - 1) / blockSize[ d ];
+            n *= numBlocks[ d ];
+        }
+        if ( n > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many blocks: " + n );
+        }
+        blockEnds = new long[ ( int ) n ];
+    }
+
+    /**
+     * Reads the header and block offset table of a KLB file.
+     *
+     * @param filePath file system path or HTTP(S) URL
+     * @return parsed header
+     * @throws IOException if the file can not be read or is not a KLB file
+     */
+    public static KlbBlockIndex read( final String filePath )
+            throws IOException
+    {
+        final KlbByteSource source = KlbByteSource.open( filePath );
+        try {
+            return read( source, 0 );
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Reads the header and block offset table of a KLB file stored at
+     * position base of the channel.
+     *
+     * @param channel open channel
+     * @param base    byte position of the first header byte
+     * @return parsed header
+     * @throws IOException if the channel can not be read or does not contain a KLB header at base
+     */
+    public static KlbBlockIndex read( final FileChannel channel, final long base )
+            throws IOException
+    {
+        return read( KlbByteSource.wrap( channel ), base );
+    }
+
+    /**
+     * Reads the header and block offset table of a KLB file stored at
+     * position base of the source.
+     *
+     * @param source open source
+     * @param base   byte position of the first header byte
+     * @return parsed header
+     * @throws IOException if the source can not be read or does not contain a KLB header at base
+     */
+    public static KlbBlockIndex read( final KlbByteSource source, final long base )
+            throws IOException
+    {
+        source.prefetch( base, HEADER_PREFETCH );
+        final ByteBuffer fixed = readFully( source, base, FIXED_HEADER_SIZE );
+        final KlbBlockIndex index;
+        try {
+            index = new KlbBlockIndex( fixed, base );
+        } catch ( IllegalArgumentException ex ) {
+            throw new IOException( ex.getMessage(), ex );
+        }
+        final ByteBuffer table = readFully( source, base + FIXED_HEADER_SIZE, 8L * index.blockEnds.length );
+        table.asLongBuffer().get( index.blockEnds );
+        return index;
+    }
+
+    private static ByteBuffer readFully( final KlbByteSource source, final long position, final long numBytes )
+            throws IOException
+    {
+        if ( numBytes > Integer.MAX_VALUE ) {
+            throw new IOException( "Header too large: " + numBytes + " bytes" );
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( ( int ) numBytes ).order( ByteOrder.LITTLE_ENDIAN );
+        try {
+            source.read( buffer, position );
+        } catch ( EOFException ex ) {
+            throw new EOFException( "Truncated KLB header" );
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return {size, modification time} of the file when this was read, or null if read outside of a KlbBlockIndexCache
+     */
+    public long[] getIdentity()
+    {
+        final long[] id = identity;
+        return id == null ? null : id.clone();
+    }
+
+    void setIdentity( final long[] identity )
+    {
+        this.identity = identity == null ? null : identity.clone();
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public long[] getImageSize()
+    {
+        return imageSize.clone();
+    }
+
+    public long[] getBlockSize()
+    {
+        return blockSize.clone();
+    }
+
+    public float[] getPixelSpacing()
+    {
+        return pixelSpacing.clone();
+    }
+
+    /**
+     * @return KLB data type code, 0: uint8, 1: uint16, ..., 8: float32, 9: float64
+     */
+    public int getDataType()
+    {
+        return dataType;
+    }
+
+    /**
+     * @return KLB compression type code, 0: none, 1: bzip2, 2: zlib
+     */
+    public int getCompressionType()
+    {
+        return compressionType;
+    }
+
+    public byte[] getMetadata()
+    {
+        return metadata.clone();
+    }
+
+    public int getNumBlocks()
+    {
+        return blockEnds.length;
+    }
+
+    /**
+     * @return size of header and block offset table in bytes
+     */
+    public long getHeaderSize()
+    {
+        return FIXED_HEADER_SIZE + 8L * blockEnds.length;
+    }
+
+    /**
+     * @return size of header and all compressed blocks in bytes
+     */
+    public long getFileSize()
+    {
+        return getHeaderSize() + (blockEnds.length == 0 ? 0 : blockEnds[ blockEnds.length - 1 ]);
+    }
+
+    /**
+     * @param blockIndex linear block index, x fastest
+     * @return absolute position of the first byte of the compressed block
+     */
+    public long getBlockOffset( final int blockIndex )
+    {
+        return base + getHeaderSize() + (blockIndex == 0 ? 0 : blockEnds[ blockIndex - 1 ]);
+    }
+
+    /**
+     * @param blockIndex linear block index, x fastest
+     * @return size of the compressed block in bytes
+     */
+    public long getBlockLength( final int blockIndex )
+    {
+        return blockEnds[ blockIndex ] - (blockIndex == 0 ? 0 : blockEnds[ blockIndex - 1 ]);
+    }
+
+    /**
+     * @param blockIndex linear block index, x fastest
+     * @param min        target, first voxel (xyzct) of the block
+     * @param size       target, size (xyzct) of the block, smaller than the block size at the upper image border
+     */
+    public void getBlockInterval( final int blockIndex, final long[] min, final long[] size )
+    {
+        long remainder = blockIndex;
+        for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+            final long gridPosition = remainder % numBlocks[ d ];
+            remainder /= numBlocks[ d ];
+            min[ d ] = gridPosition * blockSize[ d ];
+            size[ d ] = Math.min( blockSize[ d ], imageSize[ d ] - min[ d ] );
+        }
+    }
+
+    /**
+     * Returns the linear indices of all blocks that intersect the region
+     * of interest, in storage order.
+     *
+     * @param xyzctMin first voxel of the region
+     * @param xyzctMax last voxel of the region
+     * @return linear block indices
+     */
+    public int[] getBlockIndices( final long[] xyzctMin, final long[] xyzctMax )
+    {
+        final long[] first = new long[ NUM_DIMENSIONS ];
+        final long[] last = new long[ NUM_DIMENSIONS ];
+        int n = 1;
+        for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+            first[ d ] = Math.max( 0, Math.min( xyzctMin[ d ] / blockSize[ d ], numBlocks[ d ] - 1 ) );
+            last[ d ] = Math.max( first[ d ], Math.min( xyzctMax[ d ] / blockSize[ d ], numBlocks[ d ] - 1 ) );
+            n *= ( int ) (last[ d ] - first[ d ] + 1);
+        }
+        final int[] indices = new int[ n ];
+        final long[] position = first.clone();
+        for ( int i = 0; i < n; ++i ) {
+            long index = 0;
+            for ( int d = NUM_DIMENSIONS - 1; d >= 0; --d ) {
+                index = index * numBlocks[ d ] + position[ d ];
+            }
+            indices[ i ] = ( int ) index;
+            for ( int d = 0; d < NUM_DIMENSIONS; ++d ) {
+                if ( ++position[ d ] <= last[ d ] ) {
+                    break;
+                }
+                position[ d ] = first[ d ];
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * @return absolute position of the first compressed byte needed to read the region of interest
+     */
+    public long getFirstBlockOffset( final long[] xyzctMin, final long[] xyzctMax )
+    {
+        return getBlockOffset( getBlockIndices( xyzctMin, xyzctMax )[ 0 ] );
+    }
+}
@@ -0,0 +1,100 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used block offset tables, so that planning a
+ * read does not cost an extra header read per cell.
+ * <p>
+ * Tables are keyed by path and by the size and modification time of the
+ * file, so that a rewritten or re-packed file is read again. Those are
+ * re-checked at most every IDENTITY_TIMEOUT_MILLIS, like KlbDiskCellCache
+ * does, to spare slow file systems a stat (or a server a HEAD request)
+ * per cell.
+ */
+public class KlbBlockIndexCache
+{
+    private static final long IDENTITY_TIMEOUT_MILLIS = 10000;
+
+    private final Map< String, CachedIndex > indices;
+    private final AtomicLong numReads = new AtomicLong();
+
+    public KlbBlockIndexCache( final int maxNumFiles )
+    {
+        indices = new LinkedHashMap< String, CachedIndex >( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry< String, CachedIndex > eldest )
+            {
+                return size() > maxNumFiles;
+            }
+        };
+    }
+
+    /**
+     * @param filePath KLB file
+     * @return header and block offset table of the file, read if not cached or if the file changed,
+     * see {@link KlbBlockIndex#getIdentity()}
+     * @throws IOException if the header can not be read
+     */
+    public KlbBlockIndex get( final String filePath )
+            throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        final CachedIndex cached;
+        synchronized ( indices ) {
+            cached = indices.get( filePath );
+            if ( cached != null && now - cached.checkedMillis < IDENTITY_TIMEOUT_MILLIS ) {
+                return cached.index;
+            }
+        }
+        // before reading, so that a change while reading is seen on the next check
+        final long[] identity = KlbByteSource.getIdentity( filePath );
+        if ( cached != null && identity != null && identity[ 0 ] == cached.size && identity[ 1 ] == cached.lastModified ) {
+            synchronized ( indices ) {
+                cached.checkedMillis = now;
+            }
+            return cached.index;
+        }
+        final KlbBlockIndex index = KlbBlockIndex.read( filePath );
+        numReads.incrementAndGet();
+        index.setIdentity( identity );
+        synchronized ( indices ) {
+            indices.put( filePath, new CachedIndex( index, identity, now ) );
+        }
+        return index;
+    }
+
+    /**
+     * @return number of headers read from files
+     */
+    public long getNumReads()
+    {
+        return numReads.get();
+    }
+
+    public void clear()
+    {
+        synchronized ( indices ) {
+            indices.clear();
+        }
+    }
+
+    private static class CachedIndex
+    {
+        private final KlbBlockIndex index;
+        private final long size, lastModified;
+        private long checkedMillis;
+
+        private CachedIndex( final KlbBlockIndex index, final long[] identity, final long checkedMillis )
+        {
+            this.index = index;
+            size = identity == null ? -1 : identity[ 0 ];
+            lastModified = identity == null ? -1 : identity[ 1 ];
+            this.checkedMillis = checkedMillis;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package org.janelia.simview.klb.bdv;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads regions of interest from KLB files in Java, block by block.
+ * <p>
+ * Unlike the native reader, it separates fetching the compressed bytes
+ * of a block from decoding them, so that compressed blocks can be kept
+ * in a KlbCompressedBlockCache and only decoded when a cell is needed.
+ * Supports uncompressed, bzip2 and zlib blocks.
+ * <p>
+ * With an I/O pool and a decode pool, reading a region is a two stage
+ * pipeline: positional reads of compressed blocks run on the I/O pool,
+ * each finished read hands its block to the decode pool. The pools are
+ * sized independently, e.g. many I/O threads for high latency network
+ * storage and one decode thread per core.
+ * <p>
+ * Files are read through KlbByteSource, so paths may be HTTP(S) URLs.
+ * Where the source prefers fewer, larger reads, blocks of a region that
+ * lie close together in the file are read at once.
+ */
+public class KlbBlockReader
+{
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_BZIP2 = 1;
+    public static final int COMPRESSION_ZLIB = 2;
+
+    private static final int[] BYTES_PER_ELEMENT = { 1, 2, 4, 8, 1, 2, 4, 8, 4, 8 };
+    // upper bound of a coalesced read
+    private static final long MAX_RUN_BYTES = 16 * 1024 * 1024;
+
+    private final KlbBlockIndexCache indices;
+    private final KlbCompressedBlockCache compressedBlocks;
+    private final ExecutorService ioPool;
+    private final ExecutorService decodePool;
+    private volatile KlbLoaderMetrics metrics;
+
+    /**
+     * @param indices          cache of block offset tables
+     * @param compressedBlocks cache of compressed blocks, or null
+     */
+    public KlbBlockReader( final KlbBlockIndexCache indices, final KlbCompressedBlockCache compressedBlocks )
+    {
+        this( indices, compressedBlocks, null, null );
+    }
+
+    /**
+     * @param indices          cache of block offset tables
+     * @param compressedBlocks cache of compressed blocks, or null
+     * @param ioPool           threads for block reads, or null to read and decode in the calling thread
+     * @param decodePool       threads for block decoding, or null to read and decode in the calling thread
+     */
+    public KlbBlockReader( final KlbBlockIndexCache indices, final KlbCompressedBlockCache compressedBlocks,
+            final ExecutorService ioPool, final ExecutorService decodePool )
+    {
+        this.indices = indices;
+        this.compressedBlocks = compressedBlocks;
+        this.ioPool = decodePool == null ? null : ioPool;
+        this.decodePool = ioPool == null ? null : decodePool;
+    }
+
+    public boolean isPipelined()
+    {
+        return ioPool != null;
+    }
+
+    /**
+     * @param metrics receives the number of compressed bytes read, or null
+     */
+    public void setMetrics( final KlbLoaderMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param dataType KLB data type code
+     * @return bytes per voxel
+     */
+    public static int getBytesPerElement( final int dataType )
+    {
+        if ( dataType < 0 || dataType >= BYTES_PER_ELEMENT.length ) {
+            throw new IllegalArgumentException( "Unknown KLB data type " + dataType );
+        }
+        return BYTES_PER_ELEMENT[ dataType ];
+    }
+
+    /**
+     * Reads a region of interest.
+     *
+     * @param filePath KLB file
+     * @param xyzctMin first voxel of the region
+     * @param xyzctMax last voxel of the region
+     * @return little endian voxel data of the region, x fastest, positioned at 0
+     * @throws IOException if the file can not be read or a block can not be decoded
+     */
+    public ByteBuffer readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax )
+            throws IOException
+    {
+        final KlbBlockIndex index = indices.get( filePath );
+        final int bytesPerElement = getBytesPerElement( index.getDataType() );
+        final long[] roiSize = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+        long numElements = 1;
+        for ( int d = 0; d < roiSize.length; ++d ) {
+            roiSize[ d ] = xyzctMax[ d ] - xyzctMin[ d ] + 1;
+            numElements *= roiSize[ d ];
+        }
+        if ( numElements * bytesPerElement > Integer.MAX_VALUE ) {
+            throw new IOException( "Region of interest too large" );
+        }
+        final byte[] out = new byte[ ( int ) (numElements * bytesPerElement) ];
+
+        final int[] blockIndices = index.getBlockIndices( xyzctMin, xyzctMax );
+        // blocks are cached per version of the file
+        final long[] identity = index.getIdentity();
+        if ( ioPool != null ) {
+            readPipelined( filePath, index, blockIndices, bytesPerElement, xyzctMin, roiSize, out );
+            return ByteBuffer.wrap( out ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+        final byte[][] compressed = new byte[ blockIndices.length ][];
+        final List< Integer > missing = new ArrayList< Integer >();
+        for ( int i = 0; i < blockIndices.length; ++i ) {
+            compressed[ i ] = compressedBlocks == null ? null : compressedBlocks.get( filePath, identity, blockIndices[ i ] );
+            if ( compressed[ i ] == null ) {
+                missing.add( i );
+            }
+        }
+        if ( !missing.isEmpty() ) {
+            final KlbByteSource source = KlbByteSource.open( filePath );
+            try {
+                final long readStart = KlbFlightRecorder.phaseStart();
+                int next = 0;
+                for ( final int[] run : getRuns( index, blockIndices, missing, source.getCoalescingGap() ) ) {
+                    final byte[][] blocks = readBlocksMetered( source, index, run );
+                    for ( int j = 0; j < run.length; ++j ) {
+                        compressed[ missing.get( next++ ) ] = blocks[ j ];
+                        if ( compressedBlocks != null ) {
+                            compressedBlocks.put( filePath, identity, run[ j ], blocks[ j ] );
+                        }
+                    }
+                }
+                KlbFlightRecorder.phaseEnd( KlbFlightRecorder.READ, readStart );
+            } finally {
+                source.close();
+            }
+        }
+        final long decodeStart = KlbFlightRecorder.phaseStart();
+        for ( int i = 0; i < blockIndices.length; ++i ) {
+            copyBlock( index, blockIndices[ i ], decode( index, blockIndices[ i ], compressed[ i ] ), bytesPerElement, xyzctMin, roiSize, out );
+        }
+        KlbFlightRecorder.phaseEnd( KlbFlightRecorder.DECODE, decodeStart );
+        return ByteBuffer.wrap( out ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private void readPipelined( final String filePath, final KlbBlockIndex index, final int[] blockIndices, final int bytesPerElement,
+            final long[] roiMin, final long[] roiSize, final byte[] out )
+            throws IOException
+    {
+        final long[] identity = index.getIdentity();
+        final List< Future< ? > > decodes = new ArrayList< Future< ? > >();
+        final List< Future< List< Future< ? > > > > reads = new ArrayList< Future< List< Future< ? > > > >();
+        final List< Integer > missing = new ArrayList< Integer >();
+        for ( int i = 0; i < blockIndices.length; ++i ) {
+            final int blockIndex = blockIndices[ i ];
+            final byte[] compressed = compressedBlocks == null ? null : compressedBlocks.get( filePath, identity, blockIndex );
+            if ( compressed != null ) {
+                decodes.add( decodePool.submit( new DecodeTask( index, blockIndex, compressed, bytesPerElement, roiMin, roiSize, out ) ) );
+            } else {
+                missing.add( i );
+            }
+        }
+        if ( missing.isEmpty() ) {
+            awaitAll( Collections.< Future< List< Future< ? > > > >emptyList(), decodes );
+            return;
+        }
+        final KlbByteSource source = KlbByteSource.open( filePath );
+        try {
+            // one read per run of nearby blocks, each finished read hands its blocks to the decode pool
+            for ( final int[] run : getRuns( index, blockIndices, missing, source.getCoalescingGap() ) ) {
+                reads.add( ioPool.submit( new Callable< List< Future< ? > > >()
+                {
+                    @Override
+                    public List< Future< ? > > call() throws IOException
+                    {
+                        final byte[][] blocks = readBlocksMetered( source, index, run );
+                        final List< Future< ? > > runDecodes = new ArrayList< Future< ? > >();
+                        for ( int j = 0; j < run.length; ++j ) {
+                            if ( compressedBlocks != null ) {
+                                compressedBlocks.put( filePath, identity, run[ j ], blocks[ j ] );
+                            }
+                            runDecodes.add( decodePool.submit( new DecodeTask( index, run[ j ], blocks[ j ], bytesPerElement, roiMin, roiSize, out ) ) );
+                        }
+                        return runDecodes;
+                    }
+                } ) );
+            }
+            // reads first, the source may be closed once they are done
+            awaitAll( reads, decodes );
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Waits for all reads, then for all decodes, and throws the first failure.
+     * The stages overlap, a traced cell load counts the time this thread waits for each.
+     */
+    private static void awaitAll( final List< Future< List< Future< ? > > > > reads, final List< Future< ? > > decodes )
+            throws IOException
+    {
+        IOException failure = null;
+        final long readStart = KlbFlightRecorder.phaseStart();
+        for ( final Future< List< Future< ? > > > read : reads ) {
+            try {
+                decodes.addAll( await( read ) );
+            } catch ( IOException ex ) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        KlbFlightRecorder.phaseEnd( KlbFlightRecorder.READ, readStart );
+        final long decodeStart = KlbFlightRecorder.phaseStart();
+        for ( final Future< ? > decode : decodes ) {
+            try {
+                await( decode );
+            } catch ( IOException ex ) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        KlbFlightRecorder.phaseEnd( KlbFlightRecorder.DECODE, decodeStart );
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Splits the blocks to read into runs that are read at once: blocks whose
+     * compressed bytes are at most maxGap bytes apart, up to MAX_RUN_BYTES.
+     *
+     * @param blockIndices blocks of the region, in storage order
+     * @param missing      positions in blockIndices of the blocks to read
+     * @param maxGap       see {@link KlbByteSource#getCoalescingGap()}, -1 for one block per run
+     * @return block indices of each run
+     */
+    static List< int[] > getRuns( final KlbBlockIndex index, final int[] blockIndices, final List< Integer > missing, final long maxGap )
+    {
+        final List< int[] > runs = new ArrayList< int[] >();
+        int first = 0;
+        for ( int i = 1; i <= missing.size(); ++i ) {
+            if ( i < missing.size() && maxGap >= 0 ) {
+                final int previous = blockIndices[ missing.get( i - 1 ) ];
+                final int next = blockIndices[ missing.get( i ) ];
+                final long gap = index.getBlockOffset( next ) - (index.getBlockOffset( previous ) + index.getBlockLength( previous ));
+                final long runBytes = index.getBlockOffset( next ) + index.getBlockLength( next ) - index.getBlockOffset( blockIndices[ missing.get( first ) ] );
+                if ( gap >= 0 && gap <= maxGap && runBytes <= MAX_RUN_BYTES ) {
+                    continue;
+                }
+            }
+            final int[] run = new int[ i - first ];
+            for ( int j = 0; j < run.length; ++j ) {
+                run[ j ] = blockIndices[ missing.get( first + j ) ];
+            }
+            runs.add( run );
+            first = i;
+        }
+        return runs;
+    }
+
+    private byte[][] readBlocksMetered( final KlbByteSource source, final KlbBlockIndex index, final int[] run )
+            throws IOException
+    {
+        final byte[][] blocks = readBlocks( source, index, run );
+        final KlbLoaderMetrics m = metrics;
+        if ( m != null ) {
+            for ( final byte[] block : blocks ) {
+                m.recordBytesRead( block.length );
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Waits for a pipeline stage, keeping the interrupt flag and unwrapping IOExceptions.
+     */
+    private static < T > T await( final Future< T > future )
+            throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while ( true ) {
+                try {
+                    return future.get();
+                } catch ( InterruptedException ex ) {
+                    // the stage writes into the caller's buffer, it must finish before the caller goes on
+                    interrupted = true;
+                } catch ( ExecutionException ex ) {
+                    if ( ex.getCause() instanceof IOException ) {
+                        throw ( IOException ) ex.getCause();
+                    }
+                    throw new IOException( ex.getCause() );
+                }
+            }
+        } finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DecodeTask implements Callable< Void >
+    {
+        private final KlbBlockIndex index;
+        private final int blockIndex;
+        private final byte[] compressed;
+        private final int bytesPerElement;
+        private final long[] roiMin;
+        private final long[] roiSize;
+        private final byte[] out;
+
+        private DecodeTask( final KlbBlockIndex index, final int blockIndex, final byte[] compressed, final int bytesPerElement,
+                final long[] roiMin, final long[] roiSize, final byte[] out )
+        {
+            this.index = index;
+            this.blockIndex = blockIndex;
+            this.compressed = compressed;
+            this.bytesPerElement = bytesPerElement;
+            this.roiMin = roiMin;
+            this.roiSize = roiSize;
+            this.out = out;
+        }
+
+        @Override
+        public Void call() throws IOException
+        {
+            // blocks cover disjoint parts of the region, so decodes may write to out concurrently
+            copyBlock( index, blockIndex, decode( index, blockIndex, compressed ), bytesPerElement, roiMin, roiSize, out );
+            return null;
+        }
+    }
+
+    /**
+     * Reads the compressed bytes of a block with a positional read.
+     */
+    public static byte[] readBlock( final FileChannel channel, final KlbBlockIndex index, final int blockIndex )
+            throws IOException
+    {
+        return readBlocks( KlbByteSource.wrap( channel ), index, new int[]{ blockIndex } )[ 0 ];
+    }
+
+    /**
+     * Reads the compressed bytes of blocks, in storage order, with one read from the first to the last block.
+     */
+    public static byte[][] readBlocks( final KlbByteSource source, final KlbBlockIndex index, final int[] run )
+            throws IOException
+    {
+        final long start = index.getBlockOffset( run[ 0 ] );
+        final long length = index.getBlockOffset( run[ run.length - 1 ] ) + index.getBlockLength( run[ run.length - 1 ] ) - start;
+        if ( length > Integer.MAX_VALUE ) {
+            throw new IOException( "Block too large" );
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( ( int ) length );
+        try {
+            source.read( buffer, start );
+        } catch ( EOFException ex ) {
+            throw new EOFException( "Truncated KLB file, block " + run[ run.length - 1 ] );
+        }
+        if ( run.length == 1 ) {
+            return new byte[][]{ buffer.array() };
+        }
+        final byte[][] blocks = new byte[ run.length ][];
+        for ( int j = 0; j < run.length; ++j ) {
+            final int from = ( int ) (index.getBlockOffset( run[ j ] ) - start);
+            blocks[ j ] = Arrays.copyOfRange( buffer.array(), from, from + ( int ) index.getBlockLength( run[ j ] ) );
+        }
+        return blocks;
+    }
+
+    /**
+     * Decodes a compressed block.
+     *
+     * @return decoded voxels of the block, little endian, x fastest
+     */
+    public static byte[] decode( final KlbBlockIndex index, final int blockIndex, final byte[] compressed )
+            throws IOException
+    {
+        final long[] blockMin = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+        final long[] blockSize = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+        index.getBlockInterval( blockIndex, blockMin, blockSize );
+        long numBytes = getBytesPerElement( index.getDataType() );
+        for ( final long s : blockSize ) {
+            numBytes *= s;
+        }
+        final byte[] decoded = new byte[ ( int ) numBytes ];
+
+        switch ( index.getCompressionType() ) {
+        case COMPRESSION_NONE:
+            if ( compressed.length != decoded.length ) {
+                throw new IOException( "Unexpected block size" );
+            }
+            return compressed;
+        case COMPRESSION_BZIP2:
+            final InputStream in = new BZip2CompressorInputStream( new ByteArrayInputStream( compressed ) );
+            try {
+                int position = 0;
+                while ( position < decoded.length ) {
+                    final int n = in.read( decoded, position, decoded.length - position );
+                    if ( n < 0 ) {
+                        throw new EOFException( "Truncated bzip2 block " + blockIndex );
+                    }
+                    position += n;
+                }
+            } finally {
+                in.close();
+            }
+            return decoded;
+        case COMPRESSION_ZLIB:
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput( compressed );
+                int position = 0;
+                while ( position < decoded.length ) {
+                    final int n = inflater.inflate( decoded, position, decoded.length - position );
+                    if ( n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) ) {
+                        throw new EOFException( "Truncated zlib block " + blockIndex );
+                    }
+                    position += n;
+                }
+            } catch ( DataFormatException ex ) {
+                throw new IOException( ex );
+            } finally {
+                inflater.end();
+            }
+            return decoded;
+        default:
+            throw new IOException( "Unsupported KLB compression type " + index.getCompressionType() );
+        }
+    }
+
+    /**
+     * Copies the part of a decoded block that intersects the region of interest.
+     */
+    static void copyBlock( final KlbBlockIndex index, final int blockIndex, final byte[] block, final int bytesPerElement,
+            final long[] roiMin, final long[] roiSize, final byte[] out )
+    {
+        final int n = KlbBlockIndex.NUM_DIMENSIONS;
+        final long[] blockMin = new long[ n ];
+        final long[] blockSize = new long[ n ];
+        index.getBlockInterval( blockIndex, blockMin, blockSize );
+
+        final long[] min = new long[ n ];
+        final long[] max = new long[ n ];
+        for ( int d = 0; d < n; ++d ) {
+            min[ d ] = Math.max( blockMin[ d ], roiMin[ d ] );
+            max[ d ] = Math.min( blockMin[ d ] + blockSize[ d ], roiMin[ d ] + roiSize[ d ] ) - 1;
+            if ( max[ d ] < min[ d ] ) {
+                return;
+            }
+        }
+
+        final int runLength = ( int ) (max[ 0 ] - min[ 0 ] + 1) * bytesPerElement;
+        final long[] position = min.clone();
+        while ( true ) {
+            long src = 0, dst = 0;
+            for ( int d = n - 1; d >= 0; --d ) {
+                src = src * blockSize[ d ] + (position[ d ] - blockMin[ d ]);
+                dst = dst * roiSize[ d ] + (position[ d ] - roiMin[ d ]);
+            }
+            System.arraycopy( block, ( int ) src * bytesPerElement, out, ( int ) dst * bytesPerElement, runLength );
+
+            // advance over y, z, c, t
+            int d = 1;
+            for ( ; d < n; ++d ) {
+                if ( ++position[ d ] <= max[ d ] ) {
+                    break;
+                }
+                position[ d ] = min[ d ];
+            }
+            if ( d == n ) {
+                return;
+            }
+        }
+    }
+}
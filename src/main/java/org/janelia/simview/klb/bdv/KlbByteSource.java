@@ -0,0 +1,142 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Positional reads of the bytes of a KLB file, from the local file system,
+ * for paths starting with http:// or https:// from an HTTP server with
+ * range requests (see KlbHttpByteSource), and for paths of the form
+ * container.klbpack!/name from a container (see KlbPack).
+ * <p>
+ * Java readers (KlbBlockIndex, KlbBlockReader) read through this class, so
+ * a view setup whose template is a URL or a container member is read
+ * without the native library.
+ */
+public abstract class KlbByteSource implements Closeable
+{
+    /**
+     * @return whether path is an HTTP(S) URL rather than a file system path
+     */
+    public static boolean isUrl( final String path )
+    {
+        return path.startsWith( "http://" ) || path.startsWith( "https://" );
+    }
+
+    /**
+     * @return whether path is a file that the native library can read, neither a URL nor a container member
+     */
+    public static boolean isLocalFile( final String path )
+    {
+        return !isUrl( path ) && !KlbPack.isMember( path );
+    }
+
+    /**
+     * Opens a file, URL or container member. Opening a URL does not send a request.
+     */
+    public static KlbByteSource open( final String path )
+            throws IOException
+    {
+        if ( isUrl( path ) ) {
+            return new KlbHttpByteSource( path );
+        } else if ( KlbPack.isMember( path ) ) {
+            return KlbPack.openMember( path );
+        }
+        return new FileSource( FileChannel.open( Paths.get( path ), StandardOpenOption.READ ), true );
+    }
+
+    /**
+     * @param channel open channel, stays open when the source is closed
+     */
+    public static KlbByteSource wrap( final FileChannel channel )
+    {
+        return new FileSource( channel, false );
+    }
+
+    /**
+     * Size and modification time of a file, URL or container member, to tell whether cached data of it is still valid.
+     *
+     * @return {size, modification time in milliseconds}, or null if it does not exist or can not be reached
+     */
+    public static long[] getIdentity( final String path )
+    {
+        if ( isUrl( path ) ) {
+            return KlbHttpByteSource.stat( path );
+        } else if ( KlbPack.isMember( path ) ) {
+            return KlbPack.stat( path );
+        }
+        final File file = new File( path );
+        return file.isFile() ? new long[]{ file.length(), file.lastModified() } : null;
+    }
+
+    /**
+     * Reads dst.remaining() bytes starting at position.
+     *
+     * @throws EOFException if the source ends before
+     */
+    public abstract void read( final ByteBuffer dst, final long position )
+            throws IOException;
+
+    /**
+     * Hints that the range will be read in small pieces, e.g. a header.
+     * Sources with a high cost per read fetch it at once.
+     */
+    public void prefetch( final long position, final long length )
+            throws IOException
+    {
+    }
+
+    /**
+     * @return bytes between two ranges up to which reading both ranges and the gap at once is cheaper
+     * than two reads, -1 to always read ranges separately
+     */
+    public long getCoalescingGap()
+    {
+        return -1;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+    }
+
+    private static class FileSource extends KlbByteSource
+    {
+        private final FileChannel channel;
+        private final boolean owned;
+
+        private FileSource( final FileChannel channel, final boolean owned )
+        {
+            this.channel = channel;
+            this.owned = owned;
+        }
+
+        @Override
+        public void read( final ByteBuffer dst, final long position )
+                throws IOException
+        {
+            final long start = position - dst.position();
+            while ( dst.hasRemaining() ) {
+                if ( channel.read( dst, start + dst.position() ) < 0 ) {
+                    throw new EOFException( "Truncated KLB file" );
+                }
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if ( owned ) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps loaded cells strongly reachable within a byte budget, with an
+ * eviction order that knows about time and resolution levels.
+ * <p>
+ * BDV's cell cache holds cells through soft references, which the garbage
+ * collector clears with no regard for what the cells are. Array loaders
+ * consult this tier before reading, so a cell dropped by the cell cache
+ * comes back without I/O as long as it is retained here.
+ * <p>
+ * Cells of the pinnedLevels coarsest levels are pinned: they are only
+ * evicted, least recently used first, once no other cell is left. Other
+ * cells are evicted by temporal distance from the current time point
+ * first, then from the finest level. The current time point follows the
+ * most recent request unless it is set explicitly.
+ */
+public class KlbCellRetention
+{
+    private final long maxBytes;
+    private final int pinnedLevels;
+    private final Map< CellKey, Entry > entries = new HashMap< CellKey, Entry >();
+    // unpinned cells by time point, then level (finest first), in insertion order
+    private final TreeMap< Integer, TreeMap< Integer, LinkedHashMap< CellKey, Entry > > > unpinned = new TreeMap< Integer, TreeMap< Integer, LinkedHashMap< CellKey, Entry > > >();
+    private final LinkedHashMap< CellKey, Entry > pinned = new LinkedHashMap< CellKey, Entry >( 16, 0.75f, true );
+    private int currentTimePoint = 0;
+    private boolean followRequests = true;
+    private long sizeBytes = 0, pinnedBytes = 0;
+    private long numHits = 0, numMisses = 0, numEvictions = 0, numPinnedEvictions = 0;
+
+    /**
+     * @param maxBytes     budget
+     * @param pinnedLevels number of coarsest levels whose cells are pinned
+     */
+    public KlbCellRetention( final long maxBytes, final int pinnedLevels )
+    {
+        this.maxBytes = maxBytes;
+        this.pinnedLevels = pinnedLevels;
+    }
+
+    /**
+     * @param setup view setup, negative for cells in a display encoding
+     * @return retained cell, or null
+     */
+    public Object get( final int timePoint, final int setup, final int level, final long[] offset )
+    {
+        return get( timePoint, setup, level, offset, false );
+    }
+
+    /**
+     * @param setup view setup, negative for cells in a display encoding
+     * @param idle  whether the request is a background load (warm-up, working set replay), which does not move
+     *              the current time point
+     * @return retained cell, or null
+     */
+    public synchronized Object get( final int timePoint, final int setup, final int level, final long[] offset, final boolean idle )
+    {
+        if ( followRequests && !idle ) {
+            currentTimePoint = timePoint;
+        }
+        final CellKey key = new CellKey( timePoint, setup, level, offset );
+        final Entry entry = entries.get( key );
+        if ( entry == null ) {
+            ++numMisses;
+            return null;
+        }
+        ++numHits;
+        if ( entry.isPinned ) {
+            // refresh LRU position
+            pinned.get( key );
+        }
+        return entry.cell;
+    }
+
+    /**
+     * @return whether a cell is retained, without counting a hit or miss
+     */
+    public synchronized boolean contains( final int timePoint, final int setup, final int level, final long[] offset )
+    {
+        return entries.containsKey( new CellKey( timePoint, setup, level, offset ) );
+    }
+
+    /**
+     * Retains a cell, evicting others as needed. Cells larger than the budget are not retained.
+     *
+     * @param priority level priority, 0 for the coarsest level
+     * @param numBytes size of the cell
+     */
+    public synchronized void put( final int timePoint, final int setup, final int level, final int priority, final long[] offset,
+            final Object cell, final long numBytes )
+    {
+        if ( numBytes > maxBytes ) {
+            return;
+        }
+        final CellKey key = new CellKey( timePoint, setup, level, offset );
+        if ( entries.containsKey( key ) ) {
+            return;
+        }
+        final Entry entry = new Entry( key, cell, numBytes, priority < pinnedLevels );
+        while ( sizeBytes + numBytes > maxBytes ) {
+            if ( !evictOne( entry.isPinned ) ) {
+                return;
+            }
+        }
+        entries.put( key, entry );
+        sizeBytes += numBytes;
+        if ( entry.isPinned ) {
+            pinned.put( key, entry );
+            pinnedBytes += numBytes;
+        } else {
+            getBucket( timePoint, level ).put( key, entry );
+        }
+    }
+
+    /**
+     * @param forPinned whether the cell to make room for is pinned, else pinned cells are kept
+     * @return false if nothing could be evicted
+     */
+    private boolean evictOne( final boolean forPinned )
+    {
+        Entry victim = null;
+        if ( !unpinned.isEmpty() ) {
+            // farthest time point, finest level
+            final int first = unpinned.firstKey();
+            final int last = unpinned.lastKey();
+            final int timePoint = Math.abs( last - currentTimePoint ) >= Math.abs( currentTimePoint - first ) ? last : first;
+            final LinkedHashMap< CellKey, Entry > bucket = unpinned.get( timePoint ).firstEntry().getValue();
+            victim = bucket.values().iterator().next();
+        } else if ( forPinned && !pinned.isEmpty() ) {
+            victim = pinned.values().iterator().next();
+            ++numPinnedEvictions;
+        }
+        if ( victim == null ) {
+            return false;
+        }
+        remove( victim );
+        ++numEvictions;
+        return true;
+    }
+
+    private void remove( final Entry entry )
+    {
+        entries.remove( entry.key );
+        sizeBytes -= entry.numBytes;
+        if ( entry.isPinned ) {
+            pinned.remove( entry.key );
+            pinnedBytes -= entry.numBytes;
+        } else {
+            final TreeMap< Integer, LinkedHashMap< CellKey, Entry > > levels = unpinned.get( entry.key.timePoint );
+            final LinkedHashMap< CellKey, Entry > bucket = levels.get( entry.key.level );
+            bucket.remove( entry.key );
+            if ( bucket.isEmpty() ) {
+                levels.remove( entry.key.level );
+                if ( levels.isEmpty() ) {
+                    unpinned.remove( entry.key.timePoint );
+                }
+            }
+        }
+    }
+
+    private LinkedHashMap< CellKey, Entry > getBucket( final int timePoint, final int level )
+    {
+        TreeMap< Integer, LinkedHashMap< CellKey, Entry > > levels = unpinned.get( timePoint );
+        if ( levels == null ) {
+            levels = new TreeMap< Integer, LinkedHashMap< CellKey, Entry > >();
+            unpinned.put( timePoint, levels );
+        }
+        LinkedHashMap< CellKey, Entry > bucket = levels.get( level );
+        if ( bucket == null ) {
+            bucket = new LinkedHashMap< CellKey, Entry >();
+            levels.put( level, bucket );
+        }
+        return bucket;
+    }
+
+    /**
+     * Fixes the current time point, e.g. from a time point listener of the viewer.
+     * Until called, the current time point follows the most recent request.
+     */
+    public synchronized void setCurrentTimePoint( final int timePoint )
+    {
+        currentTimePoint = timePoint;
+        followRequests = false;
+    }
+
+    public synchronized int getCurrentTimePoint()
+    {
+        return currentTimePoint;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        unpinned.clear();
+        pinned.clear();
+        sizeBytes = 0;
+        pinnedBytes = 0;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public int getNumPinnedLevels()
+    {
+        return pinnedLevels;
+    }
+
+    public synchronized long getSizeBytes()
+    {
+        return sizeBytes;
+    }
+
+    public synchronized long getPinnedBytes()
+    {
+        return pinnedBytes;
+    }
+
+    public synchronized int getNumCells()
+    {
+        return entries.size();
+    }
+
+    public synchronized int getNumPinnedCells()
+    {
+        return pinned.size();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return numMisses;
+    }
+
+    public synchronized long getNumEvictions()
+    {
+        return numEvictions;
+    }
+
+    /**
+     * @return number of evictions of pinned cells, i.e. the pinned levels did not fit the budget
+     */
+    public synchronized long getNumPinnedEvictions()
+    {
+        return numPinnedEvictions;
+    }
+
+    /**
+     * @return retained bytes per time point, unpinned cells only
+     */
+    public synchronized Map< Integer, Long > getUnpinnedBytesPerTimePoint()
+    {
+        final Map< Integer, Long > bytes = new TreeMap< Integer, Long >();
+        for ( final Map.Entry< Integer, TreeMap< Integer, LinkedHashMap< CellKey, Entry > > > timePoint : unpinned.entrySet() ) {
+            long n = 0;
+            for ( final LinkedHashMap< CellKey, Entry > bucket : timePoint.getValue().values() ) {
+                for ( final Entry entry : bucket.values() ) {
+                    n += entry.numBytes;
+                }
+            }
+            bytes.put( timePoint.getKey(), n );
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "%d cells, %d MB of %d MB (%d MB pinned), %d hits, %d misses, %d evictions (%d pinned), current time point %d",
+                entries.size(), sizeBytes >> 20, maxBytes >> 20, pinnedBytes >> 20, numHits, numMisses, numEvictions, numPinnedEvictions, currentTimePoint );
+    }
+
+    private static class CellKey
+    {
+        private final int timePoint;
+        private final int setup;
+        private final int level;
+        private final long[] offset;
+        private final int hash;
+
+        private CellKey( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            this.timePoint = timePoint;
+            this.setup = setup;
+            this.level = level;
+            this.offset = offset.clone();
+            hash = 31 * (31 * (31 * timePoint + setup) + level) + Arrays.hashCode( offset );
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof CellKey) ) {
+                return false;
+            }
+            final CellKey other = ( CellKey ) o;
+            return timePoint == other.timePoint && setup == other.setup && level == other.level && Arrays.equals( offset, other.offset );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private static class Entry
+    {
+        private final CellKey key;
+        private final Object cell;
+        private final long numBytes;
+        private final boolean isPinned;
+
+        private Entry( final CellKey key, final Object cell, final long numBytes, final boolean isPinned )
+        {
+            this.key = key;
+            this.cell = cell;
+            this.numBytes = numBytes;
+            this.isPinned = isPinned;
+        }
+    }
+}
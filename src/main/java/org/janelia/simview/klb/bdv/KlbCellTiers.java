@@ -0,0 +1,332 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The tiers a cell passes on its way from a KLB file to BDV's cell cache,
+ * and the collaborators of its read, shared by all array loaders of an
+ * image loader.
+ * <p>
+ * A load first records the request in the working set, then asks the
+ * retention tier, the cache shared with other JVMs and the disk cache, in
+ * this order, and only then reads the KLB file: through the I/O scheduler,
+ * with the Java block reader or a native reader of the decoder pool.
+ * Read cells are stored in the disk and shared caches, and offered to the
+ * retention tier. Every tier is optional; an empty chain, see
+ * {@link #tiers()}, reads natively on one thread per read.
+ * <p>
+ * The chain is configured with its fluent setters before it is handed to
+ * array loaders, and not changed afterwards, except for detaching the
+ * shared cache when it is closed.
+ */
+public class KlbCellTiers
+{
+    private KlbIoScheduler ioScheduler;
+    private KlbDiskCellCache diskCache;
+    private volatile KlbSharedCellCache sharedCache;
+    private KlbBlockReader blockReader;
+    private KlbDecoderPool decoders = new KlbDecoderPool( 1, null );
+    private KlbSlabArena slabArena;
+    private KlbCellRetention retention;
+    private KlbWorkingSet workingSet;
+    private KlbConcurrencyController concurrencyController;
+    private KlbLoaderMetrics metrics;
+    private KlbCellTrace cellTrace;
+
+    public static KlbCellTiers tiers()
+    {
+        return new KlbCellTiers();
+    }
+
+    /**
+     * Routes all reads through an I/O scheduler, or reads directly if
+     * scheduler is null.
+     *
+     * @param scheduler shared scheduler, or null
+     * @return this
+     */
+    public KlbCellTiers ioScheduler( final KlbIoScheduler scheduler )
+    {
+        ioScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Looks up cells in, and stores read cells to, a persistent cache, or
+     * only reads KLB files if cache is null.
+     *
+     * @param cache shared disk cache, or null
+     * @return this
+     */
+    public KlbCellTiers diskCache( final KlbDiskCellCache cache )
+    {
+        diskCache = cache;
+        return this;
+    }
+
+    /**
+     * Looks up cells in, and publishes read cells to, a cache shared with
+     * other JVMs on the host, or not if cache is null.
+     *
+     * @param cache shared cell cache, or null
+     * @return this
+     */
+    public KlbCellTiers sharedCache( final KlbSharedCellCache cache )
+    {
+        sharedCache = cache;
+        return this;
+    }
+
+    /**
+     * Reads KLB files with the Java block reader instead of the native library,
+     * e.g. to go through a compressed block cache. null selects the native library.
+     *
+     * @param reader shared block reader, or null
+     * @return this
+     */
+    public KlbCellTiers blockReader( final KlbBlockReader reader )
+    {
+        blockReader = reader;
+        return this;
+    }
+
+    /**
+     * Leases native readers from a pool shared by all array loaders, so that
+     * large reads decode on idle cores. By default, the chain has a pool of
+     * its own that reads on one thread.
+     *
+     * @param pool shared pool of native readers
+     * @return this
+     */
+    public KlbCellTiers decoderPool( final KlbDecoderPool pool )
+    {
+        decoders = pool;
+        return this;
+    }
+
+    /**
+     * Keeps the voxels of loaded cells in slabs of an off-heap arena instead
+     * of Java arrays, as long as the arena has room. null keeps all cells on the heap.
+     *
+     * @param arena shared slab arena, or null
+     * @return this
+     */
+    public KlbCellTiers slabArena( final KlbSlabArena arena )
+    {
+        slabArena = arena;
+        return this;
+    }
+
+    /**
+     * Keeps loaded cells in a retention tier with a time and level aware
+     * eviction policy, see KlbCellRetention. null disables retention.
+     *
+     * @param retention shared retention tier, or null
+     * @return this
+     */
+    public KlbCellTiers cellRetention( final KlbCellRetention retention )
+    {
+        this.retention = retention;
+        return this;
+    }
+
+    /**
+     * Counts interactive cell loads in a working set, or none if workingSet is null.
+     *
+     * @param workingSet shared working set, or null
+     * @return this
+     */
+    public KlbCellTiers workingSet( final KlbWorkingSet workingSet )
+    {
+        this.workingSet = workingSet;
+        return this;
+    }
+
+    /**
+     * Limits concurrent interactive loads of all array loaders, or not if controller is null.
+     *
+     * @param controller shared concurrency controller, or null
+     * @return this
+     */
+    public KlbCellTiers concurrencyController( final KlbConcurrencyController controller )
+    {
+        concurrencyController = controller;
+        return this;
+    }
+
+    /**
+     * @param metrics receives latencies, bytes and errors of all array loaders, or null
+     * @return this
+     */
+    public KlbCellTiers metrics( final KlbLoaderMetrics metrics )
+    {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param trace receives every cell request, or null
+     * @return this
+     */
+    public KlbCellTiers cellTrace( final KlbCellTrace trace )
+    {
+        cellTrace = trace;
+        return this;
+    }
+
+    /**
+     * Stops using the shared cache, before it is closed.
+     */
+    public void detachSharedCache()
+    {
+        sharedCache = null;
+    }
+
+    /**
+     * Records an interactive request in the working set, if one is set.
+     */
+    public void recordRequest( final int timePoint, final int setup, final int level, final long[] offset, final boolean idle )
+    {
+        if ( workingSet != null && !idle ) {
+            workingSet.record( timePoint, setup, level, offset );
+        }
+    }
+
+    /**
+     * @return the cell held by the retention tier, or null if there is none or the tier is not set
+     */
+    public Object getRetained( final int timePoint, final int setup, final int level, final long[] offset, final boolean idle )
+    {
+        return retention == null ? null : retention.get( timePoint, setup, level, offset, idle );
+    }
+
+    /**
+     * Offers a loaded cell to the retention tier, if one is set.
+     *
+     * @param priority 0 for the coarsest level
+     */
+    public void retain( final int timePoint, final int setup, final int level, final int priority, final long[] offset, final Object cell,
+            final long numBytes )
+    {
+        if ( retention != null ) {
+            retention.put( timePoint, setup, level, priority, offset, cell, numBytes );
+        }
+    }
+
+    /**
+     * Looks a cell up in the shared cache, then in the disk cache, if set.
+     * Cells found on disk are published to the shared cache.
+     *
+     * @param source target, the KlbCellTrace source of a cell that was found
+     * @return little endian voxels, or null
+     */
+    public ByteBuffer getCached( final String filePath, final long[] offset, final int[] dimensions, final int bytesPerElement, final int[] source )
+    {
+        final KlbSharedCellCache shared = sharedCache;
+        if ( shared != null ) {
+            final ByteBuffer bytes = shared.get( filePath, offset, dimensions, bytesPerElement );
+            if ( bytes != null ) {
+                source[ 0 ] = KlbCellTrace.SHARED;
+                return bytes;
+            }
+        }
+        if ( diskCache == null ) {
+            return null;
+        }
+        final ByteBuffer bytes = diskCache.get( filePath, offset, dimensions, bytesPerElement );
+        if ( bytes != null ) {
+            source[ 0 ] = KlbCellTrace.DISK;
+            if ( shared != null ) {
+                shared.put( filePath, offset, dimensions, bytes );
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return whether read cells are stored, see {@link #putCached(String, long[], int[], ByteBuffer)}
+     */
+    public boolean isCaching()
+    {
+        return diskCache != null || sharedCache != null;
+    }
+
+    /**
+     * Stores a read cell in the disk cache and the shared cache, if set.
+     *
+     * @param bytes little endian voxels
+     */
+    public void putCached( final String filePath, final long[] offset, final int[] dimensions, final ByteBuffer bytes )
+    {
+        if ( diskCache != null ) {
+            diskCache.put( filePath, offset, dimensions, bytes );
+        }
+        final KlbSharedCellCache shared = sharedCache;
+        if ( shared != null ) {
+            shared.put( filePath, offset, dimensions, bytes );
+        }
+    }
+
+    public void recordError( final String filePath, final IOException ex )
+    {
+        if ( metrics != null ) {
+            metrics.recordError( filePath, ex );
+        }
+    }
+
+    public KlbIoScheduler getIoScheduler()
+    {
+        return ioScheduler;
+    }
+
+    public KlbDiskCellCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+    public KlbSharedCellCache getSharedCache()
+    {
+        return sharedCache;
+    }
+
+    public KlbBlockReader getBlockReader()
+    {
+        return blockReader;
+    }
+
+    public KlbDecoderPool getDecoderPool()
+    {
+        return decoders;
+    }
+
+    public KlbSlabArena getSlabArena()
+    {
+        return slabArena;
+    }
+
+    public KlbCellRetention getCellRetention()
+    {
+        return retention;
+    }
+
+    public KlbWorkingSet getWorkingSet()
+    {
+        return workingSet;
+    }
+
+    public KlbConcurrencyController getConcurrencyController()
+    {
+        return concurrencyController;
+    }
+
+    public KlbLoaderMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public KlbCellTrace getCellTrace()
+    {
+        return cellTrace;
+    }
+}
@@ -0,0 +1,342 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records every cell request that reaches the array loaders to a compact
+ * binary trace, for offline evaluation of cache configurations with
+ * KlbCellTraceReplay.
+ * <p>
+ * BDV's cell cache answers most requests itself; the array loaders only
+ * see the cells it does not hold. A trace therefore shows the requests
+ * behind BDV's cache: the workload of the retention tier, the caches
+ * below it and the KLB files.
+ * <p>
+ * A record holds the time since the previous record, the cell (time
+ * point, view setup, level, offset), its cache priority and size, where
+ * it was found and how long the load took. Numbers are stored as
+ * variable length integers, about 16 bytes per record.
+ */
+public class KlbCellTrace
+{
+    public static final int RETENTION = 0;
+    public static final int SHARED = 1;
+    public static final int DISK = 2;
+    public static final int FILE = 3;
+    public static final int CANCELLED = 4;
+
+    private static final String[] SOURCE_NAMES = { "retention", "shared", "disk", "file", "cancelled" };
+    private static final int MAGIC = 0x4b4c4254; // "KLBT"
+    private static final int VERSION = 1;
+    private static final int IDLE_FLAG = 0x80;
+
+    private final File file;
+    private final DataOutputStream out;
+    private final long startMillis = System.currentTimeMillis();
+    private long lastMicros;
+    private long numRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a trace file, with a numbered name if the file exists already.
+     *
+     * @param file trace file, e.g. session.klbtrace
+     */
+    public KlbCellTrace( final File file )
+            throws IOException
+    {
+        this.file = uniqueFile( file );
+        final File parent = this.file.getAbsoluteFile().getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() ) {
+            throw new IOException( "Could not create " + parent );
+        }
+        out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( this.file ), 64 * 1024 ) );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeLong( startMillis );
+        lastMicros = System.nanoTime() / 1000;
+    }
+
+    private static File uniqueFile( final File file )
+    {
+        if ( !file.exists() ) {
+            return file;
+        }
+        final String name = file.getName();
+        final int dot = name.lastIndexOf( '.' );
+        final String base = dot > 0 ? name.substring( 0, dot ) : name;
+        final String extension = dot > 0 ? name.substring( dot ) : "";
+        for ( int i = 1; ; ++i ) {
+            final File numbered = new File( file.getParentFile(), base + "-" + i + extension );
+            if ( !numbered.exists() ) {
+                return numbered;
+            }
+        }
+    }
+
+    /**
+     * Appends a cell request. Errors disable the trace, they never fail a load.
+     *
+     * @param setup        view setup, negative for cells in a display encoding
+     * @param priority     cache priority, 0 for the coarsest level
+     * @param numBytes     size of the cell
+     * @param source       {@link #RETENTION}, {@link #SHARED}, {@link #DISK}, {@link #FILE} or {@link #CANCELLED}
+     * @param idle         whether this was a background load, e.g. warm-up
+     * @param latencyNanos duration of the load
+     */
+    public synchronized void record( final int timePoint, final int setup, final int level, final long[] offset, final int priority,
+            final long numBytes, final int source, final boolean idle, final long latencyNanos )
+    {
+        if ( closed ) {
+            return;
+        }
+        final long micros = System.nanoTime() / 1000;
+        try {
+            writeVarLong( out, Math.max( 0, micros - lastMicros ) );
+            writeVarLong( out, timePoint );
+            writeVarLong( out, (setup << 1) ^ (setup >> 31) );
+            out.writeByte( level );
+            writeVarLong( out, offset[ 0 ] );
+            writeVarLong( out, offset[ 1 ] );
+            writeVarLong( out, offset[ 2 ] );
+            writeVarLong( out, Math.max( 0, priority ) );
+            writeVarLong( out, numBytes );
+            out.writeByte( source | (idle ? IDLE_FLAG : 0) );
+            writeVarLong( out, latencyNanos / 1000 );
+            lastMicros = micros;
+            ++numRecords;
+        } catch ( IOException ex ) {
+            System.err.println( "klb-bdv: cell trace " + file + " stopped: " + ex );
+            closeQuietly();
+        }
+    }
+
+    public synchronized void close()
+            throws IOException
+    {
+        if ( !closed ) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void closeQuietly()
+    {
+        try {
+            close();
+        } catch ( IOException ex ) {
+            // already reported
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized long getNumRecords()
+    {
+        return numRecords;
+    }
+
+    public static String getSourceName( final int source )
+    {
+        return SOURCE_NAMES[ source ];
+    }
+
+    private static void writeVarLong( final OutputStream out, long value )
+            throws IOException
+    {
+        while ( (value & ~0x7fL) != 0 ) {
+            out.write( ( int ) ((value & 0x7f) | 0x80) );
+            value >>>= 7;
+        }
+        out.write( ( int ) value );
+    }
+
+    private static long readVarLong( final InputStream in )
+            throws IOException
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 64; shift += 7 ) {
+            final int b = in.read();
+            if ( b < 0 ) {
+                throw new EOFException();
+            }
+            value |= ( long ) (b & 0x7f) << shift;
+            if ( (b & 0x80) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "Malformed variable length integer" );
+    }
+
+    /**
+     * Reads a trace record by record.
+     */
+    public static class Reader
+    {
+        private final DataInputStream in;
+        private final long startMillis;
+        private long micros = 0;
+
+        public Reader( final File file )
+                throws IOException
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                in.close();
+                throw new IOException( "Not a cell trace: " + file );
+            }
+            startMillis = in.readLong();
+        }
+
+        /**
+         * @return wall clock time the trace started, in milliseconds since the epoch
+         */
+        public long getStartMillis()
+        {
+            return startMillis;
+        }
+
+        /**
+         * @return next record, or null at the end of the trace, including a record cut off by a crash
+         */
+        public Record next()
+                throws IOException
+        {
+            final int first = in.read();
+            if ( first < 0 ) {
+                return null;
+            }
+            try {
+                long delta = first & 0x7f;
+                if ( (first & 0x80) != 0 ) {
+                    delta |= readVarLong( in ) << 7;
+                }
+                micros += delta;
+                final int timePoint = ( int ) readVarLong( in );
+                final int zigzag = ( int ) readVarLong( in );
+                final int setup = (zigzag >>> 1) ^ -(zigzag & 1);
+                final int level = in.readUnsignedByte();
+                final long x = readVarLong( in );
+                final long y = readVarLong( in );
+                final long z = readVarLong( in );
+                final int priority = ( int ) readVarLong( in );
+                final long numBytes = readVarLong( in );
+                final int flags = in.readUnsignedByte();
+                final long latencyMicros = readVarLong( in );
+                return new Record( micros, timePoint, setup, level, x, y, z, priority, numBytes, flags & ~IDLE_FLAG, (flags & IDLE_FLAG) != 0, latencyMicros );
+            } catch ( EOFException ex ) {
+                return null;
+            }
+        }
+
+        public void close()
+                throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * A cell request of a trace.
+     */
+    public static class Record
+    {
+        private final long micros;
+        private final int timePoint, setup, level;
+        private final long x, y, z;
+        private final int priority;
+        private final long numBytes;
+        private final int source;
+        private final boolean idle;
+        private final long latencyMicros;
+
+        private Record( final long micros, final int timePoint, final int setup, final int level, final long x, final long y, final long z,
+                final int priority, final long numBytes, final int source, final boolean idle, final long latencyMicros )
+        {
+            this.micros = micros;
+            this.timePoint = timePoint;
+            this.setup = setup;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.priority = priority;
+            this.numBytes = numBytes;
+            this.source = source;
+            this.idle = idle;
+            this.latencyMicros = latencyMicros;
+        }
+
+        /**
+         * @return time since the start of the trace
+         */
+        public long getMicros()
+        {
+            return micros;
+        }
+
+        public int getTimePoint()
+        {
+            return timePoint;
+        }
+
+        /**
+         * @return view setup, negative for cells in a display encoding
+         */
+        public int getSetup()
+        {
+            return setup;
+        }
+
+        public int getLevel()
+        {
+            return level;
+        }
+
+        public long[] getOffset()
+        {
+            return new long[]{ x, y, z };
+        }
+
+        public int getPriority()
+        {
+            return priority;
+        }
+
+        public long getNumBytes()
+        {
+            return numBytes;
+        }
+
+        /**
+         * @return {@link #RETENTION}, {@link #SHARED}, {@link #DISK}, {@link #FILE} or {@link #CANCELLED}
+         */
+        public int getSource()
+        {
+            return source;
+        }
+
+        public boolean isIdle()
+        {
+            return idle;
+        }
+
+        public long getLatencyMicros()
+        {
+            return latencyMicros;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a cell trace recorded by KlbCellTrace against simulated
+ * retention tiers, to choose cache size, eviction policy and prefetch
+ * depth from real sessions without repeating them.
+ * <p>
+ * Usage: KlbCellTraceReplay trace-file [sizesMB] [policies] [prefetchDepths] [pinnedLevels]
+ * <p>
+ * Lists are comma separated, e.g. "256,1024,4096 lru,fifo,retention 0,1,2"
+ * (the defaults). Policies are least recently used, first in first out,
+ * and KlbCellRetention's time and level aware order. A prefetch depth of
+ * n loads the same cell of the next n time points with every request.
+ * <p>
+ * The simulated tier sits where KlbCellRetention sits: behind BDV's cell
+ * cache, in front of the shared cache, disk cache and KLB files. A miss
+ * costs what the recorded request cost below the retention tier; a cell
+ * that was a retention hit when recorded costs the mean latency of file
+ * reads of its level. A prefetched cell is ready after that latency, a
+ * request for it before then waits for the rest. Prefetches are assumed
+ * not to delay requests, so estimates for deep prefetch are optimistic
+ * on saturated storage.
+ */
+public class KlbCellTraceReplay
+{
+    private final List< KlbCellTrace.Record > records = new ArrayList< KlbCellTrace.Record >();
+    private final Map< Integer, double[] > fileLatencyMicros = new HashMap< Integer, double[] >();
+    private final Map< Integer, Integer > maxTimePoints = new HashMap< Integer, Integer >();
+    private double meanFileLatencyMicros = 0;
+
+    public KlbCellTraceReplay( final File traceFile )
+            throws IOException
+    {
+        final KlbCellTrace.Reader reader = new KlbCellTrace.Reader( traceFile );
+        try {
+            KlbCellTrace.Record record;
+            while ( (record = reader.next()) != null ) {
+                records.add( record );
+            }
+        } finally {
+            reader.close();
+        }
+        // sum and count of file read latencies per level
+        long sum = 0, count = 0;
+        for ( final KlbCellTrace.Record r : records ) {
+            if ( r.getSource() == KlbCellTrace.FILE ) {
+                double[] levelSumAndCount = fileLatencyMicros.get( r.getLevel() );
+                if ( levelSumAndCount == null ) {
+                    levelSumAndCount = new double[ 2 ];
+                    fileLatencyMicros.put( r.getLevel(), levelSumAndCount );
+                }
+                levelSumAndCount[ 0 ] += r.getLatencyMicros();
+                ++levelSumAndCount[ 1 ];
+                sum += r.getLatencyMicros();
+                ++count;
+            }
+            final Integer max = maxTimePoints.get( r.getSetup() );
+            if ( max == null || max < r.getTimePoint() ) {
+                maxTimePoints.put( r.getSetup(), r.getTimePoint() );
+            }
+        }
+        meanFileLatencyMicros = count == 0 ? 0 : ( double ) sum / count;
+    }
+
+    public int getNumRecords()
+    {
+        return records.size();
+    }
+
+    /**
+     * @return hit rate, latency and bytes decoded of the recorded session itself
+     */
+    public Result getRecorded()
+    {
+        final Result result = new Result( "recorded", 0, 0 );
+        for ( final KlbCellTrace.Record r : records ) {
+            if ( r.getSource() == KlbCellTrace.CANCELLED ) {
+                continue;
+            }
+            if ( r.getSource() == KlbCellTrace.FILE ) {
+                result.bytesDecoded += r.getNumBytes();
+            }
+            if ( !r.isIdle() ) {
+                ++result.numRequests;
+                result.latencyMicros += r.getLatencyMicros();
+                if ( r.getSource() == KlbCellTrace.RETENTION ) {
+                    ++result.numHits;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param policy        "lru", "fifo" or "retention"
+     * @param maxBytes      size of the simulated tier
+     * @param prefetchDepth number of following time points of each requested cell to load
+     * @param pinnedLevels  pinned coarsest levels of the "retention" policy
+     */
+    public Result simulate( final String policy, final long maxBytes, final int prefetchDepth, final int pinnedLevels )
+    {
+        final SimulatedCache cache;
+        if ( policy.equals( "lru" ) ) {
+            cache = new LinkedHashMapCache( maxBytes, true );
+        } else if ( policy.equals( "fifo" ) ) {
+            cache = new LinkedHashMapCache( maxBytes, false );
+        } else if ( policy.equals( "retention" ) ) {
+            cache = new RetentionCache( maxBytes, pinnedLevels );
+        } else {
+            throw new IllegalArgumentException( "Unknown policy " + policy );
+        }
+        final Result result = new Result( policy, maxBytes, prefetchDepth );
+        for ( final KlbCellTrace.Record r : records ) {
+            if ( r.getSource() == KlbCellTrace.CANCELLED ) {
+                continue;
+            }
+            final long now = r.getMicros();
+            final long[] offset = r.getOffset();
+            if ( r.isIdle() ) {
+                // background loads of the recorded session, e.g. warm-up, fill the tier like prefetches
+                prefetch( cache, r, r.getTimePoint(), now, result );
+                continue;
+            }
+            ++result.numRequests;
+            final Long readyAt = cache.get( r.getTimePoint(), r.getSetup(), r.getLevel(), offset );
+            if ( readyAt == null ) {
+                final long latency = getMissLatencyMicros( r );
+                result.latencyMicros += latency;
+                if ( r.getSource() == KlbCellTrace.FILE || r.getSource() == KlbCellTrace.RETENTION ) {
+                    result.bytesDecoded += r.getNumBytes();
+                }
+                cache.put( r.getTimePoint(), r.getSetup(), r.getLevel(), r.getPriority(), offset, now + latency, r.getNumBytes() );
+            } else {
+                ++result.numHits;
+                if ( readyAt > now ) {
+                    ++result.numLateHits;
+                    result.latencyMicros += readyAt - now;
+                }
+            }
+            final Integer maxTimePoint = maxTimePoints.get( r.getSetup() );
+            for ( int t = r.getTimePoint() + 1; t <= r.getTimePoint() + prefetchDepth && t <= maxTimePoint; ++t ) {
+                prefetch( cache, r, t, now, result );
+            }
+        }
+        return result;
+    }
+
+    private void prefetch( final SimulatedCache cache, final KlbCellTrace.Record r, final int timePoint, final long now, final Result result )
+    {
+        final long[] offset = r.getOffset();
+        if ( cache.contains( timePoint, r.getSetup(), r.getLevel(), offset ) ) {
+            return;
+        }
+        result.bytesDecoded += r.getNumBytes();
+        cache.put( timePoint, r.getSetup(), r.getLevel(), r.getPriority(), offset, now + getFileLatencyMicros( r.getLevel() ), r.getNumBytes() );
+    }
+
+    /**
+     * @return recorded latency below the retention tier, estimated for recorded retention hits
+     */
+    private long getMissLatencyMicros( final KlbCellTrace.Record r )
+    {
+        return r.getSource() == KlbCellTrace.RETENTION ? getFileLatencyMicros( r.getLevel() ) : r.getLatencyMicros();
+    }
+
+    private long getFileLatencyMicros( final int level )
+    {
+        final double[] sumAndCount = fileLatencyMicros.get( level );
+        return ( long ) (sumAndCount == null ? meanFileLatencyMicros : sumAndCount[ 0 ] / sumAndCount[ 1 ]);
+    }
+
+    /**
+     * Outcome of a replay.
+     */
+    public static class Result
+    {
+        private final String policy;
+        private final long maxBytes;
+        private final int prefetchDepth;
+        private long numRequests = 0, numHits = 0, numLateHits = 0, bytesDecoded = 0, latencyMicros = 0;
+
+        private Result( final String policy, final long maxBytes, final int prefetchDepth )
+        {
+            this.policy = policy;
+            this.maxBytes = maxBytes;
+            this.prefetchDepth = prefetchDepth;
+        }
+
+        public double getHitRate()
+        {
+            return numRequests == 0 ? 0 : ( double ) numHits / numRequests;
+        }
+
+        /**
+         * @return hits on prefetched cells that were not loaded yet
+         */
+        public long getNumLateHits()
+        {
+            return numLateHits;
+        }
+
+        public long getBytesDecoded()
+        {
+            return bytesDecoded;
+        }
+
+        public double getMeanLatencyMillis()
+        {
+            return numRequests == 0 ? 0 : latencyMicros / 1e3 / numRequests;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%-10s %8s %8s %8.1f%% %8d %12.1f %10.2f",
+                    policy, maxBytes == 0 ? "-" : Long.toString( maxBytes / 1024 / 1024 ), maxBytes == 0 ? "-" : Integer.toString( prefetchDepth ),
+                    100 * getHitRate(), numLateHits, bytesDecoded / 1e6, getMeanLatencyMillis() );
+        }
+    }
+
+    /**
+     * A simulated retention tier, holding the time each cell is ready.
+     */
+    private interface SimulatedCache
+    {
+        Long get( int timePoint, int setup, int level, long[] offset );
+
+        boolean contains( int timePoint, int setup, int level, long[] offset );
+
+        void put( int timePoint, int setup, int level, int priority, long[] offset, long readyAt, long numBytes );
+    }
+
+    private static class LinkedHashMapCache implements SimulatedCache
+    {
+        private final long maxBytes;
+        private final LinkedHashMap< List< Long >, long[] > entries;
+        private long sizeBytes = 0;
+
+        private LinkedHashMapCache( final long maxBytes, final boolean accessOrder )
+        {
+            this.maxBytes = maxBytes;
+            entries = new LinkedHashMap< List< Long >, long[] >( 16, 0.75f, accessOrder );
+        }
+
+        private static List< Long > key( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            return Arrays.asList( ( long ) timePoint, ( long ) setup, ( long ) level, offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+        }
+
+        @Override
+        public Long get( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            final long[] entry = entries.get( key( timePoint, setup, level, offset ) );
+            return entry == null ? null : entry[ 0 ];
+        }
+
+        @Override
+        public boolean contains( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            return entries.containsKey( key( timePoint, setup, level, offset ) );
+        }
+
+        @Override
+        public void put( final int timePoint, final int setup, final int level, final int priority, final long[] offset, final long readyAt, final long numBytes )
+        {
+            if ( numBytes > maxBytes ) {
+                return;
+            }
+            final Iterator< long[] > eldest = entries.values().iterator();
+            while ( sizeBytes + numBytes > maxBytes ) {
+                sizeBytes -= eldest.next()[ 1 ];
+                eldest.remove();
+            }
+            entries.put( key( timePoint, setup, level, offset ), new long[]{ readyAt, numBytes } );
+            sizeBytes += numBytes;
+        }
+    }
+
+    private static class RetentionCache implements SimulatedCache
+    {
+        private final KlbCellRetention retention;
+
+        private RetentionCache( final long maxBytes, final int pinnedLevels )
+        {
+            retention = new KlbCellRetention( maxBytes, pinnedLevels );
+        }
+
+        @Override
+        public Long get( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            return ( Long ) retention.get( timePoint, setup, level, offset );
+        }
+
+        @Override
+        public boolean contains( final int timePoint, final int setup, final int level, final long[] offset )
+        {
+            return retention.contains( timePoint, setup, level, offset );
+        }
+
+        @Override
+        public void put( final int timePoint, final int setup, final int level, final int priority, final long[] offset, final long readyAt, final long numBytes )
+        {
+            retention.put( timePoint, setup, level, priority, offset, readyAt, numBytes );
+        }
+    }
+
+    private static long[] parseLongs( final String s )
+    {
+        final String[] parts = s.split( "," );
+        final long[] values = new long[ parts.length ];
+        for ( int i = 0; i < parts.length; ++i ) {
+            values[ i ] = Long.parseLong( parts[ i ].trim() );
+        }
+        return values;
+    }
+
+    public static void main( final String[] args ) throws Exception
+    {
+        if ( args.length < 1 ) {
+            System.out.println( "Usage: KlbCellTraceReplay trace-file [sizesMB] [policies] [prefetchDepths] [pinnedLevels]" );
+            return;
+        }
+        final long[] sizesMB = parseLongs( args.length > 1 ? args[ 1 ] : "256,1024,4096" );
+        final String[] policies = (args.length > 2 ? args[ 2 ] : "lru,fifo,retention").toLowerCase().split( "," );
+        final long[] prefetchDepths = parseLongs( args.length > 3 ? args[ 3 ] : "0,1,2" );
+        final int pinnedLevels = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : 1;
+
+        final KlbCellTraceReplay replay = new KlbCellTraceReplay( new File( args[ 0 ] ) );
+        System.out.println( String.format( "%d records", replay.getNumRecords() ) );
+        System.out.println( String.format( "%-10s %8s %8s %9s %8s %12s %10s", "policy", "MB", "prefetch", "hit rate", "late", "decoded MB", "mean ms" ) );
+        System.out.println( replay.getRecorded() );
+        for ( final String policy : policies ) {
+            for ( final long sizeMB : sizesMB ) {
+                for ( final long depth : prefetchDepths ) {
+                    System.out.println( replay.simulate( policy.trim(), sizeMB * 1024 * 1024, ( int ) depth, pinnedLevels ) );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports a KLB data set to an N5 or Zarr (v2) container, for tools that
+ * read those formats.
+ * <p>
+ * The container follows the layout of BDV's N5 export,
+ * setup{s}/timepoint{t}/s{level}, with the attributes "downsamplingFactors"
+ * and "dataType" on each setup group. Each resolution level is exported
+ * from its RESLVL file, so levels are what KlbDownsampler generated; none
+ * are computed here. Chunks are the blocks of the KLB file, so every
+ * chunk is decoded from exactly one block: the file is read one slab of
+ * blocks along z at a time, and no voxel passes through an ImgLib2 image.
+ * <p>
+ * Files are exported in parallel, the slabs in flight bounded by a memory
+ * budget. Chunks are written under a temporary name and renamed, and a
+ * completed data set is marked with the size and modification time of its
+ * KLB file, so an interrupted export is resumed by running it again:
+ * completed files and slabs whose chunks all exist are skipped.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Export KLB data set to N5 or Zarr" )
+public class KlbChunkExporter implements Command
+{
+    public static final String N5 = "N5", ZARR = "Zarr";
+    // marks a completed data set, holds the identity of its source file
+    static final String DONE_FILE = ".klbexport";
+    private static final int ZLIB_LEVEL = 6;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    // by KLB data type code
+    private static final String[] N5_TYPES = { "uint8", "uint16", "uint32", "uint64", "int8", "int16", "int32", "int64", "float32", "float64" };
+    private static final String[] ZARR_TYPES = { "|u1", "<u2", "<u4", "<u8", "|i1", "<i2", "<i4", "<i8", "<f4", "<f8" };
+
+    @Parameter
+    private File xmlFile;
+
+    @Parameter( label = "Output container (.n5 or .zarr)", style = "directory" )
+    private File container;
+
+    @Parameter( label = "Format", choices = { N5, ZARR }, required = false )
+    private String format = N5;
+
+    @Parameter( label = "Compress (gzip for N5, zlib for Zarr)", required = false )
+    private boolean compress = true;
+
+    @Parameter( label = "Threads", required = false )
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( label = "Memory budget (MB, 0 for half the heap)", required = false )
+    private int memoryMB = 0;
+
+    @Parameter
+    private LogService log;
+
+    @Override
+    public void run()
+    {
+        process( xmlFile, container, format, compress, numThreads, memoryMB );
+    }
+
+    /**
+     * @param format     {@link #N5} or {@link #ZARR}
+     * @param compress   gzip (N5) or zlib (Zarr) compressed chunks, else raw
+     * @param numThreads files exported at a time
+     * @param memoryMB   bound of the slabs in flight, 0 for half the maximum heap
+     * @return whether all files were exported
+     */
+    public boolean process( final File xmlFile, final File container, final String format, final boolean compress,
+            final int numThreads, final int memoryMB )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        SpimDataMinimal data = null;
+        try {
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return false;
+        }
+        final AbstractSequenceDescription< ?, ?, ? > seq = data.getSequenceDescription();
+        final KlbPartitionResolver resolver = (( KlbImgLoader ) seq.getImgLoader()).getResolver();
+        final boolean zarr = ZARR.equalsIgnoreCase( format );
+        final long budget = memoryMB > 0 ? memoryMB * 1024L * 1024 : Runtime.getRuntime().maxMemory() / 2;
+        // permits in KB, so that budgets above 2 GB fit an int
+        final int memoryPermits = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, budget / 1024 ) );
+        final Semaphore memory = new Semaphore( memoryPermits );
+        final KlbBlockReader reader = new KlbBlockReader( new KlbBlockIndexCache( 4 * Math.max( 1, numThreads ) ), null );
+        final AtomicLong bytesIn = new AtomicLong(), bytesOut = new AtomicLong();
+
+        final List< Callable< Boolean > > tasks = new ArrayList< Callable< Boolean > >();
+        try {
+            writeGroup( container, zarr, zarr ? null : "\"n5\":\"2.0.0\"" );
+            for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() ) {
+                final int s = setup.getId();
+                final int numLevels = resolver.getNumResolutionLevels( s );
+                writeGroup( new File( container, "setup" + s ), zarr, getSetupAttributes( resolver, s, numLevels ) );
+                for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+                    final int t = timePoint.getId();
+                    if ( seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( t, s ) ) ) {
+                        continue;
+                    }
+                    final File timePointGroup = new File( container, "setup" + s + File.separator + "timepoint" + t );
+                    writeGroup( timePointGroup, zarr, null );
+                    for ( int level = 0; level < numLevels; ++level ) {
+                        final String path = resolver.getFilePath( t, s, level );
+                        final File dataset = new File( timePointGroup, "s" + level );
+                        tasks.add( new Callable< Boolean >()
+                        {
+                            @Override
+                            public Boolean call()
+                            {
+                                if ( KlbByteSource.getIdentity( path ) == null ) {
+                                    log.warn( "Missing, not exported: " + path );
+                                    return true;
+                                }
+                                try {
+                                    final long[] sizes = export( reader, path, dataset, zarr, compress, memory, memoryPermits );
+                                    bytesIn.addAndGet( sizes[ 0 ] );
+                                    bytesOut.addAndGet( sizes[ 1 ] );
+                                    return true;
+                                } catch ( InterruptedException ex ) {
+                                    Thread.currentThread().interrupt();
+                                    return false;
+                                } catch ( Exception ex ) {
+                                    log.error( path + ": " + ex.getMessage() );
+                                    return false;
+                                }
+                            }
+                        } );
+                    }
+                }
+            }
+        } catch ( IOException e ) {
+            log.error( e );
+            return false;
+        }
+
+        log.info( String.format( "Exporting %d files to %s on %d threads, memory budget %d MB", tasks.size(), container, numThreads, budget / 1024 / 1024 ) );
+        final ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        final long start = System.nanoTime();
+        int numFailed = 0;
+        try {
+            for ( final Future< Boolean > result : pool.invokeAll( tasks ) ) {
+                numFailed += result.get() ? 0 : 1;
+            }
+        } catch ( Exception e ) {
+            log.error( e );
+            return false;
+        } finally {
+            pool.shutdown();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        log.info( String.format( "Exported %d files in %.1f s, %.1f MB decoded at %.1f MB/s to %.1f MB, %d failed",
+                tasks.size() - numFailed, seconds, bytesIn.get() / 1e6, bytesIn.get() / 1e6 / seconds, bytesOut.get() / 1e6, numFailed ) );
+        return numFailed == 0;
+    }
+
+    /**
+     * Exports one KLB file to one data set.
+     *
+     * @return {decoded bytes, bytes written}, zero for a data set completed before
+     */
+    private static long[] export( final KlbBlockReader reader, final String path, final File dataset, final boolean zarr, final boolean compress,
+            final Semaphore memory, final int memoryPermits )
+            throws IOException, InterruptedException
+    {
+        final long[] identity = KlbByteSource.getIdentity( path );
+        final String done = identity[ 0 ] + " " + identity[ 1 ];
+        final File doneFile = new File( dataset, DONE_FILE );
+        if ( doneFile.isFile() && new String( Files.readAllBytes( doneFile.toPath() ), UTF8 ).trim().equals( done ) ) {
+            return new long[ 2 ];
+        }
+
+        final KlbBlockIndex index = KlbBlockIndex.read( path );
+        final long[] size = index.getImageSize();
+        final long[] block = index.getBlockSize();
+        if ( size[ 3 ] != 1 || size[ 4 ] != 1 ) {
+            throw new IOException( "Files of more than one channel or time point are not supported" );
+        }
+        final int dataType = index.getDataType();
+        final int bytesPerElement = KlbBlockReader.getBytesPerElement( dataType );
+        writeDatasetAttributes( dataset, zarr, compress, size, block, dataType );
+
+        final long[] numChunks = new long[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            numChunks[ d ] = (size[ d ] + block[ d ] - 1) / block[ d ];
+        }
+        final long slabBytes = size[ 0 ] * size[ 1 ] * block[ 2 ] * bytesPerElement;
+        long decoded = 0, written = 0;
+        for ( long cz = 0; cz < numChunks[ 2 ]; ++cz ) {
+            if ( allChunksExist( dataset, zarr, numChunks, cz ) ) {
+                continue;
+            }
+            final int permits = ( int ) Math.max( 1, Math.min( slabBytes / 1024 + 1, memoryPermits ) );
+            memory.acquire( permits );
+            try {
+                final long z0 = cz * block[ 2 ];
+                final long[] min = { 0, 0, z0, 0, 0 };
+                final long[] max = { size[ 0 ] - 1, size[ 1 ] - 1, Math.min( z0 + block[ 2 ], size[ 2 ] ) - 1, 0, 0 };
+                final byte[] slab = reader.readROI( path, min, max ).array();
+                decoded += slab.length;
+                final long slabDepth = max[ 2 ] - z0 + 1;
+                for ( long cy = 0; cy < numChunks[ 1 ]; ++cy ) {
+                    for ( long cx = 0; cx < numChunks[ 0 ]; ++cx ) {
+                        final long[] chunkMin = { cx * block[ 0 ], cy * block[ 1 ] };
+                        // N5 chunks at the border are cropped, Zarr chunks are padded with zeros
+                        final long[] chunkSize = {
+                                zarr ? block[ 0 ] : Math.min( block[ 0 ], size[ 0 ] - chunkMin[ 0 ] ),
+                                zarr ? block[ 1 ] : Math.min( block[ 1 ], size[ 1 ] - chunkMin[ 1 ] ),
+                                zarr ? block[ 2 ] : slabDepth };
+                        final byte[] chunk = extractChunk( slab, size, slabDepth, chunkMin, chunkSize, bytesPerElement );
+                        final File file = getChunkFile( dataset, zarr, cx, cy, cz );
+                        written += zarr
+                                ? writeChunk( file, null, chunk, compress )
+                                : writeChunk( file, getN5Header( chunkSize ), toBigEndian( chunk, bytesPerElement ), compress );
+                    }
+                }
+            } finally {
+                memory.release( permits );
+            }
+        }
+        Files.write( doneFile.toPath(), done.getBytes( UTF8 ) );
+        return new long[]{ decoded, written };
+    }
+
+    private static boolean allChunksExist( final File dataset, final boolean zarr, final long[] numChunks, final long cz )
+    {
+        for ( long cy = 0; cy < numChunks[ 1 ]; ++cy ) {
+            for ( long cx = 0; cx < numChunks[ 0 ]; ++cx ) {
+                if ( !getChunkFile( dataset, zarr, cx, cy, cz ).isFile() ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return chunk voxels, x fastest; parts of the chunk outside the slab are zero
+     */
+    static byte[] extractChunk( final byte[] slab, final long[] size, final long slabDepth, final long[] chunkMin, final long[] chunkSize,
+            final int bytesPerElement )
+    {
+        final byte[] chunk = new byte[ ( int ) (chunkSize[ 0 ] * chunkSize[ 1 ] * chunkSize[ 2 ] * bytesPerElement) ];
+        final int rowBytes = ( int ) (Math.min( chunkSize[ 0 ], size[ 0 ] - chunkMin[ 0 ] ) * bytesPerElement);
+        final long numRows = Math.min( chunkSize[ 1 ], size[ 1 ] - chunkMin[ 1 ] );
+        final long numPlanes = Math.min( chunkSize[ 2 ], slabDepth );
+        for ( long z = 0; z < numPlanes; ++z ) {
+            for ( long y = 0; y < numRows; ++y ) {
+                final long src = ((z * size[ 1 ] + chunkMin[ 1 ] + y) * size[ 0 ] + chunkMin[ 0 ]) * bytesPerElement;
+                final long dst = (z * chunkSize[ 1 ] + y) * chunkSize[ 0 ] * bytesPerElement;
+                System.arraycopy( slab, ( int ) src, chunk, ( int ) dst, rowBytes );
+            }
+        }
+        return chunk;
+    }
+
+    private static byte[] toBigEndian( final byte[] data, final int bytesPerElement )
+    {
+        final ByteBuffer src = ByteBuffer.wrap( data ).order( ByteOrder.LITTLE_ENDIAN );
+        final ByteBuffer dst = ByteBuffer.allocate( data.length ).order( ByteOrder.BIG_ENDIAN );
+        switch ( bytesPerElement ) {
+        case 1:
+            return data;
+        case 2:
+            dst.asShortBuffer().put( src.asShortBuffer() );
+            break;
+        case 4:
+            dst.asIntBuffer().put( src.asIntBuffer() );
+            break;
+        default:
+            dst.asLongBuffer().put( src.asLongBuffer() );
+        }
+        return dst.array();
+    }
+
+    /**
+     * N5 block header: mode 0 (default), number of dimensions, and the size of the block.
+     */
+    private static byte[] getN5Header( final long[] chunkSize )
+    {
+        final ByteBuffer header = ByteBuffer.allocate( 4 + 4 * chunkSize.length ).order( ByteOrder.BIG_ENDIAN );
+        header.putShort( ( short ) 0 );
+        header.putShort( ( short ) chunkSize.length );
+        for ( final long s : chunkSize ) {
+            header.putInt( ( int ) s );
+        }
+        return header.array();
+    }
+
+    /**
+     * N5 chunks are dataset/x/y/z, Zarr chunks dataset/z.y.x.
+     */
+    static File getChunkFile( final File dataset, final boolean zarr, final long cx, final long cy, final long cz )
+    {
+        if ( zarr ) {
+            return new File( dataset, cz + "." + cy + "." + cx );
+        }
+        return new File( dataset, cx + File.separator + cy + File.separator + cz );
+    }
+
+    /**
+     * Writes a chunk under a temporary name and renames it, so that an existing chunk is complete.
+     *
+     * @param header written uncompressed before data, or null
+     * @return bytes written
+     */
+    private static long writeChunk( final File file, final byte[] header, final byte[] data, final boolean compress )
+            throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream( data.length / 2 + 64 );
+        if ( header != null ) {
+            bytes.write( header );
+        }
+        if ( compress ) {
+            // N5 "gzip" is gzip, the Zarr "zlib" codec is zlib
+            final OutputStream out = header != null
+                    ? new GZIPOutputStream( bytes, 64 * 1024 )
+                    : new DeflaterOutputStream( bytes, new Deflater( ZLIB_LEVEL ), 64 * 1024 );
+            out.write( data );
+            out.close();
+        } else {
+            bytes.write( data );
+        }
+        final File parent = file.getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory() ) {
+            throw new IOException( "Could not create " + parent );
+        }
+        final File tmp = new File( parent, file.getName() + ".tmp" );
+        final byte[] out = bytes.toByteArray();
+        Files.write( tmp.toPath(), out );
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        return out.length;
+    }
+
+    /**
+     * @return "downsamplingFactors" and "dataType" of a view setup, relative to level 0 of its first file
+     */
+    private static String getSetupAttributes( final KlbPartitionResolver resolver, final int setup, final int numLevels )
+    {
+        final long[] size0 = new long[ 3 ], size = new long[ 3 ];
+        resolver.getImageSize( setup, 0, size0 );
+        final StringBuilder sb = new StringBuilder( "\"downsamplingFactors\":[" );
+        for ( int level = 0; level < numLevels; ++level ) {
+            resolver.getImageSize( setup, level, size );
+            sb.append( level == 0 ? "[" : ",[" );
+            for ( int d = 0; d < 3; ++d ) {
+                sb.append( d == 0 ? "" : "," ).append( Math.max( 1, Math.round( ( double ) size0[ d ] / size[ d ] ) ) );
+            }
+            sb.append( "]" );
+        }
+        sb.append( "]" );
+        final Object type = resolver.getViewSetupConfig( setup ).getDataType();
+        final String dataType = type instanceof UnsignedByteType ? N5_TYPES[ 0 ]
+                : type instanceof UnsignedShortType ? N5_TYPES[ 1 ]
+                : type instanceof FloatType ? N5_TYPES[ 8 ] : null;
+        if ( dataType != null ) {
+            sb.append( ",\"dataType\":\"" ).append( dataType ).append( "\"" );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a group with the given attributes (JSON members without braces), or none.
+     */
+    private static void writeGroup( final File group, final boolean zarr, final String attributes )
+            throws IOException
+    {
+        if ( !group.isDirectory() && !group.mkdirs() && !group.isDirectory() ) {
+            throw new IOException( "Could not create " + group );
+        }
+        if ( zarr ) {
+            write( new File( group, ".zgroup" ), "{\"zarr_format\":2}" );
+            if ( attributes != null ) {
+                write( new File( group, ".zattrs" ), "{" + attributes + "}" );
+            }
+        } else if ( attributes != null ) {
+            write( new File( group, "attributes.json" ), "{" + attributes + "}" );
+        }
+    }
+
+    private static void writeDatasetAttributes( final File dataset, final boolean zarr, final boolean compress, final long[] size,
+            final long[] block, final int dataType )
+            throws IOException
+    {
+        if ( !dataset.isDirectory() && !dataset.mkdirs() && !dataset.isDirectory() ) {
+            throw new IOException( "Could not create " + dataset );
+        }
+        if ( zarr ) {
+            // C order with x fastest, as in KLB
+            write( new File( dataset, ".zarray" ), String.format(
+                    "{\"zarr_format\":2,\"shape\":[%d,%d,%d],\"chunks\":[%d,%d,%d],\"dtype\":\"%s\",\"compressor\":%s,"
+                            + "\"fill_value\":0,\"order\":\"C\",\"filters\":null,\"dimension_separator\":\".\"}",
+                    size[ 2 ], size[ 1 ], size[ 0 ], block[ 2 ], block[ 1 ], block[ 0 ], ZARR_TYPES[ dataType ],
+                    compress ? "{\"id\":\"zlib\",\"level\":" + ZLIB_LEVEL + "}" : "null" ) );
+        } else {
+            write( new File( dataset, "attributes.json" ), String.format(
+                    "{\"dimensions\":[%d,%d,%d],\"blockSize\":[%d,%d,%d],\"dataType\":\"%s\",\"compression\":%s}",
+                    size[ 0 ], size[ 1 ], size[ 2 ], block[ 0 ], block[ 1 ], block[ 2 ], N5_TYPES[ dataType ],
+                    compress ? "{\"type\":\"gzip\",\"level\":-1,\"useZlib\":false}" : "{\"type\":\"raw\"}" ) );
+        }
+    }
+
+    private static void write( final File file, final String content )
+            throws IOException
+    {
+        Files.write( file.toPath(), content.getBytes( UTF8 ) );
+    }
+
+    public static void main( final String[] args )
+    {
+        if ( args.length < 2 ) {
+            System.out.println( "Usage: KlbChunkExporter dataset.xml output.n5|output.zarr [compress (true|false)] [threads] [memoryMB]" );
+            return;
+        }
+        final File container = new File( args[ 1 ] );
+        final String format = container.getName().endsWith( ".zarr" ) ? ZARR : N5;
+        final boolean compress = args.length < 3 || Boolean.parseBoolean( args[ 2 ] );
+        final int numThreads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Runtime.getRuntime().availableProcessors();
+        final int memoryMB = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : 0;
+        final boolean success = new KlbChunkExporter().process( new File( args[ 0 ] ), container, format, compress, numThreads, memoryMB );
+        System.exit( success ? 0 : 1 );
+    }
+}
@@ -0,0 +1,253 @@
+package org.janelia.simview.klb.bdv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off-heap LRU cache of compressed KLB blocks, as they are stored in the
+ * file.
+ * <p>
+ * Compressed blocks are 3 to 10 times smaller than decoded cells, so this
+ * tier holds a much larger part of a data set than the cell cache.
+ * A cell that has been dropped from the cell cache only costs decoding,
+ * no file system access, as long as its blocks are still here.
+ * <p>
+ * Memory is allocated in 4 KB pages from direct buffer chunks of
+ * CHUNK_SIZE bytes, allocated on demand up to the capacity, and never
+ * returned to the system. A block occupies as many pages as it needs,
+ * so less than a page per block is padding; bzip2 blocks are typically
+ * 10 to 40 KB. The region does not count against the Java heap, but
+ * against -XX:MaxDirectMemorySize.
+ * <p>
+ * Blocks are keyed by path and by the size and modification time of the
+ * file (see {@link KlbBlockIndex#getIdentity()}), so that blocks of a
+ * rewritten or re-packed file are not served.
+ */
+public class KlbCompressedBlockCache
+{
+    private static final int PAGE_SIZE = 4 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int PAGES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    private final long maxPages;
+    private final List< ByteBuffer > chunks = new ArrayList< ByteBuffer >();
+    private final LinkedHashMap< BlockKey, Entry > entries = new LinkedHashMap< BlockKey, Entry >( 4096, 0.75f, true );
+    private int[] freePages = new int[ 0 ];
+    private int numFreePages = 0;
+    private long numHits = 0, numMisses = 0, numEvictions = 0;
+    private long storedBytes = 0;
+
+    /**
+     * @param maxBytes capacity in bytes, rounded down to whole pages
+     */
+    public KlbCompressedBlockCache( final long maxBytes )
+    {
+        maxPages = maxBytes / PAGE_SIZE;
+    }
+
+    /**
+     * @param identity {size, modification time} of the file, or null if unknown
+     * @return copy of the compressed block, or null if it is not cached
+     */
+    public synchronized byte[] get( final String filePath, final long[] identity, final int blockIndex )
+    {
+        final Entry entry = entries.get( new BlockKey( filePath, identity, blockIndex ) );
+        if ( entry == null ) {
+            ++numMisses;
+            return null;
+        }
+        ++numHits;
+        final byte[] data = new byte[ entry.length ];
+        int position = 0;
+        for ( final int page : entry.pages ) {
+            final int n = Math.min( PAGE_SIZE, entry.length - position );
+            pageBuffer( page ).get( data, position, n );
+            position += n;
+        }
+        return data;
+    }
+
+    /**
+     * Stores a copy of a compressed block, evicting least recently used blocks as needed.
+     * Blocks larger than the capacity are not stored.
+     *
+     * @param identity {size, modification time} of the file, or null if unknown
+     */
+    public synchronized void put( final String filePath, final long[] identity, final int blockIndex, final byte[] data )
+    {
+        final BlockKey key = new BlockKey( filePath, identity, blockIndex );
+        if ( entries.containsKey( key ) ) {
+            return;
+        }
+        final int numPages = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if ( numPages > maxPages ) {
+            return;
+        }
+        final int[] pages = allocate( numPages );
+        int position = 0;
+        for ( final int page : pages ) {
+            final int n = Math.min( PAGE_SIZE, data.length - position );
+            pageBuffer( page ).put( data, position, n );
+            position += n;
+        }
+        entries.put( key, new Entry( pages, data.length ) );
+        storedBytes += data.length;
+    }
+
+    public synchronized void clear()
+    {
+        for ( final Entry entry : entries.values() ) {
+            free( entry.pages );
+        }
+        entries.clear();
+        storedBytes = 0;
+    }
+
+    private int[] allocate( final int numPages )
+    {
+        while ( numFreePages < numPages ) {
+            if ( ( long ) chunks.size() * PAGES_PER_CHUNK < maxPages ) {
+                addChunk();
+            } else {
+                final Iterator< Map.Entry< BlockKey, Entry > > it = entries.entrySet().iterator();
+                final Entry eldest = it.next().getValue();
+                it.remove();
+                storedBytes -= eldest.length;
+                ++numEvictions;
+                free( eldest.pages );
+            }
+        }
+        final int[] pages = new int[ numPages ];
+        for ( int i = 0; i < numPages; ++i ) {
+            pages[ i ] = freePages[ --numFreePages ];
+        }
+        return pages;
+    }
+
+    private void addChunk()
+    {
+        final int firstPage = chunks.size() * PAGES_PER_CHUNK;
+        final int numPages = ( int ) Math.min( PAGES_PER_CHUNK, maxPages - firstPage );
+        chunks.add( ByteBuffer.allocateDirect( numPages * PAGE_SIZE ) );
+        ensureFreeCapacity( numFreePages + numPages );
+        for ( int i = numPages - 1; i >= 0; --i ) {
+            freePages[ numFreePages++ ] = firstPage + i;
+        }
+    }
+
+    private void free( final int[] pages )
+    {
+        ensureFreeCapacity( numFreePages + pages.length );
+        for ( final int page : pages ) {
+            freePages[ numFreePages++ ] = page;
+        }
+    }
+
+    private void ensureFreeCapacity( final int capacity )
+    {
+        if ( freePages.length < capacity ) {
+            final int[] grown = new int[ Math.max( capacity, 2 * freePages.length ) ];
+            System.arraycopy( freePages, 0, grown, 0, numFreePages );
+            freePages = grown;
+        }
+    }
+
+    private ByteBuffer pageBuffer( final int page )
+    {
+        final ByteBuffer buffer = chunks.get( page / PAGES_PER_CHUNK ).duplicate();
+        buffer.position( (page % PAGES_PER_CHUNK) * PAGE_SIZE );
+        return buffer;
+    }
+
+    public long getCapacityBytes()
+    {
+        return maxPages * PAGE_SIZE;
+    }
+
+    /**
+     * @return bytes of compressed data held
+     */
+    public synchronized long getSizeBytes()
+    {
+        return storedBytes;
+    }
+
+    /**
+     * @return off-heap bytes allocated so far
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        long n = 0;
+        for ( final ByteBuffer chunk : chunks ) {
+            n += chunk.capacity();
+        }
+        return n;
+    }
+
+    public synchronized int getNumBlocks()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return numMisses;
+    }
+
+    public synchronized long getNumEvictions()
+    {
+        return numEvictions;
+    }
+
+    private static class BlockKey
+    {
+        private final String filePath;
+        private final long size, lastModified;
+        private final int blockIndex;
+
+        private BlockKey( final String filePath, final long[] identity, final int blockIndex )
+        {
+            this.filePath = filePath;
+            size = identity == null ? -1 : identity[ 0 ];
+            lastModified = identity == null ? -1 : identity[ 1 ];
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof BlockKey) ) {
+                return false;
+            }
+            final BlockKey other = ( BlockKey ) o;
+            return blockIndex == other.blockIndex && size == other.size && lastModified == other.lastModified && filePath.equals( other.filePath );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * filePath.hashCode() + ( int ) (lastModified ^ (lastModified >>> 32))) + blockIndex;
+        }
+    }
+
+    private static class Entry
+    {
+        private final int[] pages;
+        private final int length;
+
+        private Entry( final int[] pages, final int length )
+        {
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+}
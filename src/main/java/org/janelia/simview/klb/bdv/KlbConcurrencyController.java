@@ -0,0 +1,196 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many cell loads run at a time, and adapts the limit to the
+ * throughput it measures.
+ * <p>
+ * KlbImgLoader starts the maximum number of fetcher threads; loads beyond
+ * the limit wait at {@link #acquire()}. After each measurement window in
+ * which the limit was reached, the controller compares the throughput
+ * (bytes loaded per second) with the previous window. It keeps stepping
+ * the limit in the same direction while throughput improves, reverses
+ * when it drops, and steps down on a plateau, so that a shared node is
+ * not loaded with threads that buy nothing. High latency storage settles
+ * at many outstanding reads, a local SSD at about one per core.
+ */
+public class KlbConcurrencyController
+{
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos( 500 );
+    private static final int MIN_WINDOW_LOADS = 16;
+    private static final double TOLERANCE = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final boolean verbose;
+    private int limit;
+    private int active = 0;
+    private int direction = 1;
+    private double lastThroughput = 0;
+
+    // current window
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private long windowLatencyNanos = 0;
+    private int windowLoads = 0;
+    private boolean windowSaturated = false;
+
+    // last completed window
+    private double throughput = 0;
+    private double meanLatencyMillis = 0;
+    private long numAdjustments = 0;
+
+    /**
+     * @param initialLimit initial number of concurrent loads
+     * @param minLimit     lower bound of the limit
+     * @param maxLimit     upper bound of the limit
+     * @param adaptive     whether to adapt the limit, else it stays at initialLimit
+     * @param verbose      whether to print every adjustment
+     */
+    public KlbConcurrencyController( final int initialLimit, final int minLimit, final int maxLimit, final boolean adaptive, final boolean verbose )
+    {
+        this.minLimit = Math.max( 1, minLimit );
+        this.maxLimit = Math.max( this.minLimit, maxLimit );
+        this.limit = Math.max( this.minLimit, Math.min( this.maxLimit, initialLimit ) );
+        this.adaptive = adaptive;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Waits until fewer than limit loads are active.
+     */
+    public synchronized void acquire()
+            throws InterruptedException
+    {
+        while ( active >= limit ) {
+            windowSaturated = true;
+            wait();
+        }
+        ++active;
+        if ( active == limit ) {
+            windowSaturated = true;
+        }
+    }
+
+    /**
+     * Ends a load started with {@link #acquire()}.
+     *
+     * @param latencyNanos duration of the load
+     * @param numBytes     bytes loaded
+     */
+    public synchronized void release( final long latencyNanos, final long numBytes )
+    {
+        --active;
+        windowBytes += numBytes;
+        windowLatencyNanos += latencyNanos;
+        ++windowLoads;
+        final long now = System.nanoTime();
+        if ( now - windowStart >= WINDOW_NANOS && windowLoads >= MIN_WINDOW_LOADS ) {
+            endWindow( now );
+        }
+        notifyAll();
+    }
+
+    private void endWindow( final long now )
+    {
+        throughput = windowBytes * 1e9 / (now - windowStart);
+        meanLatencyMillis = windowLatencyNanos / 1e6 / windowLoads;
+        if ( adaptive ) {
+            if ( !windowSaturated ) {
+                // demand, not concurrency, limited this window
+                lastThroughput = 0;
+            } else {
+                if ( lastThroughput > 0 ) {
+                    if ( throughput < lastThroughput * (1 - TOLERANCE) ) {
+                        direction = -direction;
+                    } else if ( throughput <= lastThroughput * (1 + TOLERANCE) ) {
+                        direction = -1;
+                    }
+                }
+                lastThroughput = throughput;
+                final int newLimit = Math.max( minLimit, Math.min( maxLimit, limit + direction ) );
+                if ( newLimit != limit ) {
+                    if ( verbose ) {
+                        System.out.println( String.format( "klb-bdv: %d -> %d concurrent loads (%.1f MB/s, %.1f ms per cell)",
+                                limit, newLimit, throughput / 1e6, meanLatencyMillis ) );
+                    }
+                    limit = newLimit;
+                    ++numAdjustments;
+                } else {
+                    // at a bound, probe the other way next time
+                    direction = -direction;
+                }
+            }
+        }
+        windowStart = now;
+        windowBytes = 0;
+        windowLatencyNanos = 0;
+        windowLoads = 0;
+        windowSaturated = active >= limit;
+    }
+
+    /**
+     * @return current number of concurrent loads allowed
+     */
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    public synchronized void setLimit( final int limit )
+    {
+        this.limit = Math.max( minLimit, Math.min( maxLimit, limit ) );
+        lastThroughput = 0;
+        notifyAll();
+    }
+
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    public boolean isAdaptive()
+    {
+        return adaptive;
+    }
+
+    public synchronized int getNumActive()
+    {
+        return active;
+    }
+
+    /**
+     * @return bytes per second of the last measurement window
+     */
+    public synchronized double getThroughput()
+    {
+        return throughput;
+    }
+
+    /**
+     * @return mean load latency of the last measurement window in milliseconds
+     */
+    public synchronized double getMeanLatencyMillis()
+    {
+        return meanLatencyMillis;
+    }
+
+    public synchronized long getNumAdjustments()
+    {
+        return numAdjustments;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "%d concurrent loads (%d..%d%s), %.1f MB/s, %.1f ms per cell",
+                limit, minLimit, maxLimit, adaptive ? ", adaptive" : "", throughput / 1e6, meanLatencyMillis );
+    }
+}
@@ -0,0 +1,699 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import org.janelia.simview.klb.KLB;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how a data set will perform before it is deployed to a storage
+ * tier: per view setup and level, header read latency, raw read bandwidth,
+ * decode throughput by number of threads, compression ratio and the
+ * distribution of compressed block sizes. Truncated and unreadable files
+ * found during the scan are listed.
+ * <p>
+ * Files of all or of an evenly spaced sample of time points are scanned in
+ * parallel; each file is opened, its header parsed and all compressed
+ * blocks read. Decode throughput is measured afterwards, on blocks of the
+ * first file of each level, on 1, 2, 4, ... threads: with the Java decoder,
+ * and for local files with native readers leased from a KlbDecoderPool, as
+ * the loader reads them by default. Only blocks of these first files are
+ * decoded, so blocks that do not decode are found in them only.
+ * Files may be local, URLs or container members (see KlbByteSource).
+ * The report ends with recommended block sizes and loader settings.
+ * <p>
+ * Reads go through the page cache: profile on cold storage (e.g. after
+ * dropping caches, or before any other access) for meaningful bandwidth.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Profile KLB data set" )
+public class KlbDatasetProfiler implements Command
+{
+    // cap of compressed bytes per level kept for the decode measurement
+    private static final long MAX_DECODE_SAMPLE_BYTES = 64L * 1024 * 1024;
+    // decoded block sizes BDV handles well as cells
+    private static final long MIN_CELL_BYTES = 128 * 1024;
+    private static final long MAX_CELL_BYTES = 4 * 1024 * 1024;
+
+    @Parameter
+    private File xmlFile;
+
+    @Parameter( label = "Time points to scan (0 for all)", required = false )
+    private int maxTimePoints = 10;
+
+    @Parameter( label = "Threads", required = false )
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( label = "Report file (default: next to the XML)", required = false )
+    private File reportFile;
+
+    @Parameter
+    private LogService log;
+
+    @Override
+    public void run()
+    {
+        process( xmlFile, maxTimePoints, numThreads, reportFile );
+    }
+
+    /**
+     * @param maxTimePoints number of time points to scan, evenly spaced, 0 for all
+     * @param numThreads    threads for the scan and upper bound of the decode measurement
+     * @param reportFile    where to write the report, null for dataset.profile.txt next to the XML
+     * @return the report, or null if the XML could not be loaded
+     */
+    public String process( final File xmlFile, final int maxTimePoints, final int numThreads, final File reportFile )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        SpimDataMinimal data = null;
+        try {
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return null;
+        }
+        final String report;
+        try {
+            report = profile( data.getSequenceDescription(), maxTimePoints, Math.max( 1, numThreads ) );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        final File file = reportFile != null ? reportFile
+                : new File( xmlFile.getAbsoluteFile().getParentFile(), xmlFile.getName().replaceFirst( "\\.xml$", "" ) + ".profile.txt" );
+        try {
+            final Writer out = new OutputStreamWriter( new FileOutputStream( file ), Charset.forName( "UTF-8" ) );
+            try {
+                out.write( report );
+            } finally {
+                out.close();
+            }
+            log.info( "Report written to " + file );
+        } catch ( IOException e ) {
+            log.error( e );
+        }
+        return report;
+    }
+
+    private String profile( final AbstractSequenceDescription< ?, ?, ? > seq, final int maxTimePoints, final int numThreads )
+            throws InterruptedException
+    {
+        final KlbImgLoader loader = ( KlbImgLoader ) seq.getImgLoader();
+        final KlbPartitionResolver resolver = loader.getResolver();
+        final List< Integer > timePoints = sampleTimePoints( seq.getTimePoints().getTimePointsOrdered(), maxTimePoints );
+
+        final List< LevelProfile > levels = new ArrayList< LevelProfile >();
+        final List< Callable< Void > > scans = new ArrayList< Callable< Void > >();
+        for ( final BasicViewSetup viewSetup : seq.getViewSetupsOrdered() ) {
+            final int setup = viewSetup.getId();
+            for ( int level = 0; level < resolver.getNumResolutionLevels( setup ); ++level ) {
+                final LevelProfile profile = new LevelProfile( setup, level );
+                levels.add( profile );
+                for ( final int t : timePoints ) {
+                    if ( seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( t, setup ) ) ) {
+                        continue;
+                    }
+                    final String filePath = resolver.getFilePath( t, setup, level );
+                    scans.add( new Callable< Void >()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            profile.scan( filePath );
+                            return null;
+                        }
+                    } );
+                }
+            }
+        }
+
+        log.info( String.format( "Scanning %d files of %d time points on %d threads", scans.size(), timePoints.size(), numThreads ) );
+        final ExecutorService pool = Executors.newFixedThreadPool( numThreads );
+        final long scanStart = System.nanoTime();
+        try {
+            for ( final Future< Void > future : pool.invokeAll( scans ) ) {
+                try {
+                    future.get();
+                } catch ( Exception e ) {
+                    log.error( e );
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        final long scanNanos = System.nanoTime() - scanStart;
+
+        final int[] threadCounts = getThreadCounts( numThreads );
+        for ( final LevelProfile profile : levels ) {
+            log.info( String.format( "Decoding setup %d level %d", profile.setup, profile.level ) );
+            profile.measureDecode( threadCounts );
+        }
+        return formatReport( levels, threadCounts, scanNanos, numThreads );
+    }
+
+    private static List< Integer > sampleTimePoints( final List< TimePoint > all, final int maxTimePoints )
+    {
+        final List< Integer > sample = new ArrayList< Integer >();
+        final int n = maxTimePoints <= 0 ? all.size() : Math.min( maxTimePoints, all.size() );
+        for ( int i = 0; i < n; ++i ) {
+            final int index = n == 1 ? 0 : ( int ) (( long ) i * (all.size() - 1) / (n - 1));
+            sample.add( all.get( index ).getId() );
+        }
+        return sample;
+    }
+
+    private static int[] getThreadCounts( final int maxThreads )
+    {
+        final List< Integer > counts = new ArrayList< Integer >();
+        for ( int n = 1; n < maxThreads; n *= 2 ) {
+            counts.add( n );
+        }
+        counts.add( maxThreads );
+        final int[] array = new int[ counts.size() ];
+        for ( int i = 0; i < array.length; ++i ) {
+            array[ i ] = counts.get( i );
+        }
+        return array;
+    }
+
+    private String formatReport( final List< LevelProfile > levels, final int[] threadCounts, final long scanNanos, final int numThreads )
+    {
+        final StringBuilder sb = new StringBuilder();
+        long totalBytes = 0;
+        int numFiles = 0;
+        final List< String > problems = new ArrayList< String >();
+        for ( final LevelProfile profile : levels ) {
+            totalBytes += profile.bytesRead;
+            numFiles += profile.numFiles;
+            problems.addAll( profile.problems );
+        }
+        sb.append( String.format( Locale.ROOT, "KLB data set profile: %d files, %.1f MB read in %.1f s on %d threads (%.1f MB/s aggregate)%n",
+                numFiles, totalBytes / 1e6, scanNanos / 1e9, numThreads, totalBytes / 1e6 / (scanNanos / 1e9) ) );
+        sb.append( String.format( Locale.ROOT, "%n%-6s %-5s %5s %-14s %-6s %9s %9s %9s %7s %10s %10s %10s%n",
+                "setup", "level", "files", "block", "codec", "hdr ms", "hdr p99", "MB/s", "ratio", "blk p10 KB", "blk p50 KB", "blk p90 KB" ) );
+        for ( final LevelProfile p : levels ) {
+            sb.append( String.format( Locale.ROOT, "%-6d %-5d %5d %-14s %-6s %9.2f %9.2f %9.1f %7.2f %10.1f %10.1f %10.1f%n",
+                    p.setup, p.level, p.numFiles, p.getBlockShape(), p.getCodec(),
+                    p.getHeaderMillis( 0.5 ), p.getHeaderMillis( 0.99 ), p.getReadMBPerSecond(), p.getCompressionRatio(),
+                    p.getBlockKB( 0.1 ), p.getBlockKB( 0.5 ), p.getBlockKB( 0.9 ) ) );
+        }
+
+        sb.append( String.format( "%nDecode throughput in MB/s (decoded) by number of threads, on blocks of the first file of each level only%n" ) );
+        sb.append( String.format( "(blocks of the other files are read but not decoded, so blocks that do not decode are not checked there)%n" ) );
+        appendDecodeTable( sb, "Java reader", levels, threadCounts, false );
+        appendDecodeTable( sb, "native reader (local files only)", levels, threadCounts, true );
+
+        sb.append( String.format( "%nRecommendations%n" ) );
+        for ( final LevelProfile p : levels ) {
+            final String advice = p.getBlockSizeAdvice();
+            if ( advice != null ) {
+                sb.append( String.format( "  setup %d level %d: %s%n", p.setup, p.level, advice ) );
+            }
+        }
+        sb.append( getLoaderAdvice( levels, threadCounts, totalBytes / (scanNanos / 1e9) ) );
+
+        sb.append( String.format( "%nProblems: %d%n", problems.size() ) );
+        for ( final String problem : problems ) {
+            sb.append( "  " ).append( problem ).append( String.format( "%n" ) );
+        }
+        return sb.toString();
+    }
+
+    private static void appendDecodeTable( final StringBuilder sb, final String reader, final List< LevelProfile > levels, final int[] threadCounts,
+            final boolean isNative )
+    {
+        sb.append( String.format( "%n%s%n%-6s %-5s", reader, "setup", "level" ) );
+        for ( final int n : threadCounts ) {
+            sb.append( String.format( " %8d", n ) );
+        }
+        sb.append( String.format( "%n" ) );
+        for ( final LevelProfile p : levels ) {
+            sb.append( String.format( "%-6d %-5d", p.setup, p.level ) );
+            final double[] throughputs = isNative ? p.nativeMBPerSecond : p.decodeMBPerSecond;
+            if ( throughputs == null ) {
+                sb.append( String.format( " %8s%n", "-" ) );
+                continue;
+            }
+            for ( final double throughput : throughputs ) {
+                sb.append( String.format( Locale.ROOT, " %8.1f", throughput ) );
+            }
+            sb.append( String.format( "%n" ) );
+        }
+    }
+
+    /**
+     * Fetcher threads where decoding stops scaling, and I/O threads if reading is slower than decoding.
+     * Based on the native reader, which the loader uses by default, if it was measured for all level 0 files,
+     * else on the Java reader.
+     */
+    private static String getLoaderAdvice( final List< LevelProfile > levels, final int[] threadCounts, final double aggregateBytesPerSecond )
+    {
+        boolean isNative = false;
+        for ( final LevelProfile p : levels ) {
+            if ( p.level == 0 && p.sampleIndex != null ) {
+                isNative = p.nativeMBPerSecond != null;
+                if ( !isNative ) {
+                    break;
+                }
+            }
+        }
+        // level 0 dominates the bytes of interactive sessions, average over view setups
+        final double[] throughput = new double[ threadCounts.length ];
+        int numSetups = 0;
+        for ( final LevelProfile p : levels ) {
+            final double[] measured = isNative ? p.nativeMBPerSecond : p.decodeMBPerSecond;
+            if ( p.level == 0 && measured != null && measured.length == throughput.length ) {
+                ++numSetups;
+                for ( int i = 0; i < throughput.length; ++i ) {
+                    throughput[ i ] += measured[ i ];
+                }
+            }
+        }
+        for ( int i = 0; i < throughput.length; ++i ) {
+            throughput[ i ] /= Math.max( 1, numSetups );
+        }
+        double max = 0;
+        for ( final double t : throughput ) {
+            max = Math.max( max, t );
+        }
+        if ( max == 0 ) {
+            return String.format( "  no decodable level 0 blocks, no loader advice%n" );
+        }
+        int fetchers = threadCounts[ threadCounts.length - 1 ];
+        for ( int i = 0; i < throughput.length; ++i ) {
+            if ( throughput[ i ] >= 0.9 * max ) {
+                fetchers = threadCounts[ i ];
+                break;
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append( String.format( Locale.ROOT, "  decoding scales to %d threads (%.1f MB/s, %s): -Dklb.bdv.fetcherThreads=%d%n", fetchers, max,
+                isNative ? "native reader" : "Java reader only, applies if the loader reads with Java", fetchers ) );
+        final double decodedPerSecond = max * 1e6;
+        if ( aggregateBytesPerSecond < decodedPerSecond / getMeanCompressionRatio( levels ) ) {
+            sb.append( String.format( Locale.ROOT,
+                    "  reads (%.1f MB/s) are slower than decoding needs: -Dklb.bdv.ioThreads=%d -Dklb.bdv.adaptiveFetchers=true%n",
+                    aggregateBytesPerSecond / 1e6, 2 * fetchers ) );
+        }
+        return sb.toString();
+    }
+
+    private static double getMeanCompressionRatio( final List< LevelProfile > levels )
+    {
+        long compressed = 0, decoded = 0;
+        for ( final LevelProfile p : levels ) {
+            compressed += p.bytesRead;
+            decoded += p.bytesDecoded;
+        }
+        return compressed == 0 ? 1 : Math.max( 1, ( double ) decoded / compressed );
+    }
+
+    private static double percentile( final long[] sorted, final double q )
+    {
+        return sorted.length == 0 ? 0 : sorted[ Math.min( sorted.length - 1, ( int ) (q * sorted.length) ) ];
+    }
+
+    /**
+     * Measurements of one level of one view setup.
+     */
+    private static class LevelProfile
+    {
+        private final int setup, level;
+        private final List< String > problems = new ArrayList< String >();
+        private final LongList headerNanos = new LongList();
+        private final LongList blockLengths = new LongList();
+        private final List< byte[] > sampleBlocks = new ArrayList< byte[] >();
+        private final List< Integer > sampleBlockIndices = new ArrayList< Integer >();
+        private KlbBlockIndex sampleIndex;
+        private String sampleFile;
+        private long sampleBytes = 0;
+        private int numFiles = 0;
+        private long bytesRead = 0, bytesDecoded = 0, readNanos = 0;
+        private double[] decodeMBPerSecond = new double[ 0 ];
+        // null if not measured
+        private double[] nativeMBPerSecond;
+
+        private LevelProfile( final int setup, final int level )
+        {
+            this.setup = setup;
+            this.level = level;
+        }
+
+        /**
+         * Reads the header and all blocks of a file, recording problems instead of throwing.
+         */
+        private void scan( final String filePath )
+        {
+            final long[] identity = KlbByteSource.getIdentity( filePath );
+            if ( identity == null ) {
+                addProblem( filePath + ": missing" );
+                return;
+            }
+            KlbByteSource source = null;
+            try {
+                source = KlbByteSource.open( filePath );
+                final long headerStart = System.nanoTime();
+                final KlbBlockIndex index;
+                try {
+                    index = KlbBlockIndex.read( source, 0 );
+                } catch ( IOException ex ) {
+                    addProblem( filePath + ": unreadable header (" + ex.getMessage() + ")" );
+                    return;
+                }
+                final long headerTime = System.nanoTime() - headerStart;
+                final long length = identity[ 0 ];
+                if ( length < index.getFileSize() ) {
+                    addProblem( String.format( "%s: truncated, %d of %d bytes", filePath, length, index.getFileSize() ) );
+                    return;
+                }
+                final long readStart = System.nanoTime();
+                final byte[][] blocks = new byte[ index.getNumBlocks() ][];
+                long numBytes = 0;
+                for ( int b = 0; b < blocks.length; ++b ) {
+                    blocks[ b ] = KlbBlockReader.readBlocks( source, index, new int[]{ b } )[ 0 ];
+                    numBytes += blocks[ b ].length;
+                }
+                final long readTime = System.nanoTime() - readStart;
+                long decoded = KlbBlockReader.getBytesPerElement( index.getDataType() );
+                for ( final long size : index.getImageSize() ) {
+                    decoded *= size;
+                }
+                synchronized ( this ) {
+                    ++numFiles;
+                    headerNanos.add( headerTime );
+                    readNanos += readTime;
+                    bytesRead += numBytes;
+                    bytesDecoded += decoded;
+                    for ( final byte[] block : blocks ) {
+                        blockLengths.add( block.length );
+                    }
+                    if ( sampleIndex == null ) {
+                        sampleIndex = index;
+                        sampleFile = filePath;
+                        for ( int b = 0; b < blocks.length && sampleBytes < MAX_DECODE_SAMPLE_BYTES; ++b ) {
+                            sampleBlocks.add( blocks[ b ] );
+                            sampleBlockIndices.add( b );
+                            sampleBytes += blocks[ b ].length;
+                        }
+                    }
+                }
+            } catch ( IOException ex ) {
+                addProblem( filePath + ": unreadable (" + ex.getMessage() + ")" );
+            } finally {
+                if ( source != null ) {
+                    try {
+                        source.close();
+                    } catch ( IOException ex ) {
+                        // read already done
+                    }
+                }
+            }
+        }
+
+        private synchronized void addProblem( final String problem )
+        {
+            problems.add( problem );
+        }
+
+        /**
+         * Decodes the sample blocks on each number of threads, flagging blocks that do not decode,
+         * with the Java decoder and, if the sample file is local, with native readers.
+         */
+        private void measureDecode( final int[] threadCounts )
+                throws InterruptedException
+        {
+            if ( sampleIndex == null ) {
+                return;
+            }
+            decodeMBPerSecond = new double[ threadCounts.length ];
+            for ( int i = 0; i < threadCounts.length; ++i ) {
+                final ExecutorService pool = Executors.newFixedThreadPool( threadCounts[ i ] );
+                try {
+                    final List< Callable< Long > > decodes = new ArrayList< Callable< Long > >();
+                    for ( int b = 0; b < sampleBlocks.size(); ++b ) {
+                        final byte[] compressed = sampleBlocks.get( b );
+                        final int blockIndex = sampleBlockIndices.get( b );
+                        decodes.add( new Callable< Long >()
+                        {
+                            @Override
+                            public Long call() throws IOException
+                            {
+                                return ( long ) KlbBlockReader.decode( sampleIndex, blockIndex, compressed ).length;
+                            }
+                        } );
+                    }
+                    final long start = System.nanoTime();
+                    long decoded = 0;
+                    final List< Future< Long > > results = pool.invokeAll( decodes );
+                    for ( int b = 0; b < results.size(); ++b ) {
+                        try {
+                            decoded += results.get( b ).get();
+                        } catch ( Exception ex ) {
+                            if ( i == 0 ) {
+                                addProblem( String.format( "setup %d level %d: block %d does not decode (%s)", setup, level, sampleBlockIndices.get( b ), ex.getCause() ) );
+                            }
+                        }
+                    }
+                    decodeMBPerSecond[ i ] = decoded / 1e6 / ((System.nanoTime() - start) / 1e9);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            if ( KlbByteSource.isLocalFile( sampleFile ) && supportsNative( sampleIndex.getDataType() ) ) {
+                measureNativeDecode( threadCounts );
+            }
+        }
+
+        /**
+         * Reads the sample blocks one by one on each number of threads, like fetcher threads read cells:
+         * each read leases a native reader of a KlbDecoderPool.
+         */
+        private void measureNativeDecode( final int[] threadCounts )
+                throws InterruptedException
+        {
+            final long[] shape = sampleIndex.getBlockSize();
+            final int[] blockSize = { ( int ) shape[ 0 ], ( int ) shape[ 1 ], ( int ) shape[ 2 ] };
+            final double[] throughputs = new double[ threadCounts.length ];
+            for ( int i = 0; i < threadCounts.length; ++i ) {
+                final KlbDecoderPool decoders = new KlbDecoderPool( threadCounts[ i ], null );
+                final ExecutorService pool = Executors.newFixedThreadPool( threadCounts[ i ] );
+                try {
+                    final List< Callable< Long > > decodes = new ArrayList< Callable< Long > >();
+                    for ( final int blockIndex : sampleBlockIndices ) {
+                        decodes.add( new Callable< Long >()
+                        {
+                            @Override
+                            public Long call() throws IOException
+                            {
+                                final long[] min = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+                                final long[] max = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+                                sampleIndex.getBlockInterval( blockIndex, min, max );
+                                int numElements = 1;
+                                for ( int d = 0; d < max.length; ++d ) {
+                                    numElements *= ( int ) max[ d ];
+                                    max[ d ] += min[ d ] - 1;
+                                }
+                                final KlbDecoderPool.Decoder decoder = decoders.acquire( sampleFile, min, max, blockSize );
+                                try {
+                                    readNative( decoder.getKlb(), sampleFile, min, max, sampleIndex.getDataType(), numElements );
+                                } finally {
+                                    decoders.release( decoder );
+                                }
+                                return ( long ) numElements * KlbBlockReader.getBytesPerElement( sampleIndex.getDataType() );
+                            }
+                        } );
+                    }
+                    final long start = System.nanoTime();
+                    long decoded = 0;
+                    for ( final Future< Long > result : pool.invokeAll( decodes ) ) {
+                        try {
+                            decoded += result.get();
+                        } catch ( ExecutionException ex ) {
+                            if ( ex.getCause() instanceof LinkageError ) {
+                                addProblem( String.format( "setup %d level %d: native reader unavailable (%s), decode measured with the Java reader only",
+                                        setup, level, ex.getCause() ) );
+                                return;
+                            }
+                            // blocks that do not decode are reported by the Java measurement
+                        }
+                    }
+                    if ( decoded == 0 ) {
+                        addProblem( String.format( "setup %d level %d: native reader decoded no blocks, decode measured with the Java reader only", setup, level ) );
+                        return;
+                    }
+                    throughputs[ i ] = decoded / 1e6 / ((System.nanoTime() - start) / 1e9);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            nativeMBPerSecond = throughputs;
+        }
+
+        private static boolean supportsNative( final int dataType )
+        {
+            // data types of the array loaders
+            return dataType == 0 || dataType == 1 || dataType == 8;
+        }
+
+        private static void readNative( final KLB klb, final String filePath, final long[] min, final long[] max, final int dataType,
+                final int numElements )
+                throws IOException
+        {
+            switch ( dataType ) {
+            case 0:
+                klb.readROIinPlace( filePath, min, max, new byte[ numElements ] );
+                break;
+            case 1:
+                klb.readROIinPlace( filePath, min, max, new short[ numElements ] );
+                break;
+            default:
+                klb.readROIinPlace( filePath, min, max, new float[ numElements ] );
+            }
+        }
+
+        private String getBlockShape()
+        {
+            if ( sampleIndex == null ) {
+                return "-";
+            }
+            final long[] b = sampleIndex.getBlockSize();
+            return b[ 0 ] + "x" + b[ 1 ] + "x" + b[ 2 ];
+        }
+
+        private String getCodec()
+        {
+            if ( sampleIndex == null ) {
+                return "-";
+            }
+            switch ( sampleIndex.getCompressionType() ) {
+            case KlbBlockReader.COMPRESSION_NONE:
+                return "none";
+            case KlbBlockReader.COMPRESSION_BZIP2:
+                return "bzip2";
+            case KlbBlockReader.COMPRESSION_ZLIB:
+                return "zlib";
+            default:
+                return "?";
+            }
+        }
+
+        private double getHeaderMillis( final double q )
+        {
+            return percentile( headerNanos.sorted(), q ) / 1e6;
+        }
+
+        private double getReadMBPerSecond()
+        {
+            return readNanos == 0 ? 0 : bytesRead / 1e6 / (readNanos / 1e9);
+        }
+
+        private double getCompressionRatio()
+        {
+            return bytesRead == 0 ? 0 : ( double ) bytesDecoded / bytesRead;
+        }
+
+        private double getBlockKB( final double q )
+        {
+            return percentile( blockLengths.sorted(), q ) / 1024;
+        }
+
+        /**
+         * @return advice if blocks are too small to amortize the request latency, or too large for interactive cells
+         */
+        private String getBlockSizeAdvice()
+        {
+            if ( sampleIndex == null ) {
+                return null;
+            }
+            final long[] shape = sampleIndex.getBlockSize();
+            final long cellBytes = KlbBlockReader.getBytesPerElement( sampleIndex.getDataType() ) * shape[ 0 ] * shape[ 1 ] * shape[ 2 ];
+            // a small read costs about a header read, blocks should take longer than that to transfer
+            final double latencySeconds = percentile( headerNanos.sorted(), 0.5 ) / 1e9;
+            final double medianBlockBytes = percentile( blockLengths.sorted(), 0.5 );
+            final double bytesPerSecond = getReadMBPerSecond() * 1e6;
+            if ( cellBytes > MAX_CELL_BYTES ) {
+                return String.format( "blocks of %s decode to %.1f MB, halve them (e.g. %s) for faster cells", getBlockShape(), cellBytes / 1e6, scale( shape, 0.5 ) );
+            }
+            if ( cellBytes < MIN_CELL_BYTES || (bytesPerSecond > 0 && medianBlockBytes < latencySeconds * bytesPerSecond) ) {
+                return String.format( Locale.ROOT, "blocks of %s (%.0f KB compressed) are dominated by per-read latency (%.2f ms), double them (e.g. %s)",
+                        getBlockShape(), medianBlockBytes / 1024, latencySeconds * 1e3, scale( shape, 2 ) );
+            }
+            return null;
+        }
+
+        private static String scale( final long[] shape, final double factor )
+        {
+            // scale z first, then y and x, to keep x-y planes large for BDV's slicing
+            final long[] scaled = Arrays.copyOf( shape, 3 );
+            final int d = factor > 1 ? (scaled[ 2 ] <= scaled[ 0 ] / 2 ? 2 : scaled[ 1 ] <= scaled[ 0 ] ? 1 : 0) : (scaled[ 0 ] >= scaled[ 2 ] * 2 ? 0 : scaled[ 1 ] > scaled[ 2 ] ? 1 : 2);
+            scaled[ d ] = Math.max( 1, ( long ) (scaled[ d ] * factor) );
+            return scaled[ 0 ] + "x" + scaled[ 1 ] + "x" + scaled[ 2 ];
+        }
+    }
+
+    /**
+     * Growable array of longs.
+     */
+    private static class LongList
+    {
+        private long[] values = new long[ 64 ];
+        private int size = 0;
+
+        private void add( final long value )
+        {
+            if ( size == values.length ) {
+                values = Arrays.copyOf( values, 2 * size );
+            }
+            values[ size++ ] = value;
+        }
+
+        private long[] sorted()
+        {
+            final long[] copy = Arrays.copyOf( values, size );
+            Arrays.sort( copy );
+            return copy;
+        }
+    }
+
+    public static void main( final String[] args )
+    {
+        if ( args.length < 1 ) {
+            System.out.println( "Usage: KlbDatasetProfiler dataset.xml [maxTimePoints (0 for all)] [threads] [report-file]" );
+            return;
+        }
+        final int maxTimePoints = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+        final int numThreads = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : Runtime.getRuntime().availableProcessors();
+        final File reportFile = args.length > 3 ? new File( args[ 3 ] ) : null;
+        final String report = new KlbDatasetProfiler().process( new File( args[ 0 ] ), maxTimePoints, numThreads, reportFile );
+        if ( report != null ) {
+            System.out.print( report );
+        }
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,157 @@
+package org.janelia.simview.klb.bdv;
+
+import org.janelia.simview.klb.KLB;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Native KLB readers for concurrent use, with a shared budget of decode
+ * threads.
+ * <p>
+ * A KLB instance is not safe for use by several threads at a time. Array
+ * loaders lease one per read and return it afterwards, so each fetcher
+ * thread has its own instance while it reads, and instances are reused
+ * across reads. Each lease is granted threads out of a budget of
+ * maxThreads: while many cells load, every read decodes on one thread;
+ * when a single large read is outstanding, the native reader decodes its
+ * blocks on the otherwise idle cores. The budget can only split a read
+ * across blocks; one compressed block always decodes on one thread.
+ */
+public class KlbDecoderPool
+{
+    private final int maxThreads;
+    private final KlbBlockIndexCache indices;
+    private final ConcurrentLinkedQueue< Decoder > idle = new ConcurrentLinkedQueue< Decoder >();
+    private int numLeasedThreads = 0;
+
+    /**
+     * @param maxThreads budget of decode threads, usually the number of processors
+     * @param indices    cache of block offset tables, to sum the compressed bytes of a read, or null not to,
+     *                   which saves reading the header of every file in Java
+     */
+    public KlbDecoderPool( final int maxThreads, final KlbBlockIndexCache indices )
+    {
+        this.maxThreads = Math.max( 1, maxThreads );
+        this.indices = indices;
+    }
+
+    /**
+     * Leases a reader for a region of interest. Must be returned with {@link #release(Decoder)}.
+     *
+     * @param filePath KLB file to read
+     * @param xyzctMin first voxel of the region
+     * @param xyzctMax last voxel of the region
+     * @param blockSize block size (x,y,z) of the file, or null if unknown, which leases a single thread
+     * @return reader with as many threads as blocks of the region and idle threads of the budget allow, at least 1
+     */
+    public Decoder acquire( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] blockSize )
+    {
+        final long numBlocks = blockSize == null ? 1 : getNumBlocks( xyzctMin, xyzctMax, blockSize );
+        final int numThreads;
+        synchronized ( this ) {
+            numThreads = ( int ) Math.max( 1, Math.min( numBlocks, maxThreads - numLeasedThreads ) );
+            numLeasedThreads += numThreads;
+        }
+        Decoder decoder = idle.poll();
+        if ( decoder == null ) {
+            decoder = new Decoder();
+        }
+        decoder.setNumThreads( numThreads );
+        decoder.compressedBytes = 0;
+        final KlbBlockIndex index = indexOf( filePath );
+        if ( index != null ) {
+            for ( final int block : index.getBlockIndices( xyzctMin, xyzctMax ) ) {
+                decoder.compressedBytes += index.getBlockLength( block );
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * @return number of blocks of the given size that the region overlaps
+     */
+    private static long getNumBlocks( final long[] xyzctMin, final long[] xyzctMax, final int[] blockSize )
+    {
+        long numBlocks = 1;
+        for ( int d = 0; d < 3; ++d ) {
+            final int size = Math.max( 1, blockSize[ d ] );
+            numBlocks *= xyzctMax[ d ] / size - xyzctMin[ d ] / size + 1;
+        }
+        return numBlocks;
+    }
+
+    public void release( final Decoder decoder )
+    {
+        synchronized ( this ) {
+            numLeasedThreads -= decoder.numThreads;
+        }
+        idle.offer( decoder );
+    }
+
+    private KlbBlockIndex indexOf( final String filePath )
+    {
+        if ( indices == null ) {
+            return null;
+        }
+        try {
+            return indices.get( filePath );
+        } catch ( IOException ex ) {
+            // the read itself reports it
+            return null;
+        }
+    }
+
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    /**
+     * @return decode threads currently leased
+     */
+    public synchronized int getNumLeasedThreads()
+    {
+        return numLeasedThreads;
+    }
+
+    /**
+     * A native reader leased to one thread.
+     */
+    public static class Decoder
+    {
+        private final KLB klb = KLB.newInstance();
+        private int numThreads = 0;
+        private long compressedBytes = 0;
+
+        private Decoder()
+        {
+        }
+
+        private void setNumThreads( final int numThreads )
+        {
+            if ( numThreads != this.numThreads ) {
+                klb.setNumThreads( numThreads );
+                this.numThreads = numThreads;
+            }
+        }
+
+        public KLB getKlb()
+        {
+            return klb;
+        }
+
+        public int getNumThreads()
+        {
+            return numThreads;
+        }
+
+        /**
+         * @return compressed size of the blocks of the region leased for, 0 if unknown or the pool has no index cache
+         */
+        public long getCompressedBytes()
+        {
+            return compressedBytes;
+        }
+    }
+}
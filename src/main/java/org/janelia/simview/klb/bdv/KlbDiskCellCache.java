@@ -0,0 +1,321 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent second tier below the in-memory cell cache, meant for a
+ * local SSD.
+ * <p>
+ * Stores decoded cells as raw little endian files, one file per cell,
+ * that can be memory-mapped or read without any decoding. Cells are
+ * keyed by the identity of their KLB file (path, size, modification
+ * time) and their region, so that rewritten KLB files are never served
+ * stale. The total size is capped; the least recently used cells are
+ * deleted first. Recency survives restarts through the modification
+ * time of the cell files.
+ * <p>
+ * Cells are written by a background thread, writes are dropped if it
+ * falls behind.
+ */
+public class KlbDiskCellCache
+{
+    private static final String SUFFIX = ".cell";
+    private static final String FORMAT_VERSION = "1";
+    private static final long IDENTITY_TIMEOUT_MILLIS = 10000;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap< String, Long > entries = new LinkedHashMap< String, Long >( 1024, 0.75f, true );
+    private final Map< String, long[] > fileIdentities = new HashMap< String, long[] >();
+    private final ThreadPoolExecutor writer;
+    private long totalBytes = 0;
+    private long numHits = 0, numMisses = 0;
+
+    /**
+     * @param directory cache directory, created if needed
+     * @param maxBytes  size cap in bytes
+     * @throws IOException if the directory can not be created
+     */
+    public KlbDiskCellCache( final File directory, final long maxBytes )
+            throws IOException
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create cache directory " + directory );
+        }
+
+        final File[] files = directory.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept( final File file )
+            {
+                return file.isFile() && file.getName().endsWith( SUFFIX );
+            }
+        } );
+        if ( files != null ) {
+            Arrays.sort( files, new Comparator< File >()
+            {
+                @Override
+                public int compare( final File a, final File b )
+                {
+                    final long ta = a.lastModified(), tb = b.lastModified();
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            } );
+            synchronized ( entries ) {
+                for ( final File file : files ) {
+                    entries.put( file.getName(), file.length() );
+                    totalBytes += file.length();
+                }
+                evict();
+            }
+        }
+
+        writer = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue< Runnable >( 256 ),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread( final Runnable r )
+                    {
+                        final Thread thread = new Thread( r, "klb-disk-cache-writer" );
+                        thread.setDaemon( true );
+                        thread.setPriority( Thread.MIN_PRIORITY );
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy() );
+    }
+
+    /**
+     * Returns the decoded cell, or null if it is not cached.
+     *
+     * @param filePath        KLB file the cell belongs to
+     * @param offset          first voxel (xyz) of the cell
+     * @param dimensions      size (xyz) of the cell
+     * @param bytesPerElement bytes per voxel
+     * @return little endian cell data, positioned at 0
+     */
+    public ByteBuffer get( final String filePath, final long[] offset, final int[] dimensions, final int bytesPerElement )
+    {
+        final String name = getName( filePath, offset, dimensions );
+        if ( name == null ) {
+            return null;
+        }
+        synchronized ( entries ) {
+            if ( entries.get( name ) == null ) {
+                ++numMisses;
+                return null;
+            }
+        }
+
+        final File file = new File( directory, name );
+        final int numBytes = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * bytesPerElement;
+        final ByteBuffer data = ByteBuffer.allocate( numBytes ).order( ByteOrder.LITTLE_ENDIAN );
+        try {
+            final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+            try {
+                if ( channel.size() != numBytes ) {
+                    throw new IOException( "Unexpected size of " + file );
+                }
+                while ( data.hasRemaining() ) {
+                    if ( channel.read( data ) < 0 ) {
+                        throw new IOException( "Truncated " + file );
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+        } catch ( IOException ex ) {
+            remove( name );
+            return null;
+        }
+        file.setLastModified( System.currentTimeMillis() );
+        synchronized ( entries ) {
+            ++numHits;
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Stores a decoded cell in the background.
+     *
+     * @param filePath   KLB file the cell belongs to
+     * @param offset     first voxel (xyz) of the cell
+     * @param dimensions size (xyz) of the cell
+     * @param data       little endian cell data, owned by the cache after this call
+     */
+    public void put( final String filePath, final long[] offset, final int[] dimensions, final ByteBuffer data )
+    {
+        final String name = getName( filePath, offset, dimensions );
+        if ( name == null ) {
+            return;
+        }
+        synchronized ( entries ) {
+            if ( entries.containsKey( name ) ) {
+                return;
+            }
+        }
+        writer.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write( name, data );
+            }
+        } );
+    }
+
+    private void write( final String name, final ByteBuffer data )
+    {
+        final File target = new File( directory, name );
+        final File temp = new File( directory, name + "." + Thread.currentThread().getId() + ".tmp" );
+        final long numBytes = data.remaining();
+        try {
+            final FileChannel channel = FileChannel.open( temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+            try {
+                while ( data.hasRemaining() ) {
+                    channel.write( data );
+                }
+            } finally {
+                channel.close();
+            }
+            Files.move( temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } catch ( IOException ex ) {
+            temp.delete();
+            return;
+        }
+        synchronized ( entries ) {
+            final Long previous = entries.put( name, numBytes );
+            totalBytes += numBytes - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    private void remove( final String name )
+    {
+        synchronized ( entries ) {
+            final Long numBytes = entries.remove( name );
+            if ( numBytes != null ) {
+                totalBytes -= numBytes;
+            }
+        }
+        new File( directory, name ).delete();
+    }
+
+    // requires lock on entries
+    private void evict()
+    {
+        final Iterator< Map.Entry< String, Long > > it = entries.entrySet().iterator();
+        while ( totalBytes > maxBytes && it.hasNext() ) {
+            final Map.Entry< String, Long > eldest = it.next();
+            totalBytes -= eldest.getValue();
+            it.remove();
+            new File( directory, eldest.getKey() ).delete();
+        }
+    }
+
+    /**
+     * Derives the cache file name from file identity and cell region,
+     * null if the KLB file does not exist.
+     */
+    private String getName( final String filePath, final long[] offset, final int[] dimensions )
+    {
+        final long[] identity = getFileIdentity( filePath );
+        if ( identity == null ) {
+            return null;
+        }
+        final String key = String.format( "%s|%s|%d|%d|%d,%d,%d|%d,%d,%d", FORMAT_VERSION, filePath, identity[ 0 ], identity[ 1 ],
+                offset[ 0 ], offset[ 1 ], offset[ 2 ], dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] );
+        try {
+            final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( UTF8 ) );
+            final StringBuilder name = new StringBuilder( 2 * digest.length + SUFFIX.length() );
+            for ( final byte b : digest ) {
+                name.append( String.format( "%02x", b & 0xff ) );
+            }
+            return name.append( SUFFIX ).toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * Size and modification time of a KLB file or URL, re-checked at most every
+     * IDENTITY_TIMEOUT_MILLIS to spare slow file systems a stat (or a server a
+     * HEAD request) per cell.
+     */
+    private long[] getFileIdentity( final String filePath )
+    {
+        final long now = System.currentTimeMillis();
+        synchronized ( fileIdentities ) {
+            final long[] identity = fileIdentities.get( filePath );
+            if ( identity != null && now - identity[ 2 ] < IDENTITY_TIMEOUT_MILLIS ) {
+                return identity;
+            }
+        }
+        final long[] sizeAndTime = KlbByteSource.getIdentity( filePath );
+        if ( sizeAndTime == null ) {
+            return null;
+        }
+        final long[] identity = { sizeAndTime[ 0 ], sizeAndTime[ 1 ], now };
+        synchronized ( fileIdentities ) {
+            fileIdentities.put( filePath, identity );
+        }
+        return identity;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getSizeBytes()
+    {
+        synchronized ( entries ) {
+            return totalBytes;
+        }
+    }
+
+    public long getNumHits()
+    {
+        synchronized ( entries ) {
+            return numHits;
+        }
+    }
+
+    public long getNumMisses()
+    {
+        synchronized ( entries ) {
+            return numMisses;
+        }
+    }
+}
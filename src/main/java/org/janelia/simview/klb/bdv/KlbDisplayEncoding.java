@@ -0,0 +1,38 @@
+package org.janelia.simview.klb.bdv;
+
+/**
+ * Compact representations of cached cells for display.
+ * <p>
+ * Volatile images are only looked at through a display transfer function,
+ * so their cells can be stored with less precision than the data set.
+ * Images for analysis (getImage) always keep full precision.
+ */
+public enum KlbDisplayEncoding
+{
+    /**
+     * Full precision.
+     */
+    NONE,
+
+    /**
+     * 8 bit, linear over a per-setup intensity range. For 16 bit and float data sets.
+     */
+    UINT8,
+
+    /**
+     * 16 bit bfloat16 (float with truncated mantissa). For float data sets.
+     */
+    BFLOAT16;
+
+    /**
+     * @param name case insensitive name of an encoding, or null
+     * @return the encoding, NONE if name is null or empty
+     */
+    public static KlbDisplayEncoding fromString( final String name )
+    {
+        if ( name == null || name.trim().isEmpty() ) {
+            return NONE;
+        }
+        return valueOf( name.trim().toUpperCase() );
+    }
+}
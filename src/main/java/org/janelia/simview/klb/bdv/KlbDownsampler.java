@@ -9,8 +9,10 @@ import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHints;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
@@ -85,35 +87,14 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
 
 
         // calculate dimensions, sampling, and relative downsampling factors for each level
-        final Map< Integer, ExportMipmapInfo > proposedDownsampling = ProposeMipmaps.proposeMipmaps( seq );
         final Map< Integer, long[][] > dimensions = new HashMap< Integer, long[][] >();
         final Map< Integer, int[][] > relativeScaling = new HashMap< Integer, int[][] >();
         final Map< Integer, double[][] > sampling = new HashMap< Integer, double[][] >();
+        proposeLevels( seq, dimensions, relativeScaling, sampling );
 
         final List< ? extends BasicViewSetup > viewSetups = seq.getViewSetupsOrdered();
         for ( final BasicViewSetup viewSetup : viewSetups ) {
-            final int viewSetupId = viewSetup.getId();
-            final Dimensions dimsObj = seq.getViewSetupsOrdered().get( viewSetupId ).getSize();
-            final int numDims = dimsObj.numDimensions();
-
-            final int[][] scales = proposedDownsampling.get( viewSetupId ).getExportResolutions();
-            final long[][] dims = new long[ scales.length ][ numDims ];
-            final double[][] smpl = new double[ scales.length ][ numDims ];
-            dimsObj.dimensions( dims[ 0 ] );
-            seq.getViewSetupsOrdered().get( viewSetupId ).getVoxelSize().dimensions( smpl[ 0 ] );
-
-            for ( int level = 1; level < scales.length; ++level ) {  // scaling[0] is full sampling
-                for ( int dim = 0; dim < numDims; ++dim ) {
-                    dims[ level ][ dim ] = dims[ 0 ][ dim ] / scales[ level ][ dim ];
-                    smpl[ level ][ dim ] = smpl[ 0 ][ dim ] * scales[ level ][ dim ];
-                    scales[ level ][ dim ] = ( int ) (dims[ level - 1 ][ dim ] / dims[ level ][ dim ]);
-                }
-            }
-
-            relativeScaling.put( viewSetupId, scales );
-            dimensions.put( viewSetupId, dims );
-            sampling.put( viewSetupId, smpl );
-            numResolutionLevels.put( viewSetupId, dims.length );
+            numResolutionLevels.put( viewSetup.getId(), dimensions.get( viewSetup.getId() ).length );
         }
 
 
@@ -191,7 +172,9 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
 
                 final T type = ( T ) loader.getSetupImgLoader( viewSetupId ).getImageType();
                 final ImgFactory< T > imageFactory = new ArrayImgFactory< T >();
+                final Object readEvent = KlbFlightRecorder.DOWNSAMPLE.begin();
                 RandomAccessibleInterval currentImage = loader.getSetupImgLoader( viewSetupId ).getImage( t, ImgLoaderHints.LOAD_COMPLETELY );
+                KlbFlightRecorder.DOWNSAMPLE.commit( readEvent, "read", t, viewSetupId, 0 );
                 final long[] currentDims = new long[ currentImage.numDimensions() ];
                 currentImage.dimensions( currentDims );
 
@@ -209,7 +192,9 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
                     log.debug( String.format( "     sampling              %s", Arrays.toString( smpl[ level ] ) ) );
                     log.debug( String.format( "     relative downsampling %s", Arrays.toString( scales[ level ] ) ) );
 
+                    final Object downsampleEvent = KlbFlightRecorder.DOWNSAMPLE.begin();
                     Downsample.downsample( currentImage, downsampledImage, scales[ level ] );
+                    KlbFlightRecorder.DOWNSAMPLE.commit( downsampleEvent, "downsample", t, viewSetupId, level );
 
                     final String filePath = resolver.getFilePath( t, viewSetupId, level );
                     log.debug( filePath );
@@ -217,11 +202,14 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
                     klbSampling[ 0 ] = ( float ) smpl[ level ][ 0 ];
                     klbSampling[ 1 ] = ( float ) smpl[ level ][ 1 ];
                     klbSampling[ 2 ] = ( float ) smpl[ level ][ 2 ];
+                    // encodes and writes in one native call
+                    final Object writeEvent = KlbFlightRecorder.DOWNSAMPLE.begin();
                     try {
                         klb.writeFull( downsampledImage, filePath, klbSampling, null, null, null );
                     } catch ( IOException e ) {
                         log.error( e );
                     }
+                    KlbFlightRecorder.DOWNSAMPLE.commit( writeEvent, "write", t, viewSetupId, level );
 
                     currentImage = downsampledImage;
                 }
@@ -230,6 +218,57 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
         log.info( "Done." );
     }
 
+    /**
+     * Proposes resolution levels for each view setup, as BDV's HDF5 export does, and fills, by view setup id,
+     * the image dimensions, the pixel spacing and the downsampling relative to the previous level of each level.
+     * View setups without a size take it from the image of their first time point, those without a voxel size
+     * are taken to be isotropic.
+     */
+    static void proposeLevels( final AbstractSequenceDescription< ?, ?, ? > seq, final Map< Integer, long[][] > dimensions,
+            final Map< Integer, int[][] > relativeScaling, final Map< Integer, double[][] > sampling )
+    {
+        for ( final BasicViewSetup viewSetup : seq.getViewSetupsOrdered() ) {
+            final int viewSetupId = viewSetup.getId();
+            final Dimensions dimsObj = viewSetup.getSize() != null ? viewSetup.getSize() : getFirstImage( seq, viewSetupId );
+            final VoxelDimensions voxelSize = viewSetup.getVoxelSize() != null ? viewSetup.getVoxelSize()
+                    : new FinalVoxelDimensions( "pixel", 1, 1, 1 );
+            final int numDims = dimsObj.numDimensions();
+
+            final ExportMipmapInfo proposedDownsampling = ProposeMipmaps.proposeMipmaps(
+                    new BasicViewSetup( viewSetupId, viewSetup.getName(), dimsObj, voxelSize ) );
+            final int[][] scales = proposedDownsampling.getExportResolutions();
+            final long[][] dims = new long[ scales.length ][ numDims ];
+            final double[][] smpl = new double[ scales.length ][ numDims ];
+            dimsObj.dimensions( dims[ 0 ] );
+            voxelSize.dimensions( smpl[ 0 ] );
+
+            for ( int level = 1; level < scales.length; ++level ) {  // scaling[0] is full sampling
+                for ( int dim = 0; dim < numDims; ++dim ) {
+                    dims[ level ][ dim ] = dims[ 0 ][ dim ] / scales[ level ][ dim ];
+                    smpl[ level ][ dim ] = smpl[ 0 ][ dim ] * scales[ level ][ dim ];
+                    scales[ level ][ dim ] = ( int ) (dims[ level - 1 ][ dim ] / dims[ level ][ dim ]);
+                }
+            }
+
+            relativeScaling.put( viewSetupId, scales );
+            dimensions.put( viewSetupId, dims );
+            sampling.put( viewSetupId, smpl );
+        }
+    }
+
+    /**
+     * @return image of the first time point of a view setup that is not missing, not loaded completely
+     */
+    private static Dimensions getFirstImage( final AbstractSequenceDescription< ?, ?, ? > seq, final int viewSetupId )
+    {
+        for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+            if ( seq.getMissingViews() == null || !seq.getMissingViews().getMissingViews().contains( new ViewId( timePoint.getId(), viewSetupId ) ) ) {
+                return seq.getImgLoader().getSetupImgLoader( viewSetupId ).getImage( timePoint.getId() );
+            }
+        }
+        throw new IllegalArgumentException( "View setup " + viewSetupId + " has neither a size nor images" );
+    }
+
     public static void main( final String[] args )
     {
         final String filePath = args[ 0 ];
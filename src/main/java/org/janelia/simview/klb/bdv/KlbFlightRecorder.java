@@ -0,0 +1,318 @@
+package org.janelia.simview.klb.bdv;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Custom JDK Flight Recorder events of cell loads, header reads, data set
+ * discovery and downsampling, so that one recording (e.g.
+ * -XX:StartFlightRecording=filename=klb.jfr) shows the timeline of a slow
+ * interaction or batch job, next to the JVM's own events.
+ * <p>
+ * Event types are defined at run time with jdk.jfr.EventFactory, looked up
+ * by reflection, so that the plugin still builds and runs on Java 8. Where
+ * Flight Recorder is not available, or an event type is not enabled in the
+ * recording, {@link EventType#begin()} returns null and tracing costs a
+ * null check.
+ * <p>
+ * A cell load event splits its duration into phases: waiting (for a
+ * concurrency slot, the I/O scheduler or a coalesced read of another
+ * thread), reading compressed blocks and decoding them. The native
+ * library reads and decodes in one call, which counts as decoding; the
+ * pipelined block reader counts the time the loading thread waits for
+ * each stage.
+ */
+public class KlbFlightRecorder
+{
+    private static final String PREFIX = "org.janelia.simview.klb.bdv.";
+    private static final String[] CATEGORY = { "KLB", "BigDataViewer" };
+
+    public static final int WAIT = 0;
+    public static final int READ = 1;
+    public static final int DECODE = 2;
+
+    private static final MethodHandle CREATE;
+    private static final MethodHandle NEW_EVENT;
+    private static final MethodHandle IS_ENABLED;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle END;
+    private static final MethodHandle SHOULD_COMMIT;
+    private static final MethodHandle SET;
+    private static final MethodHandle COMMIT;
+    private static final Constructor< ? > ANNOTATION_ELEMENT;
+    private static final Constructor< ? > VALUE_DESCRIPTOR;
+
+    static {
+        MethodHandle create = null, newEvent = null, isEnabled = null, begin = null, end = null, shouldCommit = null, set = null, commit = null;
+        Constructor< ? > annotationElement = null, valueDescriptor = null;
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class< ? > factory = Class.forName( "jdk.jfr.EventFactory" );
+            final Class< ? > event = Class.forName( "jdk.jfr.Event" );
+            create = lookup.findStatic( factory, "create", MethodType.methodType( factory, List.class, List.class ) );
+            newEvent = lookup.findVirtual( factory, "newEvent", MethodType.methodType( event ) );
+            isEnabled = lookup.findVirtual( event, "isEnabled", MethodType.methodType( boolean.class ) );
+            begin = lookup.findVirtual( event, "begin", MethodType.methodType( void.class ) );
+            end = lookup.findVirtual( event, "end", MethodType.methodType( void.class ) );
+            shouldCommit = lookup.findVirtual( event, "shouldCommit", MethodType.methodType( boolean.class ) );
+            set = lookup.findVirtual( event, "set", MethodType.methodType( void.class, int.class, Object.class ) );
+            commit = lookup.findVirtual( event, "commit", MethodType.methodType( void.class ) );
+            annotationElement = Class.forName( "jdk.jfr.AnnotationElement" ).getConstructor( Class.class, Object.class );
+            valueDescriptor = Class.forName( "jdk.jfr.ValueDescriptor" ).getConstructor( Class.class, String.class, List.class );
+        } catch ( Exception ex ) {
+            // before Java 11, or a JVM without Flight Recorder
+            create = null;
+        }
+        CREATE = create;
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        SET = set;
+        COMMIT = commit;
+        ANNOTATION_ELEMENT = annotationElement;
+        VALUE_DESCRIPTOR = valueDescriptor;
+    }
+
+    public static final EventType CELL_LOAD = new EventType( "CellLoad", "KLB Cell Load",
+            "Load of one cell by a BigDataViewer fetcher thread",
+            field( int.class, "timePoint", "Time Point", null ),
+            field( int.class, "setup", "View Setup", null ),
+            field( int.class, "level", "Resolution Level", null ),
+            field( long.class, "x", "Cell X", null ),
+            field( long.class, "y", "Cell Y", null ),
+            field( long.class, "z", "Cell Z", null ),
+            field( String.class, "source", "Source", "retention, shared, disk, file or cancelled" ),
+            field( boolean.class, "idle", "Idle", "Background load, e.g. warm-up" ),
+            field( long.class, "bytes", "Bytes", null ),
+            timespan( "wait", "Wait" ),
+            timespan( "read", "Read" ),
+            timespan( "decode", "Decode" ) );
+
+    public static final EventType HEADER_READ = new EventType( "HeaderRead", "KLB Header Read",
+            "Read of the header of a KLB file",
+            field( String.class, "path", "Path", null ),
+            field( int.class, "level", "Resolution Level", null ),
+            field( boolean.class, "found", "Found", "Whether the file exists and has a valid header" ) );
+
+    public static final EventType DISCOVERY = new EventType( "Discovery", "KLB Data Set Discovery",
+            "Configuration of a view setup from a template file, including the search for resolution levels",
+            field( String.class, "path", "Path", null ),
+            field( String.class, "timeTag", "Time Tag", null ),
+            field( int.class, "levels", "Resolution Levels", "0 if the view setup could not be configured" ) );
+
+    public static final EventType DOWNSAMPLE = new EventType( "Downsample", "KLB Downsampler Stage",
+            "One stage of generating a resolution level: read, downsample or write (encoding and writing, in one native call)",
+            field( String.class, "stage", "Stage", null ),
+            field( int.class, "timePoint", "Time Point", null ),
+            field( int.class, "setup", "View Setup", null ),
+            field( int.class, "level", "Resolution Level", null ) );
+
+    private static final ThreadLocal< CellTrace > CELL_TRACE = new ThreadLocal< CellTrace >();
+
+    private KlbFlightRecorder()
+    {
+    }
+
+    /**
+     * @return whether the running JVM supports custom Flight Recorder events
+     */
+    public static boolean isAvailable()
+    {
+        return CREATE != null;
+    }
+
+    /**
+     * Starts a cell load event on the calling thread, whose phases are
+     * accumulated by {@link #phaseEnd(int, long)} until {@link #endCellLoad(Object, String, long)}.
+     *
+     * @return the previous cell load of the thread, to be passed to endCellLoad
+     */
+    public static Object beginCellLoad( final int timePoint, final int setup, final int level, final long[] offset, final boolean idle )
+    {
+        final Object event = CELL_LOAD.begin();
+        final CellTrace previous = CELL_TRACE.get();
+        if ( event != null ) {
+            CELL_TRACE.set( new CellTrace( event, timePoint, setup, level, offset, idle ) );
+        } else if ( previous != null ) {
+            CELL_TRACE.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Commits the cell load event of the calling thread, if any.
+     *
+     * @param previous value returned by beginCellLoad
+     * @param source   where the cell came from, see KlbCellTrace
+     * @param numBytes bytes of the cell
+     */
+    public static void endCellLoad( final Object previous, final String source, final long numBytes )
+    {
+        final CellTrace trace = CELL_TRACE.get();
+        if ( previous != null ) {
+            CELL_TRACE.set( ( CellTrace ) previous );
+        } else if ( trace != null ) {
+            CELL_TRACE.remove();
+        }
+        if ( trace != null ) {
+            CELL_LOAD.commit( trace.event, trace.timePoint, trace.setup, trace.level, trace.x, trace.y, trace.z,
+                    source, trace.idle, numBytes, trace.phases[ WAIT ], trace.phases[ READ ], trace.phases[ DECODE ] );
+        }
+    }
+
+    /**
+     * @return start of a phase of the cell load of the calling thread, -1 if it is not traced
+     */
+    public static long phaseStart()
+    {
+        return CELL_TRACE.get() == null ? -1 : System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start to a phase of the cell load of the calling thread.
+     *
+     * @param phase {@link #WAIT}, {@link #READ} or {@link #DECODE}
+     * @param start value returned by {@link #phaseStart()}
+     */
+    public static void phaseEnd( final int phase, final long start )
+    {
+        if ( start < 0 ) {
+            return;
+        }
+        final CellTrace trace = CELL_TRACE.get();
+        if ( trace != null ) {
+            trace.phases[ phase ] += System.nanoTime() - start;
+        }
+    }
+
+    private static Object[] field( final Class< ? > type, final String name, final String label, final String description )
+    {
+        return new Object[]{ type, name, label, description, null };
+    }
+
+    private static Object[] timespan( final String name, final String label )
+    {
+        return new Object[]{ long.class, name, label, null, "NANOSECONDS" };
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Object annotation( final String type, final Object value )
+            throws Exception
+    {
+        return ANNOTATION_ELEMENT.newInstance( ( Class< ? extends Annotation > ) Class.forName( "jdk.jfr." + type ), value );
+    }
+
+    /**
+     * A custom event type, or a stand-in that records nothing if Flight Recorder is not available.
+     */
+    public static class EventType
+    {
+        private final Object factory;
+
+        private EventType( final String name, final String label, final String description, final Object[]... fields )
+        {
+            Object factory = null;
+            if ( CREATE != null ) {
+                try {
+                    final List< Object > annotations = Arrays.asList(
+                            annotation( "Name", PREFIX + name ),
+                            annotation( "Label", label ),
+                            annotation( "Description", description ),
+                            annotation( "Category", CATEGORY ),
+                            // would only show this class
+                            annotation( "StackTrace", false ) );
+                    final List< Object > values = new ArrayList< Object >();
+                    for ( final Object[] field : fields ) {
+                        final List< Object > fieldAnnotations = new ArrayList< Object >();
+                        fieldAnnotations.add( annotation( "Label", field[ 2 ] ) );
+                        if ( field[ 3 ] != null ) {
+                            fieldAnnotations.add( annotation( "Description", field[ 3 ] ) );
+                        }
+                        if ( field[ 4 ] != null ) {
+                            fieldAnnotations.add( annotation( "Timespan", field[ 4 ] ) );
+                        }
+                        values.add( VALUE_DESCRIPTOR.newInstance( field[ 0 ], field[ 1 ], fieldAnnotations ) );
+                    }
+                    factory = CREATE.invoke( annotations, values );
+                } catch ( Throwable ex ) {
+                    System.err.println( "klb-bdv: could not define Flight Recorder event " + name + ": " + ex );
+                }
+            }
+            this.factory = factory;
+        }
+
+        /**
+         * @return started event, or null if Flight Recorder is not available or the event type is not enabled
+         */
+        public Object begin()
+        {
+            if ( factory == null ) {
+                return null;
+            }
+            try {
+                final Object event = NEW_EVENT.invoke( factory );
+                if ( !( boolean ) IS_ENABLED.invoke( event ) ) {
+                    return null;
+                }
+                BEGIN.invoke( event );
+                return event;
+            } catch ( Throwable ex ) {
+                return null;
+            }
+        }
+
+        /**
+         * Ends and commits an event started with {@link #begin()}, if it passes the recording's threshold.
+         *
+         * @param event  started event, or null
+         * @param values field values, in the order of the event type's fields
+         */
+        public void commit( final Object event, final Object... values )
+        {
+            if ( event == null ) {
+                return;
+            }
+            try {
+                END.invoke( event );
+                if ( !( boolean ) SHOULD_COMMIT.invoke( event ) ) {
+                    return;
+                }
+                for ( int i = 0; i < values.length; ++i ) {
+                    SET.invoke( event, i, values[ i ] );
+                }
+                COMMIT.invoke( event );
+            } catch ( Throwable ex ) {
+                // tracing must not fail a load
+            }
+        }
+    }
+
+    private static class CellTrace
+    {
+        private final Object event;
+        private final int timePoint, setup, level;
+        private final long x, y, z;
+        private final boolean idle;
+        private final long[] phases = new long[ 3 ];
+
+        private CellTrace( final Object event, final int timePoint, final int setup, final int level, final long[] offset, final boolean idle )
+        {
+            this.event = event;
+            this.timePoint = timePoint;
+            this.setup = setup;
+            this.level = level;
+            x = offset[ 0 ];
+            y = offset[ 1 ];
+            z = offset[ 2 ];
+            this.idle = idle;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a KLB file from an HTTP server with range requests, so that
+ * workstations can read data sets of a central file server without a
+ * network file system.
+ * <p>
+ * Every read is one GET request for a byte range. Connections are kept
+ * alive and reused by the JDK's HTTP client, up to http.maxConnections per
+ * server (default 5; set it to the number of I/O threads). Reading a
+ * header prefetches the first bytes of the file, which usually hold the
+ * block offset table as well. KlbBlockReader merges the ranges of blocks
+ * that are at most {@link #getCoalescingGap()} bytes apart into one
+ * request, and with an I/O pool keeps several requests in flight while
+ * earlier blocks decode.
+ * <p>
+ * The server must answer range requests with 206 Partial Content; any
+ * static file server does, as does KlbHttpFileServer.
+ */
+public class KlbHttpByteSource extends KlbByteSource
+{
+    private static final int TIMEOUT_MILLIS = Integer.getInteger( "klb.bdv.httpTimeoutMillis", 30000 );
+    private static final long COALESCING_GAP = Long.getLong( "klb.bdv.httpCoalescingGapKB", 64L ) * 1024;
+
+    private final URL url;
+    private ByteBuffer prefetched;
+    private long prefetchedPosition;
+
+    public KlbHttpByteSource( final String url )
+            throws IOException
+    {
+        this.url = new URL( url );
+    }
+
+    @Override
+    public void read( final ByteBuffer dst, final long position )
+            throws IOException
+    {
+        final ByteBuffer p = prefetched;
+        if ( p != null && position >= prefetchedPosition && position + dst.remaining() <= prefetchedPosition + p.limit() ) {
+            final ByteBuffer slice = p.duplicate();
+            slice.position( ( int ) (position - prefetchedPosition) );
+            slice.limit( slice.position() + dst.remaining() );
+            dst.put( slice );
+            return;
+        }
+        if ( dst.hasArray() ) {
+            final int n = fetch( position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(), false );
+            dst.position( dst.position() + n );
+        } else {
+            final byte[] bytes = new byte[ dst.remaining() ];
+            fetch( position, bytes, 0, bytes.length, false );
+            dst.put( bytes );
+        }
+    }
+
+    /**
+     * Fetches the range at once; a range past the end of the file is cut at the end.
+     */
+    @Override
+    public void prefetch( final long position, final long length )
+            throws IOException
+    {
+        final byte[] bytes = new byte[ ( int ) Math.min( length, Integer.MAX_VALUE ) ];
+        final int n = fetch( position, bytes, 0, bytes.length, true );
+        prefetchedPosition = position;
+        prefetched = ByteBuffer.wrap( bytes, 0, n ).slice();
+    }
+
+    @Override
+    public long getCoalescingGap()
+    {
+        return COALESCING_GAP;
+    }
+
+    /**
+     * Sends a range request and reads the response body into bytes.
+     *
+     * @param allowShort whether the server may return fewer bytes, at the end of the file
+     * @return number of bytes read
+     */
+    private int fetch( final long position, final byte[] bytes, final int offset, final int length, final boolean allowShort )
+            throws IOException
+    {
+        if ( length == 0 ) {
+            return 0;
+        }
+        final HttpURLConnection connection = ( HttpURLConnection ) url.openConnection();
+        connection.setConnectTimeout( TIMEOUT_MILLIS );
+        connection.setReadTimeout( TIMEOUT_MILLIS );
+        connection.setRequestProperty( "Range", "bytes=" + position + "-" + (position + length - 1) );
+        final int code = connection.getResponseCode();
+        if ( code != HttpURLConnection.HTTP_PARTIAL ) {
+            discard( connection );
+            if ( code == HttpURLConnection.HTTP_NOT_FOUND ) {
+                throw new FileNotFoundException( url.toString() );
+            } else if ( code == 416 ) {
+                throw new EOFException( "Truncated KLB file " + url + ", range starts at " + position );
+            }
+            throw new IOException( url + ": HTTP " + code + " " + connection.getResponseMessage() + ", range requests are required" );
+        }
+        final String range = connection.getHeaderField( "Content-Range" );
+        if ( range != null && !range.startsWith( "bytes " + position + "-" ) ) {
+            discard( connection );
+            throw new IOException( url + ": unexpected Content-Range " + range );
+        }
+        final InputStream in = connection.getInputStream();
+        int n = 0;
+        try {
+            while ( n < length ) {
+                final int r = in.read( bytes, offset + n, length - n );
+                if ( r < 0 ) {
+                    break;
+                }
+                n += r;
+            }
+            // a fully read body returns the connection to the keep-alive cache
+            while ( in.read() >= 0 ) {
+                // ignore bytes past the requested range
+            }
+        } finally {
+            in.close();
+        }
+        if ( n < length && !allowShort ) {
+            throw new EOFException( "Truncated KLB file " + url + ", " + n + " of " + length + " bytes at " + position );
+        }
+        return n;
+    }
+
+    /**
+     * Drains an error response to keep the connection alive; closes the connection of any other unused response.
+     */
+    private static void discard( final HttpURLConnection connection )
+    {
+        try {
+            final InputStream error = connection.getErrorStream();
+            if ( error == null ) {
+                connection.disconnect();
+                return;
+            }
+            while ( error.read() >= 0 ) {
+                // drain
+            }
+            error.close();
+        } catch ( IOException ex ) {
+            // the connection is not reused
+        }
+    }
+
+    /**
+     * @return {size, modification time in milliseconds} from a HEAD request, or null if it fails
+     */
+    static long[] stat( final String path )
+    {
+        try {
+            final HttpURLConnection connection = ( HttpURLConnection ) new URL( path ).openConnection();
+            connection.setConnectTimeout( TIMEOUT_MILLIS );
+            connection.setReadTimeout( TIMEOUT_MILLIS );
+            connection.setRequestMethod( "HEAD" );
+            if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+                discard( connection );
+                return null;
+            }
+            // no body, releases the connection
+            connection.getInputStream().close();
+            final long size = connection.getHeaderFieldLong( "Content-Length", -1 );
+            return size < 0 ? null : new long[]{ size, connection.getLastModified() };
+        } catch ( IOException ex ) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.janelia.simview.klb.bdv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal static file server with range requests and keep-alive, to test
+ * and benchmark reading data sets over HTTP on one machine.
+ * <p>
+ * Serves the files below a root directory on the loopback interface.
+ * Optionally adds a fixed latency to every request and limits the
+ * bandwidth of each response, to emulate a remote server. Counts requests
+ * and bytes sent, so that the effect of coalescing can be checked.
+ * <p>
+ * Run with a BDV XML file instead of a directory to serve its directory
+ * and write a copy of the XML whose templates are URLs of this server:
+ * <pre>
+ * java ... KlbHttpFileServer dataset.xml 8080 20 100
+ * </pre>
+ * serves with 20 ms latency and 100 MB/s per response, and writes
+ * dataset.http.xml.
+ */
+public class KlbHttpFileServer
+{
+    private static final Pattern RANGE = Pattern.compile( "bytes=(\\d*)-(\\d*)" );
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final File root;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double bytesPerMilli;
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicLong numBytesSent = new AtomicLong();
+
+    /**
+     * @param root          directory to serve
+     * @param port          port on the loopback interface, 0 for any free port
+     * @param latencyMillis delay before each response
+     * @param bandwidthMBps limit of each response in MB/s, 0 for none
+     * @param numThreads    number of requests served at a time
+     */
+    public KlbHttpFileServer( final File root, final int port, final long latencyMillis, final double bandwidthMBps, final int numThreads )
+            throws IOException
+    {
+        this.root = root.getCanonicalFile();
+        this.latencyMillis = latencyMillis;
+        bytesPerMilli = bandwidthMBps * 1e3;
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        server.setExecutor( executor );
+        server.createContext( "/", new HttpHandler()
+        {
+            @Override
+            public void handle( final HttpExchange exchange ) throws IOException
+            {
+                try {
+                    serve( exchange );
+                } finally {
+                    exchange.close();
+                }
+            }
+        } );
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop( 0 );
+        executor.shutdown();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return URL of a file below the root directory
+     */
+    public String getUrl( final File file )
+            throws IOException
+    {
+        final String relative = root.toURI().relativize( file.getCanonicalFile().toURI() ).getRawPath();
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + getPort() + "/" + relative;
+    }
+
+    public long getNumRequests()
+    {
+        return numRequests.get();
+    }
+
+    public long getNumBytesSent()
+    {
+        return numBytesSent.get();
+    }
+
+    private void serve( final HttpExchange exchange )
+            throws IOException
+    {
+        numRequests.incrementAndGet();
+        final String method = exchange.getRequestMethod();
+        final boolean head = method.equals( "HEAD" );
+        if ( !head && !method.equals( "GET" ) ) {
+            exchange.sendResponseHeaders( 405, -1 );
+            return;
+        }
+        final File file = new File( root, URI.create( exchange.getRequestURI().getRawPath() ).getPath() ).getCanonicalFile();
+        if ( !file.getPath().startsWith( root.getPath() ) || !file.isFile() ) {
+            exchange.sendResponseHeaders( 404, -1 );
+            return;
+        }
+        if ( latencyMillis > 0 ) {
+            sleep( latencyMillis );
+        }
+        final long size = file.length();
+        long first = 0, last = size - 1;
+        int code = 200;
+        final String range = exchange.getRequestHeaders().getFirst( "Range" );
+        if ( range != null ) {
+            final Matcher m = RANGE.matcher( range.trim() );
+            if ( !m.matches() || (m.group( 1 ).isEmpty() && m.group( 2 ).isEmpty()) ) {
+                // multiple ranges are not supported, answer with the whole file
+                code = 200;
+            } else {
+                if ( m.group( 1 ).isEmpty() ) {
+                    first = Math.max( 0, size - Long.parseLong( m.group( 2 ) ) );
+                } else {
+                    first = Long.parseLong( m.group( 1 ) );
+                    if ( !m.group( 2 ).isEmpty() ) {
+                        last = Math.min( last, Long.parseLong( m.group( 2 ) ) );
+                    }
+                }
+                if ( first >= size || first > last ) {
+                    exchange.getResponseHeaders().set( "Content-Range", "bytes */" + size );
+                    exchange.sendResponseHeaders( 416, -1 );
+                    return;
+                }
+                code = 206;
+                exchange.getResponseHeaders().set( "Content-Range", "bytes " + first + "-" + last + "/" + size );
+            }
+        }
+        final SimpleDateFormat httpDate = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US );
+        httpDate.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        exchange.getResponseHeaders().set( "Accept-Ranges", "bytes" );
+        exchange.getResponseHeaders().set( "Last-Modified", httpDate.format( new Date( file.lastModified() ) ) );
+        exchange.getResponseHeaders().set( "Content-Type", "application/octet-stream" );
+        final long length = last - first + 1;
+        if ( head ) {
+            exchange.getResponseHeaders().set( "Content-Length", String.valueOf( size ) );
+            exchange.sendResponseHeaders( code, -1 );
+            return;
+        }
+        // a fixed length keeps the connection alive
+        exchange.sendResponseHeaders( code, length == 0 ? -1 : length );
+        final RandomAccessFile in = new RandomAccessFile( file, "r" );
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            in.seek( first );
+            final byte[] chunk = new byte[ CHUNK_SIZE ];
+            final long start = System.currentTimeMillis();
+            long sent = 0;
+            while ( sent < length ) {
+                final int n = in.read( chunk, 0, ( int ) Math.min( chunk.length, length - sent ) );
+                if ( n < 0 ) {
+                    break;
+                }
+                out.write( chunk, 0, n );
+                sent += n;
+                if ( bytesPerMilli > 0 ) {
+                    final long due = start + ( long ) (sent / bytesPerMilli);
+                    sleep( due - System.currentTimeMillis() );
+                }
+            }
+            numBytesSent.addAndGet( sent );
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void sleep( final long millis )
+    {
+        if ( millis <= 0 ) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep( millis );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a copy of a BDV XML file whose templates below the root directory are URLs of this server.
+     *
+     * @return the copy, e.g. dataset.http.xml
+     */
+    public File writeHttpXml( final File xmlFile )
+            throws IOException
+    {
+        final Charset utf8 = Charset.forName( "UTF-8" );
+        final String xml = new String( Files.readAllBytes( xmlFile.toPath() ), utf8 );
+        final Matcher m = Pattern.compile( "<template>([^<]*)</template>" ).matcher( xml );
+        final StringBuffer sb = new StringBuffer();
+        while ( m.find() ) {
+            final File template = new File( m.group( 1 ).trim() );
+            final boolean below = template.isAbsolute() && template.getCanonicalPath().startsWith( root.getPath() + File.separator );
+            final String replacement = below ? "<template>" + getUrl( template ) + "</template>" : m.group();
+            m.appendReplacement( sb, Matcher.quoteReplacement( replacement ) );
+        }
+        m.appendTail( sb );
+        final File out = new File( xmlFile.getAbsoluteFile().getParentFile(), xmlFile.getName().replaceFirst( "\\.xml$", "" ) + ".http.xml" );
+        Files.write( out.toPath(), sb.toString().getBytes( utf8 ) );
+        return out;
+    }
+
+    public static void main( final String[] args )
+            throws IOException
+    {
+        if ( args.length < 1 ) {
+            System.out.println( "Usage: KlbHttpFileServer directory|dataset.xml [port] [latencyMillis] [bandwidthMBps] [threads]" );
+            return;
+        }
+        final File arg = new File( args[ 0 ] );
+        final boolean xml = arg.isFile() && arg.getName().endsWith( ".xml" );
+        final File root = xml ? arg.getAbsoluteFile().getParentFile() : arg;
+        final int port = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 8080;
+        final long latencyMillis = args.length > 2 ? Long.parseLong( args[ 2 ] ) : 0;
+        final double bandwidthMBps = args.length > 3 ? Double.parseDouble( args[ 3 ] ) : 0;
+        final int numThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : 16;
+        final KlbHttpFileServer server = new KlbHttpFileServer( root, port, latencyMillis, bandwidthMBps, numThreads );
+        System.out.println( "Serving " + server.root + " at " + server.getUrl( server.root ) );
+        if ( xml ) {
+            System.out.println( "Wrote " + server.writeHttpXml( arg ) );
+        }
+    }
+}
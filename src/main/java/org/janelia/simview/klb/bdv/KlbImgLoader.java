@@ -3,6 +3,8 @@ package org.janelia.simview.klb.bdv;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.cache.CacheControl;
+import bdv.export.ProgressWriter;
+import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
@@ -31,6 +33,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
@@ -39,33 +42,347 @@ import java.util.HashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
 {
     private final KlbPartitionResolver resolver;
     private final VolatileGlobalCellCache cache;
+    private final KlbIoScheduler ioScheduler;
+    private final KlbDiskCellCache diskCache;
+    private final KlbBlockIndexCache blockIndices = new KlbBlockIndexCache( 1024 );
+    private final KlbCompressedBlockCache compressedBlocks;
+    private final KlbSlabArena slabArena;
+    private final KlbCellRetention retention;
+    private final KlbSharedCellCache sharedCache;
+    private final KlbConcurrencyController concurrencyController;
+    private final KlbDecoderPool decoders;
+    private final KlbLoaderMetrics metrics;
+    private final ExecutorService ioPool;
+    private final ExecutorService decodePool;
+    private volatile KlbWarmUp warmUp;
+    private final KlbWorkingSet workingSet;
+    private final File workingSetFile;
+    private final int workingSetSize;
+    private KlbWorkingSet.Replay workingSetReplay;
+    private final KlbCellTrace cellTrace;
+    private final KlbCellTiers tiers;
+    private SaveOnExit shutdownHook;
     private final HashMap< Integer, KlbSetupImgLoader > setupImgLoaders = new HashMap< Integer, KlbSetupImgLoader >();
 
     public KlbImgLoader( final KlbPartitionResolver resolver, final AbstractSequenceDescription< ?, ?, ? > seq )
+    {
+        this( resolver, seq, KlbImgLoaderOptions.options() );
+    }
+
+    public KlbImgLoader( final KlbPartitionResolver resolver, final AbstractSequenceDescription< ?, ?, ? > seq, final KlbImgLoaderOptions options )
     {
         this.resolver = resolver;
         int maxNumResolutionLevels = 1;
         for ( int i = 0; i < resolver.getNumViewSetups(); ++i ) {
             maxNumResolutionLevels = Math.max( resolver.getViewSetupConfig( i ).getNumResolutionLevels(), maxNumResolutionLevels );
         }
-        cache = new VolatileGlobalCellCache( maxNumResolutionLevels, Runtime.getRuntime().availableProcessors() );
+        if ( options.isAdaptiveFetchers() ) {
+            // start the upper bound of fetchers, the controller decides how many of them load at a time
+            concurrencyController = new KlbConcurrencyController( options.getFetcherThreads(), options.getMinFetcherThreads(),
+                    options.getMaxFetcherThreads(), true, options.isVerboseFetchers() );
+            cache = new VolatileGlobalCellCache( maxNumResolutionLevels, concurrencyController.getMaxLimit() );
+        } else {
+            concurrencyController = null;
+            cache = new VolatileGlobalCellCache( maxNumResolutionLevels, Math.max( 1, options.getFetcherThreads() ) );
+        }
+        ioScheduler = options.getIoSchedulerConcurrency() > 0 ? new KlbIoScheduler( options.getIoSchedulerConcurrency(), blockIndices ) : null;
+        diskCache = createDiskCache( options );
+        compressedBlocks = options.getCompressedCacheSizeMB() > 0 ? new KlbCompressedBlockCache( options.getCompressedCacheSizeMB() * 1024 * 1024 ) : null;
+        ioPool = createIoPool( options );
+        decodePool = ioPool != null ? createThreadPool( "klb-decode", Math.max( 1, options.getDecodeThreads() ) ) : null;
+        // headers are read in Java only to report compressed bytes read
+        decoders = new KlbDecoderPool( Math.max( 1, options.getDecodeThreads() ), options.isMetrics() ? blockIndices : null );
+        // the native library reads local files only
+        final KlbBlockReader blockReader = compressedBlocks != null || ioPool != null || resolver.requiresJavaReader()
+                ? new KlbBlockReader( blockIndices, compressedBlocks, ioPool, decodePool ) : null;
+        metrics = options.isMetrics() ? new KlbLoaderMetrics( this ) : null;
+        if ( blockReader != null ) {
+            blockReader.setMetrics( metrics );
+        }
+        slabArena = createSlabArena( options );
+        retention = options.getRetentionSizeMB() > 0 ? new KlbCellRetention( options.getRetentionSizeMB() * 1024 * 1024, options.getPinnedLevels() ) : null;
+        sharedCache = createSharedCache( resolver, options );
+        workingSetSize = options.getWorkingSetSize();
+        workingSet = workingSetSize > 0 ? new KlbWorkingSet() : null;
+        workingSetFile = workingSet != null ? KlbWorkingSet.getFile( new File( options.getWorkingSetDirectory() ), resolver ) : null;
+        cellTrace = createCellTrace( options );
+        tiers = KlbCellTiers.tiers()
+                .ioScheduler( ioScheduler )
+                .diskCache( diskCache )
+                .sharedCache( sharedCache )
+                .blockReader( blockReader )
+                .decoderPool( decoders )
+                .slabArena( slabArena )
+                .cellRetention( retention )
+                .workingSet( workingSet )
+                .concurrencyController( concurrencyController )
+                .metrics( metrics )
+                .cellTrace( cellTrace );
         for ( final BasicViewSetup viewSetup : seq.getViewSetupsOrdered() ) {
             final int id = viewSetup.getId();
-            final Type type = this.resolver.getViewSetupConfig( id ).getDataType();
-            if ( type instanceof UnsignedByteType )
-                setupImgLoaders.put( id, new KlbSetupImgLoader( id, new KlbVolatileArrayLoaderUInt8( this.resolver ) ) );
-            else if ( type instanceof UnsignedShortType )
-                setupImgLoaders.put( id, new KlbSetupImgLoader( id, new KlbVolatileArrayLoaderUInt16( this.resolver ) ) );
-            else if ( type instanceof FloatType )
-                setupImgLoaders.put( id, new KlbSetupImgLoader( id, new KlbVolatileArrayLoaderFloat32( this.resolver ) ) );
-            else
-                throw new UnsupportedOperationException( "Unknown or unsupported type" );
+            final KlbVolatileArrayLoader arrayLoader = createArrayLoader( this.resolver, id, options );
+            arrayLoader.setCellTiers( tiers );
+            setupImgLoaders.put( id, new KlbSetupImgLoader( id, arrayLoader ) );
+        }
+        if ( metrics != null ) {
+            metrics.register( resolver );
+        }
+        if ( options.getWarmUpSizeMB() > 0 ) {
+            startWarmUp( options.getWarmUpSizeMB() * 1024 * 1024, null );
+        }
+        if ( workingSet != null ) {
+            replayWorkingSet();
+        }
+        if ( workingSet != null || cellTrace != null ) {
+            // BDV never closes image loaders, save the working set and the trace when Fiji exits
+            shutdownHook = new SaveOnExit( workingSet, workingSetFile, workingSetSize, cellTrace );
+            Runtime.getRuntime().addShutdownHook( shutdownHook );
+        }
+    }
+
+    private static KlbCellTrace createCellTrace( final KlbImgLoaderOptions options )
+    {
+        if ( options.getCellTraceFile() == null ) {
+            return null;
+        }
+        try {
+            return new KlbCellTrace( new File( options.getCellTraceFile() ) );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void replayWorkingSet()
+    {
+        if ( !workingSetFile.isFile() ) {
+            return;
+        }
+        try {
+            workingSetReplay = new KlbWorkingSet.Replay( this, KlbWorkingSet.load( workingSetFile ) );
+            workingSetReplay.start();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops background loading, saves the working set and closes the cell trace, if recorded,
+     * detaches from the shared cache and unregisters the metrics bean.
+     */
+    public synchronized void close()
+    {
+        if ( metrics != null ) {
+            metrics.unregister();
+        }
+        if ( warmUp != null ) {
+            warmUp.cancel();
+        }
+        if ( workingSetReplay != null ) {
+            workingSetReplay.cancel();
+        }
+        if ( ioPool != null ) {
+            ioPool.shutdown();
+            decodePool.shutdown();
+        }
+        if ( sharedCache != null ) {
+            tiers.detachSharedCache();
+            try {
+                sharedCache.close();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        if ( shutdownHook != null ) {
+            try {
+                Runtime.getRuntime().removeShutdownHook( shutdownHook );
+            } catch ( IllegalStateException ex ) {
+                // already shutting down, the hook saves
+                return;
+            }
+            shutdownHook.run();
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * @return runtime metrics, also registered as MXBean, or null if disabled
+     */
+    public KlbLoaderMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public KlbBlockIndexCache getBlockIndexCache()
+    {
+        return blockIndices;
+    }
+
+    /**
+     * @return the controller of concurrent loads, reporting the chosen concurrency, or null if fetchers are not adaptive
+     */
+    public KlbConcurrencyController getConcurrencyController()
+    {
+        return concurrencyController;
+    }
+
+    /**
+     * @return the cache shared with other JVMs, or null if disabled
+     */
+    public KlbSharedCellCache getSharedCache()
+    {
+        return sharedCache;
+    }
+
+    /**
+     * @return trace of cell requests, or null if not recorded
+     */
+    public KlbCellTrace getCellTrace()
+    {
+        return cellTrace;
+    }
+
+    /**
+     * @return the working set recorded in this session, or null if disabled
+     */
+    public KlbWorkingSet getWorkingSet()
+    {
+        return workingSet;
+    }
+
+    /**
+     * @return the prefetch of the previous session's working set, or null
+     */
+    public KlbWorkingSet.Replay getWorkingSetReplay()
+    {
+        return workingSetReplay;
+    }
+
+    /**
+     * Starts loading the coarsest level of all view setups and time points in the background,
+     * cancelling a warm-up in progress.
+     *
+     * @param maxBytes       memory cap
+     * @param progressWriter receives progress, or null
+     * @return the warm-up, to cancel or monitor it
+     */
+    public synchronized KlbWarmUp startWarmUp( final long maxBytes, final ProgressWriter progressWriter )
+    {
+        if ( warmUp != null ) {
+            warmUp.cancel();
+        }
+        warmUp = new KlbWarmUp( this, maxBytes, progressWriter );
+        warmUp.start();
+        return warmUp;
+    }
+
+    /**
+     * @return the most recently started warm-up, or null
+     */
+    public KlbWarmUp getWarmUp()
+    {
+        return warmUp;
+    }
+
+    /**
+     * @return number of interactive (non-idle) cell loads in progress, over all view setups
+     */
+    public int getNumActiveLoads()
+    {
+        int n = 0;
+        for ( final KlbSetupImgLoader setupImgLoader : setupImgLoaders.values() ) {
+            n += setupImgLoader.arrayLoader.getNumActiveLoads();
+        }
+        return n;
+    }
+
+    private static KlbDiskCellCache createDiskCache( final KlbImgLoaderOptions options )
+    {
+        final String directory = options.getDiskCacheDirectory();
+        if ( directory == null || directory.trim().isEmpty() ) {
+            return null;
+        }
+        try {
+            return new KlbDiskCellCache( new File( directory ), options.getDiskCacheSizeMB() * 1024 * 1024 );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static ExecutorService createIoPool( final KlbImgLoaderOptions options )
+    {
+        if ( options.isVirtualThreads() ) {
+            final ExecutorService pool = KlbVirtualThreads.newThreadPerTaskExecutor( "klb-io" );
+            if ( pool != null ) {
+                return pool;
+            }
+            System.err.println( "klb-bdv: virtual threads require Java 21, using " + Math.max( 1, options.getIoThreads() ) + " I/O threads" );
+            return createThreadPool( "klb-io", Math.max( 1, options.getIoThreads() ) );
+        }
+        return options.getIoThreads() > 0 ? createThreadPool( "klb-io", options.getIoThreads() ) : null;
+    }
+
+    private static ExecutorService createThreadPool( final String name, final int numThreads )
+    {
+        return Executors.newFixedThreadPool( numThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( final Runnable r )
+            {
+                final Thread thread = new Thread( r, name + "-" + count.getAndIncrement() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    private static KlbSharedCellCache createSharedCache( final KlbPartitionResolver resolver, final KlbImgLoaderOptions options )
+    {
+        if ( options.getSharedCacheSizeMB() <= 0 ) {
+            return null;
+        }
+        final String directory = options.getSharedCacheDirectory();
+        final File dir = directory == null || directory.trim().isEmpty() ? KlbSharedCellCache.getDefaultDirectory() : new File( directory );
+        try {
+            return new KlbSharedCellCache( KlbSharedCellCache.getFile( dir, resolver ), options.getSharedCacheSizeMB() * 1024 * 1024 );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static KlbSlabArena createSlabArena( final KlbImgLoaderOptions options )
+    {
+        if ( options.getOffHeapCellsSizeMB() <= 0 ) {
+            return null;
         }
+        final String directory = options.getOffHeapCellsDirectory();
+        return new KlbSlabArena(
+                options.getOffHeapCellsSizeMB() * 1024 * 1024,
+                directory == null || directory.trim().isEmpty() ? null : new File( directory ) );
+    }
+
+    static KlbVolatileArrayLoader createArrayLoader( final KlbPartitionResolver resolver, final int viewSetupId, final KlbImgLoaderOptions options )
+    {
+        final Type type = resolver.getViewSetupConfig( viewSetupId ).getDataType();
+        if ( type instanceof UnsignedByteType )
+            return new KlbVolatileArrayLoaderUInt8( resolver, options );
+        else if ( type instanceof UnsignedShortType )
+            return new KlbVolatileArrayLoaderUInt16( resolver, options );
+        else if ( type instanceof FloatType )
+            return new KlbVolatileArrayLoaderFloat32( resolver, options );
+        else
+            throw new UnsupportedOperationException( "Unknown or unsupported type" );
     }
 
     public KlbPartitionResolver getResolver()
@@ -73,6 +390,47 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         return resolver;
     }
 
+    /**
+     * @return the shared I/O scheduler, or null if reads are not scheduled
+     */
+    public KlbIoScheduler getIoScheduler()
+    {
+        return ioScheduler;
+    }
+
+    /**
+     * @return the persistent cache of decoded cells, or null if disabled
+     */
+    public KlbDiskCellCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+    /**
+     * @return the off-heap cache of compressed blocks, or null if disabled
+     */
+    public KlbCompressedBlockCache getCompressedBlockCache()
+    {
+        return compressedBlocks;
+    }
+
+    /**
+     * @return the off-heap arena of cached cells, or null if cells are kept on the heap
+     */
+    public KlbSlabArena getSlabArena()
+    {
+        return slabArena;
+    }
+
+    /**
+     * @return the retention tier of loaded cells, or null if disabled. Its
+     * statistics show what the eviction policy keeps.
+     */
+    public KlbCellRetention getCellRetention()
+    {
+        return retention;
+    }
+
     @Override
     public KlbSetupImgLoader getSetupImgLoader( final int viewSetupId )
     {
@@ -93,6 +451,7 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         private final int[] blockSize = new int[ 3 ];
         private final double[] pixelSpacing = new double[ 3 ];
         private final KlbVolatileArrayLoader< T, V, A > arrayLoader;
+        private final CacheArrayLoader< A > displayArrayLoader;
         private double[][] mipMapResolutions;
         private AffineTransform3D[] mipMapTransforms;
 
@@ -104,6 +463,21 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         {
             this.viewSetupId = viewSetupId;
             this.arrayLoader = arrayLoader;
+            displayArrayLoader = new CacheArrayLoader< A >()
+            {
+                @Override
+                public int getBytesPerElement()
+                {
+                    return arrayLoader.getDisplayBytesPerElement();
+                }
+
+                @Override
+                public A loadArray( final int timePoint, final int setup, final int level, final int[] dimensions, final long[] min )
+                        throws InterruptedException
+                {
+                    return arrayLoader.loadDisplayArray( timePoint, viewSetupId, level, dimensions, min );
+                }
+            };
         }
 
         @Override
@@ -129,14 +503,18 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         @Override
         public RandomAccessibleInterval< T > getImage( final int timePointId, final int level, final ImgLoaderHint... hints )
         {
-            if ( Arrays.asList( hints ).contains( ImgLoaderHints.LOAD_COMPLETELY ) ) {
+            if ( Arrays.asList( hints ).contains( ImgLoaderHints.LOAD_COMPLETELY )
+                    && KlbByteSource.isLocalFile( resolver.getFilePath( timePointId, viewSetupId, level ) ) ) {
                 try {
                     return resolver.getImage( timePointId, viewSetupId, level );
                 } catch ( IOException e ) {
+                    if ( metrics != null ) {
+                        metrics.recordError( resolver.getFilePath( timePointId, viewSetupId, level ), e );
+                    }
                     e.printStackTrace();
                 }
             }
-            final VolatileCachedCellImg< T, A > img = prepareCachedImage( timePointId, level, LoadingStrategy.BLOCKING );
+            final VolatileCachedCellImg< T, A > img = prepareCachedImage( timePointId, level, LoadingStrategy.BLOCKING, false );
             if ( typeConstructor == null ) {
                 for ( final Constructor< ? > c : getImageType().getClass().getConstructors() ) {
                     typeConstructor = ( Constructor< T > ) c;
@@ -266,7 +644,24 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         @Override
         public RandomAccessibleInterval< V > getVolatileImage( final int timePointId, final int level, final ImgLoaderHint... hints )
         {
-            final VolatileCachedCellImg< V, A > img = prepareCachedImage( timePointId, level, LoadingStrategy.VOLATILE );
+            return linkVolatileType( prepareCachedImage( timePointId, level, LoadingStrategy.VOLATILE, arrayLoader.isDisplayEncoded() ) );
+        }
+
+        /**
+         * Same cells as {@link #getVolatileImage(int, int, ImgLoaderHint...)}, but loaded in the calling thread.
+         */
+        RandomAccessibleInterval< V > getWarmUpImage( final int timePointId, final int level )
+        {
+            return linkVolatileType( prepareCachedImage( timePointId, level, LoadingStrategy.BLOCKING, arrayLoader.isDisplayEncoded() ) );
+        }
+
+        int getDisplayBytesPerElement()
+        {
+            return arrayLoader.getDisplayBytesPerElement();
+        }
+
+        private RandomAccessibleInterval< V > linkVolatileType( final VolatileCachedCellImg< V, A > img )
+        {
             if ( volatileTypeConstructor == null ) {
                 for ( final Constructor< ? > c : getVolatileImageType().getClass().getConstructors() ) {
                     volatileTypeConstructor = ( Constructor< V > ) c;
@@ -288,7 +683,11 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
             }
         }
 
-        private < T extends NativeType< T > > VolatileCachedCellImg< T, A > prepareCachedImage( final int timePointId, final int level, final LoadingStrategy loadingStrategy )
+        /**
+         * @param display whether to cache cells in the display encoding of the array loader. Display cells are
+         *                cached under setup id -1 - viewSetupId, apart from full precision cells.
+         */
+        private < T extends NativeType< T > > VolatileCachedCellImg< T, A > prepareCachedImage( final int timePointId, final int level, final LoadingStrategy loadingStrategy, final boolean display )
         {
             resolver.getImageSize( viewSetupId, level, imageSize );
             resolver.getBlockSize( viewSetupId, level, blockSize );
@@ -300,6 +699,9 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
 
 
             final CellGrid grid = new CellGrid( imageSize, blockSize );
+            if ( display ) {
+                return cache.createImg( grid, timePointId, -1 - viewSetupId, level, cacheHints, displayArrayLoader, (T) arrayLoader.getType() );
+            }
             return cache.createImg( grid, timePointId, viewSetupId, level, cacheHints, arrayLoader, (T) arrayLoader.getType() );
         }
 
@@ -378,4 +780,44 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
             return arrayLoader.getVolatileType();
         }
     }
+
+    /**
+     * Saves the working set and closes the cell trace. Holds only those, the Runtime keeps shutdown hooks until
+     * the JVM exits.
+     */
+    private static class SaveOnExit extends Thread
+    {
+        private final KlbWorkingSet workingSet;
+        private final File workingSetFile;
+        private final int workingSetSize;
+        private final KlbCellTrace cellTrace;
+
+        private SaveOnExit( final KlbWorkingSet workingSet, final File workingSetFile, final int workingSetSize, final KlbCellTrace cellTrace )
+        {
+            super( "klb-save-on-exit" );
+            this.workingSet = workingSet;
+            this.workingSetFile = workingSetFile;
+            this.workingSetSize = workingSetSize;
+            this.cellTrace = cellTrace;
+        }
+
+        @Override
+        public void run()
+        {
+            if ( workingSet != null && workingSet.getNumCells() > 0 ) {
+                try {
+                    workingSet.save( workingSetFile, workingSetSize );
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+            if ( cellTrace != null ) {
+                try {
+                    cellTrace.close();
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 }
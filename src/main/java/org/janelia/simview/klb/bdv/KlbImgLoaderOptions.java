@@ -0,0 +1,567 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+
+/**
+ * Tuning parameters of KlbImgLoader and its array loaders.
+ * <p>
+ * Defaults can be overridden with system properties (e.g.
+ * -Dklb.bdv.coalescingWindowMicros=0), so that data sets opened
+ * from XML pick them up without code changes.
+ */
+public class KlbImgLoaderOptions
+{
+    private long coalescingWindowMicros = Long.getLong( "klb.bdv.coalescingWindowMicros", 500 );
+    private int maxCoalescedCells = Integer.getInteger( "klb.bdv.maxCoalescedCells", 64 );
+    private int ioSchedulerConcurrency = Integer.getInteger( "klb.bdv.ioSchedulerConcurrency", 0 );
+    private String diskCacheDirectory = System.getProperty( "klb.bdv.diskCacheDirectory" );
+    private long diskCacheSizeMB = Long.getLong( "klb.bdv.diskCacheSizeMB", 16 * 1024 );
+    private long compressedCacheSizeMB = Long.getLong( "klb.bdv.compressedCacheSizeMB", 0 );
+    private long offHeapCellsSizeMB = Long.getLong( "klb.bdv.offHeapCellsSizeMB", 0 );
+    private String offHeapCellsDirectory = System.getProperty( "klb.bdv.offHeapCellsDirectory" );
+    private long retentionSizeMB = Long.getLong( "klb.bdv.retentionSizeMB", 0 );
+    private int pinnedLevels = Integer.getInteger( "klb.bdv.pinnedLevels", 1 );
+    private long warmUpSizeMB = Long.getLong( "klb.bdv.warmUpSizeMB", 0 );
+    private int workingSetSize = Integer.getInteger( "klb.bdv.workingSetSize", 0 );
+    private String workingSetDirectory = System.getProperty( "klb.bdv.workingSetDirectory",
+            new File( new File( System.getProperty( "user.home" ), ".cache" ), "klb-bdv" ).getPath() );
+    private long sharedCacheSizeMB = Long.getLong( "klb.bdv.sharedCacheSizeMB", 0 );
+    private String sharedCacheDirectory = System.getProperty( "klb.bdv.sharedCacheDirectory" );
+    private int ioThreads = Integer.getInteger( "klb.bdv.ioThreads", 0 );
+    private boolean virtualThreads = Boolean.getBoolean( "klb.bdv.virtualThreads" );
+    private int decodeThreads = Integer.getInteger( "klb.bdv.decodeThreads", Runtime.getRuntime().availableProcessors() );
+    private int fetcherThreads = Integer.getInteger( "klb.bdv.fetcherThreads", Runtime.getRuntime().availableProcessors() );
+    private boolean adaptiveFetchers = Boolean.getBoolean( "klb.bdv.adaptiveFetchers" );
+    private int minFetcherThreads = Integer.getInteger( "klb.bdv.minFetcherThreads", 1 );
+    private int maxFetcherThreads = Integer.getInteger( "klb.bdv.maxFetcherThreads", 4 * Runtime.getRuntime().availableProcessors() );
+    private boolean verboseFetchers = Boolean.getBoolean( "klb.bdv.verboseFetchers" );
+    private boolean metrics = Boolean.getBoolean( "klb.bdv.metrics" );
+    private String cellTraceFile = System.getProperty( "klb.bdv.cellTraceFile" );
+    private KlbDisplayEncoding displayEncoding = getDisplayEncoding( "klb.bdv.displayEncoding" );
+    private double displayMin = getDouble( "klb.bdv.displayMin" );
+    private double displayMax = getDouble( "klb.bdv.displayMax" );
+
+    public static KlbImgLoaderOptions options()
+    {
+        return new KlbImgLoaderOptions();
+    }
+
+    private static double getDouble( final String key )
+    {
+        final String value = System.getProperty( key );
+        if ( value == null ) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble( value );
+        } catch ( NumberFormatException ex ) {
+            System.err.println( "klb-bdv: ignoring " + key + "=" + value + ", not a number" );
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * A typo in the property must not keep data sets from opening, so unknown encodings fall back to full precision.
+     */
+    private static KlbDisplayEncoding getDisplayEncoding( final String key )
+    {
+        final String value = System.getProperty( key );
+        try {
+            return KlbDisplayEncoding.fromString( value );
+        } catch ( IllegalArgumentException ex ) {
+            System.err.println( "klb-bdv: unknown " + key + "=" + value + ", using full precision" );
+            return KlbDisplayEncoding.NONE;
+        }
+    }
+
+    /**
+     * How long the first request for a file waits at most for requests to
+     * other cells of the same file before they are read together. The wait
+     * ends early when no other load is in progress or the batch stops
+     * growing. 0 disables coalescing.
+     *
+     * @param micros window in microseconds
+     * @return this
+     */
+    public KlbImgLoaderOptions coalescingWindowMicros( final long micros )
+    {
+        coalescingWindowMicros = micros;
+        return this;
+    }
+
+    /**
+     * Maximum number of cells merged into one read.
+     *
+     * @param numCells maximum number of cells
+     * @return this
+     */
+    public KlbImgLoaderOptions maxCoalescedCells( final int numCells )
+    {
+        maxCoalescedCells = numCells;
+        return this;
+    }
+
+    /**
+     * Enables the file offset ordered I/O scheduler (see KlbIoScheduler) with the given
+     * number of concurrent reads. Meant for spinning disks and network storage.
+     * 0 disables the scheduler.
+     *
+     * @param numReads maximum number of concurrent reads, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions ioSchedulerConcurrency( final int numReads )
+    {
+        ioSchedulerConcurrency = numReads;
+        return this;
+    }
+
+    /**
+     * Enables a persistent cache of decoded cells (see KlbDiskCellCache) in
+     * the given directory, preferably on local scratch. null disables it.
+     *
+     * @param directory cache directory, or null
+     * @return this
+     */
+    public KlbImgLoaderOptions diskCacheDirectory( final String directory )
+    {
+        diskCacheDirectory = directory;
+        return this;
+    }
+
+    /**
+     * @param sizeMB size cap of the disk cache in megabytes
+     * @return this
+     */
+    public KlbImgLoaderOptions diskCacheSizeMB( final long sizeMB )
+    {
+        diskCacheSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * Enables an off-heap cache of compressed KLB blocks (see KlbCompressedBlockCache)
+     * of the given size. KLB files are then read with the Java block reader.
+     * 0 disables the cache.
+     *
+     * @param sizeMB capacity in megabytes, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions compressedCacheSizeMB( final long sizeMB )
+    {
+        compressedCacheSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * Keeps the voxels of cached cells off the Java heap, in a slab arena
+     * (see KlbSlabArena) of the given size. Once it is full, the oldest
+     * cells move to the heap to make room for new ones. 0 disables the
+     * arena.
+     *
+     * @param sizeMB capacity in megabytes, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions offHeapCellsSizeMB( final long sizeMB )
+    {
+        offHeapCellsSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * Backs the off-heap arena with memory-mapped files in the given
+     * directory instead of direct buffers, e.g. to go beyond
+     * -XX:MaxDirectMemorySize. null selects direct buffers.
+     *
+     * @param directory scratch directory, or null
+     * @return this
+     */
+    public KlbImgLoaderOptions offHeapCellsDirectory( final String directory )
+    {
+        offHeapCellsDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Retains loaded cells within the given budget, with the coarsest levels
+     * pinned and finer cells evicted by distance from the current time point
+     * (see KlbCellRetention). 0 disables retention.
+     *
+     * @param sizeMB budget in megabytes, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions retentionSizeMB( final long sizeMB )
+    {
+        retentionSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * @param numLevels number of coarsest levels pinned in the retention tier
+     * @return this
+     */
+    public KlbImgLoaderOptions pinnedLevels( final int numLevels )
+    {
+        pinnedLevels = numLevels;
+        return this;
+    }
+
+    /**
+     * Starts a background warm-up of the coarsest level of all view setups
+     * and time points (see KlbWarmUp) when the image loader is created,
+     * loading at most the given amount of cells. 0 disables the warm-up.
+     *
+     * @param sizeMB memory cap in megabytes, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions warmUpSizeMB( final long sizeMB )
+    {
+        warmUpSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * Records the cells a session loads, saves the most frequently loaded
+     * ones when the image loader is closed, and prefetches them in the
+     * background when the data set is opened again (see KlbWorkingSet).
+     * 0 disables recording and replay.
+     *
+     * @param numCells maximum number of cells saved, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions workingSetSize( final int numCells )
+    {
+        workingSetSize = numCells;
+        return this;
+    }
+
+    /**
+     * @param directory where working sets are saved, by default ~/.cache/klb-bdv
+     * @return this
+     */
+    public KlbImgLoaderOptions workingSetDirectory( final String directory )
+    {
+        workingSetDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Attaches to a cache of decoded cells shared by all JVMs on the host
+     * that open the same data set (see KlbSharedCellCache), creating it
+     * with the given size if needed. 0 disables the shared cache.
+     *
+     * @param sizeMB size of a new cache in megabytes, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions sharedCacheSizeMB( final long sizeMB )
+    {
+        sharedCacheSizeMB = sizeMB;
+        return this;
+    }
+
+    /**
+     * @param directory directory of shared cache files, by default /dev/shm if available, else the temporary directory
+     * @return this
+     */
+    public KlbImgLoaderOptions sharedCacheDirectory( final String directory )
+    {
+        sharedCacheDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Reads KLB files with the Java block reader as a two stage pipeline:
+     * compressed blocks are read by the given number of I/O threads and
+     * decoded by {@link #decodeThreads(int)} threads (see KlbBlockReader).
+     * 0 disables the pipeline.
+     *
+     * @param numThreads number of I/O threads, 0 to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions ioThreads( final int numThreads )
+    {
+        ioThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Runs the block reads of the I/O pipeline on virtual threads, one per
+     * block, instead of {@link #ioThreads(int)} platform threads. Enables
+     * the pipeline. Requires Java 21, ignored on earlier versions (see
+     * KlbVirtualThreads).
+     *
+     * @param virtual whether to read blocks on virtual threads
+     * @return this
+     */
+    public KlbImgLoaderOptions virtualThreads( final boolean virtual )
+    {
+        virtualThreads = virtual;
+        return this;
+    }
+
+    /**
+     * Threads of the decode stage of the I/O pipeline, and the budget of
+     * threads that native reads share. A native read that is alone decodes
+     * its blocks on all of them (see KlbDecoderPool).
+     *
+     * @param numThreads number of decode threads, by default the number of processors
+     * @return this
+     */
+    public KlbImgLoaderOptions decodeThreads( final int numThreads )
+    {
+        decodeThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * @param numThreads number of concurrent cell loads, by default the number of processors.
+     *                   With adaptive fetchers, the initial number.
+     * @return this
+     */
+    public KlbImgLoaderOptions fetcherThreads( final int numThreads )
+    {
+        fetcherThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Adapts the number of concurrent cell loads to measured throughput,
+     * between {@link #minFetcherThreads(int)} and {@link #maxFetcherThreads(int)}
+     * (see KlbConcurrencyController).
+     *
+     * @param adaptive whether to adapt
+     * @return this
+     */
+    public KlbImgLoaderOptions adaptiveFetchers( final boolean adaptive )
+    {
+        adaptiveFetchers = adaptive;
+        return this;
+    }
+
+    /**
+     * @param numThreads lower bound of adaptive fetchers
+     * @return this
+     */
+    public KlbImgLoaderOptions minFetcherThreads( final int numThreads )
+    {
+        minFetcherThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * @param numThreads upper bound of adaptive fetchers, by default 4 times the number of processors
+     * @return this
+     */
+    public KlbImgLoaderOptions maxFetcherThreads( final int numThreads )
+    {
+        maxFetcherThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Collects load latencies, bytes, errors and cache statistics and
+     * registers them as MXBean, see KlbLoaderMetrics. Off by default.
+     *
+     * @param enabled whether to collect metrics
+     * @return this
+     */
+    public KlbImgLoaderOptions metrics( final boolean enabled )
+    {
+        metrics = enabled;
+        return this;
+    }
+
+    /**
+     * Records every cell request that reaches the array loaders to a binary
+     * trace, for KlbCellTraceReplay. An existing file is not overwritten,
+     * the trace gets a numbered name instead. null disables tracing.
+     *
+     * @param path trace file, or null
+     * @return this
+     */
+    public KlbImgLoaderOptions cellTraceFile( final String path )
+    {
+        cellTraceFile = path;
+        return this;
+    }
+
+    /**
+     * @param verbose whether adaptive fetchers print every change of concurrency
+     * @return this
+     */
+    public KlbImgLoaderOptions verboseFetchers( final boolean verbose )
+    {
+        verboseFetchers = verbose;
+        return this;
+    }
+
+    /**
+     * Caches the cells of volatile images, i.e. the ones BDV displays, in a
+     * compact encoding. Images for analysis keep full precision.
+     * {@link KlbDisplayEncoding#UINT8} applies to 16 bit and float data sets,
+     * {@link KlbDisplayEncoding#BFLOAT16} to float data sets.
+     *
+     * @param encoding display encoding, NONE to disable
+     * @return this
+     */
+    public KlbImgLoaderOptions displayEncoding( final KlbDisplayEncoding encoding )
+    {
+        displayEncoding = encoding;
+        return this;
+    }
+
+    /**
+     * Intensity range mapped to the 8 bit display encoding; values outside
+     * are clamped. NaN for either bound takes it from the coarsest level of
+     * the first time point.
+     *
+     * @param min intensity mapped to 0
+     * @param max intensity mapped to 255
+     * @return this
+     */
+    public KlbImgLoaderOptions displayRange( final double min, final double max )
+    {
+        displayMin = min;
+        displayMax = max;
+        return this;
+    }
+
+    public long getCoalescingWindowMicros()
+    {
+        return coalescingWindowMicros;
+    }
+
+    public int getMaxCoalescedCells()
+    {
+        return maxCoalescedCells;
+    }
+
+    public int getIoSchedulerConcurrency()
+    {
+        return ioSchedulerConcurrency;
+    }
+
+    public String getDiskCacheDirectory()
+    {
+        return diskCacheDirectory;
+    }
+
+    public long getDiskCacheSizeMB()
+    {
+        return diskCacheSizeMB;
+    }
+
+    public long getCompressedCacheSizeMB()
+    {
+        return compressedCacheSizeMB;
+    }
+
+    public long getOffHeapCellsSizeMB()
+    {
+        return offHeapCellsSizeMB;
+    }
+
+    public String getOffHeapCellsDirectory()
+    {
+        return offHeapCellsDirectory;
+    }
+
+    public long getRetentionSizeMB()
+    {
+        return retentionSizeMB;
+    }
+
+    public int getPinnedLevels()
+    {
+        return pinnedLevels;
+    }
+
+    public long getWarmUpSizeMB()
+    {
+        return warmUpSizeMB;
+    }
+
+    public int getWorkingSetSize()
+    {
+        return workingSetSize;
+    }
+
+    public String getWorkingSetDirectory()
+    {
+        return workingSetDirectory;
+    }
+
+    public long getSharedCacheSizeMB()
+    {
+        return sharedCacheSizeMB;
+    }
+
+    public String getSharedCacheDirectory()
+    {
+        return sharedCacheDirectory;
+    }
+
+    public int getIoThreads()
+    {
+        return ioThreads;
+    }
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public int getDecodeThreads()
+    {
+        return decodeThreads;
+    }
+
+    public int getFetcherThreads()
+    {
+        return fetcherThreads;
+    }
+
+    public boolean isAdaptiveFetchers()
+    {
+        return adaptiveFetchers;
+    }
+
+    public int getMinFetcherThreads()
+    {
+        return minFetcherThreads;
+    }
+
+    public int getMaxFetcherThreads()
+    {
+        return maxFetcherThreads;
+    }
+
+    public boolean isVerboseFetchers()
+    {
+        return verboseFetchers;
+    }
+
+    public boolean isMetrics()
+    {
+        return metrics;
+    }
+
+    public String getCellTraceFile()
+    {
+        return cellTraceFile;
+    }
+
+    public KlbDisplayEncoding getDisplayEncoding()
+    {
+        return displayEncoding;
+    }
+
+    public double getDisplayMin()
+    {
+        return displayMin;
+    }
+
+    public double getDisplayMax()
+    {
+        return displayMax;
+    }
+}
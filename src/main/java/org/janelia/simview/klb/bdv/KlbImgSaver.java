@@ -0,0 +1,362 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.export.Downsample;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHints;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.janelia.simview.klb.KLB;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes any SpimData sequence, e.g. one read from an HDF5 or N5 data set,
+ * as a KLB data set: a file per time point and view setup, its resolution
+ * levels as RESLVL files next to it, and the XML file that reads them.
+ * <p>
+ * Files are named by a template relative to the XML file, in which {t}
+ * stands for the time point, zero-padded to six digits and preceded by the
+ * time tag, e.g. TM{t}, and {s} for the view setup, zero-padded to two
+ * digits. Resolution levels are proposed as by BDV's HDF5 export (see
+ * KlbDownsampler).
+ * <p>
+ * Views are processed in a pipeline: a few threads read views, and more
+ * threads downsample and encode them, all levels of a view on one thread.
+ * A memory budget bounds the views between reading and having been
+ * written; reading waits when it is exhausted.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Save data set as KLB" )
+public class KlbImgSaver< T extends RealType< T > & NativeType< T > > implements Command
+{
+    public static final String DEFAULT_TEMPLATE = "TM{t}/SPM00_CM{s}.klb";
+    private static final Pattern TIME_TAG = Pattern.compile( "([A-Za-z]+)\\{t\\}" );
+
+    @Parameter( label = "Input XML" )
+    private File xmlFile;
+
+    @Parameter( label = "Output XML", style = "save" )
+    private File outputXmlFile;
+
+    @Parameter( label = "File name template", required = false )
+    private String template = DEFAULT_TEMPLATE;
+
+    @Parameter( label = "Compression", choices = { "bzip2", "zlib", "none" }, required = false )
+    private String compression = "bzip2";
+
+    @Parameter( label = "Threads", required = false )
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( label = "Memory budget (MB, 0 for half the heap)", required = false )
+    private int memoryMB = 0;
+
+    @Parameter
+    private LogService log;
+
+    private final ThreadLocal< KLB > klbs = new ThreadLocal< KLB >()
+    {
+        @Override
+        protected KLB initialValue()
+        {
+            return KLB.newInstance();
+        }
+    };
+
+    @Override
+    public void run()
+    {
+        process( xmlFile, outputXmlFile, template, compression, numThreads, memoryMB );
+    }
+
+    /**
+     * Saves the data set of an XML file of any image loader as KLB.
+     *
+     * @return whether all views were written
+     */
+    public boolean process( final File xmlFile, final File outputXmlFile, final String template, final String compression,
+            final int numThreads, final int memoryMB )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        SpimDataMinimal data = null;
+        try {
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return false;
+        }
+        return save( data.getSequenceDescription(), data.getViewRegistrations(), outputXmlFile, template,
+                KLB.CompressionType.valueOf( compression.trim().toUpperCase() ), numThreads, memoryMB );
+    }
+
+    /**
+     * @param seq           sequence with its image loader, view setup ids 0 to n-1
+     * @param registrations written to the XML file as they are
+     * @param xmlFile       XML file to write, file names are relative to its directory
+     * @param template      file name template, see the class documentation
+     * @param numThreads    threads that downsample and encode; a quarter as many, at least one, read
+     * @param memoryMB      bound of the views in flight, 0 for half the maximum heap
+     * @return whether all views were written
+     */
+    public boolean save( final AbstractSequenceDescription< ?, ?, ? > seq, final ViewRegistrations registrations, final File xmlFile,
+            final String template, final KLB.CompressionType compression, final int numThreads, final int memoryMB )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        final Matcher tag = TIME_TAG.matcher( template );
+        if ( !tag.find() || !template.contains( "{s}" ) || !template.endsWith( ".klb" ) ) {
+            log.error( "Template must contain a time tag followed by {t}, e.g. TM{t}, contain {s}, and end in .klb: " + template );
+            return false;
+        }
+        final String timeTag = tag.group( 1 );
+        final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
+        for ( int i = 0; i < setups.size(); ++i ) {
+            // the KLB image loader addresses view setups by index
+            if ( setups.get( i ).getId() != i ) {
+                log.error( "View setup ids must be 0 to " + (setups.size() - 1) + " for KLB, found " + setups.get( i ).getId() );
+                return false;
+            }
+        }
+        final File directory = xmlFile.getAbsoluteFile().getParentFile();
+        final String pathTemplate = new File( template ).isAbsolute() ? template : new File( directory, template ).getPath();
+
+        final Map< Integer, long[][] > dimensions = new HashMap< Integer, long[][] >();
+        final Map< Integer, int[][] > relativeScaling = new HashMap< Integer, int[][] >();
+        final Map< Integer, double[][] > sampling = new HashMap< Integer, double[][] >();
+        KlbDownsampler.proposeLevels( seq, dimensions, relativeScaling, sampling );
+
+        final long budget = memoryMB > 0 ? memoryMB * 1024L * 1024 : Runtime.getRuntime().maxMemory() / 2;
+        // permits in KB, so that budgets above 2 GB fit an int
+        final int memoryPermits = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, budget / 1024 ) );
+        final Semaphore memory = new Semaphore( memoryPermits );
+        final ExecutorService readers = Executors.newFixedThreadPool( Math.max( 1, numThreads / 4 ) );
+        final ExecutorService encoders = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        final AtomicInteger numFailed = new AtomicInteger();
+
+        final List< Callable< Future< ? > > > reads = new ArrayList< Callable< Future< ? > > >();
+        final Map< Integer, String > firstFiles = new HashMap< Integer, String >();
+        final List< Integer > timePoints = new ArrayList< Integer >();
+        for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+            timePoints.add( timePoint.getId() );
+        }
+        for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+            final int t = timePoint.getId();
+            for ( final BasicViewSetup setup : setups ) {
+                final int s = setup.getId();
+                if ( seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( t, s ) ) ) {
+                    continue;
+                }
+                if ( !firstFiles.containsKey( s ) ) {
+                    firstFiles.put( s, getFilePath( pathTemplate, t, s, 0 ) );
+                }
+                final BasicSetupImgLoader< ? > setupImgLoader = seq.getImgLoader().getSetupImgLoader( s );
+                reads.add( new Callable< Future< ? > >()
+                {
+                    @Override
+                    public Future< ? > call() throws Exception
+                    {
+                        final T type = ( T ) setupImgLoader.getImageType();
+                        final long[][] dims = dimensions.get( s );
+                        long numElements = 1;
+                        for ( final long d : dims[ 0 ] ) {
+                            numElements *= d;
+                        }
+                        // the view as the image loader returns it, the copy of it, its levels, and a copy made by the native writer
+                        final long viewBytes = numElements * getBytesPerElement( type );
+                        final long bytes = 3 * viewBytes + viewBytes / 7;
+                        final int acquired = ( int ) Math.max( 1, Math.min( bytes / 1024 + 1, memoryPermits ) );
+                        memory.acquire( acquired );
+                        final Img< T > image;
+                        try {
+                            image = load( ( RandomAccessibleInterval< T > ) setupImgLoader.getImage( t, ImgLoaderHints.LOAD_COMPLETELY ), dims[ 0 ], type );
+                        } catch ( RuntimeException ex ) {
+                            memory.release( acquired );
+                            throw ex;
+                        }
+                        // the loaded view is garbage once copied
+                        final int permits = ( int ) Math.max( 1, Math.min( (bytes - viewBytes) / 1024 + 1, acquired ) );
+                        memory.release( acquired - permits );
+                        return encoders.submit( new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                try {
+                                    write( image, type, pathTemplate, t, s, relativeScaling.get( s ), dims, sampling.get( s ), compression );
+                                } catch ( Exception ex ) {
+                                    numFailed.incrementAndGet();
+                                    log.error( String.format( "Time point %d, view setup %d: %s", t, s, ex.getMessage() ) );
+                                } finally {
+                                    memory.release( permits );
+                                }
+                            }
+                        } );
+                    }
+                } );
+            }
+        }
+
+        log.info( String.format( "Saving %d views on %d threads, memory budget %d MB", reads.size(), numThreads, budget / 1024 / 1024 ) );
+        final long start = System.nanoTime();
+        try {
+            for ( final Future< Future< ? > > read : readers.invokeAll( reads ) ) {
+                try {
+                    read.get().get();
+                } catch ( Exception ex ) {
+                    numFailed.incrementAndGet();
+                    log.error( ex.getCause() != null ? ex.getCause() : ex );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            readers.shutdown();
+            encoders.shutdown();
+        }
+        log.info( String.format( "Saved %d views in %.1f s, %d failed", reads.size() - numFailed.get(), (System.nanoTime() - start) / 1e9, numFailed.get() ) );
+        if ( numFailed.get() > 0 ) {
+            return false;
+        }
+
+        // the files are there now, so that the resolver reads their headers and finds their levels
+        final KlbPartitionResolver resolver = new KlbPartitionResolver();
+        for ( final BasicViewSetup setup : setups ) {
+            final KlbPartitionResolver.KlbViewSetupConfig config = resolver.addViewSetup( firstFiles.get( setup.getId() ), timeTag );
+            if ( config == null ) {
+                log.error( "Could not read " + firstFiles.get( setup.getId() ) );
+                return false;
+            }
+            config.setTimePoints( timePoints );
+        }
+        final SequenceDescriptionMinimal klbSeq = new SequenceDescriptionMinimal( seq.getTimePoints(), seq.getViewSetups(), null, seq.getMissingViews() );
+        klbSeq.setImgLoader( new KlbImgLoader( resolver, klbSeq ) );
+        try {
+            new XmlIoSpimDataMinimal().save( new SpimDataMinimal( directory, klbSeq, registrations ), xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return false;
+        }
+        log.info( "Wrote " + xmlFile );
+        return true;
+    }
+
+    /**
+     * Copies a view into memory, whatever its image loader returns.
+     */
+    private Img< T > load( final RandomAccessibleInterval< T > source, final long[] dims, final T type )
+    {
+        final Img< T > image = new ArrayImgFactory< T >().create( dims, type );
+        final Cursor< T > in = Views.flatIterable( source ).cursor();
+        final Cursor< T > out = image.cursor();
+        while ( out.hasNext() ) {
+            out.next().set( in.next() );
+        }
+        return image;
+    }
+
+    /**
+     * Writes level 0 and downsamples and writes each further level from the one before.
+     */
+    private void write( final Img< T > image, final T type, final String pathTemplate, final int t, final int s, final int[][] scales,
+            final long[][] dims, final double[][] smpl, final KLB.CompressionType compression )
+            throws Exception
+    {
+        final KLB klb = klbs.get();
+        final float[] klbSampling = { 1, 1, 1, 1, 1 };
+        Img< T > current = image;
+        for ( int level = 0; level < scales.length; ++level ) {
+            if ( level > 0 ) {
+                final Img< T > downsampled = new ArrayImgFactory< T >().create( dims[ level ], type );
+                Downsample.downsample( current, downsampled, scales[ level ] );
+                current = downsampled;
+            }
+            final String filePath = getFilePath( pathTemplate, t, s, level );
+            final File parent = new File( filePath ).getParentFile();
+            if ( !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory() ) {
+                throw new IOException( "Could not create " + parent );
+            }
+            for ( int d = 0; d < 3; ++d ) {
+                klbSampling[ d ] = ( float ) smpl[ level ][ d ];
+            }
+            final Object writeEvent = KlbFlightRecorder.DOWNSAMPLE.begin();
+            klb.writeFull( current, filePath, klbSampling, null, compression, null );
+            KlbFlightRecorder.DOWNSAMPLE.commit( writeEvent, "write", t, s, level );
+        }
+    }
+
+    /**
+     * @return path of a file, with RESLVL files named as KlbPartitionResolver expects them
+     */
+    static String getFilePath( final String pathTemplate, final int t, final int s, final int level )
+    {
+        final String path = pathTemplate.replace( "{t}", String.format( "%06d", t ) ).replace( "{s}", String.format( "%02d", s ) );
+        if ( level == 0 ) {
+            return path;
+        }
+        final int extension = path.lastIndexOf( ".klb" );
+        return path.substring( 0, extension ) + String.format( ".RESLVL%d", level ) + path.substring( extension );
+    }
+
+    private static int getBytesPerElement( final Object type )
+    {
+        if ( type instanceof UnsignedByteType ) {
+            return 1;
+        } else if ( type instanceof UnsignedShortType ) {
+            return 2;
+        } else if ( type instanceof FloatType ) {
+            return 4;
+        }
+        return 8;
+    }
+
+    public static void main( final String[] args )
+    {
+        if ( args.length < 2 ) {
+            System.out.println( "Usage: KlbImgSaver input.xml output.xml [template (default " + DEFAULT_TEMPLATE + ")] [compression (bzip2|zlib|none)] [threads] [memoryMB]" );
+            return;
+        }
+        final String template = args.length > 2 ? args[ 2 ] : DEFAULT_TEMPLATE;
+        final String compression = args.length > 3 ? args[ 3 ] : "bzip2";
+        final int numThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : Runtime.getRuntime().availableProcessors();
+        final int memoryMB = args.length > 5 ? Integer.parseInt( args[ 5 ] ) : 0;
+        final boolean success = new KlbImgSaver().process( new File( args[ 0 ] ), new File( args[ 1 ] ), template, compression, numThreads, memoryMB );
+        System.exit( success ? 0 : 1 );
+    }
+}
@@ -0,0 +1,187 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Orders KLB reads by file and byte offset, like a disk elevator.
+ * <p>
+ * Reads are admitted at most maxConcurrentReads at a time. Reads that
+ * wait for admission are kept sorted by level priority first, then file
+ * path and position of their first compressed block. Whenever a slot
+ * frees up, the waiting read of the most urgent priority that comes next
+ * after the previously admitted read in (file, offset) order is admitted,
+ * wrapping around at the end. On spinning disks and network storage
+ * this turns the screen-space order of BDV's requests into near
+ * sequential runs.
+ * <p>
+ * One instance is shared by all array loaders of a KlbImgLoader.
+ */
+public class KlbIoScheduler
+{
+    private static final Comparator< Ticket > ORDER = new Comparator< Ticket >()
+    {
+        @Override
+        public int compare( final Ticket a, final Ticket b )
+        {
+            if ( a.priority != b.priority ) {
+                return a.priority < b.priority ? -1 : 1;
+            }
+            final int c = a.filePath.compareTo( b.filePath );
+            if ( c != 0 ) {
+                return c;
+            }
+            if ( a.fileOffset != b.fileOffset ) {
+                return a.fileOffset < b.fileOffset ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * A read to be scheduled.
+     */
+    public interface Read
+    {
+        void run() throws IOException;
+    }
+
+    private final int maxConcurrentReads;
+    private final TreeSet< Ticket > waiting = new TreeSet< Ticket >( ORDER );
+    private final KlbBlockIndexCache indices;
+    private Ticket head;
+    private int running = 0;
+    private long sequence = 0;
+    private long numReads = 0;
+    private long numSeeks = 0;
+
+    public KlbIoScheduler( final int maxConcurrentReads )
+    {
+        this( maxConcurrentReads, new KlbBlockIndexCache( 1024 ) );
+    }
+
+    public KlbIoScheduler( final int maxConcurrentReads, final KlbBlockIndexCache indices )
+    {
+        this.maxConcurrentReads = Math.max( 1, maxConcurrentReads );
+        this.indices = indices;
+    }
+
+    /**
+     * Runs the read once it is admitted. Blocks the calling thread until the read is done.
+     *
+     * @param priority level priority, lower values are served first (0 for the coarsest level)
+     * @param filePath file to be read
+     * @param xyzctMin first voxel of the region of interest
+     * @param xyzctMax last voxel of the region of interest
+     * @param read     the read
+     * @throws IOException          if the read fails
+     * @throws InterruptedException if interrupted while waiting for admission, the read is not run
+     */
+    public void execute( final int priority, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Read read )
+            throws IOException, InterruptedException
+    {
+        final Ticket ticket = acquire( priority, filePath, getFileOffset( filePath, xyzctMin, xyzctMax ) );
+        try {
+            read.run();
+        } finally {
+            release( ticket );
+        }
+    }
+
+    /**
+     * @return position of the first compressed block of the region of interest,
+     * 0 if the block offset table can not be read
+     */
+    public long getFileOffset( final String filePath, final long[] xyzctMin, final long[] xyzctMax )
+    {
+        try {
+            return indices.get( filePath ).getFirstBlockOffset( xyzctMin, xyzctMax );
+        } catch ( IOException ex ) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return fraction of admitted reads that did not continue in the same file, in ascending offset order,
+     * as the previous read
+     */
+    public synchronized double getSeekRatio()
+    {
+        return numReads == 0 ? 0 : ( double ) numSeeks / numReads;
+    }
+
+    public synchronized long getNumReads()
+    {
+        return numReads;
+    }
+
+    public synchronized int getNumWaiting()
+    {
+        return waiting.size();
+    }
+
+    private synchronized Ticket acquire( final int priority, final String filePath, final long fileOffset )
+            throws InterruptedException
+    {
+        final Ticket ticket = new Ticket( priority, filePath, fileOffset, sequence++ );
+        waiting.add( ticket );
+        try {
+            while ( running >= maxConcurrentReads || next() != ticket ) {
+                wait();
+            }
+        } catch ( InterruptedException ex ) {
+            waiting.remove( ticket );
+            notifyAll();
+            throw ex;
+        }
+        waiting.remove( ticket );
+        ++running;
+        ++numReads;
+        if ( head == null || !head.filePath.equals( ticket.filePath ) || head.fileOffset > ticket.fileOffset ) {
+            ++numSeeks;
+        }
+        head = ticket;
+        notifyAll();
+        return ticket;
+    }
+
+    private synchronized void release( final Ticket ticket )
+    {
+        --running;
+        notifyAll();
+    }
+
+    /**
+     * Elevator order within the most urgent waiting priority: the first read at or after the head, else the first
+     * read of that priority.
+     */
+    private Ticket next()
+    {
+        if ( waiting.isEmpty() ) {
+            return null;
+        }
+        final Ticket first = waiting.first();
+        if ( head == null ) {
+            return first;
+        }
+        final Ticket next = waiting.ceiling( new Ticket( first.priority, head.filePath, head.fileOffset, Long.MIN_VALUE ) );
+        return next == null || next.priority != first.priority ? first : next;
+    }
+
+    private static class Ticket
+    {
+        private final int priority;
+        private final String filePath;
+        private final long fileOffset;
+        private final long sequence;
+
+        private Ticket( final int priority, final String filePath, final long fileOffset, final long sequence )
+        {
+            this.priority = priority;
+            this.filePath = filePath;
+            this.fileOffset = fileOffset;
+            this.sequence = sequence;
+        }
+    }
+}
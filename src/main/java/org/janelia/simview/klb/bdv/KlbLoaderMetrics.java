@@ -0,0 +1,461 @@
+package org.janelia.simview.klb.bdv;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the metrics of a KlbImgLoader and its array loaders, and
+ * publishes them as an MXBean.
+ * <p>
+ * Array loaders report loads, cancellations, errors and bytes; cache
+ * figures are read from the caches of the image loader when asked for.
+ * Latencies go into histograms with power of two buckets of microseconds,
+ * so recording a load is a few atomic increments.
+ */
+public class KlbLoaderMetrics implements KlbLoaderMetricsMXBean
+{
+    private static final int NUM_BUCKETS = 25; // up to 2^23 us = 8.4 s, and above
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    // weak, the MBean server holds this bean until it is unregistered and must not keep the image loader alive
+    private final WeakReference< KlbImgLoader > imgLoaderRef;
+    private final Histogram latencies = new Histogram();
+    private final ConcurrentMap< Integer, Histogram > latenciesPerLevel = new ConcurrentHashMap< Integer, Histogram >();
+    private final ConcurrentMap< Integer, Histogram > latenciesPerSetup = new ConcurrentHashMap< Integer, Histogram >();
+    private final AtomicLong numCancelledLoads = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+    private volatile String lastError = "";
+    private ObjectName name;
+
+    /**
+     * @param imgLoader image loader whose caches to report, or null
+     */
+    public KlbLoaderMetrics( final KlbImgLoader imgLoader )
+    {
+        imgLoaderRef = imgLoader == null ? null : new WeakReference< KlbImgLoader >( imgLoader );
+    }
+
+    /**
+     * Registers this bean with the platform MBean server, named after the data set.
+     *
+     * @return whether registration succeeded
+     */
+    public synchronized boolean register( final KlbPartitionResolver resolver )
+    {
+        if ( name != null ) {
+            return true;
+        }
+        try {
+            final ObjectName n = new ObjectName( "org.janelia.simview.klb.bdv:type=KlbImgLoader,name="
+                    + ObjectName.quote( KlbWorkingSet.getDataSetId( resolver ).substring( 0, 8 ) + "-" + INSTANCES.getAndIncrement() ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, n );
+            name = n;
+            return true;
+        } catch ( Exception ex ) {
+            // monitoring is optional, e.g. restricted by a security manager
+            return false;
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if ( name == null ) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean( name );
+        } catch ( Exception ex ) {
+            // already gone
+        }
+        name = null;
+    }
+
+    /**
+     * @return the image loader, or null if there is none or it has been garbage collected, in which case
+     * this bean unregisters itself
+     */
+    private KlbImgLoader getImgLoader()
+    {
+        final KlbImgLoader imgLoader = imgLoaderRef == null ? null : imgLoaderRef.get();
+        if ( imgLoader == null && imgLoaderRef != null ) {
+            unregister();
+        }
+        return imgLoader;
+    }
+
+    /**
+     * @return name of this bean, or null if not registered
+     */
+    public synchronized ObjectName getObjectName()
+    {
+        return name;
+    }
+
+    /**
+     * Records a completed cell load.
+     */
+    public void recordLoad( final int setup, final int level, final long latencyNanos )
+    {
+        final int bucket = Histogram.bucket( latencyNanos );
+        latencies.add( bucket, latencyNanos );
+        getHistogram( latenciesPerLevel, level ).add( bucket, latencyNanos );
+        getHistogram( latenciesPerSetup, setup ).add( bucket, latencyNanos );
+    }
+
+    public void recordCancelledLoad()
+    {
+        numCancelledLoads.incrementAndGet();
+    }
+
+    /**
+     * Counts an I/O error that was handled by leaving data empty.
+     */
+    public void recordError( final String filePath, final Exception ex )
+    {
+        numErrors.incrementAndGet();
+        lastError = filePath + ": " + ex;
+    }
+
+    public void recordBytesRead( final long numBytes )
+    {
+        bytesRead.addAndGet( numBytes );
+    }
+
+    public void recordBytesDecoded( final long numBytes )
+    {
+        bytesDecoded.addAndGet( numBytes );
+    }
+
+    private static Histogram getHistogram( final ConcurrentMap< Integer, Histogram > histograms, final int key )
+    {
+        Histogram h = histograms.get( key );
+        if ( h == null ) {
+            final Histogram created = new Histogram();
+            h = histograms.putIfAbsent( key, created );
+            if ( h == null ) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    private static Map< Integer, long[] > toMap( final ConcurrentMap< Integer, Histogram > histograms )
+    {
+        final Map< Integer, long[] > map = new TreeMap< Integer, long[] >();
+        for ( final Map.Entry< Integer, Histogram > entry : histograms.entrySet() ) {
+            map.put( entry.getKey(), entry.getValue().getCounts() );
+        }
+        return map;
+    }
+
+    @Override
+    public long getNumLoads()
+    {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getNumCancelledLoads()
+    {
+        return numCancelledLoads.get();
+    }
+
+    @Override
+    public long getNumErrors()
+    {
+        return numErrors.get();
+    }
+
+    @Override
+    public String getLastError()
+    {
+        return lastError;
+    }
+
+    @Override
+    public double getMeanLoadLatencyMillis()
+    {
+        return latencies.getMeanMillis();
+    }
+
+    @Override
+    public double getLoadLatencyP50Millis()
+    {
+        return latencies.getPercentileMillis( 0.5 );
+    }
+
+    @Override
+    public double getLoadLatencyP99Millis()
+    {
+        return latencies.getPercentileMillis( 0.99 );
+    }
+
+    @Override
+    public long[] getLoadLatencyBucketsMicros()
+    {
+        final long[] bounds = new long[ NUM_BUCKETS ];
+        for ( int i = 0; i < NUM_BUCKETS - 1; ++i ) {
+            bounds[ i ] = 1L << i;
+        }
+        bounds[ NUM_BUCKETS - 1 ] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    @Override
+    public Map< Integer, long[] > getLoadLatencyHistogramPerLevel()
+    {
+        return toMap( latenciesPerLevel );
+    }
+
+    @Override
+    public Map< Integer, long[] > getLoadLatencyHistogramPerSetup()
+    {
+        return toMap( latenciesPerSetup );
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesDecoded()
+    {
+        return bytesDecoded.get();
+    }
+
+    @Override
+    public long getNumHeaderReads()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        return imgLoader == null ? 0 : imgLoader.getBlockIndexCache().getNumReads();
+    }
+
+    @Override
+    public long getRetentionHits()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCellRetention r = imgLoader == null ? null : imgLoader.getCellRetention();
+        return r == null ? 0 : r.getNumHits();
+    }
+
+    @Override
+    public long getRetentionMisses()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCellRetention r = imgLoader == null ? null : imgLoader.getCellRetention();
+        return r == null ? 0 : r.getNumMisses();
+    }
+
+    @Override
+    public long getRetentionSizeBytes()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCellRetention r = imgLoader == null ? null : imgLoader.getCellRetention();
+        return r == null ? 0 : r.getSizeBytes();
+    }
+
+    @Override
+    public long getDiskCacheHits()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbDiskCellCache c = imgLoader == null ? null : imgLoader.getDiskCache();
+        return c == null ? 0 : c.getNumHits();
+    }
+
+    @Override
+    public long getDiskCacheMisses()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbDiskCellCache c = imgLoader == null ? null : imgLoader.getDiskCache();
+        return c == null ? 0 : c.getNumMisses();
+    }
+
+    @Override
+    public long getDiskCacheSizeBytes()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbDiskCellCache c = imgLoader == null ? null : imgLoader.getDiskCache();
+        return c == null ? 0 : c.getSizeBytes();
+    }
+
+    @Override
+    public long getSharedCacheHits()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbSharedCellCache c = imgLoader == null ? null : imgLoader.getSharedCache();
+        return c == null ? 0 : c.getNumHits();
+    }
+
+    @Override
+    public long getSharedCacheMisses()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbSharedCellCache c = imgLoader == null ? null : imgLoader.getSharedCache();
+        return c == null ? 0 : c.getNumMisses();
+    }
+
+    @Override
+    public long getCompressedBlockCacheHits()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCompressedBlockCache c = imgLoader == null ? null : imgLoader.getCompressedBlockCache();
+        return c == null ? 0 : c.getNumHits();
+    }
+
+    @Override
+    public long getCompressedBlockCacheMisses()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCompressedBlockCache c = imgLoader == null ? null : imgLoader.getCompressedBlockCache();
+        return c == null ? 0 : c.getNumMisses();
+    }
+
+    @Override
+    public long getCompressedBlockCacheSizeBytes()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbCompressedBlockCache c = imgLoader == null ? null : imgLoader.getCompressedBlockCache();
+        return c == null ? 0 : c.getSizeBytes();
+    }
+
+    @Override
+    public long getOffHeapCellsUsedBytes()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbSlabArena a = imgLoader == null ? null : imgLoader.getSlabArena();
+        return a == null ? 0 : a.getUsedBytes();
+    }
+
+    @Override
+    public int getNumActiveLoads()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        return imgLoader == null ? 0 : imgLoader.getNumActiveLoads();
+    }
+
+    @Override
+    public int getNumWaitingReads()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbIoScheduler s = imgLoader == null ? null : imgLoader.getIoScheduler();
+        return s == null ? 0 : s.getNumWaiting();
+    }
+
+    @Override
+    public int getConcurrencyLimit()
+    {
+        final KlbImgLoader imgLoader = getImgLoader();
+        final KlbConcurrencyController c = imgLoader == null ? null : imgLoader.getConcurrencyController();
+        return c == null ? 0 : c.getLimit();
+    }
+
+    @Override
+    public void reset()
+    {
+        latencies.clear();
+        latenciesPerLevel.clear();
+        latenciesPerSetup.clear();
+        numCancelledLoads.set( 0 );
+        numErrors.set( 0 );
+        bytesRead.set( 0 );
+        bytesDecoded.set( 0 );
+        lastError = "";
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%d loads (%.1f ms mean, %.1f ms p99), %d cancelled, %d errors, %d MB read, %d MB decoded",
+                getNumLoads(), getMeanLoadLatencyMillis(), getLoadLatencyP99Millis(), getNumCancelledLoads(), getNumErrors(),
+                getBytesRead() >> 20, getBytesDecoded() >> 20 );
+    }
+
+    /**
+     * Latency histogram, bucket i counts latencies below 2^i microseconds and at least 2^(i-1).
+     */
+    private static class Histogram
+    {
+        private final AtomicLongArray counts = new AtomicLongArray( NUM_BUCKETS );
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        private static int bucket( final long latencyNanos )
+        {
+            final long micros = latencyNanos / 1000;
+            return Math.min( NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) );
+        }
+
+        private void add( final int bucket, final long latencyNanos )
+        {
+            counts.incrementAndGet( bucket );
+            count.incrementAndGet();
+            sumNanos.addAndGet( latencyNanos );
+        }
+
+        private long getCount()
+        {
+            return count.get();
+        }
+
+        private long[] getCounts()
+        {
+            final long[] c = new long[ NUM_BUCKETS ];
+            for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+                c[ i ] = counts.get( i );
+            }
+            return c;
+        }
+
+        private double getMeanMillis()
+        {
+            final long n = count.get();
+            return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+        }
+
+        /**
+         * @return upper bound of the bucket that holds the percentile
+         */
+        private double getPercentileMillis( final double p )
+        {
+            final long[] c = getCounts();
+            long total = 0;
+            for ( final long n : c ) {
+                total += n;
+            }
+            if ( total == 0 ) {
+                return 0;
+            }
+            long cumulative = 0;
+            for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+                cumulative += c[ i ];
+                if ( cumulative >= p * total ) {
+                    return (1L << i) / 1e3;
+                }
+            }
+            return (1L << (NUM_BUCKETS - 1)) / 1e3;
+        }
+
+        private void clear()
+        {
+            for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+                counts.set( i, 0 );
+            }
+            count.set( 0 );
+            sumNanos.set( 0 );
+        }
+    }
+}
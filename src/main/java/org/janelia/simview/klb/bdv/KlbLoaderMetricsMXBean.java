@@ -0,0 +1,113 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.Map;
+
+/**
+ * Runtime metrics of a KlbImgLoader, for JConsole and JMX based monitoring.
+ * Registered as org.janelia.simview.klb.bdv:type=KlbImgLoader,name=...
+ * <p>
+ * Counters are cumulative since the loader was created or {@link #reset()}.
+ * Cache figures are 0 for caches that are not enabled.
+ */
+public interface KlbLoaderMetricsMXBean
+{
+    /**
+     * @return cell loads, including cells taken from caches
+     */
+    long getNumLoads();
+
+    /**
+     * @return cell loads interrupted before they completed, e.g. requests BDV no longer needed
+     */
+    long getNumCancelledLoads();
+
+    /**
+     * @return I/O errors swallowed while loading, each left a cell or part of one empty
+     */
+    long getNumErrors();
+
+    String getLastError();
+
+    double getMeanLoadLatencyMillis();
+
+    /**
+     * @return median load latency, rounded up to the next power of two microseconds like the histograms
+     */
+    double getLoadLatencyP50Millis();
+
+    double getLoadLatencyP99Millis();
+
+    /**
+     * @return upper bounds of the latency histogram buckets in microseconds
+     */
+    long[] getLoadLatencyBucketsMicros();
+
+    /**
+     * @return load latency histogram per resolution level
+     */
+    Map< Integer, long[] > getLoadLatencyHistogramPerLevel();
+
+    /**
+     * @return load latency histogram per view setup
+     */
+    Map< Integer, long[] > getLoadLatencyHistogramPerSetup();
+
+    /**
+     * @return compressed bytes read from KLB files
+     */
+    long getBytesRead();
+
+    /**
+     * @return bytes of cells decoded from KLB files
+     */
+    long getBytesDecoded();
+
+    /**
+     * @return headers and block offset tables read from KLB files
+     */
+    long getNumHeaderReads();
+
+    long getRetentionHits();
+
+    long getRetentionMisses();
+
+    long getRetentionSizeBytes();
+
+    long getDiskCacheHits();
+
+    long getDiskCacheMisses();
+
+    long getDiskCacheSizeBytes();
+
+    long getSharedCacheHits();
+
+    long getSharedCacheMisses();
+
+    long getCompressedBlockCacheHits();
+
+    long getCompressedBlockCacheMisses();
+
+    long getCompressedBlockCacheSizeBytes();
+
+    long getOffHeapCellsUsedBytes();
+
+    /**
+     * @return interactive cell loads in progress
+     */
+    int getNumActiveLoads();
+
+    /**
+     * @return reads waiting for the I/O scheduler
+     */
+    int getNumWaitingReads();
+
+    /**
+     * @return current limit of concurrent loads, 0 if fetchers are not adaptive
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * Resets the counters and histograms of this bean; cache statistics are kept by the caches.
+     */
+    void reset();
+}
@@ -0,0 +1,386 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Container of many KLB files in one file, with a central index, to spare
+ * parallel file systems an open() and a metadata lookup per time point,
+ * view setup and level.
+ * <p>
+ * Layout (little endian): the magic "KLBPACK1", the member KLB files,
+ * unchanged and one after the other, the index, and a footer. The index
+ * is int32 number of members followed by, per member, uint16 length of
+ * the UTF-8 name, the name, int64 offset and int64 length. The footer is
+ * int64 offset of the index and the magic "KLBPACK1" again.
+ * <p>
+ * Members keep the file names they had (relative to the data set), and a
+ * member is addressed as container.klbpack!/name, e.g.
+ * /data/ds.klbpack!/TM000012/SPM00_CM00.klb. View setup templates of this
+ * form resolve time points and resolution levels as usual. Each container
+ * is opened once per JVM; all members are read with positional reads
+ * through its single channel.
+ */
+public class KlbPack
+{
+    public static final String EXTENSION = ".klbpack";
+    public static final String SEPARATOR = "!/";
+    static final byte[] MAGIC = "KLBPACK1".getBytes( Charset.forName( "US-ASCII" ) );
+    static final int FOOTER_SIZE = 8 + 8;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    // how often an open container is checked for being re-packed
+    private static final long CHECK_INTERVAL_MILLIS = 10000;
+    private static final Map< String, KlbPack > OPEN = new HashMap< String, KlbPack >();
+    // replaced by a re-packed container, closed when their last member source is
+    private static final List< KlbPack > RETIRED = new ArrayList< KlbPack >();
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map< String, long[] > members;
+    private final long lastModified;
+    private long checkedMillis;
+    // open member sources, guarded by OPEN
+    private int numUsers;
+    private boolean retired;
+
+    private KlbPack( final File file )
+            throws IOException
+    {
+        this.file = file;
+        lastModified = file.lastModified();
+        checkedMillis = System.currentTimeMillis();
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        try {
+            members = readIndex( channel );
+        } catch ( IOException ex ) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return whether path addresses a member of a container
+     */
+    public static boolean isMember( final String path )
+    {
+        return path.contains( EXTENSION + SEPARATOR );
+    }
+
+    /**
+     * @param container container file
+     * @param name      name of the member
+     * @return path of the member, for use as a file path or template
+     */
+    public static String getMemberPath( final File container, final String name )
+    {
+        return container.getPath() + SEPARATOR + name;
+    }
+
+    /**
+     * Returns the open container, opening it on first use. Containers stay open until {@link #closeAll()}.
+     * Whether a container was re-packed is checked at most every CHECK_INTERVAL_MILLIS, so that reading
+     * members costs no metadata lookups.
+     */
+    public static KlbPack open( final File file )
+            throws IOException
+    {
+        final String key = file.getPath();
+        synchronized ( OPEN ) {
+            KlbPack pack = OPEN.get( key );
+            final long now = System.currentTimeMillis();
+            if ( pack != null && now - pack.checkedMillis > CHECK_INTERVAL_MILLIS ) {
+                pack.checkedMillis = now;
+                if ( pack.lastModified != file.lastModified() ) {
+                    // the channel stays open for reads in progress
+                    pack.retire();
+                    pack = null;
+                }
+            }
+            if ( pack == null || !pack.channel.isOpen() ) {
+                pack = new KlbPack( file );
+                OPEN.put( key, pack );
+            }
+            return pack;
+        }
+    }
+
+    public static void closeAll()
+            throws IOException
+    {
+        synchronized ( OPEN ) {
+            for ( final KlbPack pack : OPEN.values() ) {
+                pack.channel.close();
+            }
+            for ( final KlbPack pack : RETIRED ) {
+                pack.channel.close();
+            }
+            OPEN.clear();
+            RETIRED.clear();
+        }
+    }
+
+    /**
+     * Opens a member for reading.
+     *
+     * @param path container.klbpack!/name
+     * @throws FileNotFoundException if the container or the member does not exist
+     */
+    static KlbByteSource openMember( final String path )
+            throws IOException
+    {
+        final int split = path.indexOf( EXTENSION + SEPARATOR ) + EXTENSION.length();
+        final String name = path.substring( split + SEPARATOR.length() );
+        synchronized ( OPEN ) {
+            final KlbPack pack = open( new File( path.substring( 0, split ) ) );
+            final long[] member = pack.members.get( name );
+            if ( member == null ) {
+                throw new FileNotFoundException( path );
+            }
+            ++pack.numUsers;
+            return new MemberSource( pack, name, member[ 0 ], member[ 1 ] );
+        }
+    }
+
+    /**
+     * Moves a member source from a container whose channel was closed to a newly opened one.
+     *
+     * @return the container to read from
+     * @throws IOException if the member is not at the same place in the reopened container
+     */
+    private static KlbPack reopen( final KlbPack closed, final String name, final long offset, final long length )
+            throws IOException
+    {
+        synchronized ( OPEN ) {
+            final KlbPack pack = open( closed.file );
+            final long[] member = pack.members.get( name );
+            if ( member == null || member[ 0 ] != offset || member[ 1 ] != length ) {
+                throw new IOException( "KLB container changed while reading: " + getMemberPath( closed.file, name ) );
+            }
+            ++pack.numUsers;
+            release( closed );
+            return pack;
+        }
+    }
+
+    /**
+     * Takes this container out of use, closing its channel now if no member is being read, else when the last
+     * member source is closed. Called with the lock of OPEN held.
+     */
+    private void retire()
+            throws IOException
+    {
+        retired = true;
+        if ( numUsers == 0 ) {
+            channel.close();
+        } else {
+            RETIRED.add( this );
+        }
+    }
+
+    private static void release( final KlbPack pack )
+            throws IOException
+    {
+        synchronized ( OPEN ) {
+            if ( --pack.numUsers == 0 && pack.retired ) {
+                RETIRED.remove( pack );
+                pack.channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return {size, modification time} of the member, those of the container count for all of its members,
+     * or null if it does not exist
+     */
+    static long[] stat( final String path )
+    {
+        final int split = path.indexOf( EXTENSION + SEPARATOR ) + EXTENSION.length();
+        try {
+            final KlbPack pack = open( new File( path.substring( 0, split ) ) );
+            final long[] member = pack.members.get( path.substring( split + SEPARATOR.length() ) );
+            return member == null ? null : new long[]{ member[ 1 ], pack.lastModified };
+        } catch ( IOException ex ) {
+            return null;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return member names in storage order
+     */
+    public List< String > getMemberNames()
+    {
+        return Collections.unmodifiableList( new ArrayList< String >( members.keySet() ) );
+    }
+
+    /**
+     * @return {offset, length} of the member in the container, or null
+     */
+    public long[] getMember( final String name )
+    {
+        final long[] member = members.get( name );
+        return member == null ? null : member.clone();
+    }
+
+    private static Map< String, long[] > readIndex( final FileChannel channel )
+            throws IOException
+    {
+        final long size = channel.size();
+        if ( size < MAGIC.length + FOOTER_SIZE ) {
+            throw new IOException( "Not a KLB container, or truncated" );
+        }
+        final ByteBuffer footer = readFully( channel, size - FOOTER_SIZE, FOOTER_SIZE );
+        final long indexOffset = footer.getLong();
+        final byte[] magic = new byte[ MAGIC.length ];
+        footer.get( magic );
+        if ( !Arrays.equals( magic, MAGIC ) || indexOffset < MAGIC.length || indexOffset > size - FOOTER_SIZE ) {
+            throw new IOException( "Not a KLB container, or truncated" );
+        }
+        final ByteBuffer index = readFully( channel, indexOffset, size - FOOTER_SIZE - indexOffset );
+        final int n = index.getInt();
+        final Map< String, long[] > members = new LinkedHashMap< String, long[] >( 2 * n );
+        for ( int i = 0; i < n; ++i ) {
+            final byte[] name = new byte[ index.getShort() & 0xffff ];
+            index.get( name );
+            members.put( new String( name, UTF8 ), new long[]{ index.getLong(), index.getLong() } );
+        }
+        return members;
+    }
+
+    private static ByteBuffer readFully( final FileChannel channel, final long position, final long numBytes )
+            throws IOException
+    {
+        if ( numBytes > Integer.MAX_VALUE ) {
+            throw new IOException( "Index too large" );
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( ( int ) numBytes ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buffer.hasRemaining() ) {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 ) {
+                throw new EOFException( "Truncated KLB container" );
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Serializes an index, see the class documentation.
+     *
+     * @param names   member names, in storage order
+     * @param offsets offsets of the members in the container
+     * @param lengths lengths of the members
+     * @param indexOffset position of the index in the container
+     * @return index and footer
+     */
+    static ByteBuffer writeIndex( final List< String > names, final long[] offsets, final long[] lengths, final long indexOffset )
+    {
+        final List< byte[] > encoded = new ArrayList< byte[] >();
+        int size = 4 + FOOTER_SIZE;
+        for ( final String name : names ) {
+            final byte[] bytes = name.getBytes( UTF8 );
+            if ( bytes.length > 0xffff ) {
+                throw new IllegalArgumentException( "Member name too long: " + name );
+            }
+            encoded.add( bytes );
+            size += 2 + bytes.length + 8 + 8;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+        buffer.putInt( names.size() );
+        for ( int i = 0; i < encoded.size(); ++i ) {
+            buffer.putShort( ( short ) encoded.get( i ).length );
+            buffer.put( encoded.get( i ) );
+            buffer.putLong( offsets[ i ] );
+            buffer.putLong( lengths[ i ] );
+        }
+        buffer.putLong( indexOffset );
+        buffer.put( MAGIC );
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A member, read through the shared channel of its container. Closing it leaves the channel open, unless the
+     * container has been re-packed and this was its last open member.
+     * <p>
+     * Interrupting a thread that reads from a FileChannel closes the channel, for all readers of the container.
+     * Reads of other threads that fail because of that reopen the container and continue.
+     */
+    private static class MemberSource extends KlbByteSource
+    {
+        private final String name;
+        private final long offset, length;
+        private volatile KlbPack pack;
+        private boolean closed;
+
+        private MemberSource( final KlbPack pack, final String name, final long offset, final long length )
+        {
+            this.pack = pack;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public synchronized void close()
+                throws IOException
+        {
+            if ( !closed ) {
+                closed = true;
+                release( pack );
+            }
+        }
+
+        @Override
+        public void read( final ByteBuffer dst, final long position )
+                throws IOException
+        {
+            if ( position + dst.remaining() > length ) {
+                throw new EOFException( "Truncated KLB file in container" );
+            }
+            final long start = offset + position - dst.position();
+            while ( dst.hasRemaining() ) {
+                final KlbPack current = pack;
+                try {
+                    if ( current.channel.read( dst, start + dst.position() ) < 0 ) {
+                        throw new EOFException( "Truncated KLB container" );
+                    }
+                } catch ( ClosedChannelException ex ) {
+                    if ( Thread.currentThread().isInterrupted() ) {
+                        throw ex;
+                    }
+                    reopen( current );
+                }
+            }
+        }
+
+        private synchronized void reopen( final KlbPack current )
+                throws IOException
+        {
+            if ( closed ) {
+                throw new ClosedChannelException();
+            }
+            if ( pack == current ) {
+                pack = KlbPack.reopen( current, name, offset, length );
+            }
+        }
+    }
+}
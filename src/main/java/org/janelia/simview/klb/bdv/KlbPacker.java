@@ -0,0 +1,302 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packs the KLB files of a data set into containers (see KlbPack), one per
+ * view setup or one for the data set, and writes a copy of the XML file
+ * whose templates address the members, e.g. dataset.packed.xml.
+ * <p>
+ * Files are checked (header readable, not truncated) and copied in
+ * parallel, each to its own range of the container. Containers are
+ * written under a temporary name and renamed when complete. The original
+ * files are left in place.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Pack KLB data set" )
+public class KlbPacker implements Command
+{
+    @Parameter
+    private File xmlFile;
+
+    @Parameter( label = "One container per view setup", required = false )
+    private boolean perSetup = true;
+
+    @Parameter( label = "Threads", required = false )
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter
+    private LogService log;
+
+    @Override
+    public void run()
+    {
+        process( xmlFile, perSetup, numThreads );
+    }
+
+    /**
+     * @param perSetup   one container per view setup, else one for the data set
+     * @param numThreads threads to check and copy files
+     * @return the XML file addressing the containers, or null on failure
+     */
+    public File process( final File xmlFile, final boolean perSetup, final int numThreads )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        SpimDataMinimal data = null;
+        try {
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return null;
+        }
+        final AbstractSequenceDescription< ?, ?, ? > seq = data.getSequenceDescription();
+        final KlbPartitionResolver resolver = (( KlbImgLoader ) seq.getImgLoader()).getResolver();
+        final File directory = xmlFile.getAbsoluteFile().getParentFile();
+        final String baseName = xmlFile.getName().replaceFirst( "\\.xml$", "" );
+
+        final ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        final List< File > containers = new ArrayList< File >();
+        try {
+            final List< BasicViewSetup > setups = new ArrayList< BasicViewSetup >( seq.getViewSetupsOrdered() );
+            for ( int i = 0; i < (perSetup ? setups.size() : 1); ++i ) {
+                final List< BasicViewSetup > group = perSetup ? setups.subList( i, i + 1 ) : setups;
+                final File container = new File( directory,
+                        baseName + (perSetup ? ".setup" + group.get( 0 ).getId() : "") + KlbPack.EXTENSION );
+                final List< String > paths = new ArrayList< String >();
+                for ( final BasicViewSetup setup : group ) {
+                    paths.addAll( getFilePaths( seq, resolver, setup.getId() ) );
+                }
+                pack( paths, directory, container, pool );
+                containers.add( container );
+            }
+        } catch ( IOException e ) {
+            log.error( e );
+            return null;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            final File packedXml = new File( directory, baseName + ".packed.xml" );
+            writePackedXml( xmlFile, packedXml, directory, containers, perSetup );
+            log.info( "Wrote " + packedXml );
+            return packedXml;
+        } catch ( IOException e ) {
+            log.error( e );
+            return null;
+        }
+    }
+
+    private static List< String > getFilePaths( final AbstractSequenceDescription< ?, ?, ? > seq, final KlbPartitionResolver resolver, final int setup )
+    {
+        final Set< String > paths = new LinkedHashSet< String >();
+        for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+            final int t = timePoint.getId();
+            if ( seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( t, setup ) ) ) {
+                continue;
+            }
+            for ( int level = 0; level < resolver.getNumResolutionLevels( setup ); ++level ) {
+                paths.add( resolver.getFilePath( t, setup, level ) );
+            }
+        }
+        return new ArrayList< String >( paths );
+    }
+
+    /**
+     * @return name of a file in its container, the path relative to the data set directory if it is below it
+     */
+    static String getMemberName( final String path, final File directory )
+    {
+        final String prefix = directory.getPath() + File.separator;
+        return path.startsWith( prefix ) ? path.substring( prefix.length() ) : path;
+    }
+
+    private void pack( final List< String > paths, final File directory, final File container, final ExecutorService pool )
+            throws IOException, InterruptedException
+    {
+        // check in parallel, skipping files that can not be read completely
+        final List< Callable< Long > > checks = new ArrayList< Callable< Long > >();
+        for ( final String path : paths ) {
+            checks.add( new Callable< Long >()
+            {
+                @Override
+                public Long call()
+                {
+                    final File file = new File( path );
+                    if ( !file.isFile() ) {
+                        log.warn( "Missing, not packed: " + path );
+                        return -1L;
+                    }
+                    try {
+                        final long size = KlbBlockIndex.read( path ).getFileSize();
+                        if ( file.length() < size ) {
+                            log.warn( String.format( "Truncated (%d of %d bytes), not packed: %s", file.length(), size, path ) );
+                            return -1L;
+                        }
+                        return size;
+                    } catch ( IOException ex ) {
+                        log.warn( "Unreadable, not packed: " + path + " (" + ex.getMessage() + ")" );
+                        return -1L;
+                    }
+                }
+            } );
+        }
+        final List< String > names = new ArrayList< String >();
+        final List< String > sources = new ArrayList< String >();
+        final List< Long > lengths = new ArrayList< Long >();
+        final List< Future< Long > > sizes = pool.invokeAll( checks );
+        for ( int i = 0; i < paths.size(); ++i ) {
+            final long size = get( sizes.get( i ) );
+            if ( size >= 0 ) {
+                names.add( getMemberName( paths.get( i ), directory ) );
+                sources.add( paths.get( i ) );
+                lengths.add( size );
+            }
+        }
+        final long[] offsets = new long[ names.size() ];
+        final long[] memberLengths = new long[ names.size() ];
+        long position = KlbPack.MAGIC.length;
+        for ( int i = 0; i < offsets.length; ++i ) {
+            offsets[ i ] = position;
+            memberLengths[ i ] = lengths.get( i );
+            position += memberLengths[ i ];
+        }
+
+        final File tmp = new File( container.getPath() + ".tmp" );
+        final FileChannel out = FileChannel.open( tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        try {
+            write( out, ByteBuffer.wrap( KlbPack.MAGIC ), 0 );
+            // index first, so that the file has its final size: transferFrom copies nothing past the end of a file
+            write( out, KlbPack.writeIndex( names, offsets, memberLengths, position ), position );
+            final List< Callable< Void > > copies = new ArrayList< Callable< Void > >();
+            for ( int i = 0; i < offsets.length; ++i ) {
+                final String source = sources.get( i );
+                final long offset = offsets[ i ];
+                final long length = memberLengths[ i ];
+                copies.add( new Callable< Void >()
+                {
+                    @Override
+                    public Void call() throws IOException
+                    {
+                        final FileChannel in = FileChannel.open( new File( source ).toPath(), StandardOpenOption.READ );
+                        try {
+                            long copied = 0;
+                            while ( copied < length ) {
+                                // positional on the container, so that files are copied concurrently
+                                final long n = out.transferFrom( in.position( copied ), offset + copied, length - copied );
+                                if ( n <= 0 ) {
+                                    throw new IOException( "Could not copy " + source );
+                                }
+                                copied += n;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                } );
+            }
+            final long start = System.nanoTime();
+            for ( final Future< Void > copy : pool.invokeAll( copies ) ) {
+                get( copy );
+            }
+            out.force( true );
+            log.info( String.format( "Packed %d files, %.1f MB, into %s in %.1f s",
+                    names.size(), position / 1e6, container, (System.nanoTime() - start) / 1e9 ) );
+        } finally {
+            out.close();
+        }
+        Files.move( tmp.toPath(), container.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private static < T > T get( final Future< T > future )
+            throws IOException, InterruptedException
+    {
+        try {
+            return future.get();
+        } catch ( ExecutionException ex ) {
+            if ( ex.getCause() instanceof IOException ) {
+                throw ( IOException ) ex.getCause();
+            }
+            throw new IOException( ex.getCause() );
+        }
+    }
+
+    private static void write( final FileChannel channel, final ByteBuffer buffer, final long position )
+            throws IOException
+    {
+        while ( buffer.hasRemaining() ) {
+            channel.write( buffer, position + buffer.position() );
+        }
+    }
+
+    /**
+     * Copies the XML file, replacing each view setup template by the address of the member it names.
+     * Templates are written in view setup order.
+     */
+    private static void writePackedXml( final File xmlFile, final File packedXml, final File directory, final List< File > containers,
+            final boolean perSetup )
+            throws IOException
+    {
+        final Charset utf8 = Charset.forName( "UTF-8" );
+        final String xml = new String( Files.readAllBytes( xmlFile.toPath() ), utf8 );
+        final Matcher m = Pattern.compile( "<template>([^<]*)</template>" ).matcher( xml );
+        final StringBuffer sb = new StringBuffer();
+        int setup = 0;
+        while ( m.find() ) {
+            final File container = containers.get( perSetup ? Math.min( setup++, containers.size() - 1 ) : 0 );
+            final String member = KlbPack.getMemberPath( container, getMemberName( m.group( 1 ).trim(), directory ) );
+            m.appendReplacement( sb, Matcher.quoteReplacement( "<template>" + member + "</template>" ) );
+        }
+        m.appendTail( sb );
+        Files.write( packedXml.toPath(), sb.toString().getBytes( utf8 ) );
+    }
+
+    public static void main( final String[] args )
+    {
+        if ( args.length < 1 ) {
+            System.out.println( "Usage: KlbPacker dataset.xml [perSetup (true|false)] [threads]" );
+            return;
+        }
+        final boolean perSetup = args.length < 2 || Boolean.parseBoolean( args[ 1 ] );
+        final int numThreads = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : Runtime.getRuntime().availableProcessors();
+        final File packedXml = new KlbPacker().process( new File( args[ 0 ] ), perSetup, numThreads );
+        System.exit( packedXml != null ? 0 : 1 );
+    }
+}
@@ -7,6 +7,9 @@ import mpicbg.spim.data.sequence.Tile;
 import net.imagej.ImgPlus;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
@@ -27,6 +30,10 @@ import java.util.regex.Pattern;
  * Retrieves basic image-related metadata (image dimensions, block
  * dimensions, pixel spacing).
  * <p>
+ * Templates may be HTTP(S) URLs of files on a web server that supports
+ * range requests, see KlbHttpByteSource, or members of KLB containers,
+ * see KlbPack.
+ * <p>
  * Uses a user-defined path name tag pattern.
  */
 public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
@@ -49,8 +56,11 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
      */
     public KlbViewSetupConfig addViewSetup( final String timeSeriesTemplateFile, final String timeTag )
     {
+        final Object event = KlbFlightRecorder.DISCOVERY.begin();
         final KlbViewSetupConfig setup = new KlbViewSetupConfig();
-        if ( setup.setTimeSeriesTemplateFile( timeSeriesTemplateFile, timeTag ) ) {
+        final boolean configured = setup.setTimeSeriesTemplateFile( timeSeriesTemplateFile, timeTag );
+        KlbFlightRecorder.DISCOVERY.commit( event, timeSeriesTemplateFile, timeTag, configured ? setup.getNumResolutionLevels() : 0 );
+        if ( configured ) {
             viewSetupConfigs.add( setup );
             return setup;
         }
@@ -66,8 +76,11 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
      */
     public KlbViewSetupConfig addViewSetup( final String singleFile )
     {
+        final Object event = KlbFlightRecorder.DISCOVERY.begin();
         final KlbViewSetupConfig setup = new KlbViewSetupConfig();
-        if ( setup.setSingleFile( singleFile ) ) {
+        final boolean configured = setup.setSingleFile( singleFile );
+        KlbFlightRecorder.DISCOVERY.commit( event, singleFile, null, configured ? setup.getNumResolutionLevels() : 0 );
+        if ( configured ) {
             viewSetupConfigs.add( setup );
             return setup;
         }
@@ -293,6 +306,19 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
         return viewSetupConfigs.get( viewSetup ).getFilePath( timePoint, level );
     }
 
+    /**
+     * @return whether any ViewSetup is read from HTTP(S) URLs or KLB containers, which requires the Java block reader
+     */
+    public boolean requiresJavaReader()
+    {
+        for ( final KlbViewSetupConfig setup : viewSetupConfigs ) {
+            if ( !KlbByteSource.isLocalFile( setup.getFilePathTemplate() ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public ImgPlus< T > getImage( final int timePoint, final int viewSetup, final int level )
             throws IOException
     {
@@ -375,7 +401,7 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
     public class KlbViewSetupConfig
     {
         private String filePathTemplate = "", indexTag = "";
-        private final List< KLB.Header > headers = new ArrayList< KLB.Header >();
+        private final List< KlbBlockIndex > headers = new ArrayList< KlbBlockIndex >();
         private final double[] pixelSpacing = { 1, 1, 1 };
 
         private int angleId = -1, tileId = -1, channelId = -1, illuminationId = -1;
@@ -405,9 +431,9 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
                 return false;
             }
 
-            KLB.Header header = null;
+            KlbBlockIndex header = null;
             try {
-                header = klb.readHeader( filePath );
+                header = readHeader( filePath, 0 );
             } catch ( IOException ex ) {
                 return false;
             }
@@ -417,12 +443,12 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
 
             filePathTemplate = filePath;
             this.indexTag = timeTag;
-            setPixelSpacing( header.pixelSpacing );
+            setPixelSpacing( header.getPixelSpacing() );
 
             int level = 0;
             while ( true ) {
                 try {
-                    headers.add( klb.readHeader( getFilePath( t, ++level ) ) );
+                    headers.add( readHeader( getFilePath( t, ++level ), level ) );
                 } catch ( IOException ex ) {
                     break;
                 }
@@ -439,9 +465,9 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
          */
         public boolean setSingleFile( final String filePath )
         {
-            KLB.Header header = null;
+            KlbBlockIndex header = null;
             try {
-                header = klb.readHeader( filePath );
+                header = readHeader( filePath, 0 );
             } catch ( IOException ex ) {
                 return false;
             }
@@ -452,13 +478,13 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             filePathTemplate = filePath;
             indexTag = tagMatch = tagFormat = null;
             timePoints = null;
-            setPixelSpacing( header.pixelSpacing );
+            setPixelSpacing( header.getPixelSpacing() );
 
             final int t = 0;
             int level = 0;
             while ( true ) {
                 try {
-                    headers.add( klb.readHeader( getFilePath( t, ++level ) ) );
+                    headers.add( readHeader( getFilePath( t, ++level ), level ) );
                 } catch ( IOException ex ) {
                     break;
                 }
@@ -466,6 +492,23 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             return true;
         }
 
+        /**
+         * Reads the header of a file or URL, recording a Flight Recorder event if the recording has them enabled.
+         */
+        private KlbBlockIndex readHeader( final String filePath, final int level )
+                throws IOException
+        {
+            final Object event = KlbFlightRecorder.HEADER_READ.begin();
+            boolean found = false;
+            try {
+                final KlbBlockIndex header = KlbBlockIndex.read( filePath );
+                found = true;
+                return header;
+            } finally {
+                KlbFlightRecorder.HEADER_READ.commit( event, filePath, level, found );
+            }
+        }
+
         private int getTagMatchFormatAndIndex( final String template, final String tag )
         {
             final String[] matchAndFormat = getTagMatchAndFormat( template, tag );
@@ -543,7 +586,9 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             }
             String fn = template.replaceAll( tagMatch, String.format( tagFormat, timePoint ) );
             if ( level > 0 ) {
-                fn = fn.replace( ".klb", String.format( ".RESLVL%d.klb", level ) ); // ToDo: replace last only
+                // the last one, container paths end in .klbpack!/name.klb
+                final int extension = fn.lastIndexOf( ".klb" );
+                fn = fn.substring( 0, extension ) + String.format( ".RESLVL%d", level ) + fn.substring( extension );
             }
             return fn;
         }
@@ -622,21 +667,33 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             return illuminations.get( getIlluminationId() );
         }
 
+        /**
+         * @return an instance of the voxel type, null for KLB data types other than uint8, uint16 and float32
+         */
         public T getDataType()
         {
-            return ( T ) headers.get( 0 ).dataType;
+            switch ( headers.get( 0 ).getDataType() ) {
+            case 0:
+                return ( T ) new UnsignedByteType();
+            case 1:
+                return ( T ) new UnsignedShortType();
+            case 8:
+                return ( T ) new FloatType();
+            default:
+                return null;
+            }
         }
 
         public void getImageSize( final int level, final long[] out )
         {
-            System.arraycopy( headers.get( level ).imageSize, 0, out, 0, out.length );
+            System.arraycopy( headers.get( level ).getImageSize(), 0, out, 0, out.length );
         }
 
         public boolean getImageSize( final int timePoint, final int level, final long[] out )
         {
             try {
-                final KLB.Header header = klb.readHeader( getFilePath( timePoint, level ) );
-                System.arraycopy( header.imageSize, 0, out, 0, out.length );
+                final KlbBlockIndex header = readHeader( getFilePath( timePoint, level ), level );
+                System.arraycopy( header.getImageSize(), 0, out, 0, out.length );
                 return true;
             } catch ( IOException ex ) {
                 return false;
@@ -649,7 +706,7 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
                 System.arraycopy( pixelSpacing, 0, out, 0, out.length );
             } else {
                 // ToDo: This assumes that the true values are stored in the KLB header of all resolution levels >0
-                final float[] pixelSpacing = headers.get( level ).pixelSpacing;
+                final float[] pixelSpacing = headers.get( level ).getPixelSpacing();
                 for ( int i = 0; i < out.length; ++i ) {
                     out[ i ] = ( double ) pixelSpacing[ i ];
                 }
@@ -659,8 +716,8 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
         public boolean getPixelSpacing( final int timePoint, final int level, final double[] out )
         {
             try {
-                final KLB.Header header = klb.readHeader( getFilePath( timePoint, level ) );
-                final float[] pixelSpacing = header.pixelSpacing;
+                final KlbBlockIndex header = readHeader( getFilePath( timePoint, level ), level );
+                final float[] pixelSpacing = header.getPixelSpacing();
                 for ( int i = 0; i < out.length; ++i ) {
                     out[ i ] = ( double ) pixelSpacing[ i ];
                 }
@@ -672,7 +729,7 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
 
         public void getBlockSize( final int level, final int[] out )
         {
-            final long[] blockSize = headers.get( level ).blockSize;
+            final long[] blockSize = headers.get( level ).getBlockSize();
             for ( int i = 0; i < out.length; ++i ) {
                 out[ i ] = ( int ) blockSize[ i ]; // Math.toIntExact( blockSize[i] ); requires Java 1.7
             }
@@ -681,8 +738,8 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
         public boolean getBlockSize( final int timePoint, final int level, final int[] out )
         {
             try {
-                final KLB.Header header = klb.readHeader( getFilePath( timePoint, level ) );
-                final long[] blockSize = header.blockSize;
+                final KlbBlockIndex header = readHeader( getFilePath( timePoint, level ), level );
+                final long[] blockSize = header.getBlockSize();
                 for ( int i = 0; i < out.length; ++i ) {
                     out[ i ] = ( int ) blockSize[ i ]; // Math.toIntExact( blockSize[i] ); requires Java 1.7
                 }
@@ -695,7 +752,11 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
         public ImgPlus< T > getImage( final int timePoint, final int level )
                 throws IOException
         {
-            return klb.readFull( getFilePath( timePoint, level ) );
+            final String filePath = getFilePath( timePoint, level );
+            if ( !KlbByteSource.isLocalFile( filePath ) ) {
+                throw new IOException( "Whole images can only be read from local files, read cells instead: " + filePath );
+            }
+            return klb.readFull( filePath );
         }
     }
 }
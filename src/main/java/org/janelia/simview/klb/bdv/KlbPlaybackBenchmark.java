@@ -0,0 +1,446 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.cache.CacheControl;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures user-visible latency of the loader without a display: opens a
+ * data set through XmlIoKlbImageLoader and drives BDV's cell cache through
+ * scripted navigation, like the viewer's renderer would.
+ * <p>
+ * Usage: KlbPlaybackBenchmark dataset.xml [step ...]
+ * <p>
+ * Steps, run in order (default: open zoom:2 rotate:30 play:10@10):
+ * <ul>
+ * <li>open: show the first time point, fitted to the screen</li>
+ * <li>zoom:factor: zoom around the screen center</li>
+ * <li>rotate:degrees: rotate around the vertical axis of the screen</li>
+ * <li>play:n[@fps]: show the next n time points at fps (default 10) time points per second</li>
+ * <li>fused: show all view setups instead of the first one</li>
+ * </ul>
+ * <p>
+ * Each frame samples the screen plane on a grid and, for each sample,
+ * accesses the volatile images from the best mipmap level for the current
+ * zoom down to the coarsest, until a valid voxel is found. As in the
+ * viewer, every invalid access queues a cell for the fetcher threads, and
+ * the queue is cleared at the start of each frame. A frame is complete
+ * ("coarse") once every sample has a valid voxel at some level, and sharp
+ * once every sample is valid at the best level. Reported per step: time to
+ * the first complete frame, time to the first sharp frame and bytes
+ * decoded; during playback, time points that were not complete (dropped)
+ * or not sharp by the time the next one was due.
+ */
+public class KlbPlaybackBenchmark
+{
+    private static final int SCREEN_WIDTH = 800;
+    private static final int SCREEN_HEIGHT = 600;
+    private static final int SAMPLE_STEP = 8;
+    private static final long FRAME_MILLIS = 16;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private final KlbImgLoader loader;
+    private final SpimDataMinimal data;
+    private final CacheControl cacheControl;
+    private final List< Integer > timePoints = new ArrayList< Integer >();
+    private final AffineTransform3D viewerTransform = new AffineTransform3D();
+    private final List< Integer > setups = new ArrayList< Integer >();
+    private int timePointIndex = 0;
+
+    public KlbPlaybackBenchmark( final SpimDataMinimal data )
+    {
+        this.data = data;
+        loader = ( KlbImgLoader ) data.getSequenceDescription().getImgLoader();
+        cacheControl = loader.getCacheControl();
+        for ( final TimePoint tp : data.getSequenceDescription().getTimePoints().getTimePointsOrdered() ) {
+            timePoints.add( tp.getId() );
+        }
+        setups.add( data.getSequenceDescription().getViewSetupsOrdered().get( 0 ).getId() );
+    }
+
+    /**
+     * Fits the first view setup at the first time point to the screen, centered on its middle z slice.
+     */
+    public void open()
+    {
+        timePointIndex = 0;
+        final int setup = setups.get( 0 );
+        final long[] size = new long[ 3 ];
+        loader.getResolver().getImageSize( setup, 0, size );
+        final AffineTransform3D model = data.getViewRegistrations().getViewRegistration( getTimePoint(), setup ).getModel();
+        final double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        final double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        final double[] corner = new double[ 3 ];
+        final double[] global = new double[ 3 ];
+        for ( int i = 0; i < 8; ++i ) {
+            for ( int d = 0; d < 3; ++d ) {
+                corner[ d ] = (i >> d & 1) == 0 ? 0 : size[ d ] - 1;
+            }
+            model.apply( corner, global );
+            for ( int d = 0; d < 3; ++d ) {
+                min[ d ] = Math.min( min[ d ], global[ d ] );
+                max[ d ] = Math.max( max[ d ], global[ d ] );
+            }
+        }
+        final double scale = Math.min( SCREEN_WIDTH / (max[ 0 ] - min[ 0 ] + 1), SCREEN_HEIGHT / (max[ 1 ] - min[ 1 ] + 1) );
+        viewerTransform.set( 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 );
+        viewerTransform.translate( -(min[ 0 ] + max[ 0 ]) / 2, -(min[ 1 ] + max[ 1 ]) / 2, -(min[ 2 ] + max[ 2 ]) / 2 );
+        viewerTransform.scale( scale );
+        viewerTransform.translate( SCREEN_WIDTH / 2.0, SCREEN_HEIGHT / 2.0, 0 );
+    }
+
+    public void zoom( final double factor )
+    {
+        viewerTransform.translate( -SCREEN_WIDTH / 2.0, -SCREEN_HEIGHT / 2.0, 0 );
+        viewerTransform.scale( factor );
+        viewerTransform.translate( SCREEN_WIDTH / 2.0, SCREEN_HEIGHT / 2.0, 0 );
+    }
+
+    public void rotate( final double degrees )
+    {
+        viewerTransform.translate( -SCREEN_WIDTH / 2.0, -SCREEN_HEIGHT / 2.0, 0 );
+        viewerTransform.rotate( 1, Math.toRadians( degrees ) );
+        viewerTransform.translate( SCREEN_WIDTH / 2.0, SCREEN_HEIGHT / 2.0, 0 );
+    }
+
+    /**
+     * Shows all view setups, or only the first.
+     */
+    public void setFused( final boolean fused )
+    {
+        final int first = setups.get( 0 );
+        setups.clear();
+        if ( fused ) {
+            for ( int i = 0; i < data.getSequenceDescription().getViewSetupsOrdered().size(); ++i ) {
+                setups.add( data.getSequenceDescription().getViewSetupsOrdered().get( i ).getId() );
+            }
+        } else {
+            setups.add( first );
+        }
+    }
+
+    /**
+     * Renders frames until the current view is sharp or the timeout expires.
+     *
+     * @param start time the view changed, System.nanoTime()
+     */
+    public Latency waitForSharp( final long start )
+            throws InterruptedException
+    {
+        return renderUntil( start, start + TIMEOUT_MILLIS * 1000000L, false );
+    }
+
+    /**
+     * Shows the next n time points, each for 1 / fps seconds.
+     */
+    public Playback play( final int n, final double fps )
+            throws InterruptedException
+    {
+        final Playback playback = new Playback();
+        final long periodNanos = ( long ) (1e9 / fps);
+        long start = System.nanoTime();
+        for ( int i = 0; i < n; ++i ) {
+            timePointIndex = (timePointIndex + 1) % timePoints.size();
+            final Latency latency = renderUntil( start, start + periodNanos, true );
+            playback.add( latency );
+            start += periodNanos;
+        }
+        return playback;
+    }
+
+    public int getTimePoint()
+    {
+        return timePoints.get( timePointIndex );
+    }
+
+    /**
+     * @return bytes decoded so far, -1 if metrics are disabled
+     */
+    public long getBytesDecoded()
+    {
+        final KlbLoaderMetrics metrics = loader.getMetrics();
+        return metrics == null ? -1 : metrics.getBytesDecoded();
+    }
+
+    /**
+     * Renders frames until the view is sharp or the deadline passes.
+     *
+     * @param hold whether to keep the frame on screen until the deadline once it is sharp
+     */
+    private Latency renderUntil( final long start, final long deadline, final boolean hold )
+            throws InterruptedException
+    {
+        final Latency latency = new Latency();
+        final List< View > views = new ArrayList< View >();
+        for ( final int setup : setups ) {
+            views.add( new View( setup ) );
+        }
+        while ( true ) {
+            cacheControl.prepareNextFrame();
+            boolean complete = true, sharp = true;
+            for ( final View view : views ) {
+                final int state = view.render();
+                complete &= state >= View.COMPLETE;
+                sharp &= state == View.SHARP;
+            }
+            final long now = System.nanoTime();
+            if ( complete && latency.completeNanos < 0 ) {
+                latency.completeNanos = now - start;
+            }
+            if ( sharp ) {
+                latency.sharpNanos = now - start;
+            }
+            if ( sharp || now >= deadline ) {
+                break;
+            }
+            Thread.sleep( Math.max( 1, Math.min( FRAME_MILLIS, (deadline - now) / 1000000 ) ) );
+        }
+        if ( hold ) {
+            final long remaining = deadline - System.nanoTime();
+            if ( remaining > 0 ) {
+                Thread.sleep( remaining / 1000000, ( int ) (remaining % 1000000) );
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * One view setup at the current time point on screen.
+     */
+    private class View
+    {
+        private static final int INCOMPLETE = 0;
+        private static final int COMPLETE = 1;
+        private static final int SHARP = 2;
+
+        private final int bestLevel;
+        private final List< RandomAccess< ? extends Volatile< ? > > > accesses = new ArrayList< RandomAccess< ? extends Volatile< ? > > >();
+        private final List< long[] > maxPositions = new ArrayList< long[] >();
+        private final List< AffineTransform3D > screenToSource = new ArrayList< AffineTransform3D >();
+
+        @SuppressWarnings( "unchecked" )
+        private View( final int setup )
+        {
+            final int timePoint = getTimePoint();
+            final KlbImgLoader.KlbSetupImgLoader setupLoader = loader.getSetupImgLoader( setup );
+            final AffineTransform3D model = data.getViewRegistrations().getViewRegistration( timePoint, setup ).getModel();
+            final AffineTransform3D[] mipmapTransforms = setupLoader.getMipmapTransforms();
+            int best = 0;
+            for ( int level = 0; level < mipmapTransforms.length; ++level ) {
+                final AffineTransform3D sourceToScreen = viewerTransform.copy();
+                sourceToScreen.concatenate( model );
+                sourceToScreen.concatenate( mipmapTransforms[ level ] );
+                // coarsest level whose voxels are no larger than a screen pixel
+                if ( getVoxelScreenSize( sourceToScreen ) <= 1.01 ) {
+                    best = level;
+                }
+                final RandomAccessibleInterval< ? extends Volatile< ? > > img =
+                        ( RandomAccessibleInterval< ? extends Volatile< ? > > ) setupLoader.getVolatileImage( timePoint, level );
+                accesses.add( img.randomAccess() );
+                maxPositions.add( new long[]{ img.max( 0 ), img.max( 1 ), img.max( 2 ) } );
+                screenToSource.add( sourceToScreen.inverse() );
+            }
+            bestLevel = best;
+        }
+
+        /**
+         * @return INCOMPLETE, COMPLETE or SHARP
+         */
+        private int render()
+        {
+            final double[] screen = new double[ 3 ];
+            final double[] source = new double[ 3 ];
+            final long[] position = new long[ 3 ];
+            boolean complete = true, sharp = true;
+            for ( int y = SAMPLE_STEP / 2; y < SCREEN_HEIGHT; y += SAMPLE_STEP ) {
+                for ( int x = SAMPLE_STEP / 2; x < SCREEN_WIDTH; x += SAMPLE_STEP ) {
+                    screen[ 0 ] = x;
+                    screen[ 1 ] = y;
+                    boolean inside = false, valid = false;
+                    for ( int level = bestLevel; level < accesses.size() && !valid; ++level ) {
+                        screenToSource.get( level ).apply( screen, source );
+                        final long[] max = maxPositions.get( level );
+                        inside = true;
+                        for ( int d = 0; d < 3; ++d ) {
+                            position[ d ] = Math.round( source[ d ] );
+                            inside &= position[ d ] >= 0 && position[ d ] <= max[ d ];
+                        }
+                        if ( !inside ) {
+                            break;
+                        }
+                        final RandomAccess< ? extends Volatile< ? > > access = accesses.get( level );
+                        access.setPosition( position );
+                        valid = access.get().isValid();
+                        if ( !valid && level == bestLevel ) {
+                            sharp = false;
+                        }
+                    }
+                    if ( inside && !valid ) {
+                        complete = false;
+                    }
+                }
+            }
+            return sharp && complete ? SHARP : complete ? COMPLETE : INCOMPLETE;
+        }
+    }
+
+    /**
+     * @return length of the longest voxel edge on screen, in pixels
+     */
+    private static double getVoxelScreenSize( final AffineTransform3D sourceToScreen )
+    {
+        double size = 0;
+        for ( int c = 0; c < 3; ++c ) {
+            double sq = 0;
+            for ( int r = 0; r < 3; ++r ) {
+                sq += sourceToScreen.get( r, c ) * sourceToScreen.get( r, c );
+            }
+            size = Math.max( size, Math.sqrt( sq ) );
+        }
+        return size;
+    }
+
+    /**
+     * Time from a view change to the first complete and the first sharp frame, -1 if not reached.
+     */
+    public static class Latency
+    {
+        private long completeNanos = -1;
+        private long sharpNanos = -1;
+
+        public double getCompleteMillis()
+        {
+            return completeNanos < 0 ? -1 : completeNanos / 1e6;
+        }
+
+        public double getSharpMillis()
+        {
+            return sharpNanos < 0 ? -1 : sharpNanos / 1e6;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "first frame %s, sharp %s", format( completeNanos ), format( sharpNanos ) );
+        }
+    }
+
+    public static class Playback
+    {
+        private int numFrames = 0, numDropped = 0, numBlurred = 0, numComplete = 0, numSharp = 0;
+        private long completeNanos = 0, sharpNanos = 0;
+
+        private void add( final Latency latency )
+        {
+            ++numFrames;
+            if ( latency.completeNanos < 0 ) {
+                ++numDropped;
+            } else {
+                ++numComplete;
+                completeNanos += latency.completeNanos;
+            }
+            if ( latency.sharpNanos < 0 ) {
+                ++numBlurred;
+            } else {
+                ++numSharp;
+                sharpNanos += latency.sharpNanos;
+            }
+        }
+
+        public int getNumFrames()
+        {
+            return numFrames;
+        }
+
+        /**
+         * @return time points not completely shown before the next one was due
+         */
+        public int getNumDropped()
+        {
+            return numDropped;
+        }
+
+        /**
+         * @return time points not sharp before the next one was due
+         */
+        public int getNumBlurred()
+        {
+            return numBlurred;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%d time points, %d dropped, %d not sharp, mean first frame %s, mean sharp %s",
+                    numFrames, numDropped, numBlurred,
+                    format( numComplete == 0 ? -1 : completeNanos / numComplete ),
+                    format( numSharp == 0 ? -1 : sharpNanos / numSharp ) );
+        }
+    }
+
+    private static String format( final long nanos )
+    {
+        return nanos < 0 ? "not reached" : String.format( "%.1f ms", nanos / 1e6 );
+    }
+
+    public static void main( final String[] args ) throws Exception
+    {
+        if ( args.length < 1 ) {
+            System.out.println( "Usage: KlbPlaybackBenchmark dataset.xml [open|zoom:factor|rotate:degrees|play:n[@fps]|fused ...]" );
+            return;
+        }
+        System.setProperty( "java.awt.headless", "true" );
+        // bytes decoded come from the loader metrics, off by default; set before the XML creates the loader
+        if ( System.getProperty( "klb.bdv.metrics" ) == null ) {
+            System.setProperty( "klb.bdv.metrics", "true" );
+        }
+        final String[] steps = args.length > 1 ? Arrays.copyOfRange( args, 1, args.length ) : new String[]{ "open", "zoom:2", "rotate:30", "play:10@10" };
+
+        final long openStart = System.nanoTime();
+        final SpimDataMinimal data = new XmlIoSpimDataMinimal().load( args[ 0 ] );
+        final SequenceDescriptionMinimal seq = data.getSequenceDescription();
+        System.out.println( String.format( "loaded %s in %.1f ms: %d view setups, %d time points",
+                args[ 0 ], (System.nanoTime() - openStart) / 1e6, seq.getViewSetupsOrdered().size(), seq.getTimePoints().getTimePointsOrdered().size() ) );
+        final KlbPlaybackBenchmark benchmark = new KlbPlaybackBenchmark( data );
+
+        for ( int i = 0; i < steps.length; ++i ) {
+            final String step = steps[ i ];
+            final String[] parts = step.toLowerCase().split( ":" );
+            final long bytes = benchmark.getBytesDecoded();
+            final long start = System.nanoTime();
+            final String result;
+            if ( parts[ 0 ].equals( "open" ) ) {
+                benchmark.open();
+                result = benchmark.waitForSharp( i == 0 ? openStart : start ).toString();
+            } else if ( parts[ 0 ].equals( "zoom" ) ) {
+                benchmark.zoom( Double.parseDouble( parts[ 1 ] ) );
+                result = benchmark.waitForSharp( start ).toString();
+            } else if ( parts[ 0 ].equals( "rotate" ) ) {
+                benchmark.rotate( Double.parseDouble( parts[ 1 ] ) );
+                result = benchmark.waitForSharp( start ).toString();
+            } else if ( parts[ 0 ].equals( "play" ) ) {
+                final String[] nAndFps = parts[ 1 ].split( "@" );
+                result = benchmark.play( Integer.parseInt( nAndFps[ 0 ] ), nAndFps.length > 1 ? Double.parseDouble( nAndFps[ 1 ] ) : 10 ).toString();
+            } else if ( parts[ 0 ].equals( "fused" ) ) {
+                benchmark.setFused( true );
+                continue;
+            } else {
+                System.out.println( "unknown step " + step );
+                continue;
+            }
+            final long decoded = benchmark.getBytesDecoded() - bytes;
+            System.out.println( String.format( "%-12s %s, %s decoded", step, result, bytes < 0 ? "n/a" : String.format( "%.1f MB", decoded / 1e6 ) ) );
+        }
+        System.exit( 0 );
+    }
+}
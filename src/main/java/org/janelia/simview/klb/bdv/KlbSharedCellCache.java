@@ -0,0 +1,390 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of decoded cells in a memory-mapped file that all JVMs on a host
+ * can attach to, e.g. in /dev/shm. Several Fiji instances viewing the same
+ * data set then decode and hold each cell once.
+ * <p>
+ * The file holds a header, an open addressing index and a data region used
+ * as a ring buffer, so the oldest cells are overwritten first. Writers are
+ * serialized by a file lock. Readers take no lock: they copy a cell, then
+ * check the index slot's sequence number (a seqlock), that the ring has
+ * not wrapped over the cell and the cell's CRC32. A cell that changed
+ * while being read is treated as a miss.
+ * <p>
+ * The file is reference counted by attached caches and deleted when the
+ * last one is closed. A JVM that dies while attached leaves the file
+ * behind. The next cache to attach reuses it, and /dev/shm is cleared on
+ * reboot.
+ */
+public class KlbSharedCellCache
+{
+    private static final int MAGIC = 0x4b4c4253; // "KLBS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int SLOT_SIZE = 64;
+    private static final int MAX_PROBES = 8;
+    private static final long DATA_CHUNK_SIZE = 1L << 30;
+    // expected average cell size, to size the index
+    private static final long BYTES_PER_SLOT = 32 * 1024;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    // header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int NUM_SLOTS_OFFSET = 8;
+    private static final int ATTACH_COUNT_OFFSET = 12;
+    private static final int DATA_SIZE_OFFSET = 16;
+    private static final int CURSOR_OFFSET = 24;
+
+    // slot fields
+    private static final int SEQUENCE = 0;
+    private static final int KEY_HI = 8;
+    private static final int KEY_LO = 16;
+    private static final int POSITION = 24;
+    private static final int LENGTH = 32;
+    private static final int CRC = 36;
+
+    // the file lock excludes other processes, this excludes other caches of this JVM on the same file
+    private static final Map< String, Object > JVM_LOCKS = new HashMap< String, Object >();
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Object jvmLock;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] data;
+    private final int numSlots;
+    private final long dataSize;
+    private boolean closed = false;
+    private long numHits = 0, numMisses = 0, numPuts = 0;
+
+    /**
+     * Attaches to the cache in file, creating it if needed.
+     *
+     * @param file     cache file, preferably on a memory file system
+     * @param dataSize size of the data region in bytes, if the file is created
+     * @throws IOException if the file can not be created or mapped
+     */
+    public KlbSharedCellCache( final File file, final long dataSize )
+            throws IOException
+    {
+        this.file = file;
+        final String canonicalPath = file.getCanonicalPath();
+        synchronized ( JVM_LOCKS ) {
+            Object lock = JVM_LOCKS.get( canonicalPath );
+            if ( lock == null ) {
+                lock = new Object();
+                JVM_LOCKS.put( canonicalPath, lock );
+            }
+            jvmLock = lock;
+        }
+        raf = new RandomAccessFile( file, "rw" );
+        channel = raf.getChannel();
+        synchronized ( jvmLock ) {
+            final FileLock lock = channel.lock();
+            try {
+                final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+                if ( channel.size() >= HEADER_SIZE ) {
+                    channel.read( header, 0 );
+                }
+                if ( header.getInt( MAGIC_OFFSET ) != MAGIC || header.getInt( VERSION_OFFSET ) != VERSION ) {
+                    // new, or left behind by another version
+                    final int n = ( int ) Math.max( 1024, Math.min( Integer.MAX_VALUE / SLOT_SIZE - 1, dataSize / BYTES_PER_SLOT ) );
+                    header.clear();
+                    header.putInt( MAGIC_OFFSET, MAGIC );
+                    header.putInt( VERSION_OFFSET, VERSION );
+                    header.putInt( NUM_SLOTS_OFFSET, n );
+                    header.putInt( ATTACH_COUNT_OFFSET, 0 );
+                    header.putLong( DATA_SIZE_OFFSET, dataSize );
+                    header.putLong( CURSOR_OFFSET, 0 );
+                    channel.truncate( 0 );
+                    raf.setLength( getDataStart( n ) + dataSize );
+                    header.position( 0 );
+                    channel.write( header, 0 );
+                }
+                numSlots = header.getInt( NUM_SLOTS_OFFSET );
+                this.dataSize = header.getLong( DATA_SIZE_OFFSET );
+                index = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ( long ) numSlots * SLOT_SIZE );
+                index.order( ByteOrder.LITTLE_ENDIAN );
+                final long dataStart = getDataStart( numSlots );
+                data = new MappedByteBuffer[ ( int ) ((this.dataSize + DATA_CHUNK_SIZE - 1) / DATA_CHUNK_SIZE) ];
+                for ( int i = 0; i < data.length; ++i ) {
+                    final long size = Math.min( DATA_CHUNK_SIZE, this.dataSize - i * DATA_CHUNK_SIZE );
+                    data[ i ] = channel.map( FileChannel.MapMode.READ_WRITE, dataStart + i * DATA_CHUNK_SIZE, size );
+                }
+                index.putInt( ATTACH_COUNT_OFFSET, index.getInt( ATTACH_COUNT_OFFSET ) + 1 );
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static long getDataStart( final int numSlots )
+    {
+        final long indexEnd = HEADER_SIZE + ( long ) numSlots * SLOT_SIZE;
+        return (indexEnd + 4095) / 4096 * 4096;
+    }
+
+    /**
+     * @param directory directory of the cache file, e.g. /dev/shm
+     * @param resolver  data set
+     * @return the cache file of the data set
+     */
+    public static File getFile( final File directory, final KlbPartitionResolver resolver )
+    {
+        return new File( directory, "klb-bdv-" + KlbWorkingSet.getDataSetId( resolver ) + ".cells" );
+    }
+
+    /**
+     * @return /dev/shm if it exists, else the temporary directory
+     */
+    public static File getDefaultDirectory()
+    {
+        final File shm = new File( "/dev/shm" );
+        return shm.isDirectory() && shm.canWrite() ? shm : new File( System.getProperty( "java.io.tmpdir" ) );
+    }
+
+    /**
+     * @return little endian voxel data of the cell, positioned at 0, or null if it is not cached
+     */
+    public ByteBuffer get( final String filePath, final long[] offset, final int[] dimensions, final int bytesPerElement )
+    {
+        final long[] key = getKey( filePath, offset, dimensions, bytesPerElement );
+        final int expectedLength = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * bytesPerElement;
+        final int home = getHomeSlot( key );
+        for ( int probe = 0; probe < MAX_PROBES; ++probe ) {
+            final int slot = HEADER_SIZE + ((home + probe) % numSlots) * SLOT_SIZE;
+            final long sequence = index.getLong( slot + SEQUENCE );
+            if ( (sequence & 1) != 0 || index.getLong( slot + KEY_HI ) != key[ 0 ] || index.getLong( slot + KEY_LO ) != key[ 1 ] ) {
+                continue;
+            }
+            final long position = index.getLong( slot + POSITION );
+            final int length = index.getInt( slot + LENGTH );
+            final int crc = index.getInt( slot + CRC );
+            if ( length != expectedLength ) {
+                break;
+            }
+            final byte[] bytes = new byte[ length ];
+            final ByteBuffer chunk = getData( position );
+            chunk.get( bytes );
+
+            // valid if the slot did not change and the ring did not wrap over the cell while copying
+            if ( index.getLong( slot + SEQUENCE ) != sequence || index.getLong( CURSOR_OFFSET ) > position + dataSize ) {
+                break;
+            }
+            final CRC32 checksum = new CRC32();
+            checksum.update( bytes );
+            if ( ( int ) checksum.getValue() != crc ) {
+                break;
+            }
+            synchronized ( this ) {
+                ++numHits;
+            }
+            return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+        synchronized ( this ) {
+            ++numMisses;
+        }
+        return null;
+    }
+
+    /**
+     * Publishes a cell, overwriting the oldest cells of the ring as needed.
+     *
+     * @param bytes little endian voxel data, from position 0 to its limit
+     */
+    public void put( final String filePath, final long[] offset, final int[] dimensions, final ByteBuffer bytes )
+    {
+        final int length = bytes.limit();
+        if ( length > Math.min( dataSize, DATA_CHUNK_SIZE ) ) {
+            return;
+        }
+        final int bytesPerElement = length / (dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ]);
+        final long[] key = getKey( filePath, offset, dimensions, bytesPerElement );
+        final ByteBuffer source = bytes.duplicate();
+        source.position( 0 );
+        final CRC32 checksum = new CRC32();
+        final byte[] array = new byte[ length ];
+        source.get( array );
+        checksum.update( array );
+
+        synchronized ( jvmLock ) {
+            if ( closed ) {
+                return;
+            }
+            FileLock lock = null;
+            try {
+                lock = channel.lock();
+                final int slot = findSlotForWrite( key );
+
+                // reserve space, cells never straddle a chunk or the end of the ring
+                long position = index.getLong( CURSOR_OFFSET );
+                while ( true ) {
+                    final long ringOffset = position % dataSize;
+                    final long end = Math.min( (ringOffset / DATA_CHUNK_SIZE + 1) * DATA_CHUNK_SIZE, dataSize );
+                    if ( ringOffset + length <= end ) {
+                        break;
+                    }
+                    position += end - ringOffset;
+                }
+                // publish the cursor first, so that readers of overwritten cells notice
+                index.putLong( CURSOR_OFFSET, position + length );
+
+                final long sequence = index.getLong( slot + SEQUENCE );
+                index.putLong( slot + SEQUENCE, sequence | 1 );
+                getData( position ).put( array );
+                index.putLong( slot + KEY_HI, key[ 0 ] );
+                index.putLong( slot + KEY_LO, key[ 1 ] );
+                index.putLong( slot + POSITION, position );
+                index.putInt( slot + LENGTH, length );
+                index.putInt( slot + CRC, ( int ) checksum.getValue() );
+                index.putLong( slot + SEQUENCE, (sequence | 1) + 1 );
+                synchronized ( this ) {
+                    ++numPuts;
+                }
+            } catch ( IOException ex ) {
+                // not cached
+            } finally {
+                if ( lock != null ) {
+                    try {
+                        lock.release();
+                    } catch ( IOException ex ) {
+                        // channel closed
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return slot of the same key, else an empty or overwritten slot, else the oldest slot within the probe range
+     */
+    private int findSlotForWrite( final long[] key )
+    {
+        final long cursor = index.getLong( CURSOR_OFFSET );
+        final int home = getHomeSlot( key );
+        int oldest = -1;
+        long oldestPosition = Long.MAX_VALUE;
+        for ( int probe = 0; probe < MAX_PROBES; ++probe ) {
+            final int slot = HEADER_SIZE + ((home + probe) % numSlots) * SLOT_SIZE;
+            final long hi = index.getLong( slot + KEY_HI );
+            final long lo = index.getLong( slot + KEY_LO );
+            final long position = index.getLong( slot + POSITION );
+            if ( hi == key[ 0 ] && lo == key[ 1 ] ) {
+                return slot;
+            }
+            if ( (hi == 0 && lo == 0) || cursor > position + dataSize ) {
+                return slot;
+            }
+            if ( position < oldestPosition ) {
+                oldestPosition = position;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private int getHomeSlot( final long[] key )
+    {
+        return ( int ) ((key[ 0 ] & Long.MAX_VALUE) % numSlots);
+    }
+
+    private ByteBuffer getData( final long position )
+    {
+        final long ringOffset = position % dataSize;
+        final ByteBuffer chunk = data[ ( int ) (ringOffset / DATA_CHUNK_SIZE) ].duplicate();
+        chunk.position( ( int ) (ringOffset % DATA_CHUNK_SIZE) );
+        return chunk;
+    }
+
+    private static long[] getKey( final String filePath, final long[] offset, final int[] dimensions, final int bytesPerElement )
+    {
+        final String key = String.format( "%s|%d,%d,%d|%d,%d,%d|%d", filePath,
+                offset[ 0 ], offset[ 1 ], offset[ 2 ], dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ], bytesPerElement );
+        try {
+            final ByteBuffer digest = ByteBuffer.wrap( MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( UTF8 ) ) );
+            final long hi = digest.getLong();
+            final long lo = digest.getLong();
+            // 0, 0 marks an empty slot
+            return new long[]{ hi, hi == 0 && lo == 0 ? 1 : lo };
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * Detaches from the cache, and deletes the file if no other cache is attached.
+     */
+    public void close()
+            throws IOException
+    {
+        synchronized ( jvmLock ) {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            final FileLock lock = channel.lock();
+            try {
+                final int attachCount = index.getInt( ATTACH_COUNT_OFFSET ) - 1;
+                index.putInt( ATTACH_COUNT_OFFSET, attachCount );
+                if ( attachCount <= 0 ) {
+                    // invalidate for processes that opened the file but did not attach yet
+                    index.putInt( MAGIC_OFFSET, 0 );
+                    file.delete();
+                }
+            } finally {
+                lock.release();
+                raf.close();
+            }
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getDataSize()
+    {
+        return dataSize;
+    }
+
+    /**
+     * @return number of caches attached to the file, in all JVMs
+     */
+    public int getAttachCount()
+    {
+        return index.getInt( ATTACH_COUNT_OFFSET );
+    }
+
+    public synchronized long getNumHits()
+    {
+        return numHits;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return numMisses;
+    }
+
+    public synchronized long getNumPuts()
+    {
+        return numPuts;
+    }
+}
@@ -0,0 +1,323 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Allocates off-heap slabs for decoded cells.
+ * <p>
+ * Slabs are cut from large chunks, either direct buffers or memory-mapped
+ * files in a scratch directory, and never returned to the system. A slab
+ * is handed out together with its owner (the access object of a cell);
+ * once the owner has been garbage collected, e.g. because the cell cache
+ * dropped the cell, the slab is recycled for a cell of the same or
+ * slightly smaller size.
+ * <p>
+ * The arena does not grow beyond its capacity. Once it is full, a new
+ * cell takes the slab of the oldest live cell whose slab fits, and that
+ * cell moves to the heap (see {@link Owner}). BDV's cell cache holds
+ * cells through soft references, which the garbage collector does not
+ * clear while the cells are off-heap and the heap is not under pressure;
+ * on the heap, old cells are dropped as before, and the arena keeps the
+ * cells loaded most recently. If no slab fits, {@link #allocate(int)}
+ * returns null and the caller keeps the cell on the heap instead.
+ */
+public class KlbSlabArena
+{
+    private static final int CHUNK_SIZE = 256 * 1024 * 1024;
+    private static final int ALIGNMENT = 4096;
+    // oldest live slabs looked at for one that fits when the arena is full
+    private static final int MAX_EVICTION_CANDIDATES = 64;
+
+    private final long capacity;
+    private final File directory;
+    private final List< ByteBuffer > chunks = new ArrayList< ByteBuffer >();
+    // free slabs by size
+    private final TreeMap< Integer, ArrayDeque< Slab > > freeSlabs = new TreeMap< Integer, ArrayDeque< Slab > >();
+    private final ReferenceQueue< Object > released = new ReferenceQueue< Object >();
+    // in allocation order, oldest first
+    private final LinkedHashSet< SlabReference > live = new LinkedHashSet< SlabReference >();
+    private ByteBuffer currentChunk;
+    private int currentChunkIndex = -1;
+    private long allocatedBytes = 0, usedBytes = 0;
+    private long numRecycled = 0, numExhausted = 0, numMovedToHeap = 0;
+
+    /**
+     * @param capacity  maximum off-heap bytes
+     * @param directory scratch directory for memory-mapped chunks, or null for direct buffers
+     */
+    public KlbSlabArena( final long capacity, final File directory )
+    {
+        this.capacity = capacity;
+        this.directory = directory;
+    }
+
+    /**
+     * User of a slab, e.g. the access object of a cell.
+     */
+    public interface Owner
+    {
+        /**
+         * Copies the data out of the slab onto the heap and stops using the slab, which is given to another cell.
+         * Called with the lock of the arena held.
+         */
+        void moveToHeap();
+    }
+
+    /**
+     * A slab of the arena. Hand the owner of {@link #getBuffer()} to {@link #setOwner(Owner)}.
+     */
+    public class Slab
+    {
+        private final int chunk;
+        private final int offset;
+        private final int size;
+        private ByteBuffer buffer;
+
+        private Slab( final int chunk, final int offset, final int size )
+        {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return little endian view of the slab, positioned at 0, limited to the requested size
+         */
+        public ByteBuffer getBuffer()
+        {
+            return buffer;
+        }
+
+        /**
+         * Registers the object that keeps the slab in use. The slab is recycled once owner is unreachable,
+         * or handed to another cell after owner moved to the heap.
+         */
+        public void setOwner( final Owner owner )
+        {
+            synchronized ( KlbSlabArena.this ) {
+                live.add( new SlabReference( owner, this ) );
+            }
+        }
+    }
+
+    private class SlabReference extends WeakReference< Owner >
+    {
+        private final Slab slab;
+
+        private SlabReference( final Owner owner, final Slab slab )
+        {
+            super( owner, released );
+            this.slab = slab;
+        }
+    }
+
+    /**
+     * @param numBytes size of the slab
+     * @return slab, or null if the arena is full and no slab fits
+     */
+    public synchronized Slab allocate( final int numBytes )
+    {
+        recycle();
+        final int size = (numBytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        if ( size > CHUNK_SIZE ) {
+            return null;
+        }
+
+        // reuse a free slab that wastes less than half of its size
+        Slab slab = null;
+        final Map.Entry< Integer, ArrayDeque< Slab > > free = freeSlabs.ceilingEntry( size );
+        if ( free != null && free.getKey() < 2 * size ) {
+            slab = free.getValue().poll();
+            if ( free.getValue().isEmpty() ) {
+                freeSlabs.remove( free.getKey() );
+            }
+        }
+
+        if ( slab == null ) {
+            if ( currentChunk == null || currentChunk.remaining() < size ) {
+                final int chunkSize = ( int ) Math.min( CHUNK_SIZE, capacity - allocatedBytes );
+                boolean added = false;
+                if ( chunkSize >= size ) {
+                    try {
+                        addChunk( chunkSize );
+                        added = true;
+                    } catch ( IOException ex ) {
+                        // full as far as this arena is concerned
+                    }
+                }
+                if ( !added ) {
+                    slab = takeFreeOrEvict( size );
+                    if ( slab == null ) {
+                        ++numExhausted;
+                        return null;
+                    }
+                }
+            }
+            if ( slab == null ) {
+                slab = new Slab( currentChunkIndex, currentChunk.position(), size );
+                currentChunk.position( currentChunk.position() + size );
+            }
+        } else {
+            ++numRecycled;
+        }
+
+        final ByteBuffer view = chunks.get( slab.chunk ).duplicate();
+        view.limit( slab.offset + numBytes );
+        view.position( slab.offset );
+        slab.buffer = view.slice().order( ByteOrder.LITTLE_ENDIAN );
+        usedBytes += slab.size;
+        return slab;
+    }
+
+    /**
+     * Returns any free slab that fits, else moves the oldest live cell whose slab fits to the heap and
+     * returns its slab.
+     *
+     * @return slab of at least size bytes, or null
+     */
+    private Slab takeFreeOrEvict( final int size )
+    {
+        final Map.Entry< Integer, ArrayDeque< Slab > > free = freeSlabs.ceilingEntry( size );
+        if ( free != null ) {
+            final Slab slab = free.getValue().poll();
+            if ( free.getValue().isEmpty() ) {
+                freeSlabs.remove( free.getKey() );
+            }
+            ++numRecycled;
+            return slab;
+        }
+        final Iterator< SlabReference > it = live.iterator();
+        for ( int i = 0; i < MAX_EVICTION_CANDIDATES && it.hasNext(); ++i ) {
+            final SlabReference reference = it.next();
+            final Slab slab = reference.slab;
+            if ( slab.size < size ) {
+                continue;
+            }
+            final Owner owner = reference.get();
+            if ( owner == null ) {
+                // collected, on the reference queue, recycled next time
+                continue;
+            }
+            owner.moveToHeap();
+            it.remove();
+            reference.clear();
+            slab.buffer = null;
+            usedBytes -= slab.size;
+            ++numMovedToHeap;
+            return slab;
+        }
+        return null;
+    }
+
+    private void addChunk( final int chunkSize )
+            throws IOException
+    {
+        final ByteBuffer chunk;
+        if ( directory == null ) {
+            chunk = ByteBuffer.allocateDirect( chunkSize );
+        } else {
+            if ( !directory.isDirectory() && !directory.mkdirs() ) {
+                throw new IOException( "Could not create " + directory );
+            }
+            final File file = File.createTempFile( "klb-cells-", ".slab", directory );
+            final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try {
+                raf.setLength( chunkSize );
+                chunk = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, chunkSize );
+            } finally {
+                raf.close();
+                // the mapping outlives the file name
+                file.delete();
+            }
+        }
+        chunks.add( chunk );
+        currentChunk = chunk.duplicate();
+        currentChunkIndex = chunks.size() - 1;
+        allocatedBytes += chunkSize;
+    }
+
+    /**
+     * Returns slabs of collected owners to the free lists.
+     */
+    private void recycle()
+    {
+        Reference< ? > reference;
+        while ( (reference = released.poll()) != null ) {
+            final SlabReference slabReference = ( SlabReference ) reference;
+            if ( !live.remove( slabReference ) ) {
+                // its slab went to another cell
+                continue;
+            }
+            final Slab slab = slabReference.slab;
+            slab.buffer = null;
+            usedBytes -= slab.size;
+            ArrayDeque< Slab > free = freeSlabs.get( slab.size );
+            if ( free == null ) {
+                free = new ArrayDeque< Slab >();
+                freeSlabs.put( slab.size, free );
+            }
+            free.add( slab );
+        }
+    }
+
+    public long getCapacityBytes()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return off-heap bytes reserved so far
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return bytes of slabs held by live cells
+     */
+    public synchronized long getUsedBytes()
+    {
+        recycle();
+        return usedBytes;
+    }
+
+    /**
+     * @return number of allocations served by recycled slabs
+     */
+    public synchronized long getNumRecycled()
+    {
+        return numRecycled;
+    }
+
+    /**
+     * @return number of cells moved to the heap to make room for newer ones
+     */
+    public synchronized long getNumMovedToHeap()
+    {
+        return numMovedToHeap;
+    }
+
+    /**
+     * @return number of allocations that failed because the arena was full
+     */
+    public synchronized long getNumExhausted()
+    {
+        return numExhausted;
+    }
+}
@@ -0,0 +1,350 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import org.janelia.simview.klb.KLB;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the KLB files of a data set with new block shapes and,
+ * optionally, another codec, for faster browsing at the cost of disk
+ * space. BDV's cells are the blocks of the files (see
+ * KlbImgLoader.prepareCachedImage), so the block shape chosen here is the
+ * cell shape when browsing.
+ * <p>
+ * Files are rewritten in parallel into an output directory, keeping their
+ * paths relative to the XML file. Files in flight are bounded by a memory
+ * budget. Each output file is verified against its input, slab by slab,
+ * before it counts as done. A copy of the XML file whose templates point
+ * to the output directory is written there.
+ * <p>
+ * zlib decodes several times faster than bzip2 at a somewhat larger size;
+ * uncompressed files need no decoding at all. "auto" block shapes hold
+ * about {@link #TARGET_CELL_BYTES} decoded bytes, with fewer planes along
+ * z the coarser the z sampling.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Transcode KLB data set" )
+public class KlbTranscoder implements Command
+{
+    public static final long TARGET_CELL_BYTES = 512 * 1024;
+
+    @Parameter
+    private File xmlFile;
+
+    @Parameter( style = "directory" )
+    private File outputDirectory;
+
+    @Parameter( label = "Block size (x,y,z or auto)", required = false )
+    private String blockSize = "auto";
+
+    @Parameter( label = "Compression", choices = { "keep", "zlib", "none", "bzip2" }, required = false )
+    private String compression = "zlib";
+
+    @Parameter( label = "Threads", required = false )
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter( label = "Memory budget (MB, 0 for half the heap)", required = false )
+    private int memoryMB = 0;
+
+    @Parameter
+    private LogService log;
+
+    private final ThreadLocal< KLB > klbs = new ThreadLocal< KLB >()
+    {
+        @Override
+        protected KLB initialValue()
+        {
+            return KLB.newInstance();
+        }
+    };
+
+    @Override
+    public void run()
+    {
+        process( xmlFile, outputDirectory, blockSize, compression, numThreads, memoryMB );
+    }
+
+    /**
+     * @param blockSize   "x,y,z", or "auto" for {@link #getAutoBlockSize(long[], float[], int)}
+     * @param compression "keep", "none", "bzip2" or "zlib"
+     * @param memoryMB    bound of the memory of files in flight, 0 for half the maximum heap
+     * @return the XML file of the transcoded data set, or null on failure
+     */
+    public File process( final File xmlFile, final File outputDirectory, final String blockSize, final String compression,
+            final int numThreads, final int memoryMB )
+    {
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        SpimDataMinimal data = null;
+        try {
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+        } catch ( SpimDataException e ) {
+            log.error( e );
+            return null;
+        }
+        final AbstractSequenceDescription< ?, ?, ? > seq = data.getSequenceDescription();
+        final KlbPartitionResolver resolver = (( KlbImgLoader ) seq.getImgLoader()).getResolver();
+        final File directory = xmlFile.getAbsoluteFile().getParentFile();
+        final long[] fixedBlockSize = blockSize == null || blockSize.trim().equalsIgnoreCase( "auto" ) ? null : parseBlockSize( blockSize );
+        final KLB.CompressionType codec = parseCompression( compression );
+        final long budget = memoryMB > 0 ? memoryMB * 1024L * 1024 : Runtime.getRuntime().maxMemory() / 2;
+        // permits in KB, so that budgets above 2 GB fit an int
+        final int memoryPermits = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, budget / 1024 ) );
+        final Semaphore memory = new Semaphore( memoryPermits );
+
+        final Set< String > paths = new LinkedHashSet< String >();
+        for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() ) {
+            for ( final TimePoint timePoint : seq.getTimePoints().getTimePointsOrdered() ) {
+                if ( seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( timePoint.getId(), setup.getId() ) ) ) {
+                    continue;
+                }
+                for ( int level = 0; level < resolver.getNumResolutionLevels( setup.getId() ); ++level ) {
+                    paths.add( resolver.getFilePath( timePoint.getId(), setup.getId(), level ) );
+                }
+            }
+        }
+
+        final AtomicLong bytesIn = new AtomicLong(), bytesOut = new AtomicLong();
+        final List< Callable< Boolean > > tasks = new ArrayList< Callable< Boolean > >();
+        for ( final String path : paths ) {
+            tasks.add( new Callable< Boolean >()
+            {
+                @Override
+                public Boolean call()
+                {
+                    final File out = getOutputFile( path, directory, outputDirectory );
+                    if ( KlbByteSource.isLocalFile( path ) && !new File( path ).isFile() ) {
+                        log.warn( "Missing, not transcoded: " + path );
+                        return true;
+                    }
+                    try {
+                        if ( out.getCanonicalFile().equals( new File( path ).getCanonicalFile() ) ) {
+                            throw new IOException( "Output would overwrite input" );
+                        }
+                        final long[] sizes = transcode( path, out, fixedBlockSize, codec, memory, memoryPermits );
+                        bytesIn.addAndGet( sizes[ 0 ] );
+                        bytesOut.addAndGet( sizes[ 1 ] );
+                        return true;
+                    } catch ( InterruptedException ex ) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } catch ( Exception ex ) {
+                        log.error( path + ": " + ex.getMessage() );
+                        return false;
+                    }
+                }
+            } );
+        }
+
+        log.info( String.format( "Transcoding %d files on %d threads, memory budget %d MB", tasks.size(), numThreads, budget / 1024 / 1024 ) );
+        final ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        final long start = System.nanoTime();
+        int numFailed = 0;
+        try {
+            for ( final Future< Boolean > result : pool.invokeAll( tasks ) ) {
+                numFailed += result.get() ? 0 : 1;
+            }
+        } catch ( Exception e ) {
+            log.error( e );
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+        log.info( String.format( "Transcoded %d files in %.1f s, %.1f MB to %.1f MB, %d failed",
+                tasks.size() - numFailed, (System.nanoTime() - start) / 1e9, bytesIn.get() / 1e6, bytesOut.get() / 1e6, numFailed ) );
+        if ( numFailed > 0 ) {
+            return null;
+        }
+        try {
+            final File outXml = new File( outputDirectory, xmlFile.getName() );
+            writeXml( xmlFile, outXml, directory, outputDirectory );
+            log.info( "Wrote " + outXml );
+            return outXml;
+        } catch ( IOException e ) {
+            log.error( e );
+            return null;
+        }
+    }
+
+    /**
+     * Rewrites and verifies one file.
+     *
+     * @return {input size, output size} in bytes
+     */
+    private long[] transcode( final String path, final File out, final long[] fixedBlockSize, final KLB.CompressionType codec, final Semaphore memory,
+            final int memoryPermits )
+            throws IOException, InterruptedException
+    {
+        final KlbBlockIndex in = KlbBlockIndex.read( path );
+        final long[] imageSize = in.getImageSize();
+        final int bytesPerElement = KlbBlockReader.getBytesPerElement( in.getDataType() );
+        long decodedBytes = bytesPerElement;
+        for ( final long s : imageSize ) {
+            decodedBytes *= s;
+        }
+        if ( !KlbByteSource.isLocalFile( path ) ) {
+            throw new IOException( "Only local files can be transcoded" );
+        }
+        final long[] blockSize = fixedBlockSize != null ? fixedBlockSize : getAutoBlockSize( imageSize, in.getPixelSpacing(), bytesPerElement );
+        final long[] klbBlockSize = { Math.min( blockSize[ 0 ], imageSize[ 0 ] ), Math.min( blockSize[ 1 ], imageSize[ 1 ] ),
+                Math.min( blockSize[ 2 ], imageSize[ 2 ] ), 1, 1 };
+        // the image read and the copy the native writer encodes from, then a slab of each file during verification
+        final long slabBytes = imageSize[ 0 ] * imageSize[ 1 ] * klbBlockSize[ 2 ] * bytesPerElement;
+        final long peakBytes = 2 * decodedBytes + 2 * slabBytes;
+        // a file larger than the budget waits for all of it, and is then transcoded alone
+        final int acquired = ( int ) Math.max( 1, Math.min( peakBytes / 1024 + 1, memoryPermits ) );
+        memory.acquire( acquired );
+        try {
+            final KLB.CompressionType outCodec = codec != null ? codec : KLB.CompressionType.values()[ in.getCompressionType() ];
+            final File parent = out.getAbsoluteFile().getParentFile();
+            if ( !parent.isDirectory() && !parent.mkdirs() ) {
+                throw new IOException( "Could not create " + parent );
+            }
+            final KLB klb = klbs.get();
+            klb.writeFull( klb.readFull( path ), out.getPath(), in.getPixelSpacing(), klbBlockSize, outCodec, in.getMetadata() );
+            try {
+                verify( path, out.getPath() );
+            } catch ( IOException ex ) {
+                out.delete();
+                throw ex;
+            }
+        } finally {
+            memory.release( acquired );
+        }
+        return new long[]{ in.getFileSize(), out.length() };
+    }
+
+    /**
+     * Compares the voxels of output and input, one slab of output blocks at a time.
+     */
+    private static void verify( final String inPath, final String outPath )
+            throws IOException
+    {
+        final KlbBlockReader reader = new KlbBlockReader( new KlbBlockIndexCache( 2 ), null );
+        final KlbBlockIndex in = KlbBlockIndex.read( inPath );
+        final KlbBlockIndex out = KlbBlockIndex.read( outPath );
+        final long[] size = in.getImageSize();
+        if ( !Arrays.equals( size, out.getImageSize() ) || in.getDataType() != out.getDataType() ) {
+            throw new IOException( "Verification failed, image size or data type differ: " + outPath );
+        }
+        final long slab = out.getBlockSize()[ 2 ];
+        for ( long c = 0; c < size[ 3 ]; ++c ) {
+            for ( long t = 0; t < size[ 4 ]; ++t ) {
+                for ( long z = 0; z < size[ 2 ]; z += slab ) {
+                    final long[] min = { 0, 0, z, c, t };
+                    final long[] max = { size[ 0 ] - 1, size[ 1 ] - 1, Math.min( z + slab, size[ 2 ] ) - 1, c, t };
+                    if ( !reader.readROI( inPath, min, max ).equals( reader.readROI( outPath, min, max ) ) ) {
+                        throw new IOException( "Verification failed, voxels differ in planes " + min[ 2 ] + "-" + max[ 2 ] + ": " + outPath );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Block shape of about {@link #TARGET_CELL_BYTES}: square in x and y, with as many planes along z as fit
+     * an isotropic block in physical units, powers of two, at most the image size.
+     *
+     * @param pixelSpacing xyz sampling, z is usually coarser
+     */
+    public static long[] getAutoBlockSize( final long[] imageSize, final float[] pixelSpacing, final int bytesPerElement )
+    {
+        final double anisotropy = pixelSpacing[ 0 ] > 0 && pixelSpacing[ 2 ] > 0 ? Math.max( 1, pixelSpacing[ 2 ] / pixelSpacing[ 0 ] ) : 1;
+        final double voxels = ( double ) TARGET_CELL_BYTES / bytesPerElement;
+        // x * x * x / anisotropy = voxels
+        long xy = 1L << Math.max( 0, Math.round( Math.log( Math.cbrt( voxels * anisotropy ) ) / Math.log( 2 ) ) );
+        xy = Math.min( xy, Math.max( imageSize[ 0 ], imageSize[ 1 ] ) );
+        long z = Long.highestOneBit( Math.max( 1, ( long ) (voxels / (xy * xy)) ) );
+        z = Math.min( z, imageSize[ 2 ] );
+        return new long[]{ Math.min( xy, imageSize[ 0 ] ), Math.min( xy, imageSize[ 1 ] ), z };
+    }
+
+    private static long[] parseBlockSize( final String s )
+    {
+        final String[] parts = s.trim().split( "\\s*[,x]\\s*" );
+        if ( parts.length != 3 ) {
+            throw new IllegalArgumentException( "Block size must be x,y,z or auto: " + s );
+        }
+        return new long[]{ Long.parseLong( parts[ 0 ] ), Long.parseLong( parts[ 1 ] ), Long.parseLong( parts[ 2 ] ) };
+    }
+
+    /**
+     * @return the codec, or null to keep that of each input file
+     */
+    private static KLB.CompressionType parseCompression( final String s )
+    {
+        if ( s == null || s.equalsIgnoreCase( "keep" ) ) {
+            return null;
+        }
+        return KLB.CompressionType.valueOf( s.trim().toUpperCase() );
+    }
+
+    /**
+     * @return the output file of an input file, at the same path relative to the data set directory
+     */
+    private static File getOutputFile( final String path, final File directory, final File outputDirectory )
+    {
+        final String name = KlbPacker.getMemberName( path, directory );
+        return new File( outputDirectory, name.startsWith( File.separator ) ? name.substring( 1 ) : name );
+    }
+
+    /**
+     * Copies the XML file, pointing each view setup template to the output directory.
+     */
+    private static void writeXml( final File xmlFile, final File outXml, final File directory, final File outputDirectory )
+            throws IOException
+    {
+        final Charset utf8 = Charset.forName( "UTF-8" );
+        final String xml = new String( Files.readAllBytes( xmlFile.toPath() ), utf8 );
+        final Matcher m = Pattern.compile( "<template>([^<]*)</template>" ).matcher( xml );
+        final StringBuffer sb = new StringBuffer();
+        while ( m.find() ) {
+            final File template = getOutputFile( m.group( 1 ).trim(), directory, outputDirectory );
+            m.appendReplacement( sb, Matcher.quoteReplacement( "<template>" + template.getAbsolutePath() + "</template>" ) );
+        }
+        m.appendTail( sb );
+        Files.write( outXml.toPath(), sb.toString().getBytes( utf8 ) );
+    }
+
+    public static void main( final String[] args )
+    {
+        if ( args.length < 2 ) {
+            System.out.println( "Usage: KlbTranscoder dataset.xml output-directory [blockSize (x,y,z|auto)] [compression (keep|zlib|none|bzip2)] [threads] [memoryMB]" );
+            return;
+        }
+        final String blockSize = args.length > 2 ? args[ 2 ] : "auto";
+        final String compression = args.length > 3 ? args[ 3 ] : "zlib";
+        final int numThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : Runtime.getRuntime().availableProcessors();
+        final int memoryMB = args.length > 5 ? Integer.parseInt( args[ 5 ] ) : 0;
+        final File result = new KlbTranscoder().process( new File( args[ 0 ] ), new File( args[ 1 ] ), blockSize, compression, numThreads, memoryMB );
+        System.exit( result != null ? 0 : 1 );
+    }
+}
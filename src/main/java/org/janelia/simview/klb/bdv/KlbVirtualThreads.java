@@ -0,0 +1,81 @@
+package org.janelia.simview.klb.bdv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that run each task on a new virtual thread, on Java 21
+ * and later. Looked up by reflection, so that the plugin still builds and
+ * runs on Java 8.
+ * <p>
+ * A blocked virtual thread releases its carrier thread, so thousands of
+ * outstanding block reads cost thousands of small stacks rather than
+ * thousands of platform threads. Virtual threads are for waiting on I/O
+ * only: decoding stays on a bounded pool of platform threads.
+ */
+public class KlbVirtualThreads
+{
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, newThreadPerTaskExecutor = null;
+        try {
+            final Class< ? > builder = Class.forName( "java.lang.Thread$Builder" );
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            name = builder.getMethod( "name", String.class, long.class );
+            factory = builder.getMethod( "factory" );
+            newThreadPerTaskExecutor = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class );
+        } catch ( ClassNotFoundException ex ) {
+            // before Java 21
+        } catch ( NoSuchMethodException ex ) {
+            // before Java 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private KlbVirtualThreads()
+    {
+    }
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    public static boolean isAvailable()
+    {
+        if ( NEW_THREAD_PER_TASK_EXECUTOR == null ) {
+            return false;
+        }
+        // preview in Java 19 and 20, ofVirtual() throws unless enabled
+        try {
+            OF_VIRTUAL.invoke( null );
+            return true;
+        } catch ( Exception ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * @param name prefix of thread names, numbered from 0
+     * @return executor starting a virtual thread per task, or null if virtual threads are not available
+     */
+    public static ExecutorService newThreadPerTaskExecutor( final String name )
+    {
+        if ( !isAvailable() ) {
+            return null;
+        }
+        try {
+            final Object builder = NAME.invoke( OF_VIRTUAL.invoke( null ), name + "-", 0L );
+            return ( ExecutorService ) NEW_THREAD_PER_TASK_EXECUTOR.invoke( null, FACTORY.invoke( builder ) );
+        } catch ( Exception ex ) {
+            return null;
+        }
+    }
+}
@@ -6,19 +6,105 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.janelia.simview.klb.KLB;
 
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class KlbVolatileArrayLoader< T extends RealType< T > & NativeType< T >, V extends Volatile< T > & NativeType< V >, A > implements CacheArrayLoader< A >
 {
-    protected final KLB klb = KLB.newInstance();
+    // merged reads may decode at most this fraction of voxels that no request asked for
+    private static final double MAX_COALESCED_WASTE = 0.25;
+    private static final long MAX_COALESCED_ELEMENTS = 64L * 1024 * 1024;
+    private static final long MAX_RANGE_SAMPLE_ELEMENTS = 16L * 1024 * 1024;
+    // scheduler priority of idle reads, after all levels
+    private static final int IDLE_PRIORITY = Integer.MAX_VALUE;
+    private static final ThreadLocal< Boolean > IDLE = new ThreadLocal< Boolean >();
+    // where the current load of the thread found its cell, see KlbCellTrace
+    private static final ThreadLocal< int[] > SOURCE = new ThreadLocal< int[] >()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[ 1 ];
+        }
+    };
+
     private final KlbPartitionResolver resolver;
-    private int
-            currentTimePoint = Integer.MIN_VALUE,
-            currentLevel = Integer.MIN_VALUE;
-    private String currentFilePath;
+    private final long coalescingWindowNanos;
+    private final int maxCoalescedCells;
+    private final Map< String, List< CellRequest > > pendingRequests = new HashMap< String, List< CellRequest > >();
+    private volatile KlbCellTiers tiers = KlbCellTiers.tiers();
+    private final AtomicInteger numActiveLoads = new AtomicInteger();
+    private final KlbDisplayEncoding displayEncoding;
+    private final double displayMin, displayMax;
+    private volatile double[] displayRange;
+    private volatile FilePath currentFilePath = new FilePath( Integer.MIN_VALUE, Integer.MIN_VALUE, null, null );
 
     public KlbVolatileArrayLoader( final KlbPartitionResolver resolver )
+    {
+        this( resolver, KlbImgLoaderOptions.options() );
+    }
+
+    public KlbVolatileArrayLoader( final KlbPartitionResolver resolver, final KlbImgLoaderOptions options )
     {
         this.resolver = resolver;
-        klb.setNumThreads( 1 );
+        coalescingWindowNanos = TimeUnit.MICROSECONDS.toNanos( options.getCoalescingWindowMicros() );
+        maxCoalescedCells = options.getMaxCoalescedCells();
+        displayEncoding = options.getDisplayEncoding();
+        displayMin = options.getDisplayMin();
+        displayMax = options.getDisplayMax();
+    }
+
+    /**
+     * Sets the cache tiers and read collaborators of this loader, usually shared with the other loaders
+     * of an image loader. By default, a loader has an empty chain of its own, see {@link KlbCellTiers#tiers()}.
+     *
+     * @param tiers configured chain
+     */
+    public void setCellTiers( final KlbCellTiers tiers )
+    {
+        this.tiers = tiers;
+    }
+
+    public KlbCellTiers getCellTiers()
+    {
+        return tiers;
+    }
+
+    /**
+     * Marks loads of the calling thread as idle, e.g. for background warm-up:
+     * they are scheduled after all other reads, are not coalesced with
+     * interactive requests and do not count as active loads.
+     */
+    public static void setIdle( final boolean idle )
+    {
+        if ( idle ) {
+            IDLE.set( Boolean.TRUE );
+        } else {
+            IDLE.remove();
+        }
+    }
+
+    public static boolean isIdle()
+    {
+        return IDLE.get() != null;
+    }
+
+    /**
+     * @return number of non-idle loads in progress
+     */
+    public int getNumActiveLoads()
+    {
+        return numActiveLoads.get();
     }
 
     public abstract T getType();
@@ -34,25 +120,691 @@ public abstract class KlbVolatileArrayLoader< T extends RealType< T > & NativeTy
             final long[] offset
     )
             throws InterruptedException
+    {
+        return load( timePoint, viewSetup, level, dimensions, offset, false );
+    }
+
+    /**
+     * Loads a cell in the display encoding of this loader, see {@link #isDisplayEncoded()}.
+     */
+    public A loadDisplayArray(
+            final int timePoint,
+            final int viewSetup,
+            final int level,
+            final int[] dimensions,
+            final long[] offset
+    )
+            throws InterruptedException
+    {
+        return load( timePoint, viewSetup, level, dimensions, offset, isDisplayEncoded() );
+    }
+
+    /**
+     * Loads a cell, recording its latency if metrics are set, the request if a trace is set,
+     * and a Flight Recorder event if the recording has them enabled.
+     */
+    private A load( final int timePoint, final int viewSetup, final int level, final int[] dimensions, final long[] offset, final boolean display )
+            throws InterruptedException
+    {
+        final boolean idle = isIdle();
+        final KlbCellTiers t = tiers;
+        final int[] source = SOURCE.get();
+        source[ 0 ] = KlbCellTrace.FILE;
+        final Object previousEvent = KlbFlightRecorder.beginCellLoad( timePoint, viewSetup, level, offset, idle );
+        final long start = System.nanoTime();
+        boolean done = false;
+        try {
+            final A cell = loadRetained( t, timePoint, viewSetup, level, dimensions, offset, display );
+            done = true;
+            return cell;
+        } finally {
+            final long nanos = System.nanoTime() - start;
+            final int outcome = done ? source[ 0 ] : KlbCellTrace.CANCELLED;
+            final long numBytes = ( long ) dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * (display ? getDisplayBytesPerElement() : getBytesPerElement());
+            KlbFlightRecorder.endCellLoad( previousEvent, KlbCellTrace.getSourceName( outcome ), numBytes );
+            final KlbLoaderMetrics m = t.getMetrics();
+            if ( m != null ) {
+                if ( done ) {
+                    m.recordLoad( viewSetup, level, nanos );
+                } else {
+                    m.recordCancelledLoad();
+                }
+            }
+            final KlbCellTrace trace = t.getCellTrace();
+            if ( trace != null ) {
+                trace.record( timePoint, display ? -1 - viewSetup : viewSetup, level, offset, resolver.getNumResolutionLevels( viewSetup ) - 1 - level,
+                        numBytes, outcome, idle, nanos );
+            }
+        }
+    }
+
+    /**
+     * Takes a cell from the retention tier if one is set and has it, else loads it and offers it to the tier.
+     */
+    private A loadRetained( final KlbCellTiers t, final int timePoint, final int viewSetup, final int level, final int[] dimensions, final long[] offset,
+            final boolean display )
+            throws InterruptedException
+    {
+        final boolean idle = isIdle();
+        t.recordRequest( timePoint, viewSetup, level, offset, idle );
+        // display cells are kept apart from full precision cells, like in the cell cache
+        final int setupKey = display ? -1 - viewSetup : viewSetup;
+        final Object retained = t.getRetained( timePoint, setupKey, level, offset, idle );
+        if ( retained != null ) {
+            SOURCE.get()[ 0 ] = KlbCellTrace.RETENTION;
+            return ( A ) retained;
+        }
+        if ( !idle ) {
+            numActiveLoads.incrementAndGet();
+        }
+        final KlbConcurrencyController c = idle ? null : t.getConcurrencyController();
+        final Object buffer;
+        try {
+            if ( c != null ) {
+                final long waitStart = KlbFlightRecorder.phaseStart();
+                c.acquire();
+                KlbFlightRecorder.phaseEnd( KlbFlightRecorder.WAIT, waitStart );
+            }
+            final long start = System.nanoTime();
+            try {
+                buffer = loadBuffer( t, timePoint, viewSetup, level, dimensions, offset, idle );
+            } finally {
+                if ( c != null ) {
+                    c.release( System.nanoTime() - start, ( long ) dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * getBytesPerElement() );
+                }
+            }
+        } finally {
+            if ( !idle ) {
+                numActiveLoads.decrementAndGet();
+            }
+        }
+        final A cell = display ? encodeForDisplay( buffer, displayEncoding, getDisplayRange( viewSetup ) ) : wrap( buffer );
+        final long numBytes = ( long ) dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * (display ? getDisplayBytesPerElement() : getBytesPerElement());
+        t.retain( timePoint, setupKey, level, resolver.getNumResolutionLevels( viewSetup ) - 1 - level, offset, cell, numBytes );
+        return cell;
+    }
+
+    /**
+     * @return whether volatile images of this loader should be cached in a compact display encoding
+     */
+    public boolean isDisplayEncoded()
+    {
+        return displayEncoding != KlbDisplayEncoding.NONE && supportsDisplayEncoding( displayEncoding );
+    }
+
+    public KlbDisplayEncoding getDisplayEncoding()
+    {
+        return displayEncoding;
+    }
+
+    /**
+     * @return bytes per voxel of cells loaded with {@link #loadDisplayArray(int, int, int, int[], long[])}
+     */
+    public int getDisplayBytesPerElement()
+    {
+        if ( !isDisplayEncoded() ) {
+            return getBytesPerElement();
+        }
+        return displayEncoding == KlbDisplayEncoding.UINT8 ? 1 : 2;
+    }
+
+    /**
+     * Intensity range mapped to the 8 bit display encoding: the range set in the options if any,
+     * else minimum and maximum of (the center of) the coarsest level of the first time point.
+     *
+     * @return min and max
+     */
+    public double[] getDisplayRange( final int viewSetup )
+    {
+        double[] range = displayRange;
+        if ( range == null ) {
+            synchronized ( this ) {
+                range = displayRange;
+                if ( range == null ) {
+                    range = computeDisplayRange( viewSetup );
+                    if ( !(range[ 1 ] > range[ 0 ]) ) {
+                        range = new double[]{ range[ 0 ], range[ 0 ] + 1 };
+                    }
+                    displayRange = range;
+                }
+            }
+        }
+        return range;
+    }
+
+    private double[] computeDisplayRange( final int viewSetup )
+    {
+        if ( !Double.isNaN( displayMin ) && !Double.isNaN( displayMax ) ) {
+            return new double[]{ displayMin, displayMax };
+        }
+        final List< Integer > timePoints = resolver.getViewSetupConfig( viewSetup ).getTimePoints();
+        final int timePoint = timePoints == null || timePoints.isEmpty() ? 0 : timePoints.get( 0 );
+        final int level = resolver.getNumResolutionLevels( viewSetup ) - 1;
+        final long[] size = new long[ 3 ];
+        resolver.getImageSize( viewSetup, level, size );
+
+        // at most MAX_RANGE_SAMPLE_ELEMENTS voxels around the center
+        final double shrink = Math.min( 1, Math.cbrt( ( double ) MAX_RANGE_SAMPLE_ELEMENTS / (size[ 0 ] * size[ 1 ] * size[ 2 ]) ) );
+        final long[] min = new long[ 5 ];
+        final long[] max = new long[ 5 ];
+        int numElements = 1;
+        for ( int d = 0; d < 3; ++d ) {
+            final long n = Math.max( 1, ( long ) (size[ d ] * shrink) );
+            min[ d ] = (size[ d ] - n) / 2;
+            max[ d ] = min[ d ] + n - 1;
+            numElements *= n;
+        }
+        final Object buffer = createBuffer( numElements );
+        final String filePath = resolver.getFilePath( timePoint, viewSetup, level );
+        final int[] blockSize = new int[ 3 ];
+        resolver.getBlockSize( viewSetup, level, blockSize );
+        try {
+            readUnscheduled( filePath, blockSize, min, max, buffer );
+        } catch ( IOException ex ) {
+            recordError( filePath, ex );
+            return new double[]{ getType().getMinValue(), getType().getMaxValue() };
+        }
+        final double[] range = getMinMax( buffer );
+        if ( !Double.isNaN( displayMin ) ) {
+            range[ 0 ] = displayMin;
+        }
+        if ( !Double.isNaN( displayMax ) ) {
+            range[ 1 ] = displayMax;
+        }
+        return range;
+    }
+
+    /**
+     * Loads the primitive array of a cell, from the shared or disk cache if possible.
+     */
+    private Object loadBuffer(
+            final KlbCellTiers t,
+            final int timePoint,
+            final int viewSetup,
+            final int level,
+            final int[] dimensions,
+            final long[] offset,
+            final boolean idle
+    )
+            throws InterruptedException
     {
         // Cache current file path
         // viewSetup is always the same index, because instances of this class are not shared between SetupImgLoaders,
-        // so we only need to worry about time and level
-        if ( level != currentLevel || timePoint != currentTimePoint ) {
-            currentFilePath = resolver.getFilePath( timePoint, viewSetup, level );
-            currentLevel = level;
-            currentTimePoint = timePoint;
-        }
-        return loadArray( currentFilePath,
-                new long[]{ offset[ 0 ], offset[ 1 ], offset[ 2 ], 0, 0 },
-                new long[]{
-                        offset[ 0 ] + dimensions[ 0 ] - 1,
-                        offset[ 1 ] + dimensions[ 1 ] - 1,
-                        offset[ 2 ] + dimensions[ 2 ] - 1,
-                        0, 0 },
-                dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
-    }
-
-    public abstract A loadArray( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numElements )
-            throws InterruptedException;
+        // so we only need to worry about time and level. Fetcher threads share the memo, it is replaced as a whole.
+        FilePath memo = currentFilePath;
+        if ( level != memo.level || timePoint != memo.timePoint ) {
+            final int[] blockSize = new int[ 3 ];
+            resolver.getBlockSize( viewSetup, level, blockSize );
+            memo = new FilePath( timePoint, level, resolver.getFilePath( timePoint, viewSetup, level ), blockSize );
+            currentFilePath = memo;
+        }
+        final String filePath = memo.path;
+        final int[] blockSize = memo.blockSize;
+        final ByteBuffer cached = t.getCached( filePath, offset, dimensions, getBytesPerElement(), SOURCE.get() );
+        if ( cached != null ) {
+            final Object buffer = createBuffer( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+            copyFromBytes( cached, buffer );
+            return buffer;
+        }
+        // same as the cache priority of the level, 0 for the coarsest
+        final int priority = idle ? IDLE_PRIORITY : resolver.getNumResolutionLevels( viewSetup ) - 1 - level;
+        if ( !idle && coalescingWindowNanos > 0 && maxCoalescedCells > 1 ) {
+            return loadCoalesced( filePath, blockSize, priority, dimensions, offset );
+        }
+        final CellRequest request = new CellRequest( offset, dimensions );
+        readGroup( filePath, blockSize, priority, Collections.singletonList( request ) );
+        return request.buffer;
+    }
+
+    public A loadArray( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numElements )
+            throws InterruptedException
+    {
+        final Object buffer = createBuffer( numElements );
+        try {
+            readNative( filePath, null, xyzctMin, xyzctMax, buffer );
+        } catch ( IOException ex ) {
+            // fall through, return what was read
+            recordError( filePath, ex );
+        }
+        return wrap( buffer );
+    }
+
+    /**
+     * Creates the primitive array (byte[], short[], ...) that backs a cell.
+     *
+     * @param numElements number of voxels
+     * @return new primitive array
+     */
+    protected abstract Object createBuffer( final int numElements );
+
+    /**
+     * Reads a region of interest into a primitive array created by {@link #createBuffer(int)}.
+     *
+     * @param klb native reader leased to the calling thread
+     */
+    protected abstract void readROIinPlace( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException;
+
+    /**
+     * Reads a region of interest with a native reader of the decoder pool.
+     *
+     * @param blockSize block size of the file, to split the read across decode threads, or null
+     */
+    private void readNative( final String filePath, final int[] blockSize, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        final KlbCellTiers t = tiers;
+        final KlbDecoderPool pool = t.getDecoderPool();
+        final KlbDecoderPool.Decoder decoder = pool.acquire( filePath, xyzctMin, xyzctMax, blockSize );
+        // the native library reads and decodes in one call
+        final long decodeStart = KlbFlightRecorder.phaseStart();
+        try {
+            readROIinPlace( decoder.getKlb(), filePath, xyzctMin, xyzctMax, buffer );
+        } finally {
+            pool.release( decoder );
+            KlbFlightRecorder.phaseEnd( KlbFlightRecorder.DECODE, decodeStart );
+        }
+        final KlbLoaderMetrics m = t.getMetrics();
+        if ( m != null ) {
+            m.recordBytesRead( decoder.getCompressedBytes() );
+        }
+    }
+
+    private void recordError( final String filePath, final IOException ex )
+    {
+        tiers.recordError( filePath, ex );
+    }
+
+    /**
+     * Wraps a primitive array created by {@link #createBuffer(int)} into a valid volatile access.
+     */
+    protected abstract A wrapBuffer( final Object buffer );
+
+    /**
+     * Wraps little endian voxel data, e.g. a slab of a KlbSlabArena, into a valid volatile access that is a
+     * {@link KlbSlabArena.Owner}.
+     */
+    protected abstract A wrapBytes( final ByteBuffer bytes );
+
+    /**
+     * @return whether {@link #encodeForDisplay(Object, KlbDisplayEncoding, double[])} reduces the data type
+     * of this loader with the given encoding
+     */
+    protected boolean supportsDisplayEncoding( final KlbDisplayEncoding encoding )
+    {
+        return false;
+    }
+
+    /**
+     * Converts a primitive array created by {@link #createBuffer(int)} into a valid volatile access
+     * in a compact display encoding.
+     *
+     * @param range intensity range mapped to the 8 bit encoding
+     */
+    protected A encodeForDisplay( final Object buffer, final KlbDisplayEncoding encoding, final double[] range )
+    {
+        return wrap( buffer );
+    }
+
+    /**
+     * @return minimum and maximum of a primitive array created by {@link #createBuffer(int)}
+     */
+    protected abstract double[] getMinMax( final Object buffer );
+
+    /**
+     * Copies a primitive array created by {@link #createBuffer(int)} into a little endian ByteBuffer,
+     * starting at its current position.
+     */
+    protected abstract void copyToBytes( final Object buffer, final ByteBuffer out );
+
+    /**
+     * Fills a primitive array created by {@link #createBuffer(int)} from a little endian ByteBuffer,
+     * starting at its current position.
+     */
+    protected abstract void copyFromBytes( final ByteBuffer in, final Object buffer );
+
+    /**
+     * Moves the voxels of a cell into a slab of the off-heap arena if one is set and has room,
+     * else wraps the primitive array.
+     */
+    private A wrap( final Object buffer )
+    {
+        final KlbSlabArena arena = tiers.getSlabArena();
+        if ( arena != null ) {
+            final KlbSlabArena.Slab slab = arena.allocate( Array.getLength( buffer ) * getBytesPerElement() );
+            if ( slab != null ) {
+                copyToBytes( buffer, slab.getBuffer() );
+                final A access = wrapBytes( slab.getBuffer() );
+                slab.setOwner( ( KlbSlabArena.Owner ) access );
+                return access;
+            }
+        }
+        return wrapBuffer( buffer );
+    }
+
+    /**
+     * Stores a read cell in the disk cache and the shared cache, if set.
+     */
+    private void storeInCaches( final String filePath, final CellRequest request )
+    {
+        final KlbCellTiers t = tiers;
+        if ( !t.isCaching() ) {
+            return;
+        }
+        final ByteBuffer bytes = ByteBuffer.allocate( request.numElements() * getBytesPerElement() ).order( ByteOrder.LITTLE_ENDIAN );
+        copyToBytes( request.buffer, bytes );
+        t.putCached( filePath, request.offset, request.dimensions, bytes );
+    }
+
+    /**
+     * Waits up to the coalescing window for requests to join a batch. Ends early when no other load of this
+     * loader is in progress that could join, and when a quarter of the window passes without the batch growing,
+     * so that a lone request on fast storage is not delayed.
+     */
+    private void awaitBatch( final List< CellRequest > batch )
+            throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + coalescingWindowNanos;
+        final long step = Math.max( 1, coalescingWindowNanos / 4 );
+        int size;
+        synchronized ( pendingRequests ) {
+            size = batch.size();
+        }
+        while ( size < maxCoalescedCells && numActiveLoads.get() > size ) {
+            final long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 ) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep( Math.min( step, remaining ) );
+            final int newSize;
+            synchronized ( pendingRequests ) {
+                newSize = batch.size();
+            }
+            if ( newSize == size ) {
+                return;
+            }
+            size = newSize;
+        }
+    }
+
+    /**
+     * Queues the request with other pending requests for the same file.
+     * The first request for a file waits up to the coalescing window (see awaitBatch),
+     * then reads all queued cells with as few ROI reads as possible
+     * and hands each waiting request its part.
+     */
+    private Object loadCoalesced( final String filePath, final int[] blockSize, final int priority, final int[] dimensions, final long[] offset )
+            throws InterruptedException
+    {
+        final CellRequest request = new CellRequest( offset, dimensions );
+        List< CellRequest > batch;
+        boolean isLeader = false;
+        synchronized ( pendingRequests ) {
+            batch = pendingRequests.get( filePath );
+            if ( batch == null || batch.size() >= maxCoalescedCells ) {
+                batch = new ArrayList< CellRequest >();
+                pendingRequests.put( filePath, batch );
+                isLeader = true;
+            }
+            batch.add( request );
+        }
+
+        final long waitStart = KlbFlightRecorder.phaseStart();
+        if ( isLeader ) {
+            boolean interrupted = false;
+            try {
+                awaitBatch( batch );
+            } catch ( InterruptedException ex ) {
+                // other requests are waiting on this batch, read it anyway
+                interrupted = true;
+            }
+            KlbFlightRecorder.phaseEnd( KlbFlightRecorder.WAIT, waitStart );
+            synchronized ( pendingRequests ) {
+                if ( pendingRequests.get( filePath ) == batch ) {
+                    pendingRequests.remove( filePath );
+                }
+            }
+            readBatch( filePath, blockSize, priority, batch );
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        request.done.await();
+        if ( !isLeader ) {
+            // read by the leader of the batch
+            KlbFlightRecorder.phaseEnd( KlbFlightRecorder.WAIT, waitStart );
+        }
+        return request.buffer;
+    }
+
+    private void readBatch( final String filePath, final int[] blockSize, final int priority, final List< CellRequest > batch )
+    {
+        try {
+            for ( final List< CellRequest > group : groupAdjacent( batch ) ) {
+                readGroup( filePath, blockSize, priority, group );
+            }
+        } finally {
+            for ( final CellRequest request : batch ) {
+                if ( request.buffer == null ) {
+                    request.buffer = createBuffer( request.numElements() );
+                }
+                request.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Greedily merges requests whose common bounding box is mostly covered by the requests themselves.
+     */
+    private static List< List< CellRequest > > groupAdjacent( final List< CellRequest > batch )
+    {
+        final List< List< CellRequest > > groups = new ArrayList< List< CellRequest > >();
+        final List< long[] > groupBounds = new ArrayList< long[] >();
+        final List< Long > groupElements = new ArrayList< Long >();
+        for ( final CellRequest request : batch ) {
+            boolean merged = false;
+            for ( int i = 0; i < groups.size() && !merged; ++i ) {
+                final long[] bounds = union( groupBounds.get( i ), request.bounds() );
+                final long bboxElements = numElements( bounds );
+                final long requestedElements = groupElements.get( i ) + request.numElements();
+                if ( bboxElements <= MAX_COALESCED_ELEMENTS && bboxElements <= requestedElements * (1 + MAX_COALESCED_WASTE) ) {
+                    groups.get( i ).add( request );
+                    groupBounds.set( i, bounds );
+                    groupElements.set( i, requestedElements );
+                    merged = true;
+                }
+            }
+            if ( !merged ) {
+                final List< CellRequest > group = new ArrayList< CellRequest >();
+                group.add( request );
+                groups.add( group );
+                groupBounds.add( request.bounds() );
+                groupElements.add( ( long ) request.numElements() );
+            }
+        }
+        return groups;
+    }
+
+    private void readGroup( final String filePath, final int[] blockSize, final int priority, final List< CellRequest > group )
+    {
+        if ( group.size() == 1 ) {
+            final CellRequest request = group.get( 0 );
+            request.buffer = createBuffer( request.numElements() );
+            try {
+                read( filePath, blockSize, priority, request.xyzctMin(), request.xyzctMax(), request.buffer );
+                storeInCaches( filePath, request );
+            } catch ( IOException ex ) {
+                // fall through, return what was read
+                recordError( filePath, ex );
+            }
+            return;
+        }
+
+        long[] bounds = group.get( 0 ).bounds();
+        for ( final CellRequest request : group ) {
+            bounds = union( bounds, request.bounds() );
+        }
+        final Object merged = createBuffer( ( int ) numElements( bounds ) );
+        try {
+            read( filePath, blockSize, priority,
+                    new long[]{ bounds[ 0 ], bounds[ 1 ], bounds[ 2 ], 0, 0 },
+                    new long[]{ bounds[ 3 ], bounds[ 4 ], bounds[ 5 ], 0, 0 },
+                    merged );
+        } catch ( IOException ex ) {
+            // read cells one by one, so that a single bad block does not blank its neighbours
+            for ( final CellRequest request : group ) {
+                readGroup( filePath, blockSize, priority, Collections.singletonList( request ) );
+            }
+            return;
+        }
+
+        final int mergedSizeX = ( int ) (bounds[ 3 ] - bounds[ 0 ] + 1);
+        final int mergedSizeY = ( int ) (bounds[ 4 ] - bounds[ 1 ] + 1);
+        for ( final CellRequest request : group ) {
+            final int[] dims = request.dimensions;
+            final Object buffer = createBuffer( request.numElements() );
+            final int x0 = ( int ) (request.offset[ 0 ] - bounds[ 0 ]);
+            final int y0 = ( int ) (request.offset[ 1 ] - bounds[ 1 ]);
+            final int z0 = ( int ) (request.offset[ 2 ] - bounds[ 2 ]);
+            for ( int z = 0; z < dims[ 2 ]; ++z ) {
+                for ( int y = 0; y < dims[ 1 ]; ++y ) {
+                    final int src = ((z0 + z) * mergedSizeY + y0 + y) * mergedSizeX + x0;
+                    final int dst = (z * dims[ 1 ] + y) * dims[ 0 ];
+                    System.arraycopy( merged, src, buffer, dst, dims[ 0 ] );
+                }
+            }
+            request.buffer = buffer;
+            storeInCaches( filePath, request );
+        }
+    }
+
+    /**
+     * Reads a region of interest, through the I/O scheduler if one is set.
+     */
+    private void read( final String filePath, final int[] blockSize, final int priority, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        final KlbIoScheduler scheduler = tiers.getIoScheduler();
+        if ( scheduler != null ) {
+            final long waitStart = KlbFlightRecorder.phaseStart();
+            try {
+                scheduler.execute( priority, filePath, xyzctMin, xyzctMax, new KlbIoScheduler.Read()
+                {
+                    @Override
+                    public void run() throws IOException
+                    {
+                        KlbFlightRecorder.phaseEnd( KlbFlightRecorder.WAIT, waitStart );
+                        readUnscheduled( filePath, blockSize, xyzctMin, xyzctMax, buffer );
+                    }
+                } );
+                return;
+            } catch ( InterruptedException ex ) {
+                // cells of other requests may depend on this read, do it unscheduled
+                Thread.currentThread().interrupt();
+            }
+        }
+        readUnscheduled( filePath, blockSize, xyzctMin, xyzctMax, buffer );
+    }
+
+    /**
+     * Reads a region of interest with the Java block reader if one is set, else with the native library.
+     */
+    private void readUnscheduled( final String filePath, final int[] blockSize, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        long numElements = 1;
+        for ( int d = 0; d < xyzctMin.length; ++d ) {
+            numElements *= xyzctMax[ d ] - xyzctMin[ d ] + 1;
+        }
+        final KlbCellTiers t = tiers;
+        final KlbLoaderMetrics m = t.getMetrics();
+        if ( m != null ) {
+            m.recordBytesDecoded( numElements * getBytesPerElement() );
+        }
+        final KlbBlockReader reader = t.getBlockReader();
+        if ( reader == null ) {
+            readNative( filePath, blockSize, xyzctMin, xyzctMax, buffer );
+            return;
+        }
+        final ByteBuffer bytes = reader.readROI( filePath, xyzctMin, xyzctMax );
+        if ( bytes.remaining() != numElements * getBytesPerElement() ) {
+            throw new IOException( "Data type of " + filePath + " does not match view setup" );
+        }
+        copyFromBytes( bytes, buffer );
+    }
+
+    private static long[] union( final long[] a, final long[] b )
+    {
+        return new long[]{
+                Math.min( a[ 0 ], b[ 0 ] ), Math.min( a[ 1 ], b[ 1 ] ), Math.min( a[ 2 ], b[ 2 ] ),
+                Math.max( a[ 3 ], b[ 3 ] ), Math.max( a[ 4 ], b[ 4 ] ), Math.max( a[ 5 ], b[ 5 ] ) };
+    }
+
+    private static long numElements( final long[] bounds )
+    {
+        return (bounds[ 3 ] - bounds[ 0 ] + 1) * (bounds[ 4 ] - bounds[ 1 ] + 1) * (bounds[ 5 ] - bounds[ 2 ] + 1);
+    }
+
+    /**
+     * A cell waiting for a coalesced read.
+     */
+    private static class CellRequest
+    {
+        private final long[] offset;
+        private final int[] dimensions;
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private volatile Object buffer;
+
+        private CellRequest( final long[] offset, final int[] dimensions )
+        {
+            this.offset = offset.clone();
+            this.dimensions = dimensions.clone();
+        }
+
+        private int numElements()
+        {
+            return dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+        }
+
+        // xyz min followed by xyz max
+        private long[] bounds()
+        {
+            return new long[]{
+                    offset[ 0 ], offset[ 1 ], offset[ 2 ],
+                    offset[ 0 ] + dimensions[ 0 ] - 1,
+                    offset[ 1 ] + dimensions[ 1 ] - 1,
+                    offset[ 2 ] + dimensions[ 2 ] - 1 };
+        }
+
+        private long[] xyzctMin()
+        {
+            return new long[]{ offset[ 0 ], offset[ 1 ], offset[ 2 ], 0, 0 };
+        }
+
+        private long[] xyzctMax()
+        {
+            return new long[]{
+                    offset[ 0 ] + dimensions[ 0 ] - 1,
+                    offset[ 1 ] + dimensions[ 1 ] - 1,
+                    offset[ 2 ] + dimensions[ 2 ] - 1,
+                    0, 0 };
+        }
+    }
+
+    private static class FilePath
+    {
+        private final int timePoint;
+        private final int level;
+        private final String path;
+        private final int[] blockSize;
+
+        private FilePath( final int timePoint, final int level, final String path, final int[] blockSize )
+        {
+            this.timePoint = timePoint;
+            this.level = level;
+            this.path = path;
+            this.blockSize = blockSize;
+        }
+    }
 }
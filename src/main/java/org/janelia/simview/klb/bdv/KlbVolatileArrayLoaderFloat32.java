@@ -1,22 +1,32 @@
 package org.janelia.simview.klb.bdv;
 
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.VolatileFloatType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< FloatType, VolatileFloatType, VolatileFloatArray >
+public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< FloatType, VolatileFloatType, VolatileFloatAccess >
 {
     private final FloatType type = new FloatType();
     private final VolatileFloatType volatileType = new VolatileFloatType();
     private VolatileFloatArray theEmptyArray = new VolatileFloatArray( 96 * 96 * 8, false );
+    private volatile float[] displayLut;
+    private volatile double[] displayLutRange;
 
     public KlbVolatileArrayLoaderFloat32( final KlbPartitionResolver resolver )
     {
         super( resolver );
     }
 
+    public KlbVolatileArrayLoaderFloat32( final KlbPartitionResolver resolver, final KlbImgLoaderOptions options )
+    {
+        super( resolver, options );
+    }
+
     @Override
     public FloatType getType()
     {
@@ -36,20 +46,95 @@ public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< Float
     }
 
     @Override
-    public VolatileFloatArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
+    {
+        return new float[ numElements ];
+    }
+
+    @Override
+    protected void readROIinPlace( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( float[] ) buffer );
+    }
+
+    @Override
+    protected VolatileFloatAccess wrapBuffer( final Object buffer )
     {
-        final float[] buffer = new float[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileFloatArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileFloatArray( buffer, true );
+        return new VolatileFloatArray( ( float[] ) buffer, true );
+    }
+
+    @Override
+    protected VolatileFloatAccess wrapBytes( final ByteBuffer bytes )
+    {
+        return new KlbVolatileFloatBufferAccess( bytes, true );
+    }
+
+    @Override
+    protected boolean supportsDisplayEncoding( final KlbDisplayEncoding encoding )
+    {
+        return encoding == KlbDisplayEncoding.UINT8 || encoding == KlbDisplayEncoding.BFLOAT16;
+    }
+
+    @Override
+    protected VolatileFloatAccess encodeForDisplay( final Object buffer, final KlbDisplayEncoding encoding, final double[] range )
+    {
+        final float[] in = ( float[] ) buffer;
+        if ( encoding == KlbDisplayEncoding.BFLOAT16 ) {
+            final short[] out = new short[ in.length ];
+            for ( int i = 0; i < in.length; ++i ) {
+                out[ i ] = KlbVolatileBFloat16Access.encode( in[ i ] );
+            }
+            return new KlbVolatileBFloat16Access( out, true );
+        }
+        final byte[] out = new byte[ in.length ];
+        final double scale = 255 / (range[ 1 ] - range[ 0 ]);
+        for ( int i = 0; i < in.length; ++i ) {
+            // NaN maps to 0
+            final long code = Math.round( (in[ i ] - range[ 0 ]) * scale );
+            out[ i ] = ( byte ) Math.max( 0, Math.min( 255, code ) );
+        }
+        return new KlbVolatileQuantizedFloatAccess( out, getDisplayLut( range ), true );
+    }
+
+    private float[] getDisplayLut( final double[] range )
+    {
+        if ( displayLutRange != range ) {
+            final float[] lut = new float[ 256 ];
+            for ( int code = 0; code < lut.length; ++code ) {
+                lut[ code ] = ( float ) (range[ 0 ] + code * (range[ 1 ] - range[ 0 ]) / 255);
+            }
+            displayLut = lut;
+            displayLutRange = range;
+        }
+        return displayLut;
+    }
+
+    @Override
+    protected double[] getMinMax( final Object buffer )
+    {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for ( final float v : ( float[] ) buffer ) {
+            // skips NaN
+            if ( v < min ) {
+                min = v;
+            }
+            if ( v > max ) {
+                max = v;
+            }
         }
+        return min > max ? new double[]{ 0, 1 } : new double[]{ min, max };
+    }
+
+    @Override
+    protected void copyToBytes( final Object buffer, final ByteBuffer out )
+    {
+        out.asFloatBuffer().put( ( float[] ) buffer );
+    }
+
+    @Override
+    protected void copyFromBytes( final ByteBuffer in, final Object buffer )
+    {
+        in.asFloatBuffer().get( ( float[] ) buffer );
     }
 }
@@ -1,22 +1,32 @@
 package org.janelia.simview.klb.bdv;
 
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortArray >
+public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortAccess >
 {
     private final UnsignedShortType type = new UnsignedShortType();
     private final VolatileUnsignedShortType volatileType = new VolatileUnsignedShortType();
     private VolatileShortArray theEmptyArray = new VolatileShortArray( 96 * 96 * 8, false );
+    private volatile short[] displayLut;
+    private volatile double[] displayLutRange;
 
     public KlbVolatileArrayLoaderUInt16( final KlbPartitionResolver resolver )
     {
         super( resolver );
     }
 
+    public KlbVolatileArrayLoaderUInt16( final KlbPartitionResolver resolver, final KlbImgLoaderOptions options )
+    {
+        super( resolver, options );
+    }
+
     @Override
     public UnsignedShortType getType()
     {
@@ -36,20 +46,85 @@ public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< Unsign
     }
 
     @Override
-    public VolatileShortArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
+    {
+        return new short[ numElements ];
+    }
+
+    @Override
+    protected void readROIinPlace( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( short[] ) buffer );
+    }
+
+    @Override
+    protected VolatileShortAccess wrapBuffer( final Object buffer )
+    {
+        return new VolatileShortArray( ( short[] ) buffer, true );
+    }
+
+    @Override
+    protected VolatileShortAccess wrapBytes( final ByteBuffer bytes )
+    {
+        return new KlbVolatileShortBufferAccess( bytes, true );
+    }
+
+    @Override
+    protected boolean supportsDisplayEncoding( final KlbDisplayEncoding encoding )
+    {
+        return encoding == KlbDisplayEncoding.UINT8;
+    }
+
+    @Override
+    protected VolatileShortAccess encodeForDisplay( final Object buffer, final KlbDisplayEncoding encoding, final double[] range )
+    {
+        final short[] in = ( short[] ) buffer;
+        final byte[] out = new byte[ in.length ];
+        final double scale = 255 / (range[ 1 ] - range[ 0 ]);
+        final int min = ( int ) range[ 0 ];
+        for ( int i = 0; i < in.length; ++i ) {
+            final int code = ( int ) Math.round( ((in[ i ] & 0xffff) - min) * scale );
+            out[ i ] = ( byte ) Math.max( 0, Math.min( 255, code ) );
+        }
+        return new KlbVolatileQuantizedShortAccess( out, getDisplayLut( range ), true );
+    }
+
+    private short[] getDisplayLut( final double[] range )
+    {
+        if ( displayLutRange != range ) {
+            final short[] lut = new short[ 256 ];
+            for ( int code = 0; code < lut.length; ++code ) {
+                final long v = Math.round( range[ 0 ] + code * (range[ 1 ] - range[ 0 ]) / 255 );
+                lut[ code ] = ( short ) Math.max( 0, Math.min( 65535, v ) );
+            }
+            displayLut = lut;
+            displayLutRange = range;
+        }
+        return displayLut;
+    }
+
+    @Override
+    protected double[] getMinMax( final Object buffer )
     {
-        final short[] buffer = new short[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileShortArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileShortArray( buffer, true );
+        int min = 65535, max = 0;
+        for ( final short s : ( short[] ) buffer ) {
+            final int v = s & 0xffff;
+            min = Math.min( min, v );
+            max = Math.max( max, v );
         }
+        return new double[]{ min, max };
+    }
+
+    @Override
+    protected void copyToBytes( final Object buffer, final ByteBuffer out )
+    {
+        out.asShortBuffer().put( ( short[] ) buffer );
+    }
+
+    @Override
+    protected void copyFromBytes( final ByteBuffer in, final Object buffer )
+    {
+        in.asShortBuffer().get( ( short[] ) buffer );
     }
 }
@@ -1,12 +1,15 @@
 package org.janelia.simview.klb.bdv;
 
+import net.imglib2.img.basictypeaccess.volatiles.VolatileByteAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray >
+public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteAccess >
 {
     private final UnsignedByteType type = new UnsignedByteType();
     private final VolatileUnsignedByteType volatileType = new VolatileUnsignedByteType();
@@ -17,6 +20,11 @@ public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< Unsigne
         super( resolver );
     }
 
+    public KlbVolatileArrayLoaderUInt8( final KlbPartitionResolver resolver, final KlbImgLoaderOptions options )
+    {
+        super( resolver, options );
+    }
+
     @Override
     public UnsignedByteType getType()
     {
@@ -36,20 +44,51 @@ public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< Unsigne
     }
 
     @Override
-    public VolatileByteArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
+    {
+        return new byte[ numElements ];
+    }
+
+    @Override
+    protected void readROIinPlace( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
     {
-        final byte[] buffer = new byte[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileByteArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileByteArray( buffer, true );
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( byte[] ) buffer );
+    }
+
+    @Override
+    protected VolatileByteAccess wrapBuffer( final Object buffer )
+    {
+        return new VolatileByteArray( ( byte[] ) buffer, true );
+    }
+
+    @Override
+    protected VolatileByteAccess wrapBytes( final ByteBuffer bytes )
+    {
+        return new KlbVolatileByteBufferAccess( bytes, true );
+    }
+
+    @Override
+    protected double[] getMinMax( final Object buffer )
+    {
+        int min = 255, max = 0;
+        for ( final byte b : ( byte[] ) buffer ) {
+            final int v = b & 0xff;
+            min = Math.min( min, v );
+            max = Math.max( max, v );
         }
+        return new double[]{ min, max };
+    }
+
+    @Override
+    protected void copyToBytes( final Object buffer, final ByteBuffer out )
+    {
+        out.duplicate().put( ( byte[] ) buffer );
+    }
+
+    @Override
+    protected void copyFromBytes( final ByteBuffer in, final Object buffer )
+    {
+        in.duplicate().get( ( byte[] ) buffer );
     }
 }
@@ -0,0 +1,54 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+
+/**
+ * Volatile float access that stores bfloat16 values, i.e. the upper 16
+ * bits of IEEE 754 floats: full float range, 8 significant bits.
+ */
+public class KlbVolatileBFloat16Access implements VolatileFloatAccess
+{
+    private final short[] data;
+    private final boolean isValid;
+
+    public KlbVolatileBFloat16Access( final short[] data, final boolean isValid )
+    {
+        this.data = data;
+        this.isValid = isValid;
+    }
+
+    /**
+     * @return bfloat16 nearest to value, ties to even
+     */
+    public static short encode( final float value )
+    {
+        if ( Float.isNaN( value ) ) {
+            return 0x7fc0;
+        }
+        final int bits = Float.floatToRawIntBits( value );
+        return ( short ) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    public static float decode( final short value )
+    {
+        return Float.intBitsToFloat( value << 16 );
+    }
+
+    @Override
+    public float getValue( final int i )
+    {
+        return decode( data[ i ] );
+    }
+
+    @Override
+    public void setValue( final int i, final float value )
+    {
+        data[ i ] = encode( value );
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return isValid;
+    }
+}
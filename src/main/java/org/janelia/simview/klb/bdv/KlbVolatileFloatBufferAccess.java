@@ -0,0 +1,62 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Volatile float access backed by a ByteBuffer, e.g. a slab of a KlbSlabArena,
+ * so that the voxels of a cell are kept outside of the Java heap.
+ */
+public class KlbVolatileFloatBufferAccess implements VolatileFloatAccess, KlbSlabArena.Owner
+{
+    // replaced by a heap copy when the arena gives the slab to another cell
+    private volatile ByteBuffer buffer;
+    private final boolean isValid;
+
+    /**
+     * @param buffer  voxel data, starting at index 0, in little endian order
+     * @param isValid whether the data is valid
+     */
+    public KlbVolatileFloatBufferAccess( final ByteBuffer buffer, final boolean isValid )
+    {
+        this.buffer = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        this.isValid = isValid;
+    }
+
+    @Override
+    public float getValue( final int i )
+    {
+        return buffer.getFloat( i * 4 );
+    }
+
+    @Override
+    public void setValue( final int i, final float value )
+    {
+        buffer.putFloat( i * 4, value );
+    }
+
+    @Override
+    public void moveToHeap()
+    {
+        final ByteBuffer heap = ByteBuffer.allocate( buffer.limit() ).order( ByteOrder.LITTLE_ENDIAN );
+        heap.put( buffer.duplicate() );
+        heap.flip();
+        buffer = heap;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return isValid;
+    }
+
+    /**
+     * @return number of voxels
+     */
+    public int size()
+    {
+        return buffer.limit() / 4;
+    }
+}
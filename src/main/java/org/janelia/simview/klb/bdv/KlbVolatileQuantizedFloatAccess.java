@@ -0,0 +1,57 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+
+/**
+ * Volatile float access that stores 8 bit codes and maps them to float
+ * values through a 256 entry lookup table.
+ */
+public class KlbVolatileQuantizedFloatAccess implements VolatileFloatAccess
+{
+    private final byte[] data;
+    private final float[] lut;
+    private final boolean isValid;
+
+    /**
+     * @param data    8 bit codes
+     * @param lut     value of each code, ascending
+     * @param isValid whether the data is valid
+     */
+    public KlbVolatileQuantizedFloatAccess( final byte[] data, final float[] lut, final boolean isValid )
+    {
+        this.data = data;
+        this.lut = lut;
+        this.isValid = isValid;
+    }
+
+    @Override
+    public float getValue( final int i )
+    {
+        return lut[ data[ i ] & 0xff ];
+    }
+
+    @Override
+    public void setValue( final int i, final float value )
+    {
+        // nearest code
+        int lo = 0, hi = lut.length - 1;
+        while ( lo < hi ) {
+            final int mid = (lo + hi) >>> 1;
+            if ( lut[ mid ] < value ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if ( lo > 0 && value - lut[ lo - 1 ] < lut[ lo ] - value ) {
+            --lo;
+        }
+        data[ i ] = ( byte ) lo;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return isValid;
+    }
+}
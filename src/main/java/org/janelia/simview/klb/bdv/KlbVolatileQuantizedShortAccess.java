@@ -0,0 +1,58 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+
+/**
+ * Volatile short access that stores 8 bit codes and maps them to 16 bit
+ * values through a 256 entry lookup table.
+ */
+public class KlbVolatileQuantizedShortAccess implements VolatileShortAccess
+{
+    private final byte[] data;
+    private final short[] lut;
+    private final boolean isValid;
+
+    /**
+     * @param data    8 bit codes
+     * @param lut     value of each code, ascending
+     * @param isValid whether the data is valid
+     */
+    public KlbVolatileQuantizedShortAccess( final byte[] data, final short[] lut, final boolean isValid )
+    {
+        this.data = data;
+        this.lut = lut;
+        this.isValid = isValid;
+    }
+
+    @Override
+    public short getValue( final int i )
+    {
+        return lut[ data[ i ] & 0xff ];
+    }
+
+    @Override
+    public void setValue( final int i, final short value )
+    {
+        // nearest code
+        final int v = value & 0xffff;
+        int lo = 0, hi = lut.length - 1;
+        while ( lo < hi ) {
+            final int mid = (lo + hi) >>> 1;
+            if ( (lut[ mid ] & 0xffff) < v ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if ( lo > 0 && v - (lut[ lo - 1 ] & 0xffff) < (lut[ lo ] & 0xffff) - v ) {
+            --lo;
+        }
+        data[ i ] = ( byte ) lo;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return isValid;
+    }
+}
@@ -0,0 +1,62 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Volatile short access backed by a ByteBuffer, e.g. a slab of a KlbSlabArena,
+ * so that the voxels of a cell are kept outside of the Java heap.
+ */
+public class KlbVolatileShortBufferAccess implements VolatileShortAccess, KlbSlabArena.Owner
+{
+    // replaced by a heap copy when the arena gives the slab to another cell
+    private volatile ByteBuffer buffer;
+    private final boolean isValid;
+
+    /**
+     * @param buffer  voxel data, starting at index 0, in little endian order
+     * @param isValid whether the data is valid
+     */
+    public KlbVolatileShortBufferAccess( final ByteBuffer buffer, final boolean isValid )
+    {
+        this.buffer = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        this.isValid = isValid;
+    }
+
+    @Override
+    public short getValue( final int i )
+    {
+        return buffer.getShort( i * 2 );
+    }
+
+    @Override
+    public void setValue( final int i, final short value )
+    {
+        buffer.putShort( i * 2, value );
+    }
+
+    @Override
+    public void moveToHeap()
+    {
+        final ByteBuffer heap = ByteBuffer.allocate( buffer.limit() ).order( ByteOrder.LITTLE_ENDIAN );
+        heap.put( buffer.duplicate() );
+        heap.flip();
+        buffer = heap;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return isValid;
+    }
+
+    /**
+     * @return number of voxels
+     */
+    public int size()
+    {
+        return buffer.limit() / 2;
+    }
+}
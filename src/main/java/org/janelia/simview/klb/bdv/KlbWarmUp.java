@@ -0,0 +1,187 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.export.ProgressWriter;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the coarsest level of every view setup for every time point in
+ * the background, so that the first pass through the time slider does not
+ * show black frames.
+ * <p>
+ * Runs on a single daemon thread of minimum priority. Its reads are marked
+ * idle (see {@link KlbVolatileArrayLoader#setIdle(boolean)}): they are
+ * scheduled after all interactive reads, and the warm-up pauses while any
+ * array loader serves an interactive request. Cells go through the cell
+ * cache like the viewer's own requests; with a KlbCellRetention they are
+ * also pinned there. Stops after maxBytes of cells.
+ */
+public class KlbWarmUp implements Runnable
+{
+    private static final long PAUSE_MILLIS = 5;
+
+    private final KlbImgLoader imgLoader;
+    private final long maxBytes;
+    private final ProgressWriter progressWriter;
+    private final Thread thread;
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+    private volatile double progress = 0;
+    private volatile long loadedBytes = 0;
+
+    /**
+     * @param imgLoader      image loader to warm up
+     * @param maxBytes       memory cap
+     * @param progressWriter receives progress, or null
+     */
+    public KlbWarmUp( final KlbImgLoader imgLoader, final long maxBytes, final ProgressWriter progressWriter )
+    {
+        this.imgLoader = imgLoader;
+        this.maxBytes = maxBytes;
+        this.progressWriter = progressWriter;
+        thread = new Thread( this, "klb-warm-up" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Stops the warm-up after the cell currently loading.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * @return fraction of (time point, view setup) pairs done
+     */
+    public double getProgress()
+    {
+        return progress;
+    }
+
+    public long getLoadedBytes()
+    {
+        return loadedBytes;
+    }
+
+    /**
+     * Waits for the warm-up to finish.
+     */
+    public void join()
+            throws InterruptedException
+    {
+        thread.join();
+    }
+
+    @Override
+    public void run()
+    {
+        KlbVolatileArrayLoader.setIdle( true );
+        try {
+            final List< int[] > tasks = getTasks();
+            for ( int i = 0; i < tasks.size() && !cancelled && loadedBytes < maxBytes; ++i ) {
+                warmUp( tasks.get( i )[ 0 ], tasks.get( i )[ 1 ] );
+                progress = ( double ) (i + 1) / tasks.size();
+                if ( progressWriter != null ) {
+                    progressWriter.setProgress( progress );
+                }
+            }
+        } catch ( InterruptedException ex ) {
+            // cancelled
+        } finally {
+            KlbVolatileArrayLoader.setIdle( false );
+            done = true;
+        }
+    }
+
+    /**
+     * @return (time point, view setup) pairs, time point major, so that the time line fills up evenly across setups
+     */
+    private List< int[] > getTasks()
+    {
+        final KlbPartitionResolver resolver = imgLoader.getResolver();
+        int minTimePoint = Integer.MAX_VALUE, maxTimePoint = Integer.MIN_VALUE;
+        for ( int setup = 0; setup < resolver.getNumViewSetups(); ++setup ) {
+            final List< Integer > timePoints = resolver.getViewSetupConfig( setup ).getTimePoints();
+            if ( timePoints == null ) {
+                continue;
+            }
+            for ( final int t : timePoints ) {
+                minTimePoint = Math.min( minTimePoint, t );
+                maxTimePoint = Math.max( maxTimePoint, t );
+            }
+        }
+        final List< int[] > tasks = new ArrayList< int[] >();
+        for ( int t = minTimePoint; t <= maxTimePoint; ++t ) {
+            for ( int setup = 0; setup < resolver.getNumViewSetups(); ++setup ) {
+                final List< Integer > timePoints = resolver.getViewSetupConfig( setup ).getTimePoints();
+                if ( timePoints != null && timePoints.contains( t ) && imgLoader.getSetupImgLoader( setup ) != null ) {
+                    tasks.add( new int[]{ t, setup } );
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Touches one voxel of every cell of the coarsest level, which loads the cell.
+     */
+    private void warmUp( final int timePoint, final int setup )
+            throws InterruptedException
+    {
+        final KlbImgLoader.KlbSetupImgLoader< ?, ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( setup );
+        final KlbPartitionResolver resolver = imgLoader.getResolver();
+        final int level = resolver.getNumResolutionLevels( setup ) - 1;
+        final long[] imageSize = new long[ 3 ];
+        final int[] blockSize = new int[ 3 ];
+        resolver.getImageSize( setup, level, imageSize );
+        resolver.getBlockSize( setup, level, blockSize );
+        final int bytesPerElement = setupImgLoader.getDisplayBytesPerElement();
+
+        final RandomAccessibleInterval< ? > img = setupImgLoader.getWarmUpImage( timePoint, level );
+        final RandomAccess< ? > access = img.randomAccess();
+        final long[] position = new long[ 3 ];
+        for ( position[ 2 ] = 0; position[ 2 ] < imageSize[ 2 ]; position[ 2 ] += blockSize[ 2 ] ) {
+            for ( position[ 1 ] = 0; position[ 1 ] < imageSize[ 1 ]; position[ 1 ] += blockSize[ 1 ] ) {
+                for ( position[ 0 ] = 0; position[ 0 ] < imageSize[ 0 ]; position[ 0 ] += blockSize[ 0 ] ) {
+                    if ( cancelled ) {
+                        throw new InterruptedException();
+                    }
+                    while ( imgLoader.getNumActiveLoads() > 0 ) {
+                        Thread.sleep( PAUSE_MILLIS );
+                    }
+                    access.setPosition( position );
+                    access.get();
+                    long numElements = 1;
+                    for ( int d = 0; d < 3; ++d ) {
+                        numElements *= Math.min( blockSize[ d ], imageSize[ d ] - position[ d ] );
+                    }
+                    loadedBytes += numElements * bytesPerElement;
+                    if ( loadedBytes >= maxBytes ) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
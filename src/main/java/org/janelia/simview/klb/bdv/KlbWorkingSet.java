@@ -0,0 +1,348 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.RandomAccess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which cells a session loads, and replays them as background
+ * prefetch when the data set is opened again.
+ * <p>
+ * Array loaders count every interactive cell load by (time point, view
+ * setup, level, cell offset). On {@link KlbImgLoader#close()} the most
+ * frequently loaded cells are saved to a small binary file in a cache
+ * directory, named by a hash of the file path templates of the data set.
+ * When the data set is opened again, the saved cells are loaded in rank
+ * order on a background thread, with idle priority like KlbWarmUp.
+ */
+public class KlbWorkingSet
+{
+    private static final int MAGIC = 0x4b4c4257; // "KLBW"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".workingset";
+    private static final long PAUSE_MILLIS = 5;
+
+    private final Map< CellKey, int[] > counts = new HashMap< CellKey, int[] >();
+
+    /**
+     * Counts a load of a cell.
+     */
+    public void record( final int timePoint, final int setup, final int level, final long[] offset )
+    {
+        final CellKey key = new CellKey( timePoint, setup, level, offset[ 0 ], offset[ 1 ], offset[ 2 ], 0 );
+        synchronized ( counts ) {
+            final int[] count = counts.get( key );
+            if ( count == null ) {
+                counts.put( key, new int[]{ 1 } );
+            } else {
+                ++count[ 0 ];
+            }
+        }
+    }
+
+    /**
+     * @param maxNumCells maximum number of cells
+     * @return recorded cells, most frequently loaded first
+     */
+    public List< CellKey > getRanked( final int maxNumCells )
+    {
+        final List< CellKey > keys = new ArrayList< CellKey >();
+        synchronized ( counts ) {
+            for ( final Map.Entry< CellKey, int[] > entry : counts.entrySet() ) {
+                final CellKey key = entry.getKey();
+                keys.add( new CellKey( key.timePoint, key.setup, key.level, key.x, key.y, key.z, entry.getValue()[ 0 ] ) );
+            }
+        }
+        Collections.sort( keys, new Comparator< CellKey >()
+        {
+            @Override
+            public int compare( final CellKey a, final CellKey b )
+            {
+                if ( a.count != b.count ) {
+                    return a.count > b.count ? -1 : 1;
+                }
+                // coarser levels first among equals, they are cheap and cover more
+                return b.level - a.level;
+            }
+        } );
+        return keys.size() > maxNumCells ? new ArrayList< CellKey >( keys.subList( 0, maxNumCells ) ) : keys;
+    }
+
+    public int getNumCells()
+    {
+        synchronized ( counts ) {
+            return counts.size();
+        }
+    }
+
+    /**
+     * Saves the most frequently loaded cells, replacing the file atomically.
+     */
+    public void save( final File file, final int maxNumCells )
+            throws IOException
+    {
+        final List< CellKey > keys = getRanked( maxNumCells );
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() ) {
+            throw new IOException( "Could not create " + parent );
+        }
+        final File tmp = File.createTempFile( file.getName(), ".tmp", parent );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( keys.size() );
+            for ( final CellKey key : keys ) {
+                out.writeInt( key.timePoint );
+                out.writeInt( key.setup );
+                out.writeByte( key.level );
+                out.writeLong( key.x );
+                out.writeLong( key.y );
+                out.writeLong( key.z );
+                out.writeInt( key.count );
+            }
+        } finally {
+            out.close();
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * @return cells of a saved working set, in rank order
+     */
+    public static List< CellKey > load( final File file )
+            throws IOException
+    {
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException( "Not a working set file: " + file );
+            }
+            final int n = in.readInt();
+            final List< CellKey > keys = new ArrayList< CellKey >( n );
+            for ( int i = 0; i < n; ++i ) {
+                final int timePoint = in.readInt();
+                final int setup = in.readInt();
+                final int level = in.readByte();
+                keys.add( new CellKey( timePoint, setup, level, in.readLong(), in.readLong(), in.readLong(), in.readInt() ) );
+            }
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param directory cache directory
+     * @param resolver  data set
+     * @return working set file of the data set
+     */
+    public static File getFile( final File directory, final KlbPartitionResolver resolver )
+    {
+        return new File( directory, getDataSetId( resolver ) + SUFFIX );
+    }
+
+    /**
+     * @return hex SHA-1 of the file path templates of a data set
+     */
+    static String getDataSetId( final KlbPartitionResolver resolver )
+    {
+        final StringBuilder templates = new StringBuilder();
+        for ( int setup = 0; setup < resolver.getNumViewSetups(); ++setup ) {
+            templates.append( resolver.getViewSetupConfig( setup ).getFilePathTemplate() ).append( '\n' );
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( templates.toString().getBytes( Charset.forName( "UTF-8" ) ) );
+            final StringBuilder id = new StringBuilder( 2 * digest.length );
+            for ( final byte b : digest ) {
+                id.append( String.format( "%02x", b & 0xff ) );
+            }
+            return id.toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * Prefetches saved cells on a background thread.
+     */
+    public static class Replay implements Runnable
+    {
+        private final KlbImgLoader imgLoader;
+        private final List< CellKey > keys;
+        private final Thread thread;
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private volatile int numLoaded = 0;
+
+        public Replay( final KlbImgLoader imgLoader, final List< CellKey > keys )
+        {
+            this.imgLoader = imgLoader;
+            this.keys = keys;
+            thread = new Thread( this, "klb-working-set-replay" );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+        }
+
+        public void start()
+        {
+            thread.start();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        public boolean isDone()
+        {
+            return done;
+        }
+
+        public int getNumLoaded()
+        {
+            return numLoaded;
+        }
+
+        public int getNumCells()
+        {
+            return keys.size();
+        }
+
+        @Override
+        public void run()
+        {
+            KlbVolatileArrayLoader.setIdle( true );
+            try {
+                // one image per (time point, setup, level)
+                final Map< List< Integer >, RandomAccess< ? > > accesses = new HashMap< List< Integer >, RandomAccess< ? > >();
+                final long[] position = new long[ 3 ];
+                for ( final CellKey key : keys ) {
+                    if ( cancelled ) {
+                        return;
+                    }
+                    final KlbImgLoader.KlbSetupImgLoader< ?, ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( key.setup );
+                    if ( setupImgLoader == null || key.level >= setupImgLoader.numMipmapLevels() ) {
+                        continue;
+                    }
+                    while ( imgLoader.getNumActiveLoads() > 0 ) {
+                        Thread.sleep( PAUSE_MILLIS );
+                    }
+                    final List< Integer > image = Arrays.asList( key.timePoint, key.setup, key.level );
+                    RandomAccess< ? > access = accesses.get( image );
+                    if ( access == null ) {
+                        access = setupImgLoader.getWarmUpImage( key.timePoint, key.level ).randomAccess();
+                        accesses.put( image, access );
+                    }
+                    position[ 0 ] = key.x;
+                    position[ 1 ] = key.y;
+                    position[ 2 ] = key.z;
+                    access.setPosition( position );
+                    access.get();
+                    ++numLoaded;
+                }
+            } catch ( InterruptedException ex ) {
+                // cancelled
+            } catch ( RuntimeException ex ) {
+                // data set changed since the working set was saved
+            } finally {
+                KlbVolatileArrayLoader.setIdle( false );
+                done = true;
+            }
+        }
+    }
+
+    /**
+     * A recorded cell.
+     */
+    public static class CellKey
+    {
+        private final int timePoint;
+        private final int setup;
+        private final int level;
+        private final long x, y, z;
+        private final int count;
+
+        private CellKey( final int timePoint, final int setup, final int level, final long x, final long y, final long z, final int count )
+        {
+            this.timePoint = timePoint;
+            this.setup = setup;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.count = count;
+        }
+
+        public int getTimePoint()
+        {
+            return timePoint;
+        }
+
+        public int getSetup()
+        {
+            return setup;
+        }
+
+        public int getLevel()
+        {
+            return level;
+        }
+
+        /**
+         * @return min of the cell
+         */
+        public long[] getOffset()
+        {
+            return new long[]{ x, y, z };
+        }
+
+        /**
+         * @return number of recorded loads, 0 while recording
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof CellKey) ) {
+                return false;
+            }
+            final CellKey other = ( CellKey ) o;
+            return timePoint == other.timePoint && setup == other.setup && level == other.level
+                    && x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = 31 * (31 * timePoint + setup) + level;
+            h = 31 * h + ( int ) (x ^ (x >>> 32));
+            h = 31 * h + ( int ) (y ^ (y >>> 32));
+            return 31 * h + ( int ) (z ^ (z >>> 32));
+        }
+    }
+}
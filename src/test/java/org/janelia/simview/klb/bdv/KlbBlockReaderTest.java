@@ -0,0 +1,278 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import org.janelia.simview.klb.KLB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks KlbBlockIndex and KlbBlockReader against files written and read
+ * by the native library, for each codec and for uint8, uint16 and float32.
+ * Blocks do not divide the image size, so the upper border blocks are
+ * partial.
+ */
+@RunWith( Parameterized.class )
+public class KlbBlockReaderTest
+{
+    private static final long[] IMAGE_SIZE = { 37, 29, 11, 1, 1 };
+    private static final long[] BLOCK_SIZE = { 16, 8, 4, 1, 1 };
+
+    // { min, max } of each region, max inclusive
+    private static final long[][][] REGIONS = {
+            { { 0, 0, 0, 0, 0 }, { 36, 28, 10, 0, 0 } }, // whole image
+            { { 5, 3, 1, 0, 0 }, { 30, 20, 9, 0, 0 } }, // spans blocks in all dimensions
+            { { 32, 24, 8, 0, 0 }, { 36, 28, 10, 0, 0 } }, // partial corner block
+            { { 15, 7, 3, 0, 0 }, { 16, 8, 4, 0, 0 } }, // 2x2x2 voxels across eight blocks
+            { { 20, 10, 5, 0, 0 }, { 20, 10, 5, 0, 0 } } // single voxel
+    };
+
+    @Parameterized.Parameters( name = "{0} {1}" )
+    public static Collection< Object[] > parameters()
+    {
+        final List< Object[] > parameters = new ArrayList< Object[] >();
+        for ( final KLB.CompressionType compression : KLB.CompressionType.values() ) {
+            for ( final String type : new String[]{ "uint8", "uint16", "float32" } ) {
+                parameters.add( new Object[]{ compression, type } );
+            }
+        }
+        return parameters;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final KLB.CompressionType compression;
+    private final String type;
+    private KLB klb;
+    private String filePath;
+    private ExecutorService ioPool;
+    private ExecutorService decodePool;
+
+    public KlbBlockReaderTest( final KLB.CompressionType compression, final String type )
+    {
+        this.compression = compression;
+        this.type = type;
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final Img< ? extends RealType< ? > > img;
+        if ( type.equals( "uint8" ) ) {
+            img = ArrayImgs.unsignedBytes( IMAGE_SIZE[ 0 ], IMAGE_SIZE[ 1 ], IMAGE_SIZE[ 2 ] );
+        } else if ( type.equals( "uint16" ) ) {
+            img = ArrayImgs.unsignedShorts( IMAGE_SIZE[ 0 ], IMAGE_SIZE[ 1 ], IMAGE_SIZE[ 2 ] );
+        } else {
+            img = ArrayImgs.floats( IMAGE_SIZE[ 0 ], IMAGE_SIZE[ 1 ], IMAGE_SIZE[ 2 ] );
+        }
+        final long[] position = new long[ 3 ];
+        final Cursor< ? extends RealType< ? > > cursor = img.localizingCursor();
+        while ( cursor.hasNext() ) {
+            cursor.fwd();
+            cursor.localize( position );
+            cursor.get().setReal( getValue( position[ 0 ], position[ 1 ], position[ 2 ] ) );
+        }
+        filePath = new File( folder.getRoot(), type + "-" + compression + ".klb" ).getPath();
+        klb = KLB.newInstance();
+        klb.writeFull( img, filePath, new float[]{ 1, 1, 1, 1, 1 }, BLOCK_SIZE.clone(), compression, null );
+        ioPool = Executors.newFixedThreadPool( 3 );
+        decodePool = Executors.newFixedThreadPool( 2 );
+    }
+
+    @After
+    public void tearDown()
+    {
+        ioPool.shutdown();
+        decodePool.shutdown();
+    }
+
+    @Test
+    public void testBlockIndex() throws Exception
+    {
+        final KlbBlockIndex index = KlbBlockIndex.read( filePath );
+        assertArrayEquals( IMAGE_SIZE, index.getImageSize() );
+        assertArrayEquals( BLOCK_SIZE, index.getBlockSize() );
+        assertEquals( type.equals( "uint8" ) ? 0 : type.equals( "uint16" ) ? 1 : 8, index.getDataType() );
+        assertEquals( compression == KLB.CompressionType.NONE ? KlbBlockReader.COMPRESSION_NONE
+                : compression == KLB.CompressionType.BZIP2 ? KlbBlockReader.COMPRESSION_BZIP2 : KlbBlockReader.COMPRESSION_ZLIB, index.getCompressionType() );
+        assertEquals( 3 * 4 * 3, index.getNumBlocks() );
+        assertEquals( index.getHeaderSize(), index.getBlockOffset( 0 ) );
+        assertEquals( new File( filePath ).length(), index.getFileSize() );
+
+        // block intervals tile the image, border blocks are partial
+        final long[] min = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+        final long[] size = new long[ KlbBlockIndex.NUM_DIMENSIONS ];
+        long numElements = 0;
+        for ( int i = 0; i < index.getNumBlocks(); ++i ) {
+            index.getBlockInterval( i, min, size );
+            numElements += size[ 0 ] * size[ 1 ] * size[ 2 ];
+        }
+        assertEquals( IMAGE_SIZE[ 0 ] * IMAGE_SIZE[ 1 ] * IMAGE_SIZE[ 2 ], numElements );
+        index.getBlockInterval( index.getNumBlocks() - 1, min, size );
+        assertArrayEquals( new long[]{ 32, 24, 8, 0, 0 }, min );
+        assertArrayEquals( new long[]{ 5, 5, 3, 1, 1 }, size );
+
+        // blocks of a region in storage order, x fastest
+        assertArrayEquals( new int[]{ 0, 1, 3, 4, 12, 13, 15, 16 },
+                index.getBlockIndices( new long[]{ 15, 7, 3, 0, 0 }, new long[]{ 16, 8, 4, 0, 0 } ) );
+    }
+
+    @Test
+    public void testGetRuns() throws Exception
+    {
+        final KlbBlockIndex index = KlbBlockIndex.read( filePath );
+        for ( final long[][] region : REGIONS ) {
+            final int[] blockIndices = index.getBlockIndices( region[ 0 ], region[ 1 ] );
+            final List< Integer > missing = new ArrayList< Integer >();
+            for ( int i = 0; i < blockIndices.length; ++i ) {
+                missing.add( i );
+            }
+
+            // one block per run
+            List< int[] > runs = KlbBlockReader.getRuns( index, blockIndices, missing, -1 );
+            assertEquals( blockIndices.length, runs.size() );
+            assertArrayEquals( blockIndices, concat( runs ) );
+
+            // adjacent blocks only, the blocks of a run are contiguous in the file
+            runs = KlbBlockReader.getRuns( index, blockIndices, missing, 0 );
+            assertArrayEquals( blockIndices, concat( runs ) );
+            for ( final int[] run : runs ) {
+                for ( int i = 1; i < run.length; ++i ) {
+                    assertEquals( index.getBlockOffset( run[ i - 1 ] ) + index.getBlockLength( run[ i - 1 ] ), index.getBlockOffset( run[ i ] ) );
+                }
+            }
+            for ( int i = 1; i < runs.size(); ++i ) {
+                final int[] previous = runs.get( i - 1 );
+                final int last = previous[ previous.length - 1 ];
+                assertFalse( index.getBlockOffset( last ) + index.getBlockLength( last ) == index.getBlockOffset( runs.get( i )[ 0 ] ) );
+            }
+
+            // any gap, the file is much smaller than the largest run
+            runs = KlbBlockReader.getRuns( index, blockIndices, missing, Long.MAX_VALUE );
+            assertEquals( 1, runs.size() );
+            assertArrayEquals( blockIndices, runs.get( 0 ) );
+        }
+
+        // only some blocks missing, e.g. others found in KlbCompressedBlockCache
+        final int[] blockIndices = index.getBlockIndices( new long[]{ 0, 0, 0, 0, 0 }, new long[]{ 36, 7, 0, 0, 0 } );
+        final List< int[] > runs = KlbBlockReader.getRuns( index, blockIndices, Arrays.asList( 0, 2 ), 0 );
+        assertEquals( 2, runs.size() );
+        assertArrayEquals( new int[]{ 0 }, runs.get( 0 ) );
+        assertArrayEquals( new int[]{ 2 }, runs.get( 1 ) );
+    }
+
+    @Test
+    public void testReadROI() throws Exception
+    {
+        checkReadROI( new KlbBlockReader( new KlbBlockIndexCache( 4 ), null ) );
+    }
+
+    @Test
+    public void testReadROICached() throws Exception
+    {
+        final KlbBlockReader reader = new KlbBlockReader( new KlbBlockIndexCache( 4 ), new KlbCompressedBlockCache( 1 << 20 ) );
+        checkReadROI( reader );
+        // second pass served from the compressed block cache
+        checkReadROI( reader );
+    }
+
+    @Test
+    public void testReadROIPipelined() throws Exception
+    {
+        checkReadROI( new KlbBlockReader( new KlbBlockIndexCache( 4 ), null, ioPool, decodePool ) );
+    }
+
+    private void checkReadROI( final KlbBlockReader reader ) throws Exception
+    {
+        for ( final long[][] region : REGIONS ) {
+            final long[] min = region[ 0 ];
+            final long[] max = region[ 1 ];
+            final int numElements = ( int ) ((max[ 0 ] - min[ 0 ] + 1) * (max[ 1 ] - min[ 1 ] + 1) * (max[ 2 ] - min[ 2 ] + 1));
+            final ByteBuffer buffer = reader.readROI( filePath, min, max );
+            final String message = type + " " + compression + " " + Arrays.toString( min ) + "-" + Arrays.toString( max );
+            final double[] expected = new double[ numElements ];
+            final double[] actual = new double[ numElements ];
+            final double[] fromNative = new double[ numElements ];
+            int i = 0;
+            for ( long z = min[ 2 ]; z <= max[ 2 ]; ++z ) {
+                for ( long y = min[ 1 ]; y <= max[ 1 ]; ++y ) {
+                    for ( long x = min[ 0 ]; x <= max[ 0 ]; ++x ) {
+                        expected[ i++ ] = getValue( x, y, z );
+                    }
+                }
+            }
+            if ( type.equals( "uint8" ) ) {
+                assertEquals( message, numElements, buffer.remaining() );
+                final byte[] nativeBuffer = new byte[ numElements ];
+                klb.readROIinPlace( filePath, min, max, nativeBuffer );
+                for ( i = 0; i < numElements; ++i ) {
+                    actual[ i ] = buffer.get( i ) & 0xff;
+                    fromNative[ i ] = nativeBuffer[ i ] & 0xff;
+                }
+            } else if ( type.equals( "uint16" ) ) {
+                assertEquals( message, 2 * numElements, buffer.remaining() );
+                final short[] nativeBuffer = new short[ numElements ];
+                klb.readROIinPlace( filePath, min, max, nativeBuffer );
+                for ( i = 0; i < numElements; ++i ) {
+                    actual[ i ] = buffer.getShort( 2 * i ) & 0xffff;
+                    fromNative[ i ] = nativeBuffer[ i ] & 0xffff;
+                }
+            } else {
+                assertEquals( message, 4 * numElements, buffer.remaining() );
+                final float[] nativeBuffer = new float[ numElements ];
+                klb.readROIinPlace( filePath, min, max, nativeBuffer );
+                for ( i = 0; i < numElements; ++i ) {
+                    actual[ i ] = buffer.getFloat( 4 * i );
+                    fromNative[ i ] = nativeBuffer[ i ];
+                }
+            }
+            assertArrayEquals( message, fromNative, actual, 0 );
+            assertArrayEquals( message, expected, actual, 0 );
+        }
+    }
+
+    /**
+     * Distinct values for neighbouring voxels, exact in all three types.
+     */
+    private double getValue( final long x, final long y, final long z )
+    {
+        final long value = (x + 37 * y + 37 * 29 * z) % (type.equals( "uint8" ) ? 251 : 65521);
+        return type.equals( "float32" ) ? value + 0.5 : value;
+    }
+
+    private static int[] concat( final List< int[] > runs )
+    {
+        int n = 0;
+        for ( final int[] run : runs ) {
+            n += run.length;
+        }
+        final int[] all = new int[ n ];
+        int i = 0;
+        for ( final int[] run : runs ) {
+            System.arraycopy( run, 0, all, i, run.length );
+            i += run.length;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,86 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.janelia.simview.klb.KLB;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packs a small time series on several threads and reads every member
+ * back through its container.
+ */
+public class KlbPackerTest
+{
+    private static final int NUM_TIME_POINTS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws Exception
+    {
+        KlbPack.closeAll();
+    }
+
+    @Test
+    public void testPack() throws Exception
+    {
+        final File directory = folder.getRoot();
+        final KLB klb = KLB.newInstance();
+        for ( int t = 0; t < NUM_TIME_POINTS; ++t ) {
+            // sizes differ, so that members start at unaligned offsets
+            final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 40 + t, 30, 10 );
+            final Cursor< UnsignedShortType > cursor = img.cursor();
+            int i = 0;
+            while ( cursor.hasNext() ) {
+                cursor.next().set( (i++ * 7 + t) & 0xffff );
+            }
+            klb.writeFull( img, getFileName( directory, t ), new float[]{ 1, 1, 1, 1, 1 }, new long[]{ 16, 16, 4, 1, 1 },
+                    KLB.CompressionType.BZIP2, null );
+        }
+        final KlbPartitionResolver resolver = new KlbPartitionResolver();
+        assertNotNull( resolver.addViewSetup( getFileName( directory, 0 ), "TM" ) );
+        final File xml = new File( directory, "dataset.xml" );
+        new KlbSpimDataAdapter( resolver ).writeXML( xml.getPath() );
+
+        final File packedXml = new KlbPacker().process( xml, false, 3 );
+        assertNotNull( packedXml );
+        final File container = new File( directory, "dataset" + KlbPack.EXTENSION );
+        assertTrue( container.isFile() );
+        assertEquals( NUM_TIME_POINTS, KlbPack.open( container ).getMemberNames().size() );
+
+        for ( int t = 0; t < NUM_TIME_POINTS; ++t ) {
+            final File file = new File( getFileName( directory, t ) );
+            final byte[] expected = Files.readAllBytes( file.toPath() );
+            final ByteBuffer actual = ByteBuffer.allocate( expected.length );
+            final KlbByteSource source = KlbPack.openMember( KlbPack.getMemberPath( container, file.getName() ) );
+            try {
+                source.read( actual, 0 );
+            } finally {
+                source.close();
+            }
+            assertArrayEquals( file.getName(), expected, actual.array() );
+            assertArrayEquals( KlbBlockIndex.read( file.getPath() ).getImageSize(),
+                    KlbBlockIndex.read( KlbPack.getMemberPath( container, file.getName() ) ).getImageSize() );
+        }
+    }
+
+    private static String getFileName( final File directory, final int timePoint )
+    {
+        return new File( directory, String.format( "img_TM%06d.klb", timePoint ) ).getPath();
+    }
+}